@@ -127,6 +127,9 @@ public class ArchiveManager {
 	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
+	/** If true, unpack the files in each archive into a single IndexedContainer rather than a
+	 * temporary bucket each. */
+	private volatile boolean indexContainers = true;
 
 	/**
 	 * Create an ArchiveManager.
@@ -154,6 +157,10 @@ public class ArchiveManager {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	void setIndexContainers(boolean indexContainers) {
+		this.indexContainers = indexContainers;
+	}
+
 	/** Add an ArchiveHandler by key */
 	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
@@ -224,6 +231,11 @@ public class ArchiveManager {
 		return asi.getReaderBucket();
 	}
 
+	/** @return The number of bytes charged to the cache. */
+	synchronized long getCachedData() {
+		return cachedData;
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
@@ -370,8 +382,11 @@ public class ArchiveManager {
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
+		IndexedContainer.Builder index = null;
 		try {
 			tarIS = new TarArchiveInputStream(data);
+			if(indexContainers)
+				index = new IndexedContainer.Builder(tempBucketFactory, maxCachedData);
 
 			// MINOR: Assumes the first entry in the tarball is a directory.
 			ArchiveEntry entry;
@@ -380,7 +395,7 @@ public class ArchiveManager {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerTAR:		while(true) {
+			while(true) {
 				try {
 				entry = tarIS.getNextEntry();
 				} catch (IllegalArgumentException e) {
@@ -394,47 +409,16 @@ outerTAR:		while(true) {
 					Logger.error(this, "Duplicate key "+name+" in archive "+key);
 					continue;
 				}
-				long size = entry.getSize();
 				if(name.equals(".metadata"))
 					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-
-					try {
-						int readBytes;
-						while((readBytes = tarIS.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerTAR;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-					}
-				}
+				handleElement(ctx, key, name, entry.getSize(), tarIS, buf, index, names, gotElement, element, callback, context);
 			}
 
+			if(index != null) {
+				addIndexedElements(ctx, key, index);
+				index = null;
+				trimStoredData();
+			}
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -448,6 +432,7 @@ outerTAR:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(index != null) index.free();
 			Closer.close(tarIS);
 		}
 	}
@@ -455,8 +440,11 @@ outerTAR:		while(true) {
 	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive");
 		ZipInputStream zis = null;
+		IndexedContainer.Builder index = null;
 		try {
 			zis = new ZipInputStream(data);
+			if(indexContainers)
+				index = new IndexedContainer.Builder(tempBucketFactory, maxCachedData);
 
 			// MINOR: Assumes the first entry in the zip is a directory.
 			ZipEntry entry;
@@ -465,7 +453,7 @@ outerTAR:		while(true) {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerZIP:		while(true) {
+			while(true) {
 				entry = zis.getNextEntry();
 				if(entry == null) break;
 				if(entry.isDirectory()) continue;
@@ -474,47 +462,16 @@ outerZIP:		while(true) {
 					Logger.error(this, "Duplicate key "+name+" in archive "+key);
 					continue;
 				}
-				long size = entry.getSize();
 				if(name.equals(".metadata"))
 					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-					try {
-						
-						int readBytes;
-						while((readBytes = zis.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerZIP;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-					}
-				}
+				handleElement(ctx, key, name, entry.getSize(), zis, buf, index, names, gotElement, element, callback, context);
 			}
 
+			if(index != null) {
+				addIndexedElements(ctx, key, index);
+				index = null;
+				trimStoredData();
+			}
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -528,6 +485,7 @@ outerZIP:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(index != null) index.free();
 			if(zis != null) {
 				try {
 					zis.close();
@@ -538,6 +496,59 @@ outerZIP:		while(true) {
 		}
 	}
 
+	/**
+	 * Extract a single file from an archive. The file we are looking for is stored on its own and
+	 * passed to the callback immediately. The others are appended to the index if there is one and
+	 * it has room, otherwise each is stored in its own bucket.
+	 * @param size The size of the file according to the archive, or -1 if not known.
+	 * @param in The archive stream, positioned at the start of the file.
+	 * @param index If not null, the buffer shared by the files from this archive.
+	 * @param names The names of the files successfully extracted so far. Will be added to.
+	 */
+	private void handleElement(ArchiveStoreContext ctx, FreenetURI key, String name, long size, InputStream in, byte[] buf, IndexedContainer.Builder index, Set<String> names, MutableBoolean gotElement, String element, ArchiveExtractCallback callback, ClientContext context) throws IOException, ArchiveFailureException {
+		boolean wanted = name.equals(element);
+		if(size > maxArchivedFileSize && !wanted) {
+			addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+		} else if(index != null && !wanted && index.hasRoom(size)) {
+			if(index.append(name, in, buf, maxArchivedFileSize))
+				names.add(name);
+			else
+				addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
+		} else {
+			// Read the element
+			long realLen = 0;
+			Bucket output = tempBucketFactory.makeBucket(size);
+			OutputStream out = output.getOutputStream();
+			try {
+				int readBytes;
+				while((readBytes = in.read(buf)) > 0) {
+					realLen += readBytes;
+					// We read the file we are looking for however big it is.
+					if(realLen > maxArchivedFileSize && !wanted) {
+						addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
+						out.close();
+						out = null;
+						output.free();
+						return;
+					}
+					out.write(buf, 0, readBytes);
+				}
+			} finally {
+				if(out != null) out.close();
+			}
+			if(realLen <= maxArchivedFileSize) {
+				addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
+				names.add(name);
+				trimStoredData();
+			} else {
+				// We are here because they asked for this file.
+				callback.gotBucket(output, context);
+				gotElement.value = true;
+				addErrorElement(ctx, key, name, "File too big: "+realLen+" greater than current archived file size limit "+maxArchivedFileSize, true);
+			}
+		}
+	}
+
 	private String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
@@ -643,8 +654,8 @@ outerZIP:		while(true) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
 			if(oldItem != null) {
-				oldItem.close();
 				cachedData -= oldItem.spaceUsed();
+				oldItem.close();
 				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
 			}
 		}
@@ -665,12 +676,44 @@ outerZIP:		while(true) {
 		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
-		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
+		storeItem(element);
+		if(matchBucket != null) {
+			callback.gotBucket(matchBucket, context);
+			gotElement.value = true;
+		}
+		return element;
+	}
+
+	/**
+	 * Add the files which were appended to an IndexedContainer while reading an archive.
+	 * @param index The builder, which must not be used afterwards.
+	 */
+	private void addIndexedElements(ArchiveStoreContext ctx, FreenetURI key, IndexedContainer.Builder index) throws IOException {
+		IndexedContainer container = index.finish();
+		if(container == null) return;
+		if(logMINOR) Logger.minor(this, "Adding "+index.entries().size()+" indexed store elements for "+key);
+		try {
+			for(IndexedContainer.Entry entry : index.entries()) {
+				// Create and add each item atomically, so the container's size is only charged once.
+				synchronized(this) {
+					IndexedArchiveStoreItem element = new IndexedArchiveStoreItem(ctx, key, entry.name, container, entry.offset, entry.length);
+					element.addToContext();
+					storeItem(element);
+				}
+			}
+		} finally {
+			// The items have their own references now.
+			container.release();
+		}
+	}
+
+	private void storeItem(ArchiveStoreItem element) {
+		ArchiveStoreItem oldItem;
 		synchronized (this) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
@@ -681,11 +724,6 @@ outerZIP:		while(true) {
 				oldItem.close();
 			}
 		}
-		if(matchBucket != null) {
-			callback.gotBucket(matchBucket, context);
-			gotElement.value = true;
-		}
-		return element;
 	}
 
 	/**
@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+/**
+ * A file extracted from an archive into an IndexedContainer, shared with the other files from the
+ * same archive.
+ */
+class IndexedArchiveStoreItem extends ArchiveStoreItem {
+
+	private final IndexedContainer container;
+	private final long offset;
+	private final long length;
+	private boolean closed;
+
+	/**
+	 * Call holding the ArchiveManager lock.
+	 * @param container The buffer holding the data. We take a reference to it, which is released
+	 * when the item is closed.
+	 */
+	IndexedArchiveStoreItem(ArchiveStoreContext ctx, FreenetURI key2, String realName, IndexedContainer container, long offset, long length) {
+		super(new ArchiveKey(key2, realName), ctx);
+		container.addItem();
+		this.container = container;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * The buffer is only freed when the last of its items is closed, so that item is charged for
+	 * all of it, and the others for nothing. Called holding the ArchiveManager lock, both when the
+	 * item is added and just before it is closed, so the container is charged exactly once while
+	 * any of its items are cached.
+	 */
+	@Override
+	long spaceUsed() {
+		if(closed) return 0;
+		return container.isLastItem() ? container.size() : 0;
+	}
+
+	@Override
+	void innerClose() {
+		closed = true;
+		container.removeItem();
+	}
+
+	@Override
+	Bucket getDataOrThrow() throws ArchiveFailureException {
+		return getReaderBucket();
+	}
+
+	/** @return Null if the item has been closed. */
+	@Override
+	Bucket getReaderBucket() throws ArchiveFailureException {
+		return container.slice(offset, length);
+	}
+
+}
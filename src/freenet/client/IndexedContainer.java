@@ -0,0 +1,286 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * The files from one archive, unpacked end to end into a single temporary buffer, so that
+ * extracting a container with hundreds of files creates one temp file rather than hundreds. Each
+ * file is read back as a slice of the buffer. The buffer is reference counted, and freed when the
+ * last item and reader using it is freed.
+ * <p>
+ * The whole buffer stays allocated for as long as any of its files is cached, so the cache charges
+ * its full size to whichever item is the last one left, see IndexedArchiveStoreItem.spaceUsed().
+ * </p>
+ */
+class IndexedContainer {
+
+	private final LockableRandomAccessBuffer raf;
+	/** Starts at 1 for the Builder, which releases it once the items have been created. */
+	private final AtomicInteger refs = new AtomicInteger(1);
+	/** The number of IndexedArchiveStoreItem's using the buffer which haven't been closed yet.
+	 * Changed and read only while holding the ArchiveManager lock. */
+	private int items;
+
+	private IndexedContainer(LockableRandomAccessBuffer raf) {
+		this.raf = raf;
+	}
+
+	/** @return The size of the whole buffer, including any space wasted by files which were too big. */
+	long size() {
+		return raf.size();
+	}
+
+	/** An item has been created for one of the files. It must call removeItem() when closed. */
+	void addItem() {
+		if(!retain()) throw new IllegalStateException("Container already freed");
+		items++;
+	}
+
+	/** An item has been closed. */
+	void removeItem() {
+		items--;
+		release();
+	}
+
+	/** @return True if only one item is left using the buffer. */
+	boolean isLastItem() {
+		return items == 1;
+	}
+
+	/** @return False if the buffer has already been freed. */
+	boolean retain() {
+		while(true) {
+			int r = refs.get();
+			if(r == 0) return false;
+			if(refs.compareAndSet(r, r+1)) return true;
+		}
+	}
+
+	void release() {
+		if(refs.decrementAndGet() == 0)
+			raf.free();
+	}
+
+	/**
+	 * Get a read-only Bucket for one file. It holds a reference until it is freed.
+	 * @return Null if the buffer has already been freed.
+	 */
+	Bucket slice(long offset, long length) {
+		if(!retain()) return null;
+		return new SliceBucket(offset, length);
+	}
+
+	/** One file in the buffer. */
+	static final class Entry {
+		final String name;
+		final long offset;
+		final long length;
+
+		Entry(String name, long offset, long length) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Appends files to the buffer while the archive is being read. */
+	static final class Builder {
+
+		private final RandomAccessBucket bucket;
+		private CountedOutputStream out;
+		private final long maxSize;
+		private final List<Entry> entries = new ArrayList<Entry>();
+
+		/**
+		 * @param maxSize Don't accept any more files once this many bytes have been written. Files
+		 * which aren't accepted must be stored some other way.
+		 */
+		Builder(BucketFactory bf, long maxSize) throws IOException {
+			bucket = bf.makeBucket(-1);
+			out = new CountedOutputStream(bucket.getOutputStream());
+			this.maxSize = maxSize;
+		}
+
+		/** Is there room for a file of the given size, or -1 if not known? */
+		boolean hasRoom(long size) {
+			return out.written() + Math.max(size, 0) <= maxSize;
+		}
+
+		/**
+		 * Copy a file into the buffer.
+		 * @return False if the file was longer than maxLength. The bytes already copied are wasted.
+		 */
+		boolean append(String name, InputStream is, byte[] buf, long maxLength) throws IOException {
+			long offset = out.written();
+			int readBytes;
+			while((readBytes = is.read(buf)) > 0) {
+				if(out.written() + readBytes - offset > maxLength) return false;
+				out.write(buf, 0, readBytes);
+			}
+			entries.add(new Entry(name, offset, out.written() - offset));
+			return true;
+		}
+
+		List<Entry> entries() {
+			return entries;
+		}
+
+		/**
+		 * Stop writing. The caller owns the Builder's reference to the returned container, and must
+		 * release() it once the items have each retained their own.
+		 * @return Null if no files were added, in which case the buffer has been freed.
+		 */
+		IndexedContainer finish() throws IOException {
+			out.close();
+			out = null;
+			if(entries.isEmpty()) {
+				bucket.free();
+				return null;
+			}
+			return new IndexedContainer(bucket.toRandomAccessBuffer());
+		}
+
+		/** Free the buffer if finish() hasn't been called, e.g. because the archive was corrupt. */
+		void free() {
+			if(out == null) return;
+			Closer.close(out);
+			out = null;
+			bucket.free();
+		}
+	}
+
+	private class SliceBucket implements Bucket {
+
+		private final long offset;
+		private final long length;
+		private final AtomicBoolean freed = new AtomicBoolean();
+
+		SliceBucket(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return getInputStreamUnbuffered();
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			if(freed.get()) throw new IOException("Already freed");
+			return new SliceInputStream(offset, length);
+		}
+
+		@Override
+		public String getName() {
+			return "IndexedContainer slice "+offset+"+"+length;
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only
+		}
+
+		@Override
+		public void free() {
+			if(freed.compareAndSet(false, true))
+				release();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/** Reads a range of the buffer. Unlike RAFInputStream, returns -1 at the end. */
+	private class SliceInputStream extends InputStream {
+
+		private long position;
+		private final long end;
+
+		SliceInputStream(long offset, long length) {
+			position = offset;
+			end = offset + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if(read(b, 0, 1) < 0) return -1;
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(position >= end) return -1;
+			length = (int) Math.min(length, end - position);
+			raf.pread(position, buf, offset, length);
+			position += length;
+			return length;
+		}
+
+		@Override
+		public long skip(long n) {
+			n = Math.max(0, Math.min(n, end - position));
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+	}
+
+}
@@ -158,6 +158,10 @@ public class InsertContext implements Cloneable, Serializable {
      * because an attacker can usually only identify the datastream once he has the top block, or 
      * once you have announced the key. */
     public boolean earlyEncode;
+    /** If true, when inserting a site, don't insert files which are exactly the same as files
+     * inserted before, e.g. in the last edition; put the metadata they had then in the manifest
+     * instead. Only applies to files inserted separately, not those packed into containers. */
+    public boolean reuseUnchangedFiles;
 	
 	public CompatibilityMode getCompatibilityMode() {
 	    return realCompatMode;
@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The entries of a simple manifest read from binary metadata. They are kept in binary form, sorted
+ * by name, and each is only parsed when it is looked up, so finding one file on a site with tens of
+ * thousands costs a binary search and one small parse. Immutable, so clones of the manifest share
+ * it.
+ */
+final class LazyManifest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Sorted */
+	private final String[] names;
+	/** The binary metadata for each name */
+	private final byte[][] entries;
+
+	/**
+	 * @param entries Binary metadata by name. If a name occurred more than once, the last one
+	 * should be used, as it would be when putting them into a HashMap.
+	 */
+	LazyManifest(TreeMap<String, byte[]> entries) {
+		int size = entries.size();
+		names = new String[size];
+		this.entries = new byte[size][];
+		int i = 0;
+		for(Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			names[i] = entry.getKey();
+			this.entries[i] = entry.getValue();
+			i++;
+		}
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Parse the entry for a name.
+	 * @return A new Metadata, which the caller may modify, or null if there is no such entry.
+	 * @throws MetadataParseException If the entry is invalid.
+	 */
+	Metadata get(String name) throws MetadataParseException {
+		int i = Arrays.binarySearch(names, name);
+		if(i < 0) return null;
+		return Metadata.construct(entries[i]);
+	}
+
+	/** Parse every entry. Only used where the whole manifest is needed. */
+	HashMap<String, Metadata> toMap() throws MetadataParseException {
+		HashMap<String, Metadata> map = new HashMap<String, Metadata>(names.length * 2);
+		for(int i=0;i<names.length;i++)
+			map.put(names[i], Metadata.construct(entries[i]));
+		return map;
+	}
+
+	String[] names() {
+		return names.clone();
+	}
+
+	/** Write the entries in the same format as Metadata.writeTo(), without parsing them. */
+	void writeTo(DataOutputStream dos) throws IOException {
+		dos.writeInt(names.length);
+		for(int i=0;i<names.length;i++) {
+			byte[] nameData = names[i].getBytes("UTF-8");
+			dos.writeShort(nameData.length);
+			dos.write(nameData);
+			dos.writeShort(entries[i].length);
+			dos.write(entries[i]);
+		}
+	}
+
+}
@@ -16,6 +16,7 @@ import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.TreeMap;
 
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -193,6 +194,9 @@ public class Metadata implements Cloneable, Serializable {
 	// Manifests
 	/** Manifest entries by name */
 	HashMap<String, Metadata> manifestEntries;
+	/** Manifest entries read from binary metadata, parsed on demand. Set instead of
+	 * manifestEntries, and shared between clones. */
+	private LazyManifest lazyManifest;
 
 	/** Archive internal redirect: name of file in archive
 	 *  SympolicShortLink: Target name*/
@@ -678,9 +682,9 @@ public class Metadata implements Cloneable, Serializable {
 			if(manifestEntryCount < 0)
 				throw new MetadataParseException("Invalid manifest entry count: "+manifestEntryCount);
 
-			manifestEntries = new HashMap<String, Metadata>();
+			TreeMap<String, byte[]> entries = new TreeMap<String, byte[]>();
 
-			// Parse the sub-Manifest.
+			// Index the sub-Manifest. The entries are parsed when they are looked up.
 
 			if(logMINOR)Logger.minor(this, "Simple manifest, "+manifestEntryCount+" entries");
 
@@ -688,7 +692,7 @@ public class Metadata implements Cloneable, Serializable {
 				short nameLength = dis.readShort();
 				byte[] buf = new byte[nameLength];
 				dis.readFully(buf);
-				String name = new String(buf, "UTF-8").intern();
+				String name = new String(buf, "UTF-8");
 				if(logMINOR) Logger.minor(this, "Entry "+i+" name "+name);
 				short len = dis.readShort();
 				if(len < 0)
@@ -697,9 +701,9 @@ public class Metadata implements Cloneable, Serializable {
 					throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
 				byte[] data = new byte[len];
 				dis.readFully(data);
-				Metadata m = Metadata.construct(data);
-				manifestEntries.put(name, m);
+				entries.put(name, data);
 			}
+			lazyManifest = new LazyManifest(entries);
 			if(logMINOR) Logger.minor(this, "End of manifest"); // Make it easy to search for it!
 		}
 
@@ -1290,27 +1294,33 @@ public class Metadata implements Cloneable, Serializable {
 	}
 
 	/**
-	 * Get the sub-document in a manifest file with the given name.
-	 * @throws MetadataParseException
+	 * Get the sub-document in a manifest file with the given name. If the manifest was read from
+	 * binary metadata, the document is parsed now, and a new copy is returned each time.
+	 * @throws MetadataParseException If the document is invalid.
 	 */
-	public Metadata getDocument(String name) {
+	public Metadata getDocument(String name) throws MetadataParseException {
+		if(lazyManifest != null) return lazyManifest.get(name);
 		return manifestEntries.get(name);
 	}
 
 	/**
 	 * Return and remove a specific document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
-	 * removed, since it is being processed.
+	 * removed, since it is being processed. A manifest read from binary
+	 * metadata is shared between clones and returns a new copy on every
+	 * lookup anyway, so it isn't modified.
+	 * @throws MetadataParseException If the document is invalid.
 	 */
-	public Metadata grabDocument(String name) {
+	public Metadata grabDocument(String name) throws MetadataParseException {
+		if(lazyManifest != null) return lazyManifest.get(name);
 		return manifestEntries.remove(name);
 	}
 
 	/**
 	 * The default document is the one which has an empty name.
-	 * @throws MetadataParseException
+	 * @throws MetadataParseException If the document is invalid.
 	 */
-	public Metadata getDefaultDocument() {
+	public Metadata getDefaultDocument() throws MetadataParseException {
 		return getDocument("");
 	}
 
@@ -1318,18 +1328,19 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove the default document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws MetadataParseException If the document is invalid.
 	 */
-	public Metadata grabDefaultDocument() {
+	public Metadata grabDefaultDocument() throws MetadataParseException {
 		return grabDocument("");
 	}
 
 	/**
      * Get all documents in the manifest (ignores default doc).
-     * @throws MetadataParseException
+     * @throws MetadataParseException If any of the documents is invalid.
      */
-    public HashMap<String, Metadata> getDocuments() {
+    public HashMap<String, Metadata> getDocuments() throws MetadataParseException {
     	HashMap<String, Metadata> docs = new HashMap<String, Metadata>();
-		for (Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
+		for (Map.Entry<String, Metadata> entry: entries().entrySet()) {
         	String st = entry.getKey();
         	if (st.length()>0)
         		docs.put(st, entry.getValue());
@@ -1574,7 +1585,10 @@ public class Metadata implements Cloneable, Serializable {
 			}
 		}
 
-		if(documentType == DocumentType.SIMPLE_MANIFEST) {
+		if(documentType == DocumentType.SIMPLE_MANIFEST && lazyManifest != null) {
+			// Unchanged since we read it.
+			lazyManifest.writeTo(dos);
+		} else if(documentType == DocumentType.SIMPLE_MANIFEST) {
 			dos.writeInt(manifestEntries.size());
 			boolean kill = false;
 			LinkedList<Metadata> unresolvedMetadata = null;
@@ -1726,9 +1740,16 @@ public class Metadata implements Cloneable, Serializable {
 	}
 
 	public int countDocuments() {
+		if(lazyManifest != null) return lazyManifest.size();
 		return manifestEntries.size();
 	}
 
+	/** All the manifest entries, parsing them if necessary. */
+	private Map<String, Metadata> entries() throws MetadataParseException {
+		if(lazyManifest != null) return lazyManifest.toMap();
+		return manifestEntries;
+	}
+
 	/**
 	 * Helper for composing manifests<BR>
 	 * It is a replacement for mkRedirectionManifestWithMetadata, used in BaseManifestPutter
@@ -1814,6 +1835,16 @@ public class Metadata implements Cloneable, Serializable {
 				entry.getValue().dump(indent + 1, sb);
 			}
 		}
+		if(lazyManifest != null) {
+			for(String name : lazyManifest.names()) {
+				dumpline(indent, sb, "Entry: "+name+":");
+				try {
+					lazyManifest.get(name).dump(indent + 1, sb);
+				} catch (MetadataParseException e) {
+					dumpline(indent + 1, sb, "Invalid: "+e);
+				}
+			}
+		}
 	}
 
 	private void dumpline(int indent, StringBuffer sb, String string) {
@@ -34,6 +34,7 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.ManifestElement;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
+import freenet.support.io.NativeThread;
 import freenet.support.io.ResumeFailedException;
 
 /**
@@ -184,12 +185,63 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
         private static final long serialVersionUID = 1L;
 
+        /** The data, until we have looked for it in the InsertedFileStore. */
+        private transient RandomAccessBucket data;
+        /** Identifies the content for the InsertedFileStore, or null if not reusing files. */
+        private String contentKey;
+        /** The metadata of the same file inserted earlier, to use instead of inserting it. */
+        private transient Metadata reused;
+
         private ExternPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, RandomAccessBucket data, ClientMetadata cm2) {
 			super(bmp, parent, name, cm2, runningPutHandlers);
+			if(insertedFiles != null)
+				this.data = data;
 			InsertBlock block = new InsertBlock(data, cm, FreenetURI.EMPTY_CHK_URI);
 			this.origSFI = new SingleFileInserter(this, this, block, false, ctx, realTimeFlag, false, true, null, null, false, null, false, persistent(), 0, 0, null, cryptoAlgorithm, forceCryptoKey, -1);
 		}
 
+		/** Identify the file for the InsertedFileStore. Reads all the data, so not on the thread
+		 * which created the insert.
+		 * @return The key, or null if it can't be reused. */
+		private String hashData() {
+			RandomAccessBucket data;
+			synchronized(this) {
+				data = this.data;
+				this.data = null;
+			}
+			if(data == null) return null;
+			return insertedFileKey(itemName, data, cm);
+		}
+
+		/** @param m The metadata from the InsertedFileStore, or null to insert the file. */
+		private synchronized void setInserted(String key, Metadata m) {
+			contentKey = key;
+			reused = m;
+		}
+
+		@Override
+		public void start(ClientContext context) throws InsertException {
+			Metadata m;
+			synchronized(this) {
+				m = reused;
+				if(m != null) {
+					reused = null;
+					// Already in the store, and not inserted again.
+					contentKey = null;
+					origSFI = null;
+				}
+			}
+			if(m == null) {
+				super.start(context);
+				return;
+			}
+			if(logMINOR) Logger.minor(this, "Reusing unchanged file: "+itemName+" : "+m);
+			// As if the insert had finished straight away.
+			onMetadata(m, null, context);
+			onBlockSetFinished(null, context);
+			onSuccess(null, context);
+		}
+
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "onEncode(" + key + ") for " + this);
@@ -266,6 +318,8 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			if(contentKey != null && metadata != null && !ctx.getCHKOnly && context.insertedFileStore != null)
+				context.insertedFileStore.put(contentKey, metadata);
 			super.onSuccess(state, context);
 		}
 	}
@@ -765,6 +819,10 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 	private boolean fetchable;
 	final byte[] forceCryptoKey;
 	final byte cryptoAlgorithm;
+	/** Where to look for unchanged files before starting the inserts, or null. */
+	private transient InsertedFileStore insertedFiles;
+	/** What the files in insertedFiles must have been inserted for, see InsertedFileStore.makeScope(). */
+	private transient byte[] insertedFilesScope;
 
 	public BaseManifestPutter(ClientPutCallback cb,
 			HashMap<String, Object> manifestElements, short prioClass, FreenetURI target, String defaultName,
@@ -773,7 +831,8 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		this.targetURI = target;
 		this.cb = cb;
 		this.ctx = ctx;
-		if(randomiseCryptoKeys && forceCryptoKey == null) {
+		boolean randomCryptoKeys = randomiseCryptoKeys && forceCryptoKey == null;
+		if(randomCryptoKeys) {
 			forceCryptoKey = new byte[32];
 			context.random.nextBytes(forceCryptoKey);
 		}
@@ -792,6 +851,11 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		perContainerPutHandlersWaitingForMetadata = new HashMap<PutHandler, HashSet<PutHandler>>();
 		putHandlersTransformMap = new HashMap<PutHandler, HashMap<String, Object>>();
 		putHandlersArchiveTransformMap = new HashMap<ArchivePutHandler, ArrayList<PutHandler>>();
+		if(ctx.reuseUnchangedFiles && context.insertedFileStore != null) {
+			insertedFilesScope = InsertedFileStore.makeScope(target, cryptoAlgorithm, randomCryptoKeys ? null : forceCryptoKey, randomCryptoKeys);
+			if(insertedFilesScope != null)
+				insertedFiles = context.insertedFileStore;
+		}
 		if(defaultName == null)
 			defaultName = findDefaultName(manifestElements);
 		makePutHandlers(manifestElements, defaultName);
@@ -826,7 +890,79 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		return "";
 	}
 
-	public void start(ClientContext context) throws InsertException {
+	public void start(final ClientContext context) throws InsertException {
+		final InsertedFileStore store;
+		synchronized(this) {
+			store = insertedFiles;
+			insertedFiles = null;
+		}
+		if(store != null) {
+			// Hashing the files may take a while, so don't do it on the caller's thread.
+			context.mainExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					findInsertedFiles(store, context);
+				}
+
+			}, "Look for unchanged files for "+this);
+			return;
+		}
+		innerStart(context);
+	}
+
+	/** Hash the files and look them up in the store, then start on the job runner if persistent. */
+	private void findInsertedFiles(InsertedFileStore store, ClientContext context) {
+		PutHandler[] running = getRunningPutHandlers();
+		final List<ExternPutHandler> handlers = new ArrayList<ExternPutHandler>();
+		final List<String> keys = new ArrayList<String>();
+		final List<Metadata> found = new ArrayList<Metadata>();
+		for(PutHandler ph : running) {
+			if(isFinished()) return;
+			if(!(ph instanceof ExternPutHandler)) continue;
+			ExternPutHandler handler = (ExternPutHandler) ph;
+			String key = handler.hashData();
+			if(key == null) continue;
+			handlers.add(handler);
+			keys.add(key);
+			found.add(store.get(key));
+		}
+		if(persistent()) {
+			try {
+				context.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						startWithInsertedFiles(handlers, keys, found, context);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY);
+			} catch (PersistenceDisabledException e) {
+				if(!context.jobRunner.shuttingDown())
+					Logger.error(this, "Database disabled looking for unchanged files", new Exception("error"));
+			}
+		} else {
+			startWithInsertedFiles(handlers, keys, found, context);
+		}
+	}
+
+	synchronized PutHandler[] getRunningPutHandlers() {
+		return runningPutHandlers.toArray(new PutHandler[runningPutHandlers.size()]);
+	}
+
+	private void startWithInsertedFiles(List<ExternPutHandler> handlers, List<String> keys, List<Metadata> found, ClientContext context) {
+		if(isFinished()) return;
+		for(int i=0;i<handlers.size();i++)
+			handlers.get(i).setInserted(keys.get(i), found.get(i));
+		try {
+			innerStart(context);
+		} catch (InsertException e) {
+			cb.onFailure(e, this);
+		}
+	}
+
+	private void innerStart(ClientContext context) throws InsertException {
 		if (logMINOR)
 			Logger.minor(this, "Starting " + this+" persistence="+persistent()+ " containermode="+containerMode);
 		PutHandler[] running;
@@ -1079,9 +1215,33 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		// FIXME we could remove the put handlers after inserting all files but not having finished the insert of the manifest
 		// However it would complicate matters for no real gain in most cases...
 		// Also doing it this way means we don't need to worry about
+		if(ctx.reuseUnchangedFiles && context.insertedFileStore != null) {
+			final InsertedFileStore store = context.insertedFileStore;
+			context.mainExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					store.write();
+				}
+
+			}, "Write inserted files");
+		}
 		cb.onSuccess(this);
 	}
 
+	/**
+	 * Identify the content of a file to be inserted separately, if we are reusing unchanged files.
+	 * @return The key for the InsertedFileStore, or null.
+	 */
+	private String insertedFileKey(String name, RandomAccessBucket data, ClientMetadata cm) {
+		try {
+			return InsertedFileStore.makeKey(insertedFilesScope, data, cm, ctx.getCompatibilityMode());
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read "+name+" to look for it in inserted files, inserting it: "+e, e);
+			return null;
+		}
+	}
+
 	private void fail(Exception e, ClientContext context) {
 		InsertException ie = new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null);
 		fail(ie, context);
@@ -72,6 +72,12 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient DownloadCache downloadCache;
+	/** Files inserted as part of sites, so the next edition can reuse them. */
+	public transient InsertedFileStore insertedFileStore;
+	/** Recently parsed manifests, so we don't parse a site's root manifest on every request. */
+	public transient final ManifestCache manifestCache;
+	/** Splitfile insert blocks encoded in advance or kept for retries, and encoding statistics. */
+	public transient final EncodedBlockCache encodedBlockCache;
 	/** Used for memory intensive jobs such as in-RAM FEC decodes. Some of these jobs may do disk 
 	 * I/O and we don't guarantee to serialise them. The new splitfile code does FEC decodes 
 	 * entirely in memory, which saves a lot of seeks and improves robustness. */
@@ -126,6 +132,8 @@ public class ClientContext {
 		this.defaultPersistentFetchContext = defaultPersistentFetchContext;
 		this.defaultPersistentInsertContext = defaultPersistentInsertContext;
 		this.cryptoSecretTransient = cryptoSecretTransient;
+		this.manifestCache = new ManifestCache();
+		this.encodedBlockCache = new EncodedBlockCache(mainExecutor);
 	}
 	
 	public void init(RequestStarterGroup starters, UserAlertManager alerts) {
@@ -290,6 +298,10 @@ public class ClientContext {
 		this.downloadCache = cache;
 	}
 
+	public void setInsertedFileStore(InsertedFileStore store) {
+		this.insertedFileStore = store;
+	}
+
     public FetchContext getDefaultPersistentFetchContext() {
         return new FetchContext(defaultPersistentFetchContext, FetchContext.IDENTICAL_MASK);
     }
@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+
+import freenet.crypt.AEADCryptBucket;
+import freenet.node.DatabaseKey;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * A small file which the client layer uses to remember something between restarts, stored the same
+ * way as client.dat: encrypted with the client layer key (with a ".crypt" suffix) unless the
+ * physical security level is LOW, not stored at all at MAXIMUM, and deleted on panic. Nothing is
+ * read or written until setFiles() has been called, which NodeClientCore does once it has the key.
+ * The contents are only a cache, so if the file can't be read, the caller just starts empty.
+ */
+public class ClientLayerCacheFile {
+
+	private final File dir;
+	private final String baseName;
+	/** The key to encrypt with, or null to write in the clear. */
+	private DatabaseKey key;
+	private boolean encrypted;
+	/** False until setFiles() is called, if we must not write at all, and after a panic. */
+	private boolean canWrite;
+	private boolean panicked;
+
+	public ClientLayerCacheFile(File dir, String baseName) {
+		this.dir = dir;
+		this.baseName = baseName;
+	}
+
+	/**
+	 * Set where to read and write, as ClientLayerPersister.setFilesAndLoad() does for client.dat.
+	 * May be called again when the physical security level changes. The file we no longer write to
+	 * is deleted after the next successful write, or straight away if we don't write at all.
+	 * @param writeEncrypted If true, encrypt the file. See Node.wantEncryptedDatabase().
+	 * @param noWrite If true, don't keep anything on disk. See Node.wantNoPersistentDatabase().
+	 * @param key The client layer key. Must not be null if writeEncrypted is true. If it is null,
+	 * we can't read an encrypted file.
+	 * @return True if the caller should write the file again soon, because it is in the wrong
+	 * format.
+	 */
+	public synchronized boolean setFiles(boolean writeEncrypted, boolean noWrite, DatabaseKey key) {
+		if(panicked) return false;
+		if(writeEncrypted && key == null) throw new IllegalArgumentException("Need a key to encrypt");
+		this.key = key;
+		this.encrypted = writeEncrypted;
+		canWrite = !noWrite;
+		if(noWrite) {
+			deleteAll();
+			return false;
+		}
+		return makeFilename(!encrypted, false).exists();
+	}
+
+	/**
+	 * @return The Bucket to load from, or null if there is nothing we can read. If we have switched
+	 * between encrypted and unencrypted and not written since, this is the old file.
+	 */
+	public synchronized Bucket getReadBucket() {
+		if(!canWrite) return null;
+		if(makeFilename(encrypted, false).exists())
+			return makeBucket(encrypted, false);
+		if(encrypted || key != null) {
+			if(makeFilename(!encrypted, false).exists())
+				return makeBucket(!encrypted, false);
+		}
+		return null;
+	}
+
+	/**
+	 * Start writing the file. The data is written to a temporary file, and only replaces the old
+	 * one when commitWrite() is called.
+	 * @return A Bucket to write the whole file to, or null if we must not write anything.
+	 */
+	public synchronized Bucket getWriteBucket() {
+		if(!canWrite) return null;
+		return makeBucket(encrypted, true);
+	}
+
+	/**
+	 * Replace the file with the data just written to the Bucket from getWriteBucket(), and delete
+	 * the file in the other format, if any. Only one write may be in progress at a time.
+	 * @param written The Bucket we wrote to.
+	 * @throws IOException If the file can't be renamed.
+	 */
+	public synchronized void commitWrite(Bucket written) throws IOException {
+		boolean wasEncrypted = written instanceof AEADCryptBucket;
+		File tmp = makeFilename(wasEncrypted, true);
+		if(!canWrite || wasEncrypted != encrypted) {
+			// Panicked or changed security level while writing.
+			delete(tmp);
+			return;
+		}
+		File target = makeFilename(encrypted, false);
+		if(!FileUtil.renameTo(tmp, target))
+			throw new IOException("Unable to rename "+tmp+" to "+target);
+		delete(makeFilename(!encrypted, false));
+		delete(makeFilename(!encrypted, true));
+	}
+
+	/** Delete everything and never write again. Called by Node.panic(). */
+	public synchronized void panic() {
+		panicked = true;
+		canWrite = false;
+		key = null;
+		deleteAll();
+	}
+
+	private void deleteAll() {
+		delete(makeFilename(false, false));
+		delete(makeFilename(false, true));
+		delete(makeFilename(true, false));
+		delete(makeFilename(true, true));
+	}
+
+	private void delete(File f) {
+		if(!f.exists()) return;
+		try {
+			FileUtil.secureDelete(f);
+		} catch (IOException e) {
+			f.delete();
+			if(f.exists())
+				Logger.error(this, "Unable to delete "+f+": "+e, e);
+		}
+	}
+
+	private Bucket makeBucket(boolean encrypted, boolean tmp) {
+		Bucket bucket = new FileBucket(makeFilename(encrypted, tmp), false, false, false, false);
+		if(encrypted)
+			bucket = key.createEncryptedBucketForClientLayer(bucket);
+		return bucket;
+	}
+
+	File makeFilename(boolean encrypted, boolean tmp) {
+		return new File(dir, baseName + (encrypted ? ".crypt" : "") + (tmp ? ".tmp" : ""));
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+new File(dir, baseName);
+	}
+
+}
@@ -3,15 +3,26 @@ package freenet.client.async;
 import freenet.crypt.HashResult;
 import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.CompressionTrials;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 class CompressionOutput {
 	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes) {
+		this(bestCompressedData, bestCodec2, hashes, -1, null);
+	}
+	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes,
+			long compressionTime, CompressionTrials.Trial[] trials) {
 		this.data = bestCompressedData;
 		this.bestCodec = bestCodec2;
 		this.hashes = hashes;
+		this.compressionTime = compressionTime;
+		this.trials = trials;
 	}
 	final RandomAccessBucket data;
 	final COMPRESSOR_TYPE bestCodec;
 	final HashResult[] hashes;
+	/** Time taken to compress, in milliseconds, or -1 if we didn't try. */
+	final long compressionTime;
+	/** The codecs tried, or null if we didn't try. */
+	final CompressionTrials.Trial[] trials;
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.client.async.SplitFileInserterSegmentStorage.BlockInsert;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Encoded splitfile insert blocks, so that the thread sending a block doesn't have to read it from
+ * disk and encrypt and hash it. Blocks get here in two ways: blocks which have been chosen to
+ * be sent are encoded in advance by a few threads, one per core, and blocks which failed to insert
+ * are kept in case they are retried. Encoding a splitfile block is deterministic, so a cached
+ * block is identical to a freshly encoded one. Shared by all inserts, bounded, and transient. Also
+ * keeps statistics on encoding for the uploads page.
+ */
+public class EncodedBlockCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(EncodedBlockCache.class);
+	}
+
+	/** About 8.5MiB */
+	static final int DEFAULT_MAX_BLOCKS = 256;
+
+	private final LRUMap<BlockInsert, ClientCHKBlock> blocks;
+	private final int maxBlocks;
+
+	/** Runs the threads which encode blocks in advance, or null to always encode on demand. */
+	private final Executor executor;
+	private final int maxThreads;
+	/** If this many blocks are waiting to be encoded in advance, the senders encode them
+	 * themselves. */
+	private final int maxQueued;
+	/** Blocks waiting to be encoded in advance, or being encoded. */
+	private final HashMap<BlockInsert, Boolean> pending = new HashMap<BlockInsert, Boolean>();
+	/** Blocks waiting to be encoded in advance. */
+	private final ArrayDeque<BlockInsert> queue = new ArrayDeque<BlockInsert>();
+	private int threads;
+
+	private final AtomicLong encoded = new AtomicLong();
+	private final AtomicLong encodeNanos = new AtomicLong();
+	private final AtomicLong encodedInAdvance = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/** @param executor For encoding blocks in advance, or null not to. */
+	public EncodedBlockCache(Executor executor) {
+		this(DEFAULT_MAX_BLOCKS, executor, Runtime.getRuntime().availableProcessors());
+	}
+
+	EncodedBlockCache(int maxBlocks, Executor executor, int maxThreads) {
+		this.maxBlocks = maxBlocks;
+		this.executor = executor;
+		this.maxThreads = maxThreads;
+		this.maxQueued = Math.min(maxThreads * 4, maxBlocks / 2);
+		blocks = new LRUMap<BlockInsert, ClientCHKBlock>();
+	}
+
+	/**
+	 * Start encoding a block which has just been chosen to be sent, if there aren't already too
+	 * many waiting.
+	 * @return True if the block has been or will be encoded in advance.
+	 */
+	boolean encodeInAdvance(BlockInsert token) {
+		synchronized(this) {
+			if(executor == null) return false;
+			if(blocks.containsKey(token) || pending.containsKey(token)) return true;
+			if(queue.size() >= maxQueued) return false;
+			pending.put(token, Boolean.FALSE);
+			queue.add(token);
+			if(threads >= maxThreads) return true;
+			threads++;
+		}
+		executor.execute(encoder, "Insert block encoder");
+		return true;
+	}
+
+	private final PrioRunnable encoder = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			while(true) {
+				BlockInsert token;
+				synchronized(EncodedBlockCache.this) {
+					token = queue.poll();
+					if(token == null) {
+						threads--;
+						return;
+					}
+					pending.put(token, Boolean.TRUE);
+				}
+				ClientCHKBlock block = null;
+				try {
+					block = timedEncode(token);
+					encodedInAdvance.incrementAndGet();
+				} catch (IOException e) {
+					// The sender will encode it again, and handle the error.
+					if(logMINOR) Logger.minor(this, "Failed to encode "+token+" in advance: "+e, e);
+				} catch (Throwable t) {
+					Logger.error(this, "Failed to encode "+token+" in advance: "+t, t);
+				}
+				synchronized(EncodedBlockCache.this) {
+					pending.remove(token);
+					if(block != null) cache(token, block);
+					EncodedBlockCache.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
+
+	/**
+	 * Get the encoded block for an insert, from the cache if possible. If it is being encoded in
+	 * advance, wait for it; if it is still waiting to be, encode it on this thread.
+	 * @throws IOException If reading the block failed, or the block has already been inserted.
+	 */
+	ClientCHKBlock encode(BlockInsert token) throws IOException {
+		ClientCHKBlock block;
+		synchronized(this) {
+			while(true) {
+				block = blocks.get(token);
+				if(block != null) {
+					blocks.removeKey(token);
+					break;
+				}
+				Boolean started = pending.get(token);
+				if(started == null) break;
+				if(!started) {
+					pending.remove(token);
+					queue.remove(token);
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+		if(block != null) {
+			token.segment.checkCanInsert(token.blockNumber);
+			hits.incrementAndGet();
+			return block;
+		}
+		misses.incrementAndGet();
+		return timedEncode(token);
+	}
+
+	private ClientCHKBlock timedEncode(BlockInsert token) throws IOException {
+		long start = System.nanoTime();
+		ClientCHKBlock block = token.segment.encodeBlock(token.blockNumber);
+		encodeNanos.addAndGet(System.nanoTime() - start);
+		encoded.incrementAndGet();
+		return block;
+	}
+
+	/** Keep a block which failed to insert, in case it is retried. */
+	synchronized void failed(BlockInsert token, ClientCHKBlock block) {
+		cache(token, block);
+	}
+
+	private synchronized void cache(BlockInsert token, ClientCHKBlock block) {
+		blocks.push(token, block);
+		while(blocks.size() > maxBlocks)
+			blocks.popValue();
+	}
+
+	synchronized int size() {
+		return blocks.size();
+	}
+
+	/** Number of blocks encoded, in advance or not. */
+	public long blocksEncoded() {
+		return encoded.get();
+	}
+
+	public long blocksEncodedInAdvance() {
+		return encodedInAdvance.get();
+	}
+
+	/** Data encoded per second of time spent encoding, per thread, in bytes, or 0 if nothing has
+	 * been encoded. */
+	public long encodeRate() {
+		long nanos = encodeNanos.get();
+		if(nanos == 0) return 0;
+		return (long) (encoded.get() * (double) CHKBlock.DATA_LENGTH * 1000 * 1000 * 1000 / nanos);
+	}
+
+	/** Number of insert attempts which found their block already encoded. */
+	public long cacheHits() {
+		return hits.get();
+	}
+
+	public long cacheMisses() {
+		return misses.get();
+	}
+
+}
@@ -1,15 +1,10 @@
 package freenet.client.async;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
-import freenet.crypt.HashResult;
-import freenet.crypt.MultiHashInputStream;
 import freenet.keys.CHKBlock;
-import freenet.keys.SSKBlock;
 import freenet.node.PrioRunnable;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -18,10 +13,9 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
-import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.CompressionTrials;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
-import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
 /**
@@ -85,124 +79,56 @@ public class InsertCompressor implements CompressJob {
 
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
-		long origSize = origData.size();
-		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
-		COMPRESSOR_TYPE bestCodec = null;
 		RandomAccessBucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
-		long bestNumberOfBlocks = origNumberOfBlocks;
-		
-		HashResult[] hashes = null;
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
+		// Try each algorithm, in parallel if we have spare threads, starting with the fastest and weakest.
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
+			CompressionTrials trials = new CompressionTrials(comps, origData, bucketFactory, minSize, generateHashes);
+			if(logMINOR && generateHashes != 0) Logger.minor(this, "Generating hashes: "+generateHashes);
+			trials.run(context.rc, new CompressionTrials.StartCallback() {
+
+				@Override
+				public void onStart(final COMPRESSOR_TYPE comp, final int parallelTrials) {
 					// Only produce if we are compressing *the original data*
 					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
+						try {
+							context.jobRunner.queue(new PersistentJob() {
 
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
+								@Override
+								public boolean run(ClientContext context) {
+									inserter.onStartCompression(comp, origData.size(), parallelTrials, context);
+									return false;
+								}
 
-						}, NativeThread.NORM_PRIORITY+1);
+							}, NativeThread.NORM_PRIORITY+1);
+						} catch (PersistenceDisabledException e) {
+							if(!context.jobRunner.shuttingDown())
+								Logger.error(this, "Database disabled compressing data", new Exception("error"));
+						}
 					} else {
 						try {
-							inserter.onStartCompression(comp, context);
+							inserter.onStartCompression(comp, origData.size(), parallelTrials, context);
 						} catch (Throwable t) {
 							Logger.error(this, "Transient insert callback threw "+t, t);
 						}
 					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize);
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						} catch (CompressionOutputSizeException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize "
-											   + minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
 				}
+
+			});
+			CompressionTrials.Trial best = trials.chooseBest(CHKBlock.DATA_LENGTH);
+			COMPRESSOR_TYPE bestCodec = null;
+			if(best != null) {
+				bestCodec = best.codec;
+				bestCompressedData = trials.getOutput(best);
+				if(logMINOR)
+					Logger.minor(this, "Best codec "+bestCodec+" compressed "+trials.getOriginalSize()+" to "+best.getCompressedSize());
 			}
 			
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
+			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, trials.getHashes(), trials.getTime(), trials.getTrials());
 			
 			if(persistent) {
 			
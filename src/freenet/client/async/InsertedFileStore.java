@@ -0,0 +1,293 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+
+import freenet.client.ClientMetadata;
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.client.MetadataUnresolvedException;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.Closer;
+
+/**
+ * The metadata of files which were inserted separately as part of a site, by their content, so
+ * that the next edition of the site can put the same metadata in its manifest instead of
+ * compressing, encoding and inserting an unchanged file again. Files are matched by their size,
+ * SHA-256, MIME type and compatibility mode, so it doesn't matter if they have been renamed or
+ * moved, but only within the same scope: the same site key and splitfile key settings, so that
+ * reusing a file never links two sites, or puts a file inserted one way into a site inserted
+ * another. Bounded by the total size of the metadata, dropping the file least recently used.
+ * This is only a cache: if the file is lost or corrupt, we insert everything again. As it
+ * records what we have inserted, it is stored like client.dat, see ClientLayerCacheFile.
+ */
+public class InsertedFileStore {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(InsertedFileStore.class);
+	}
+
+	static final long DEFAULT_MAX_BYTES = 32*1024*1024;
+	private static final long MAGIC = 0x2c81e6f0b35d9a47L;
+	private static final int VERSION = 1;
+
+	private final ClientLayerCacheFile file;
+	private final long maxBytes;
+	/** Metadata as written by Metadata.writeToByteArray(), by key from makeKey() */
+	private LRUMap<String, byte[]> entries;
+	private long totalBytes;
+	private boolean loaded;
+	private boolean dirty;
+	/** Held while writing, so only one write is in progress at a time. */
+	private final Object writeLock = new Object();
+
+	public InsertedFileStore(ClientLayerCacheFile file) {
+		this(file, DEFAULT_MAX_BYTES);
+	}
+
+	InsertedFileStore(ClientLayerCacheFile file, long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		entries = LRUMap.createSafeMap();
+	}
+
+	/**
+	 * Identify what files can be reused for: the site's key, and how the files are encrypted.
+	 * The private key only goes into a hash.
+	 * @param target The insert URI of the site.
+	 * @param forceCryptoKey The splitfile crypto key chosen by the user, or null.
+	 * @param randomCryptoKeys True if every insert uses a new random splitfile crypto key.
+	 * @return The scope to pass to makeKey(), or null if files must not be reused for this insert,
+	 * e.g. because we don't know the key yet.
+	 */
+	static byte[] makeScope(FreenetURI target, byte cryptoAlgorithm, byte[] forceCryptoKey, boolean randomCryptoKeys) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			if(target.isCHK()) {
+				// No identity to scope to, but content keys are the same wherever they are used.
+				md.update((byte)0);
+			} else if(target.isSSK() || target.isUSK()) {
+				// SSK and USK versions of the same site are the same site.
+				if(target.getRoutingKey() == null || target.getCryptoKey() == null) return null;
+				md.update((byte)1);
+				md.update(target.getRoutingKey());
+				md.update(target.getCryptoKey());
+			} else {
+				return null;
+			}
+			md.update(cryptoAlgorithm);
+			if(randomCryptoKeys) {
+				md.update((byte)1);
+			} else if(forceCryptoKey != null) {
+				md.update((byte)2);
+				md.update(forceCryptoKey);
+			} else {
+				md.update((byte)0);
+			}
+			return md.digest();
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/**
+	 * Identify the content of a file to be inserted. Reads all the data.
+	 * @param scope From makeScope().
+	 * @param cm The MIME type override, if any, which will be in the metadata.
+	 * @throws IOException If the data can't be read.
+	 */
+	static String makeKey(byte[] scope, RandomAccessBucket data, ClientMetadata cm, CompatibilityMode mode) throws IOException {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(scope);
+			SHA256.hash(data.getInputStream(), md);
+			StringBuilder sb = new StringBuilder();
+			sb.append(HexUtil.bytesToHex(md.digest()));
+			sb.append(':').append(data.size());
+			sb.append(':').append(mode.name());
+			if(cm != null && cm.getMIMEType() != null)
+				sb.append(':').append(cm.getMIMEType());
+			return sb.toString();
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/** @return The metadata of a file inserted earlier with the same content, or null. */
+	synchronized Metadata get(String key) {
+		byte[] data = entries.get(key);
+		if(data == null) return null;
+		try {
+			Metadata m = Metadata.construct(data);
+			entries.push(key, data);
+			return m;
+		} catch (MetadataParseException e) {
+			Logger.error(this, "Unable to parse metadata for inserted file "+key+": "+e, e);
+			remove(key);
+			return null;
+		}
+	}
+
+	/** Record the metadata of a file which has been inserted. */
+	void put(String key, Metadata m) {
+		byte[] data;
+		try {
+			data = m.writeToByteArray();
+		} catch (MetadataUnresolvedException e) {
+			// Only manifests have metadata which needs resolving.
+			Logger.error(this, "Not recording unresolved metadata for "+key+": "+e, e);
+			return;
+		}
+		synchronized(this) {
+			remove(key);
+			entries.push(key, data);
+			totalBytes += data.length;
+			trim();
+			dirty = true;
+		}
+		if(logMINOR) Logger.minor(this, "Recorded inserted file "+key+" ("+data.length+" bytes of metadata)");
+	}
+
+	private void remove(String key) {
+		byte[] old = entries.get(key);
+		if(old == null) return;
+		entries.removeKey(key);
+		totalBytes -= old.length;
+		dirty = true;
+	}
+
+	private void trim() {
+		while(totalBytes > maxBytes && !entries.isEmpty())
+			totalBytes -= entries.popValue().length;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Read the file, if there is one, the first time we are able to. Anything recorded since we
+	 * started is kept, as it is more recent. If the file is unreadable, carry on without it.
+	 * @return True if we have read the file, false if we had already done so.
+	 */
+	public synchronized boolean load() {
+		if(loaded) return false;
+		loaded = true;
+		Bucket bucket = file.getReadBucket();
+		if(bucket == null) return true;
+		LRUMap<String, byte[]> read = LRUMap.createSafeMap();
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(bucket.getInputStream()));
+			if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Unknown version");
+			int count = dis.readInt();
+			if(count < 0) throw new IOException("Bad count "+count);
+			for(int i=0;i<count;i++) {
+				String key = dis.readUTF();
+				int length = dis.readInt();
+				if(length < 0 || length > maxBytes) throw new IOException("Bad length "+length);
+				byte[] data = new byte[length];
+				dis.readFully(data);
+				read.push(key, data);
+			}
+			if(logMINOR) Logger.minor(this, "Loaded "+read.size()+" inserted files from "+file);
+		} catch (EOFException e) {
+			Logger.error(this, "Truncated inserted files list "+file+", starting again");
+			return true;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read inserted files list "+file+", starting again: "+e, e);
+			return true;
+		} finally {
+			Closer.close(dis);
+		}
+		// Anything inserted since we started is more recent, so goes on top.
+		while(!entries.isEmpty()) {
+			String key = entries.peekKey();
+			read.push(key, entries.popValue());
+		}
+		entries = read;
+		totalBytes = 0;
+		Enumeration<byte[]> values = entries.values();
+		while(values.hasMoreElements())
+			totalBytes += values.nextElement().length;
+		trim();
+		return true;
+	}
+
+	/** Write the file at the next opportunity, e.g. because it is in the wrong format. */
+	public synchronized void setDirty() {
+		dirty = true;
+	}
+
+	/** Write the file, if anything has changed. */
+	public void write() {
+		synchronized(writeLock) {
+			innerWrite();
+		}
+	}
+
+	private void innerWrite() {
+		String[] keys;
+		byte[][] data;
+		Bucket bucket;
+		synchronized(this) {
+			// Don't overwrite the file until we have read it.
+			if(!dirty || !loaded) return;
+			bucket = file.getWriteBucket();
+			if(bucket == null) return;
+			int size = entries.size();
+			keys = new String[size];
+			data = new byte[size][];
+			// Least recently used first, so loading restores the order.
+			Enumeration<String> k = entries.keys();
+			Enumeration<byte[]> v = entries.values();
+			for(int i=0;i<size;i++) {
+				keys[i] = k.nextElement();
+				data[i] = v.nextElement();
+			}
+			dirty = false;
+		}
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(bucket.getOutputStream()));
+			dos.writeLong(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(keys.length);
+			for(int i=0;i<keys.length;i++) {
+				dos.writeUTF(keys[i]);
+				dos.writeInt(data[i].length);
+				dos.write(data[i]);
+			}
+			dos.close();
+			dos = null;
+			file.commitWrite(bucket);
+			if(logMINOR) Logger.minor(this, "Written "+keys.length+" inserted files to "+file);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write inserted files list to "+file+": "+e, e);
+			synchronized(this) {
+				dirty = true;
+			}
+		} finally {
+			Closer.close(dos);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.client.Metadata;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+
+/**
+ * Recently parsed manifests, by the CHK they were fetched from. Every request for a file on a
+ * freesite fetches the site's root manifest, and for a big site parsing it is the expensive part.
+ * The content of a CHK never changes, so we can reuse the parsed manifest. Manifests parsed from
+ * binary metadata only parse each entry when it is looked up, and share their entries between
+ * clones, so handing out a clone is cheap. Transient, not persisted.
+ */
+public class ManifestCache {
+
+	static final int DEFAULT_MAX_ENTRIES = 256;
+	/** Limit on the total size of the binary metadata the cached manifests were parsed from. */
+	static final long DEFAULT_MAX_BYTES = 16*1024*1024;
+
+	private static class Item {
+		final Metadata metadata;
+		final long size;
+
+		Item(Metadata metadata, long size) {
+			this.metadata = metadata;
+			this.size = size;
+		}
+	}
+
+	private final LRUMap<FreenetURI, Item> cache;
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes;
+
+	public ManifestCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	ManifestCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		cache = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
+	}
+
+	/**
+	 * @param key A CHK, without any meta-strings.
+	 * @return A copy of the manifest, which the caller may modify, or null.
+	 */
+	public Metadata get(FreenetURI key) {
+		Item item;
+		synchronized(this) {
+			item = cache.get(key);
+			if(item == null) return null;
+			cache.push(key, item);
+		}
+		return (Metadata) item.metadata.clone();
+	}
+
+	/**
+	 * Remember a manifest.
+	 * @param key A CHK, without any meta-strings, from which the manifest was fetched.
+	 * @param metadata The manifest. We keep a copy, so the caller may carry on modifying it.
+	 * @param size The size of the binary metadata.
+	 */
+	public void put(FreenetURI key, Metadata metadata, long size) {
+		if(size > maxBytes) return;
+		Item item = new Item((Metadata) metadata.clone(), size);
+		synchronized(this) {
+			Item old = cache.get(key);
+			if(old != null) bytes -= old.size;
+			cache.push(key, item);
+			bytes += size;
+			while(bytes > maxBytes || cache.size() > maxEntries) {
+				Item dropped = cache.popValue();
+				bytes -= dropped.size;
+			}
+		}
+	}
+
+	synchronized int size() {
+		return cache.size();
+	}
+
+}
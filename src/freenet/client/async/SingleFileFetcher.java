@@ -222,17 +222,22 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		if(!block.isMetadata()) {
 			onSuccess(new FetchResult(clientMetadata, data), context);
 		} else {
-			handleMetadata(data, context);
+			handleMetadata(data, true, context);
 		}
 	}
 
 	// Package-local so that ClientGetter can call it instead of schedule().
 	void startWithMetadata(Bucket data, ClientContext context) {
 		parent.completedBlock(true, context);
-		handleMetadata(data, context);
+		handleMetadata(data, false, context);
 	}
 	
-	private void handleMetadata(Bucket data, ClientContext context) {
+	/**
+	 * Parse and handle metadata.
+	 * @param fromKey True if the data is the content of our key, in which case if it is a CHK we
+	 * can use and update the ManifestCache.
+	 */
+	private void handleMetadata(Bucket data, boolean fromKey, ClientContext context) {
 		if(!ctx.followRedirects) {
 			onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, "Told me not to follow redirects (splitfile block??)"), false, context);
 			data.free();
@@ -250,7 +255,16 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		}
 		// Parse metadata
 		try {
-			metadata = Metadata.construct(data);
+			FreenetURI cacheKey = fromKey && key instanceof ClientCHK ? key.getURI() : null;
+			Metadata cached = cacheKey == null ? null : context.manifestCache.get(cacheKey);
+			if(cached != null) {
+				if(logMINOR) Logger.minor(this, "Using cached manifest for "+cacheKey);
+				metadata = cached;
+			} else {
+				metadata = Metadata.construct(data);
+				if(cacheKey != null && metadata.isSimpleManifest())
+					context.manifestCache.put(cacheKey, metadata, data.size());
+			}
             data.free();
             data = null;
 			innerWrapHandleMetadata(false, context);
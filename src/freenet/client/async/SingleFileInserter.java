@@ -239,7 +239,8 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		
 		if(parent == cb) {
 			short codecID = bestCodec == null ? -1 : bestCodec.metadataID;
-			ctx.eventProducer.produceEvent(new FinishedCompressionEvent(codecID, origSize, bestCompressedDataSize), context);
+			ctx.eventProducer.produceEvent(new FinishedCompressionEvent(codecID, origSize, bestCompressedDataSize,
+					output.compressionTime, output.trials), context);
 			if(logMINOR) Logger.minor(this, "Compressed "+origSize+" to "+data.size()+" on "+this+" data = "+data);
 		}
 		
@@ -1033,10 +1034,18 @@ class SingleFileInserter implements ClientPutState, Serializable {
 	}
 
 	public void onStartCompression(COMPRESSOR_TYPE ctype, ClientContext context) {
+		onStartCompression(ctype, -1, 1, context);
+	}
+
+	/**
+	 * @param origSize The size of the data being compressed.
+	 * @param parallelTrials The number of codecs which may be being tried at once.
+	 */
+	public void onStartCompression(COMPRESSOR_TYPE ctype, long origSize, int parallelTrials, ClientContext context) {
 		if(parent == cb) {
 			if(ctx == null) throw new NullPointerException();
 			if(ctx.eventProducer == null) throw new NullPointerException();
-			ctx.eventProducer.produceEvent(new StartedCompressionEvent(ctype), context);
+			ctx.eventProducer.produceEvent(new StartedCompressionEvent(ctype, origSize, parallelTrials), context);
 		}
 	}
 	
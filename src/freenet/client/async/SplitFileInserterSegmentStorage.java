@@ -511,6 +511,13 @@ public class SplitFileInserterSegmentStorage {
     }
 
     public ClientCHKBlock encodeBlock(int blockNo) throws IOException {
+        checkCanInsert(blockNo);
+        byte[] buf = readBlock(blockNo);
+        return encodeBlock(buf);
+    }
+
+    /** @throws IOException If the insert is finishing or the block has already been inserted. */
+    void checkCanInsert(int blockNo) throws IOException {
         if(parent.isFinishing()) {
             throw new IOException("Already finishing reading block "+blockNo+" for "+this+" for "+parent);
         }
@@ -520,8 +527,6 @@ public class SplitFileInserterSegmentStorage {
                 throw new IOException("Already inserted block "+blockNo+" for "+this+" for "+parent);
             }
         }
-        byte[] buf = readBlock(blockNo);
-        return encodeBlock(buf);
     }
 
     private byte[] readBlock(int blockNo) throws IOException {
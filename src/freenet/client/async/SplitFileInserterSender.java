@@ -102,7 +102,10 @@ public class SplitFileInserterSender extends SendableInsert {
 
     @Override
     public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
-        return storage.chooseBlock();
+        BlockInsert block = storage.chooseBlock();
+        // It will be sent soon, so start encoding it now.
+        if(block != null) context.encodedBlockCache.encodeInAdvance(block);
+        return block;
     }
 
     @Override
@@ -121,8 +124,9 @@ public class SplitFileInserterSender extends SendableInsert {
         public boolean send(NodeClientCore node, final RequestScheduler sched, ClientContext context,
                 final ChosenBlock request) {
             final BlockInsert token = (BlockInsert) request.token;
+            ClientCHKBlock clientBlock = null;
             try {
-                ClientCHKBlock clientBlock = token.segment.encodeBlock(token.blockNumber);
+                clientBlock = context.encodedBlockCache.encode(token);
                 CHKBlock block = clientBlock.getBlock();
                 final ClientCHK key = clientBlock.getClientKey();
                 context.getJobRunner(request.isPersistent()).queueNormalOrDrop(new PersistentJob() {
@@ -146,6 +150,8 @@ public class SplitFileInserterSender extends SendableInsert {
                 request.onInsertSuccess(key, context);
                 return true;
             } catch (final LowLevelPutException e) {
+                // It will probably be retried. The key is recorded by onEncode regardless.
+                context.encodedBlockCache.failed(token, clientBlock);
                 request.onFailure(e, context);
                 return true;
             } catch (final IOException e) {
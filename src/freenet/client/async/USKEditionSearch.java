@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * Finds how far a USK has got since the latest edition we know of, e.g. after a restart. Probes
+ * editions further and further ahead, doubling the distance each time one is found, then bisects
+ * between the latest found and the first not found. That takes a number of requests logarithmic
+ * in the number of new editions, one at a time, instead of a fixed window of requests plus date
+ * hints. The first probe is at the number of editions we expect to have missed, from how often the
+ * USK has been updated. Editions just after the latest found are polled anyway, so it only probes
+ * beyond those, and finishes when the gap is that small.
+ *
+ * Not thread-safe: USKFetcher uses it under its own lock.
+ */
+final class USKEditionSearch {
+
+	/** Latest edition known to exist */
+	private long found;
+	/** Earliest edition after found which was not found, or Long.MAX_VALUE if none yet */
+	private long notFound = Long.MAX_VALUE;
+	/** How far after found to probe next, until an edition is not found */
+	private long step;
+	/** Editions up to found + window are polled anyway */
+	private final long window;
+	/** Once finished, new editions are found by polling, so we don't start again. */
+	private boolean finished;
+
+	/**
+	 * @param found The latest edition known to exist.
+	 * @param expected The number of editions we expect to have been published since then.
+	 * @param window The number of editions after the latest which are polled anyway.
+	 */
+	USKEditionSearch(long found, long expected, long window) {
+		this.found = found;
+		this.window = window;
+		this.step = Math.max(expected, window + 1);
+	}
+
+	/** @return The next edition to probe, or -1 if the search has finished. */
+	long nextProbe() {
+		if(finished) return -1;
+		if(notFound == Long.MAX_VALUE) return found + step;
+		return Math.max(found + (notFound - found) / 2, found + window + 1);
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	/** An edition was found, by a probe or otherwise. */
+	void found(long edition) {
+		if(finished || edition <= found) return;
+		if(notFound == Long.MAX_VALUE) {
+			if(edition >= found + step && step < Long.MAX_VALUE / 4)
+				step *= 2;
+		} else if(edition >= notFound) {
+			// A gap wasn't really a gap, start looking further ahead again.
+			notFound = Long.MAX_VALUE;
+		}
+		found = edition;
+		checkFinished();
+	}
+
+	/**
+	 * An edition was not found.
+	 * @return True if this changes what to probe next.
+	 */
+	boolean notFound(long edition) {
+		if(finished || edition <= found || edition >= notFound) return false;
+		notFound = edition;
+		checkFinished();
+		return true;
+	}
+
+	private void checkFinished() {
+		if(notFound != Long.MAX_VALUE && notFound - found <= window + 1)
+			finished = true;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":found="+found+",notFound="+notFound+",step="+step;
+	}
+
+}
@@ -0,0 +1,254 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Map;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * The latest known editions of USKs, and how often each one is updated, kept on disk so that after
+ * a restart we carry on polling from where we were instead of searching for every USK from
+ * scratch. One small binary record per USK, bounded, dropping the USK least recently updated.
+ * This is only a cache: if the file is lost or corrupt, we start empty and do some extra requests.
+ * As it amounts to a browsing history, it is stored like client.dat, see ClientLayerCacheFile.
+ */
+public class USKEditionStore {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(USKEditionStore.class);
+	}
+
+	static final int DEFAULT_MAX_ENTRIES = 50000;
+	private static final long MAGIC = 0x5f3a9c6e8d1b2f47L;
+	private static final int VERSION = 1;
+	/** Weight of the latest observation in the mean time between editions. */
+	private static final double INTERVAL_WEIGHT = 0.25;
+
+	private static class Entry {
+		long knownGood = -1;
+		long slot = -1;
+		/** When the latest slot last moved on, or -1. */
+		long lastAdvanced = -1;
+		/** Mean time between editions in milliseconds, or -1 if not known yet. */
+		long meanInterval = -1;
+	}
+
+	private final ClientLayerCacheFile file;
+	private final int maxEntries;
+	/** By clear USK */
+	private LRUMap<USK, Entry> entries;
+	private boolean loaded;
+	private boolean dirty;
+	/** Held while writing, so only one write is in progress at a time. */
+	private final Object writeLock = new Object();
+
+	public USKEditionStore(ClientLayerCacheFile file) {
+		this(file, DEFAULT_MAX_ENTRIES);
+	}
+
+	USKEditionStore(ClientLayerCacheFile file, int maxEntries) {
+		this.file = file;
+		this.maxEntries = maxEntries;
+		entries = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+	}
+
+	/**
+	 * Read the file, if there is one, the first time we are able to. Anything recorded since we
+	 * started is kept, as it is more recent. If the file is unreadable, carry on without it.
+	 * @return True if we have read the file, false if we had already done so.
+	 */
+	public synchronized boolean load() {
+		if(loaded) return false;
+		loaded = true;
+		Bucket bucket = file.getReadBucket();
+		if(bucket == null) return true;
+		LRUMap<USK, Entry> read = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(bucket.getInputStream());
+			if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Unknown version");
+			int count = dis.readInt();
+			if(count < 0) throw new IOException("Bad count "+count);
+			for(int i=0;i<count;i++) {
+				// USKs can't be written in binary, so we store the SSK without an edition.
+				FreenetURI ssk = FreenetURI.readFullBinaryKeyWithLength(dis);
+				USK usk = new USK(ssk.getRoutingKey(), ssk.getCryptoKey(), ssk.getExtra(), ssk.getDocName(), 0);
+				Entry entry = new Entry();
+				entry.knownGood = dis.readLong();
+				entry.slot = dis.readLong();
+				entry.lastAdvanced = dis.readLong();
+				entry.meanInterval = dis.readLong();
+				read.push(usk, entry);
+			}
+			if(logMINOR) Logger.minor(this, "Loaded "+read.size()+" USK editions from "+file);
+		} catch (EOFException e) {
+			Logger.error(this, "Truncated USK editions file "+file+", starting again");
+			return true;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read USK editions file "+file+", starting again: "+e, e);
+			return true;
+		} finally {
+			Closer.close(dis);
+		}
+		// Anything updated since we started is more recent, so goes on top.
+		while(!entries.isEmpty()) {
+			USK usk = entries.peekKey();
+			Entry entry = entries.popValue();
+			Entry old = read.get(usk);
+			if(old != null) {
+				entry.knownGood = Math.max(entry.knownGood, old.knownGood);
+				if(old.slot > entry.slot) {
+					entry.slot = old.slot;
+					entry.lastAdvanced = old.lastAdvanced;
+				}
+				if(entry.meanInterval < 0) entry.meanInterval = old.meanInterval;
+			}
+			read.push(usk, entry);
+		}
+		entries = read;
+		trim();
+		return true;
+	}
+
+	/** Copy the cached editions into the USKManager's maps, by clear USK, unless they already have
+	 * later editions. */
+	synchronized void copyEditions(Map<USK, Long> knownGood, Map<USK, Long> slots) {
+		Enumeration<USK> keys = entries.keys();
+		Enumeration<Entry> values = entries.values();
+		while(keys.hasMoreElements()) {
+			USK usk = keys.nextElement();
+			Entry entry = values.nextElement();
+			copyEdition(knownGood, usk, entry.knownGood);
+			copyEdition(slots, usk, entry.slot);
+		}
+	}
+
+	private static void copyEdition(Map<USK, Long> map, USK usk, long edition) {
+		if(edition < 0) return;
+		Long old = map.get(usk);
+		if(old == null || old < edition) map.put(usk, edition);
+	}
+
+	/** Write the file at the next opportunity, e.g. because it is in the wrong format. */
+	synchronized void setDirty() {
+		dirty = true;
+	}
+
+	/**
+	 * Record the latest editions of a USK. If the latest slot has moved on, update the mean time
+	 * between editions.
+	 * @param clear The USK, with edition 0.
+	 * @param now The current time.
+	 */
+	synchronized void update(USK clear, long knownGood, long slot, long now) {
+		Entry entry = entries.get(clear);
+		if(entry == null) entry = new Entry();
+		if(slot > entry.slot) {
+			if(entry.slot >= 0 && entry.lastAdvanced >= 0 && now > entry.lastAdvanced) {
+				long interval = (now - entry.lastAdvanced) / (slot - entry.slot);
+				if(entry.meanInterval < 0)
+					entry.meanInterval = interval;
+				else
+					entry.meanInterval = (long) (entry.meanInterval * (1 - INTERVAL_WEIGHT) + interval * INTERVAL_WEIGHT);
+			}
+			entry.slot = slot;
+			entry.lastAdvanced = now;
+		}
+		entry.knownGood = Math.max(entry.knownGood, knownGood);
+		entries.push(clear, entry);
+		trim();
+		dirty = true;
+	}
+
+	private void trim() {
+		while(entries.size() > maxEntries)
+			entries.popKey();
+	}
+
+	/** @return The mean time between editions in milliseconds, or -1 if not known. */
+	synchronized long getUpdateInterval(USK clear) {
+		Entry entry = entries.get(clear);
+		return entry == null ? -1 : entry.meanInterval;
+	}
+
+	/** @return How many editions we expect to have been published since we last saw one. */
+	synchronized long expectedNewEditions(USK clear, long now) {
+		Entry entry = entries.get(clear);
+		if(entry == null || entry.meanInterval <= 0 || entry.lastAdvanced < 0 || now <= entry.lastAdvanced)
+			return 0;
+		return (now - entry.lastAdvanced) / entry.meanInterval;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/** Write the file, if anything has changed. */
+	public void write() {
+		synchronized(writeLock) {
+			innerWrite();
+		}
+	}
+
+	private void innerWrite() {
+		USK[] keys;
+		long[][] data;
+		Bucket bucket;
+		synchronized(this) {
+			// Don't overwrite the file until we have read it.
+			if(!dirty || !loaded) return;
+			bucket = file.getWriteBucket();
+			if(bucket == null) return;
+			int size = entries.size();
+			keys = new USK[size];
+			data = new long[size][];
+			Enumeration<USK> k = entries.keys();
+			Enumeration<Entry> v = entries.values();
+			for(int i=0;i<size;i++) {
+				keys[i] = k.nextElement();
+				Entry entry = v.nextElement();
+				// Entries are modified in place, so copy them.
+				data[i] = new long[] { entry.knownGood, entry.slot, entry.lastAdvanced, entry.meanInterval };
+			}
+			dirty = false;
+		}
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(bucket.getOutputStream());
+			dos.writeLong(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(keys.length);
+			for(int i=0;i<keys.length;i++) {
+				keys[i].getBaseSSK().writeFullBinaryKeyWithLength(dos);
+				for(long l : data[i])
+					dos.writeLong(l);
+			}
+			dos.close();
+			dos = null;
+			file.commitWrite(bucket);
+			if(logMINOR) Logger.minor(this, "Written "+keys.length+" USK editions to "+file);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write USK editions to "+file+": "+e, e);
+			synchronized(this) {
+				dirty = true;
+			}
+		} finally {
+			Closer.close(dos);
+		}
+	}
+
+}
@@ -516,7 +516,15 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 
 	static final long origSleepTime = MINUTES.toMillis(30);
 	static final long maxSleepTime = HOURS.toMillis(24);
-	long sleepTime = origSleepTime;
+	/** The sleep time after finding a new edition: longer for USKs which are rarely updated. */
+	private final long minSleepTime;
+	long sleepTime;
+	
+	/** Searches ahead of the latest edition we knew of when we started, or null if we didn't know
+	 * of one. */
+	private final USKEditionSearch search;
+	/** Don't fetch the date hints, because we knew a recent edition when we started. */
+	private final boolean skipDBRs;
 
 	private long valueAtSchedule;
 	
@@ -528,6 +536,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	
 	private boolean started;
 	
+	/** Between rounds of background polling: no requests running, and the USKPollScheduler
+	 * will start the next round. */
+	private boolean parked;
+	
 	private final boolean realTimeFlag;
 	
 	private static short DEFAULT_NORMAL_POLL_PRIORITY = RequestStarter.PREFETCH_PRIORITY_CLASS;
@@ -577,8 +589,22 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			Logger.minor(this, "Just checking store on "+this);
 		// origUSK is a hint. We *do* want to check the edition given.
 		// Whereas latestSlot we've definitely fetched, we don't want to re-check.
-		watchingKeys = new USKWatchingKeys(origUSK, Math.max(0, uskManager.lookupLatestSlot(origUSK)+1));
+		long lookedUp = uskManager.lookupLatestSlot(origUSK);
+		watchingKeys = new USKWatchingKeys(origUSK, Math.max(0, lookedUp+1));
 		attemptsToStart = new ArrayList<USKAttempt>();
+		long updateInterval = uskManager.getUpdateInterval(origUSK);
+		minSleepTime = Math.max(origSleepTime, Math.min(maxSleepTime, updateInterval / 4));
+		sleepTime = minSleepTime;
+		if(lookedUp > -1 && !checkStoreOnly) {
+			// E.g. after a restart. Search from what we knew, rather than relying on the date hints.
+			long expected = uskManager.expectedNewEditions(origUSK);
+			search = new USKEditionSearch(lookedUp, expected, origMinFailures);
+			skipDBRs = expected < WATCH_KEYS;
+			if(logMINOR) Logger.minor(this, "Searching from "+lookedUp+" expecting "+expected+" new editions, update interval "+updateInterval+" for "+this);
+		} else {
+			search = null;
+			skipDBRs = false;
+		}
 	}
 	
 	public void onDBRsFinished(ClientContext context) {
@@ -664,6 +690,48 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			}
 		}
 		notifyFinishedForNow(context);
+		if(backgroundPoll)
+			park(context);
+	}
+	
+	/**
+	 * A round of background polling has finished. Stop polling and listening for keys, and let the
+	 * USKPollScheduler start the next round, after a delay which increases while we don't find
+	 * anything, or as soon as it sees one of the next editions.
+	 */
+	private void park(ClientContext context) {
+		long valAtEnd = uskManager.lookupLatestSlot(origUSK);
+		long now = System.currentTimeMillis();
+		long end;
+		USKAttempt[] polling;
+		synchronized(this) {
+			if(cancelled || completed || parked) return;
+			parked = true;
+			started = false;
+			
+			//Find out when we should check next ('end'), in an increasing delay (unless we make progress).
+			long newSleepTime = sleepTime * 2;
+			if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
+			sleepTime = newSleepTime;
+			end = now + context.random.nextInt((int) sleepTime);
+			
+			if(valAtEnd > valueAtSchedule && valAtEnd > origUSK.suggestedEdition) {
+				// We have advanced; keep trying as if we just started.
+				// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
+				sleepTime = minSleepTime;
+				firstLoop = false;
+				end = now;
+				if(logMINOR)
+					Logger.minor(this, "We have advanced: at start, "+valueAtSchedule+" at end, "+valAtEnd);
+			}
+			if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
+			polling = pollingAttempts.values().toArray(new USKAttempt[pollingAttempts.size()]);
+			pollingAttempts.clear();
+		}
+		for(USKAttempt a : polling)
+			a.cancel(context);
+		context.getSskFetchScheduler(realTimeFlag).schedTransient.removePendingKeys((KeyListener)this);
+		uskManager.pollScheduler.park(this, end-now, valAtEnd+1);
 	}
 
 	private void notifyFinishedForNow(ClientContext context) {
@@ -694,11 +762,23 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	void onDNF(USKAttempt att, ClientContext context) {
 		if(logMINOR) Logger.minor(this, "DNF: "+att);
 		boolean finished = false;
+		boolean registerNow = false;
 		long curLatest = uskManager.lookupLatestSlot(origUSK);
 		synchronized(this) {
 			if(completed || cancelled) return;
 			lastFetchedEdition = Math.max(lastFetchedEdition, att.number);
 			runningAttempts.remove(att.number);
+			if(search != null && search.notFound(att.number)) {
+				// Carry on searching before we finish.
+				Lookup l = nextSearchProbe(curLatest);
+				if(l != null) {
+					USKAttempt a = add(l, false);
+					if(a != null) {
+						attemptsToStart.add(a);
+						registerNow = true;
+					}
+				}
+			}
 			if(runningAttempts.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "latest: "+curLatest+", last fetched: "+lastFetchedEdition+", curLatest+MIN_FAILURES: "+(curLatest+origMinFailures));
 				if(started) {
@@ -706,11 +786,37 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 			} else if(logMINOR) Logger.minor(this, "Remaining: "+runningAttempts());
 		}
+		if(registerNow)
+			registerAttempts(context);
 		if(finished) {
 			finishSuccess(context);
 		}
 	}
 	
+	/**
+	 * The next edition to probe for the search, if it isn't polled anyway.
+	 * @param lookedUp The latest known slot.
+	 * @return The edition to probe, or null.
+	 */
+	private synchronized Lookup nextSearchProbe(long lookedUp) {
+		if(search == null) return null;
+		search.found(lookedUp);
+		long probe = search.nextProbe();
+		if(probe <= lookedUp + origMinFailures) return null;
+		Lookup l = new Lookup();
+		l.val = probe;
+		l.key = origUSK.getSSK(probe);
+		// The store checker checks the first WATCH_KEYS slots.
+		l.ignoreStore = probe - lookedUp < WATCH_KEYS;
+		if(logMINOR) Logger.minor(this, "Search probing "+probe+" for "+origUSK+" : "+search);
+		return l;
+	}
+	
+	/** @return The current maximum time between rounds of polling, in milliseconds. */
+	synchronized long getSleepTime() {
+		return sleepTime;
+	}
+	
 	private synchronized String runningAttempts() {
 		StringBuffer sb = new StringBuffer();
 		boolean first = true;
@@ -729,30 +835,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		if(logMINOR)
 			Logger.minor(this, "finishSuccess() on "+this);
 		if(backgroundPoll) {
-			long valAtEnd = uskManager.lookupLatestSlot(origUSK);
-			long end;
-			long now = System.currentTimeMillis();
-			synchronized(this) {
-				started = false; // don't finish before have rescheduled
-                
-                //Find out when we should check next ('end'), in an increasing delay (unless we make progress).
-                long newSleepTime = sleepTime * 2;
-				if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
-				sleepTime = newSleepTime;
-				end = now + context.random.nextInt((int) sleepTime);
-
-				if(valAtEnd > valueAtSchedule && valAtEnd > origUSK.suggestedEdition) {
-					// We have advanced; keep trying as if we just started.
-					// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
-					sleepTime = origSleepTime;
-					firstLoop = false;
-					end = now;
-					if(logMINOR)
-						Logger.minor(this, "We have advanced: at start, "+valueAtSchedule+" at end, "+valAtEnd);
-				}
-				if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
-			}
-			schedule(end-now, context);
+			// Parks until the next round once the polling attempts have all been tried.
 			checkFinishedForNow(context);
 		} else {
 			USKFetcherCallback[] cb;
@@ -868,12 +951,16 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 
 	private boolean shouldAddRandomEditions(Random random) {
 		if(firstLoop) return false;
+		// The search does the job of the random editions better.
+		if(search != null && !search.isFinished()) return false;
 		return random.nextInt(dbrHintsStarted + 1) >= dbrHintsFound;
 	}
 
 	void onCancelled(USKAttempt att, ClientContext context) {
 		synchronized(this) {
-			runningAttempts.remove(att.number);
+			// Polling attempts are cancelled between rounds, and may share an edition with a probe.
+			if(runningAttempts.get(att.number) == att)
+				runningAttempts.remove(att.number);
 			if(!runningAttempts.isEmpty()) return;
 		
 			if(cancelled)
@@ -998,7 +1085,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		synchronized(this) {
 			if(cancelled) return;
 			if(completed) return;
-			if(!scheduledDBRs && !ctx.ignoreUSKDatehints) {
+			parked = false;
+			if(!scheduledDBRs && !ctx.ignoreUSKDatehints && !skipDBRs) {
 				atts = addDBRs(context);
 			}
 			scheduledDBRs = true;
@@ -1241,6 +1329,16 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		boolean decode = false;
 		List<USKAttempt> killAttempts = null;
 		boolean registerNow = false;
+		boolean wasParked;
+		synchronized(this) {
+			if(completed || cancelled) return;
+			wasParked = parked;
+		}
+		if(wasParked) {
+			// Start a round rather than polling on our own.
+			uskManager.pollScheduler.start(this);
+			return;
+		}
 		synchronized(this) {
 			if(completed || cancelled) return;
 			decode = lastEd == ed && data != null;
@@ -1724,6 +1822,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			if(probeFromLastKnownGood)
 				fromLastKnownSlot.getNextEditions(toFetch, toPoll, lookedUp, alreadyRunning, random);
 			
+			Lookup probe = nextSearchProbe(lookedUp);
+			if(probe != null && !alreadyRunning.remove(probe) && !toFetch.contains(probe))
+				toFetch.add(probe);
+			
 			// If we have moved past the origUSK, then clear the KeyList for it.
 			for(Iterator<Entry<Long,KeyList>> it = fromSubscribers.entrySet().iterator();it.hasNext();) {
 				Entry<Long,KeyList> entry = it.next();
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.net.MalformedURLException;
@@ -20,6 +21,7 @@ import freenet.client.NullClientCallback;
 import freenet.clients.http.FProxyToadlet;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
+import freenet.node.DatabaseKey;
 import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
@@ -65,6 +67,17 @@ public class USKManager {
 	/** Latest SSK slot known to be by the author by blanked-edition-number USK */
 	final Map<USK, Long> latestSlotByClearUSK;
 	
+	/** The latest editions and how often they change, kept across restarts. The two maps above
+	 * start from it, so we don't have to search for every USK again after a restart. */
+	final USKEditionStore editionStore;
+	private final ClientLayerCacheFile editionFile;
+	
+	static final long WRITE_EDITIONS_INTERVAL = MINUTES.toMillis(10);
+	
+	/** Starts the rounds of polling for the background fetchers, and watches for new editions
+	 * between rounds. */
+	final USKPollScheduler pollScheduler;
+	
 	/** Subscribers by clear USK */
 	final Map<USK, USKCallback[]> subscribersByClearUSK;
 	
@@ -113,10 +126,65 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		editionFile = new ClientLayerCacheFile(core.node.nodeDir().dir(), "usk-editions.dat");
+		editionStore = new USKEditionStore(editionFile);
+		pollScheduler = new USKPollScheduler(this, USKPollScheduler.DEFAULT_MAX_ACTIVE);
 	}
 
 	public void init(ClientContext context) {
 		this.context = context;
+		pollScheduler.init(context);
+		context.ticker.queueTimedJob(editionWriter, "Write USK editions", WRITE_EDITIONS_INTERVAL, false, true);
+	}
+	
+	private final Runnable editionWriter = new Runnable() {
+		
+		@Override
+		public void run() {
+			try {
+				writeEditions();
+			} finally {
+				context.ticker.queueTimedJob(this, "Write USK editions", WRITE_EDITIONS_INTERVAL, false, true);
+			}
+		}
+		
+	};
+	
+	/**
+	 * Tell the edition cache how to store its file, and load it the first time. Called by
+	 * NodeClientCore when it has the client layer key, and when the physical security level changes.
+	 * @see ClientLayerCacheFile#setFiles(boolean, boolean, DatabaseKey)
+	 */
+	public void setEditionFiles(boolean writeEncrypted, boolean noWrite, DatabaseKey key) {
+		boolean rewrite = editionFile.setFiles(writeEncrypted, noWrite, key);
+		if(editionStore.load()) {
+			synchronized(this) {
+				editionStore.copyEditions(latestKnownGoodByClearUSK, latestSlotByClearUSK);
+			}
+		}
+		if(rewrite) {
+			// Don't leave it in the old format until the next periodic write.
+			editionStore.setDirty();
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					writeEditions();
+				}
+
+			}, "Rewrite USK editions");
+		}
+	}
+
+	/** Delete the edition cache, and don't write it again. Called on panic. */
+	public void onPanic() {
+		editionFile.panic();
+	}
+
+	/** Write the latest known editions to disk, if they have changed. Called periodically and on
+	 * shutdown. */
+	public void writeEditions() {
+		editionStore.write();
 	}
 
 	/**
@@ -142,6 +210,32 @@ public class USKManager {
 		else return -1;
 	}
 
+	/**
+	 * @return The mean time between new editions of the given USK, in milliseconds, as observed
+	 * by this node, or -1 if not known.
+	 */
+	public long getUpdateInterval(USK usk) {
+		return editionStore.getUpdateInterval(usk.clearCopy());
+	}
+
+	/** @return How many new editions of the USK we expect have been published since we last saw
+	 * one, based on how often it is updated. */
+	long expectedNewEditions(USK usk) {
+		return editionStore.expectedNewEditions(usk.clearCopy(), System.currentTimeMillis());
+	}
+
+	/**
+	 * @return The current maximum time between rounds of background polling for the given USK,
+	 * in milliseconds, or -1 if it is not being polled in the background.
+	 */
+	public long getPollInterval(USK usk) {
+		USKFetcher f;
+		synchronized(this) {
+			f = backgroundFetchersByClearUSK.get(usk.clearCopy());
+		}
+		return f == null ? -1 : f.getSleepTime();
+	}
+
 	public USKFetcherTag getFetcher(USK usk, FetchContext ctx, boolean keepLast, boolean persistent, boolean realTime, 
 			USKFetcherCallback callback, boolean ownFetchContext, ClientContext context, boolean checkStoreOnly) {
 		return USKFetcherTag.create(usk, callback, persistent, realTime, ctx, keepLast, 0, ownFetchContext, checkStoreOnly || ctx.localRequestOnly);
@@ -446,22 +540,12 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			editionStore.update(clear, number, l, System.currentTimeMillis());
 			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
-		if(callbacks != null) {
-			// Run off-thread, because of locking, and because client callbacks may take some time
-					final USK usk = origUSK.copy(number);
-					final boolean newSlotToo = newSlot;
-					for(final USKCallback callback : callbacks)
-						context.mainExecutor.execute(new Runnable() {
-							@Override
-							public void run() {
-								callback.onFoundEdition(number, usk, // non-persistent
-										context, false, (short)-1, null, true, newSlotToo);
-							}
-						}, "USKManager callback executor for " +callback);
-				}
+		if(callbacks != null)
+			runCallbacks(callbacks, origUSK.copy(number), number, true, newSlot, context);
 	}
 	
 	void updateSlot(final USK origUSK, final long number, final ClientContext context) {
@@ -477,6 +561,8 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return;
+			Long good = latestKnownGoodByClearUSK.get(clear);
+			editionStore.update(clear, good == null ? -1 : good, number, System.currentTimeMillis());
 			
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
@@ -484,18 +570,29 @@ public class USKManager {
 				schedulePrefetchChecker();
 			}
 		}
-		if(callbacks != null) {
-			// Run off-thread, because of locking, and because client callbacks may take some time
-					final USK usk = origUSK.copy(number);
-					for(final USKCallback callback : callbacks)
-						context.mainExecutor.execute(new Runnable() {
-							@Override
-							public void run() {
-								callback.onFoundEdition(number, usk, // non-persistent
-										context, false, (short)-1, null, false, false);
-							}
-						}, "USKManager callback executor for " +callback);
+		if(callbacks != null)
+			runCallbacks(callbacks, origUSK.copy(number), number, false, false, context);
+	}
+	
+	/**
+	 * Tell the subscribers about a new edition. Run off-thread, because of locking, and because
+	 * client callbacks may take some time. One job for all of them, because a popular USK may
+	 * have a lot of subscribers.
+	 */
+	private void runCallbacks(final USKCallback[] callbacks, final USK usk, final long number, final boolean newKnownGood, final boolean newSlotToo, final ClientContext context) {
+		context.mainExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(USKCallback callback : callbacks) {
+					try {
+						callback.onFoundEdition(number, usk, // non-persistent
+								context, false, (short)-1, null, newKnownGood, newSlotToo);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" in callback "+callback+" for "+usk, t);
+					}
 				}
+			}
+		}, "USKManager callbacks for "+usk);
 	}
 	
 	/** Subscribe to a given USK, and poll it in the background, but only 
@@ -568,16 +665,8 @@ public class USKManager {
 			cb.onFoundEdition(goodEd, origUSK.copy(curEd), context, false, (short)-1, null, true, curEd > ed);
 		else if(curEd > ed)
 			cb.onFoundEdition(curEd, origUSK.copy(curEd), context, false, (short)-1, null, false, false);
-		final USKFetcher fetcher = sched;
-		if(fetcher != null) {
-			executor.execute(new Runnable() {
-				@Override
-				public void run() {
-					if(logMINOR) Logger.minor(this, "Starting "+fetcher);
-					fetcher.schedule(context);
-				}
-			}, "USKManager.schedule for "+fetcher);
-		}
+		if(sched != null)
+			pollScheduler.start(sched);
 	}
 	
 	public void subscribe(USK origUSK, USKCallback cb, boolean runBackgroundFetch, RequestClient client) {
@@ -710,6 +799,7 @@ public class USKManager {
 				temporaryBackgroundFetchersPrefetch.remove(clear);
 			}
 		}
+		pollScheduler.remove(fetcher);
 	}
 
 	public boolean persistent() {
@@ -0,0 +1,364 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeSSK;
+import freenet.keys.SSKBlock;
+import freenet.keys.USK;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Runs the rounds of background polling for USK subscriptions, so that a node subscribed to
+ * thousands of USKs doesn't keep requests and a key listener going for every one of them all the
+ * time. Between rounds a background USKFetcher is parked: it has no requests queued and is not a
+ * KeyListener. Parked fetchers wait in a queue ordered by when their next round is due, and a
+ * single ticker job starts them, no more than a fixed number at once.
+ *
+ * Meanwhile this is the one KeyListener for all parked fetchers. It watches the next few editions
+ * of each of them in a single hash table, so a new edition which is offered to us, or passes
+ * through the node, still updates the USK and starts a round straight away.
+ */
+public class USKPollScheduler implements KeyListener, HasKeyListener {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(USKPollScheduler.class);
+	}
+
+	static final int DEFAULT_MAX_ACTIVE = 256;
+	/** Watch this many editions after the latest known for each parked USK. */
+	static final int WATCH_EDITIONS = 3;
+	/** A round which has been running this long doesn't count against the limit any more. */
+	static final long MAX_ROUND_TIME = HOURS.toMillis(1);
+
+	private final USKManager uskManager;
+	private final int maxActive;
+	private ClientContext context;
+	private Ticker ticker;
+	private Executor executor;
+
+	private class Parked implements Comparable<Parked> {
+		final USKFetcher fetcher;
+		final long wakeTime;
+		/** Keeps fetchers due at the same time in order. */
+		final long seq;
+		/** Routing keys of the editions being watched, or null. */
+		ByteArrayWrapper[] keys;
+
+		Parked(USKFetcher fetcher, long wakeTime) {
+			this.fetcher = fetcher;
+			this.wakeTime = wakeTime;
+			this.seq = counter++;
+		}
+
+		@Override
+		public int compareTo(Parked o) {
+			if(wakeTime != o.wakeTime) return wakeTime < o.wakeTime ? -1 : 1;
+			if(seq != o.seq) return seq < o.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private static class Watch {
+		final Parked parked;
+		final long edition;
+
+		Watch(Parked parked, long edition) {
+			this.parked = parked;
+			this.edition = edition;
+		}
+	}
+
+	private long counter;
+	/** Fetchers waiting for their next round, by when it is due. */
+	private final PriorityQueue<Parked> queue = new PriorityQueue<Parked>();
+	private final HashMap<USKFetcher, Parked> parkedByFetcher = new HashMap<USKFetcher, Parked>();
+	/** Editions being watched, by routing key. */
+	private final HashMap<ByteArrayWrapper, Watch> watching = new HashMap<ByteArrayWrapper, Watch>();
+	/** Fetchers in a round, and when it started. */
+	private final HashMap<USKFetcher, Long> running = new HashMap<USKFetcher, Long>();
+	/** Fetchers which have been removed, and must not be parked or started again. USKFetcher calls
+	 * remove() before it marks itself cancelled, so a round can finish, or a new edition turn up,
+	 * in between. */
+	private final Set<USKFetcher> removed = Collections.newSetFromMap(new WeakHashMap<USKFetcher, Boolean>());
+
+	USKPollScheduler(USKManager uskManager, int maxActive) {
+		this.uskManager = uskManager;
+		this.maxActive = maxActive;
+	}
+
+	void init(ClientContext context) {
+		context.getSskFetchScheduler(false).schedTransient.addPendingKeys(this);
+		context.getSskFetchScheduler(true).schedTransient.addPendingKeys(this);
+		init(context, context.ticker, context.mainExecutor);
+	}
+
+	/** Start running rounds. Called by init(ClientContext), and by tests. */
+	void init(ClientContext context, Ticker ticker, Executor executor) {
+		synchronized(this) {
+			this.context = context;
+			this.ticker = ticker;
+			this.executor = executor;
+		}
+		wake();
+	}
+
+	/** The current time. Overridden by tests. */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/** Start a round for a background fetcher as soon as there is room, e.g. because it is new or
+	 * a new edition has been found. Does nothing if it is already in a round. */
+	void start(USKFetcher fetcher) {
+		synchronized(this) {
+			if(removed.contains(fetcher) || running.containsKey(fetcher)) return;
+			unpark(fetcher);
+			park(new Parked(fetcher, now()));
+		}
+		if(logMINOR) Logger.minor(this, "Starting a round soon for "+fetcher);
+		wake();
+	}
+
+	/**
+	 * A background fetcher has finished a round. Start the next one after a delay, or when one of
+	 * the editions after the latest known turns up.
+	 * @param nextEdition The first edition which hasn't been found yet.
+	 */
+	void park(USKFetcher fetcher, long delay, long nextEdition) {
+		USK usk = fetcher.getOriginalUSK();
+		// A new edition may have been found while the fetcher was finishing its round.
+		if(uskManager.lookupLatestSlot(usk) >= nextEdition) delay = 0;
+		ByteArrayWrapper[] keys = new ByteArrayWrapper[WATCH_EDITIONS];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = new ByteArrayWrapper(usk.getSSK(nextEdition + i).getNodeKey(false).getRoutingKey());
+		synchronized(this) {
+			if(removed.contains(fetcher)) return;
+			running.remove(fetcher);
+			unpark(fetcher);
+			Parked p = new Parked(fetcher, now() + delay);
+			p.keys = keys;
+			for(int i=0;i<keys.length;i++)
+				watching.put(keys[i], new Watch(p, nextEdition + i));
+			park(p);
+		}
+		if(logMINOR) Logger.minor(this, "Parked "+fetcher+" for "+delay+"ms watching from "+nextEdition);
+		wake();
+	}
+
+	/** A background fetcher has been cancelled, or is about to be. It won't be parked or started
+	 * again. */
+	void remove(USKFetcher fetcher) {
+		boolean wasRunning;
+		synchronized(this) {
+			removed.add(fetcher);
+			wasRunning = running.remove(fetcher) != null;
+			unpark(fetcher);
+		}
+		if(wasRunning) wake();
+	}
+
+	private void park(Parked p) {
+		parkedByFetcher.put(p.fetcher, p);
+		queue.add(p);
+	}
+
+	private void unpark(USKFetcher fetcher) {
+		Parked p = parkedByFetcher.remove(fetcher);
+		if(p == null) return;
+		queue.remove(p);
+		unwatch(p);
+	}
+
+	private void unwatch(Parked p) {
+		if(p.keys == null) return;
+		for(ByteArrayWrapper key : p.keys) {
+			Watch w = watching.get(key);
+			if(w != null && w.parked == p)
+				watching.remove(key);
+		}
+		p.keys = null;
+	}
+
+	/** Start any rounds which are due, if there is room. */
+	private void wake() {
+		final ArrayList<USKFetcher> toStart = new ArrayList<USKFetcher>();
+		final ClientContext context;
+		Ticker ticker;
+		Executor executor;
+		long next = -1;
+		synchronized(this) {
+			if(this.ticker == null) return; // Not started yet.
+			context = this.context;
+			ticker = this.ticker;
+			executor = this.executor;
+			long now = now();
+			long oldest = Long.MAX_VALUE;
+			for(Iterator<Map.Entry<USKFetcher, Long>> it = running.entrySet().iterator();it.hasNext();) {
+				Map.Entry<USKFetcher, Long> entry = it.next();
+				if(now - entry.getValue() > MAX_ROUND_TIME) {
+					if(logMINOR) Logger.minor(this, "Round is taking too long, not counting it: "+entry.getKey());
+					it.remove();
+				} else
+					oldest = Math.min(oldest, entry.getValue());
+			}
+			while(running.size() < maxActive) {
+				Parked p = queue.peek();
+				if(p == null || p.wakeTime > now) break;
+				queue.poll();
+				parkedByFetcher.remove(p.fetcher);
+				unwatch(p);
+				running.put(p.fetcher, now);
+				toStart.add(p.fetcher);
+			}
+			if(!queue.isEmpty()) {
+				if(running.size() < maxActive)
+					next = queue.peek().wakeTime;
+				else
+					// Full: wait for the oldest round to stop counting. Rounds finishing wake us anyway.
+					next = Math.max(queue.peek().wakeTime, oldest + MAX_ROUND_TIME + 1);
+				next = Math.max(next, now + 1);
+			}
+		}
+		if(next > 0)
+			ticker.queueTimedJobAbsolute(waker, "Start USK polling rounds", next, false, true);
+		if(toStart.isEmpty()) return;
+		if(logMINOR) Logger.minor(this, "Starting "+toStart.size()+" USK polling rounds");
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for(USKFetcher fetcher : toStart) {
+					try {
+						fetcher.schedule(context);
+					} catch (Throwable t) {
+						Logger.error(this, "Unable to start polling round for "+fetcher+" : "+t, t);
+						remove(fetcher);
+					}
+				}
+			}
+
+		}, "Start USK polling rounds");
+	}
+
+	private final Runnable waker = new Runnable() {
+
+		@Override
+		public void run() {
+			wake();
+		}
+
+	};
+
+	synchronized int countParked() {
+		return parkedByFetcher.size();
+	}
+
+	synchronized int countRunning() {
+		return running.size();
+	}
+
+	private synchronized Watch getWatch(Key key) {
+		if(!(key instanceof NodeSSK)) return null;
+		return watching.get(new ByteArrayWrapper(key.getRoutingKey()));
+	}
+
+	@Override
+	public boolean probablyWantKey(Key key, byte[] saltedKey) {
+		return getWatch(key) != null;
+	}
+
+	@Override
+	public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+		Watch w = getWatch(key);
+		if(w == null) return -1;
+		return w.parked.fetcher.getPriorityClass();
+	}
+
+	@Override
+	public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+		return new SendableGet[0];
+	}
+
+	@Override
+	public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+		if(!(found instanceof SSKBlock)) return false;
+		Watch w;
+		synchronized(this) {
+			w = getWatch(key);
+			if(w == null) return false;
+			unwatch(w.parked);
+		}
+		USKFetcher fetcher = w.parked.fetcher;
+		if(logMINOR) Logger.minor(this, "Found edition "+w.edition+" for parked "+fetcher);
+		uskManager.updateSlot(fetcher.getOriginalUSK(), w.edition, context);
+		start(fetcher);
+		return true;
+	}
+
+	@Override
+	public boolean persistent() {
+		return false;
+	}
+
+	@Override
+	public short getPriorityClass() {
+		return RequestStarter.UPDATE_PRIORITY_CLASS;
+	}
+
+	@Override
+	public synchronized long countKeys() {
+		return watching.size();
+	}
+
+	@Override
+	public HasKeyListener getHasKeyListener() {
+		return this;
+	}
+
+	@Override
+	public void onRemove() {
+		// Ignore
+	}
+
+	@Override
+	public boolean isEmpty() {
+		// Registered for as long as the node runs.
+		return false;
+	}
+
+	@Override
+	public boolean isSSK() {
+		return true;
+	}
+
+	@Override
+	public KeyListener makeKeyListener(ClientContext context, boolean onStartup) {
+		return this;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+}
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.events;
 
+import freenet.support.compress.CompressionTrials;
+
 public class FinishedCompressionEvent implements ClientEvent {
 
 	static final int code = 0x09;
@@ -13,16 +15,34 @@ public class FinishedCompressionEvent implements ClientEvent {
 	public final long originalSize;
 	/** Compressed size */
 	public final long compressedSize;
+	/** Time taken to try all the codecs, in milliseconds, or -1 if unknown */
+	public final long compressionTime;
+	/** The codecs tried, or null if unknown */
+	public final CompressionTrials.Trial[] trials;
 
 	public FinishedCompressionEvent(int codec, long origSize, long compressedSize) {
+		this(codec, origSize, compressedSize, -1, null);
+	}
+
+	public FinishedCompressionEvent(int codec, long origSize, long compressedSize, long compressionTime,
+			CompressionTrials.Trial[] trials) {
 		this.codec = codec;
 		this.originalSize = origSize;
 		this.compressedSize = compressedSize;
+		this.compressionTime = compressionTime;
+		this.trials = trials;
+	}
+
+	/** @return Bytes of original data compressed per second, or -1 if unknown */
+	public long getThroughput() {
+		if(compressionTime < 0) return -1;
+		return originalSize * 1000 / Math.max(1, compressionTime);
 	}
 
 	@Override
 	public String getDescription() {
-		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize;
+		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize+
+			(compressionTime < 0 ? "" : ", time="+compressionTime+"ms");
 	}
 
 	@Override
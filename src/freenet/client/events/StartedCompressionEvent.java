@@ -11,9 +11,19 @@ import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 public class StartedCompressionEvent implements ClientEvent {
 
 	public final COMPRESSOR_TYPE codec;
+	/** Size of the data being compressed, or -1 if unknown */
+	public final long originalSize;
+	/** Number of codecs which may be being tried at once */
+	public final int parallelTrials;
 	
 	public StartedCompressionEvent(COMPRESSOR_TYPE codec) {
+		this(codec, -1, 1);
+	}
+	
+	public StartedCompressionEvent(COMPRESSOR_TYPE codec, long originalSize, int parallelTrials) {
 		this.codec = codec;
+		this.originalSize = originalSize;
+		this.parallelTrials = parallelTrials;
 	}
 	
 	final static int code = 0x08;
@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of verdicts for CSS declarations, shared by all CSSTokenizerFilter
+ * instances. Real stylesheets repeat the same declarations ("color: red", "margin: 0 auto")
+ * over and over, and each of them otherwise goes through the full split and recursive
+ * parser expression verification.
+ * <p>
+ * A verdict is a pure function of the property, the media it applies to, and the value,
+ * UNLESS the value contains a url(), which is passed to the FilterCallback and may be
+ * rewritten. Callers must not cache such declarations. The lazily loaded verifier table
+ * may change how a value is verified, so verdicts are tagged with the generation of the
+ * table they were computed against, and the cache is flushed when it changes.
+ * </p>
+ */
+final class CSSDeclarationCache {
+
+	/** Default number of declarations to remember. */
+	static final int DEFAULT_SIZE = 4096;
+	/** Values longer than this are not worth the memory: they are unlikely to be repeated. */
+	static final int MAX_VALUE_LENGTH = 256;
+
+	/** Result of filtering a single declaration. */
+	static final class Verdict {
+		/** True if the declaration should be kept. */
+		final boolean valid;
+		/** The filtered value to write out. Only meaningful if valid. */
+		final String value;
+
+		Verdict(boolean valid, String value) {
+			this.valid = valid;
+			this.value = value;
+		}
+	}
+
+	private static final Verdict INVALID = new Verdict(false, null);
+
+	private final Map<String, Verdict> verdicts;
+	private int generation;
+	private long hits;
+	private long misses;
+
+	@SuppressWarnings("serial")
+	CSSDeclarationCache(final int maxSize) {
+		if(maxSize <= 0) throw new IllegalArgumentException("Negative or zero maxSize");
+		verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param generation The current generation of the verifier table.
+	 * @return The cached verdict, or null if we have to verify the declaration.
+	 */
+	synchronized Verdict get(String property, String[] media, String value, int generation) {
+		if(value.length() > MAX_VALUE_LENGTH) return null;
+		checkGeneration(generation);
+		Verdict v = verdicts.get(makeKey(property, media, value));
+		if(v == null)
+			misses++;
+		else
+			hits++;
+		return v;
+	}
+
+	/**
+	 * Remember a verdict.
+	 * @param filtered The filtered value, or null if the declaration is invalid.
+	 * @param generation The generation of the verifier table the verdict was computed against.
+	 */
+	synchronized void put(String property, String[] media, String value, String filtered, int generation) {
+		if(value.length() > MAX_VALUE_LENGTH) return;
+		checkGeneration(generation);
+		verdicts.put(makeKey(property, media, value), filtered == null ? INVALID : new Verdict(true, filtered));
+	}
+
+	private void checkGeneration(int generation) {
+		if(generation != this.generation) {
+			verdicts.clear();
+			this.generation = generation;
+		}
+	}
+
+	synchronized void clear() {
+		verdicts.clear();
+	}
+
+	synchronized int size() {
+		return verdicts.size();
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	private static String makeKey(String property, String[] media, String value) {
+		StringBuilder sb = new StringBuilder(property.length() + value.length() + 16);
+		sb.append(property.toLowerCase());
+		sb.append('\n');
+		if(media != null) {
+			for(String m : media) {
+				sb.append(m);
+				sb.append(',');
+			}
+		}
+		sb.append('\n');
+		sb.append(value);
+		return sb.toString();
+	}
+
+}
@@ -36,4 +36,16 @@ class CSSParser extends CSSTokenizerFilter {
 		this.cb = cb;
 	}
 
+	CSSParser(
+		Reader r,
+		Writer w,
+		boolean paranoidStringCheck,
+		FilterCallback cb,
+		String charset,
+		boolean stopAtDetectedCharset, boolean isInline,
+		CSSDeclarationCache declarationCache) {
+		super(r, w, cb, charset, stopAtDetectedCharset, isInline, declarationCache);
+		this.cb = cb;
+	}
+
 }
\ No newline at end of file
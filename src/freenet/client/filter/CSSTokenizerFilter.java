@@ -16,6 +16,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import freenet.support.Fields;
 import freenet.support.Logger;
@@ -51,6 +52,11 @@ class CSSTokenizerFilter {
 	private String detectedCharset;
 	private final boolean stopAtDetectedCharset;
 	private final boolean isInline;
+	/** Verdicts for declarations we have already seen. May be null. */
+	private final CSSDeclarationCache declarationCache;
+
+	/** Shared by all filters, see CSSDeclarationCache. */
+	static final CSSDeclarationCache sharedDeclarationCache = new CSSDeclarationCache(CSSDeclarationCache.DEFAULT_SIZE);
 
 	static {
 		Logger.registerClass(CSSTokenizerFilter.class);
@@ -60,15 +66,25 @@ class CSSTokenizerFilter {
 		passedCharset = "UTF-8";
 		stopAtDetectedCharset = false;
 		isInline = false;
+		declarationCache = sharedDeclarationCache;
 	}
         
 	CSSTokenizerFilter(Reader r, Writer w, FilterCallback cb, String charset, boolean stopAtDetectedCharset, boolean isInline) {
+		this(r, w, cb, charset, stopAtDetectedCharset, isInline, sharedDeclarationCache);
+	}
+
+	/**
+	 * @param declarationCache Cache of declaration verdicts to use, or null to verify every
+	 * declaration in full.
+	 */
+	CSSTokenizerFilter(Reader r, Writer w, FilterCallback cb, String charset, boolean stopAtDetectedCharset, boolean isInline, CSSDeclarationCache declarationCache) {
 		this.r=r;
 		this.w = w;
 		this.cb=cb;
 		passedCharset = charset;
 		this.stopAtDetectedCharset = stopAtDetectedCharset;
 		this.isInline = isInline;
+		this.declarationCache = declarationCache;
 	}
 
 	public boolean isValidURI(String URI)
@@ -111,6 +127,12 @@ class CSSTokenizerFilter {
 	// FIXME check how many bytes we save by lazy init here.
 
 	private final static Map<String, CSSPropertyVerifier> elementVerifiers = new HashMap<String, CSSPropertyVerifier>();
+	/** Fully loaded verifiers, keyed by lower case property name. Read without locking; only
+	 * getVerifier() adds to it, after the verifier and its auxiliary verifiers are set up. */
+	private final static Map<String, CSSPropertyVerifier> verifierTable = new ConcurrentHashMap<String, CSSPropertyVerifier>();
+	/** Incremented every time a verifier is loaded. Loading a verifier may replace shared
+	 * auxiliary verifiers, so cached declaration verdicts are only valid for one generation. */
+	private static volatile int verifierGeneration;
 	private final static HashSet<String> allelementVerifiers=new HashSet<String>();
 	//Reference http://www.w3.org/TR/CSS2/propidx.html
 	static {
@@ -327,7 +349,7 @@ class CSSTokenizerFilter {
 	 * Array for storing additional Verifier objects for validating Regular expressions in CSS Property value
 	 * e.g. [ <color> | transparent]{1,4}. It is explained in detail in CSSPropertyVerifier class
 	 */
-	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[145];
+	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[147];
 	static
 	{
 		/*CSSPropertyVerifier(String[] allowedValues,String[] possibleValues,String expression,boolean onlyValueVerifier)*/
@@ -473,15 +495,17 @@ class CSSTokenizerFilter {
 		{
 			auxilaryVerifiers[57] = new CSSPropertyVerifier(Arrays.asList("repeat","space","round","no-repeat"),null,null,null,true);
 			auxilaryVerifiers[58] = new CSSPropertyVerifier(Arrays.asList("repeat-x","repeat-y"), null, null, null, true);
-			auxilaryVerifiers[59] = new CSSPropertyVerifier(null, null, Arrays.asList("58","57<1,2>"), null, true);
-			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("59<1,65535>"), true,true));
+			// 59 is used by font.
+			auxilaryVerifiers[145] = new CSSPropertyVerifier(null, null, Arrays.asList("58","57<1,2>"), null, true);
+			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("145<1,65535>"), true,true));
 			allelementVerifiers.remove(element);
 		}
 		else if("background-size".equalsIgnoreCase(element))
 		{
-			auxilaryVerifiers[61] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
+			// 61 is used by background-clip and background-origin.
+			auxilaryVerifiers[146] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
 			auxilaryVerifiers[62] = new CSSPropertyVerifier(Arrays.asList("cover", "contain"), null, null, null, true);
-			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("61<1,2>", "62"), null, true);
+			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("146<1,2>", "62"), null, true);
 			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("63<1,65535>"), true,true));
 			allelementVerifiers.remove(element);
 		}
@@ -1620,19 +1644,64 @@ class CSSTokenizerFilter {
 	 * This function returns the Verifier for a property. If it is not already loaded in the elementVerifier, then it is loaded and then returned to the caller.
 	 * FIXME: Lazy init probably doesn't make sense, but while we are initting lazily, we need to hold a lock here.
 	 */
-	private synchronized static CSSPropertyVerifier getVerifier(String element)
+	private static CSSPropertyVerifier getVerifier(String element)
 	{
 		element=element.toLowerCase();
+		CSSPropertyVerifier verifier = verifierTable.get(element);
+		if(verifier != null) return verifier;
+		return loadVerifier(element);
+	}
+
+	private synchronized static CSSPropertyVerifier loadVerifier(String element)
+	{
 		if(elementVerifiers.get(element)!=null)
 			return elementVerifiers.get(element);
 		else if(allelementVerifiers.contains(element))
 		{
 			addVerifier(element);
-			return elementVerifiers.get(element);
+			CSSPropertyVerifier verifier = elementVerifiers.get(element);
+			verifierGeneration++;
+			if(verifier != null) verifierTable.put(element, verifier);
+			return verifier;
 		}
 		else
 			return null;
 	}
+
+	/**
+	 * Split and verify the value of a declaration, answering from the declaration cache if
+	 * possible.
+	 * @return The value to write out, possibly re-encoded, or null if the declaration is
+	 * invalid and must be dropped.
+	 */
+	private String filterDeclaration(String[] media, String[] elements, String propertyName, String propertyValue, CSSPropertyVerifier obj)
+	{
+		int generation = verifierGeneration;
+		if(declarationCache != null) {
+			CSSDeclarationCache.Verdict verdict = declarationCache.get(propertyName, media, propertyValue, generation);
+			if(verdict != null) {
+				if(logDEBUG) Logger.debug(this, "Cached verdict for "+propertyName+":"+propertyValue+" : "+verdict.valid);
+				return verdict.valid ? verdict.value : null;
+			}
+		}
+		ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
+		if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
+		String filtered = null;
+		if(verifyToken(media,elements,obj,words))
+			filtered = changedAnything(words) ? reconstruct(words) : propertyValue;
+		// url()'s depend on the FilterCallback, which is per-document.
+		if(declarationCache != null && !containsURL(words))
+			declarationCache.put(propertyName, media, propertyValue, filtered, generation);
+		return filtered;
+	}
+
+	private static boolean containsURL(ParsedWord[] words) {
+		if(words == null) return false;
+		for(ParsedWord word : words) {
+			if(word instanceof ParsedURL) return true;
+		}
+		return false;
+	}
 	/*
 	 * This function accepts media, list of HTML elements, CSS property and value and determines whether it is valid or not.
 	 * @media print
@@ -2673,11 +2742,12 @@ class CSSTokenizerFilter {
 
 					CSSPropertyVerifier obj=getVerifier(propertyName);
 					if(obj != null) {
-					ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
-					if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
-					if(words != null && !ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
+					String filteredValue = null;
+					if(!ignoreElementsS2 && !ignoreElementsS3)
+						filteredValue = filterDeclaration(currentMedia, elements, propertyName, propertyValue, obj);
+					if(filteredValue != null)
 					{
-						if(changedAnything(words)) propertyValue = reconstruct(words);
+						propertyValue = filteredValue;
 						filteredTokens.append(whitespaceBeforeProperty);
 						whitespaceBeforeProperty = "";
 						filteredTokens.append(propertyName);
@@ -2688,7 +2758,7 @@ class CSSTokenizerFilter {
 						if(logDEBUG) Logger.debug(this, "STATE3 CASE ;: appending "+ propertyName+":"+propertyValue);
 						if(logDEBUG) Logger.debug(this, "filtered tokens now: \""+filteredTokens.toString()+"\"");
 					} else {
-						if(logDEBUG) Logger.debug(this, "filtered tokens now (ignored): \""+filteredTokens.toString()+"\" words="+CSSPropertyVerifier.toString(words)+" ignoreS1="+ignoreElementsS1+" ignoreS2="+ignoreElementsS2+" ignoreS3="+ignoreElementsS3);
+						if(logDEBUG) Logger.debug(this, "filtered tokens now (ignored): \""+filteredTokens.toString()+"\" value="+propertyValue+" ignoreS1="+ignoreElementsS1+" ignoreS2="+ignoreElementsS2+" ignoreS3="+ignoreElementsS3);
 					}
 					} else {
 						if(logDEBUG) Logger.debug(this, "No such property name \""+propertyName+"\"");
@@ -2743,11 +2813,12 @@ class CSSTokenizerFilter {
 						obj=getVerifier(propertyName);
 						if(logDEBUG) Logger.debug(this, "Found PropertyName:"+propertyName+" propertyValue:"+propertyValue);
 						if(obj != null) {
-							ParsedWord[] words = split(propertyValue,obj.allowCommaDelimiters);
-							if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
-							if(!ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
+							String filteredValue = null;
+							if(!ignoreElementsS2 && !ignoreElementsS3)
+								filteredValue = filterDeclaration(currentMedia, elements, propertyName, propertyValue, obj);
+							if(filteredValue != null)
 							{
-								if(changedAnything(words)) propertyValue = reconstruct(words);
+								propertyValue = filteredValue;
 								filteredTokens.append(whitespaceBeforeProperty);
 								whitespaceBeforeProperty = "";
 								filteredTokens.append(propertyName);
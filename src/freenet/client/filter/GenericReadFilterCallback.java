@@ -218,7 +218,7 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 					while(p.startsWith("/")) {
 						p = p.substring(1);
 					}
-					FreenetURI furi = new FreenetURI(p, true);
+					FreenetURI furi = FreenetURI.intern(p, true);
 					isAbsolute = true;
 					if(logMINOR) Logger.minor(this, "Parsed: "+furi);
 					return processURI(furi, uri, overrideType, true, inline);
@@ -245,7 +245,7 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 				try {
 					String p = rpath;
 					while(p.startsWith("/")) p = p.substring(1);
-					FreenetURI furi = new FreenetURI(p, true);
+					FreenetURI furi = FreenetURI.intern(p, true);
 					if(logMINOR) Logger.minor(this, "Parsed: "+furi);
 					return processURI(furi, uri, overrideType, forBaseHref, inline);
 				} catch (MalformedURLException e) {
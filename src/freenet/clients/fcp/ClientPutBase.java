@@ -305,7 +305,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		} else if(ce instanceof StartedCompressionEvent) {
 			if((verbosity & VERBOSITY_COMPRESSION_START_END) == VERBOSITY_COMPRESSION_START_END) {
 				StartedCompressionMessage msg =
-					new StartedCompressionMessage(identifier, global, ((StartedCompressionEvent)ce).codec);
+					new StartedCompressionMessage(identifier, global, (StartedCompressionEvent)ce);
 				trySendProgressMessage(msg, VERBOSITY_COMPRESSION_START_END, null, context);
 				onStartCompressing();
 			}
@@ -65,6 +65,7 @@ public class ClientPutDir extends ClientPutBase {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		this.wasDiskPut = wasDiskPut;
 		this.overrideSplitfileCryptoKey = message.overrideSplitfileCryptoKey;
+		ctx.reuseUnchangedFiles = message.reuseUnchangedFiles;
 		
 		// objectOnNew is called once, objectOnUpdate is never called, yet manifestElements get blanked anyway!
 		
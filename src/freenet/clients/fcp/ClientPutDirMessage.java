@@ -60,6 +60,8 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	final boolean realTimeFlag;
 	final String targetFilename;
 	final boolean ignoreUSKDatehints;
+	/** Reuse the metadata of files inserted before instead of inserting them again. */
+	final boolean reuseUnchangedFiles;
 	
 	public ClientPutDirMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
@@ -152,6 +154,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 		clientToken = fs.get("ClientToken");
 		targetFilename = fs.get("TargetFilename");
 		earlyEncode = fs.getBoolean("EarlyEncode", false);
+		reuseUnchangedFiles = fs.getBoolean("ReuseUnchangedFiles", false);
 		String codecs = fs.get("Codecs");
 		if (codecs != null) {
 			COMPRESSOR_TYPE[] ca;
@@ -190,6 +193,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 			sfs.putSingle("Codecs", compressorDescriptor);
 		sfs.put("Global", global);
 		sfs.putSingle("DefaultName", defaultName);
+		sfs.put("ReuseUnchangedFiles", reuseUnchangedFiles);
 		return sfs;
 	}
 
@@ -9,6 +9,7 @@ import java.io.InputStream;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
+import freenet.support.FlatFieldSet;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
@@ -68,7 +69,8 @@ public class FCPConnectionInputHandler implements Runnable {
 		boolean firstMessage = true;
 
 		while(true) {
-			SimpleFieldSet fs;
+			SimpleFieldSet fs = null;
+			FlatFieldSet flat = null;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
 				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
 				handler.outputHandler.queue(msg);
@@ -83,10 +85,18 @@ public class FCPConnectionInputHandler implements Runnable {
 			}
 			if(messageType.equals(""))
 				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+			String endMarker;
+			if(FCPMessage.readsFlat(messageType)) {
+				flat = FlatFieldSet.readFrom(lis, 4096, true, true);
+				endMarker = flat.getEndMarker();
+			} else {
+				fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+				endMarker = fs.getEndMarker();
+			}
 
 			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			if (!firstMessage && endMarker != null && (!endMarker.startsWith("End")) && (!"Data".equals(endMarker))) {
+				if(fs == null) fs = flat.toSimpleFieldSet(true);
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
 				handler.outputHandler.queue(err);
 				continue;
@@ -95,8 +105,11 @@ public class FCPConnectionInputHandler implements Runnable {
 			FCPMessage msg;
 			try {
 				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+(fs != null ? fs : flat.toSimpleFieldSet(true)).toString());
+				if(flat != null)
+					msg = FCPMessage.create(messageType, flat, handler.bf, handler.server.core.persistentTempBucketFactory);
+				else
+					msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
 				if(msg == null) continue;
 			} catch (MessageInvalidException e) {
 				if(firstMessage) {
@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import freenet.node.Node;
+import freenet.support.FlatFieldSet;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
+import freenet.support.SimpleFieldSetWriter;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.PersistentTempBucketFactory;
@@ -52,9 +54,10 @@ public abstract class FCPMessage {
 			return;
 		}
 		sfs.setEndMarker(getEndString());
-		String msg = sfs.toString();
-		os.write((getName()+ '\n').getBytes("UTF-8"));
-		os.write(msg.getBytes("UTF-8"));
+		SimpleFieldSetWriter w = new SimpleFieldSetWriter(os);
+		w.writeLine(getName());
+		w.write(sfs);
+		w.flushBuffer();
 		if(logDEBUG) {
 			Logger.debug(this, "Outgoing FCP message:\n"+getName()+'\n'+sfs.toString());
 			Logger.debug(this, "Being handled by "+this);
@@ -157,6 +160,29 @@ public abstract class FCPMessage {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "Unknown message name "+name, null, false);
 	}
 	
+	/**
+	 * @return True if the message can be created from a FlatFieldSet. These are the messages which
+	 * clients send over and over to poll the node, and which only read a few fields.
+	 */
+	static boolean readsFlat(String name) {
+		return name.equals(GetRequestStatusMessage.NAME) || name.equals(ListPersistentRequestsMessage.NAME) ||
+			name.equals(ListPeersMessage.NAME);
+	}
+
+	/**
+	 * Create a message from a FlatFieldSet, which is cheaper to read than a SimpleFieldSet.
+	 * Other messages are copied to a SimpleFieldSet first, so check readsFlat() before parsing.
+	 */
+	public static FCPMessage create(String name, FlatFieldSet fs, BucketFactory bfTemp, PersistentTempBucketFactory bfPersistent) throws MessageInvalidException {
+		if(name.equals(GetRequestStatusMessage.NAME))
+			return new GetRequestStatusMessage(fs);
+		if(name.equals(ListPersistentRequestsMessage.NAME))
+			return new ListPersistentRequestsMessage(fs);
+		if(name.equals(ListPeersMessage.NAME))
+			return new ListPeersMessage(fs);
+		return create(name, fs.toSimpleFieldSet(true), bfTemp, bfPersistent);
+	}
+
 	/**
 	 * Create a message from a SimpleFieldSet, and the message's name, if possible. 
 	 * Useful for FCPClients
@@ -6,6 +6,7 @@ package freenet.clients.fcp;
 import freenet.client.events.FinishedCompressionEvent;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
+import freenet.support.compress.CompressionTrials;
 import freenet.support.compress.Compressor;
 
 public class FinishedCompressionMessage extends FCPMessage {
@@ -15,12 +16,18 @@ public class FinishedCompressionMessage extends FCPMessage {
 	final int codec;
 	final long origSize;
 	final long compressedSize;
+	final long compressionTime;
+	final long throughput;
+	final CompressionTrials.Trial[] trials;
 
 	public FinishedCompressionMessage(String identifier, boolean global, FinishedCompressionEvent event) {
 		this.identifier = identifier;
 		this.codec = event.codec;
 		this.compressedSize = event.compressedSize;
 		this.origSize = event.originalSize;
+		this.compressionTime = event.compressionTime;
+		this.throughput = event.getThroughput();
+		this.trials = event.trials;
 		this.global = global;
 	}
 
@@ -35,6 +42,19 @@ public class FinishedCompressionMessage extends FCPMessage {
 			fs.putSingle("Codec.Name", "NONE");
 		fs.put("OriginalSize", origSize);
 		fs.put("CompressedSize", compressedSize);
+		if(compressionTime >= 0) {
+			fs.put("CompressionTime", compressionTime);
+			fs.put("Throughput", throughput);
+		}
+		if(trials != null) {
+			for(CompressionTrials.Trial trial : trials) {
+				String prefix = "Trials."+trial.codec.name()+".";
+				fs.putSingle(prefix+"Outcome", trial.getOutcome() == null ? "NONE" : trial.getOutcome().name());
+				fs.put(prefix+"Time", trial.getTime());
+				if(trial.getCompressedSize() >= 0)
+					fs.put(prefix+"CompressedSize", trial.getCompressedSize());
+			}
+		}
 		fs.put("Global", global);
 		return fs;
 	}
@@ -7,6 +7,7 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.node.Node;
+import freenet.support.FlatFieldSet;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
@@ -23,6 +24,12 @@ public class GetRequestStatusMessage extends FCPMessage {
 		this.onlyData = fs.getBoolean("OnlyData", false);
 	}
 
+	public GetRequestStatusMessage(FlatFieldSet fs) {
+		this.identifier = fs.get("Identifier");
+		this.global = fs.getBoolean("Global", false);
+		this.onlyData = fs.getBoolean("OnlyData", false);
+	}
+
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
@@ -5,6 +5,7 @@ package freenet.clients.fcp;
 
 import freenet.node.Node;
 import freenet.node.PeerNode;
+import freenet.support.FlatFieldSet;
 import freenet.support.SimpleFieldSet;
 
 public class ListPeersMessage extends FCPMessage {
@@ -20,6 +21,12 @@ public class ListPeersMessage extends FCPMessage {
 		this.identifier = fs.get("Identifier");
 		fs.removeValue("Identifier");
 	}
+
+	public ListPeersMessage(FlatFieldSet fs) {
+		withMetadata = fs.getBoolean("WithMetadata", false);
+		withVolatile = fs.getBoolean("WithVolatile", false);
+		this.identifier = fs.get("Identifier");
+	}
 	
 	@Override
 	public SimpleFieldSet getFieldSet() {
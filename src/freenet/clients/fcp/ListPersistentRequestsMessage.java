@@ -7,6 +7,7 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.node.Node;
+import freenet.support.FlatFieldSet;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
@@ -18,6 +19,10 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
 		identifier = fs.get("Identifier");
 	}
+
+	public ListPersistentRequestsMessage(FlatFieldSet fs) {
+		identifier = fs.get("Identifier");
+	}
 	
 	@Override
 	public SimpleFieldSet getFieldSet() {
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import freenet.client.events.StartedCompressionEvent;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
@@ -13,11 +14,23 @@ public class StartedCompressionMessage extends FCPMessage {
 	final boolean global;
 	
 	final COMPRESSOR_TYPE codec;
+	final long origSize;
+	final int parallelTrials;
 	
 	public StartedCompressionMessage(String identifier, boolean global, COMPRESSOR_TYPE codec) {
 		this.identifier = identifier;
 		this.codec = codec;
 		this.global = global;
+		this.origSize = -1;
+		this.parallelTrials = 1;
+	}
+
+	public StartedCompressionMessage(String identifier, boolean global, StartedCompressionEvent event) {
+		this.identifier = identifier;
+		this.codec = event.codec;
+		this.global = global;
+		this.origSize = event.originalSize;
+		this.parallelTrials = event.parallelTrials;
 	}
 
 	@Override
@@ -25,6 +38,9 @@ public class StartedCompressionMessage extends FCPMessage {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		fs.putSingle("Identifier", identifier);
 		fs.putSingle("Codec", codec.name);
+		if(origSize >= 0)
+			fs.put("OriginalSize", origSize);
+		fs.put("ParallelTrials", parallelTrials);
 		fs.put("Global", global);
 		return fs;
 	}
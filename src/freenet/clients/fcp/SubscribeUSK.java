@@ -72,7 +72,8 @@ public class SubscribeUSK implements USKProgressCallback {
 
 	@Override
 	public void onRoundFinished(ClientContext context) {
-		handler.outputHandler.queue(new SubscribedUSKRoundFinishedMessage(identifier));
+		handler.outputHandler.queue(new SubscribedUSKRoundFinishedMessage(identifier,
+				core.uskManager.getPollInterval(usk), core.uskManager.getUpdateInterval(usk)));
 	}
 
 }
@@ -5,6 +5,7 @@ package freenet.clients.fcp;
 
 import java.net.MalformedURLException;
 
+import freenet.client.async.USKManager;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.node.Node;
@@ -82,7 +83,9 @@ public class SubscribeUSKMessage extends FCPMessage {
 			handler.outputHandler.queue(new IdentifierCollisionMessage(identifier, false));
 			return;
 		}
-		SubscribedUSKMessage reply = new SubscribedUSKMessage(this);
+		USKManager uskManager = node.clientCore.uskManager;
+		SubscribedUSKMessage reply = new SubscribedUSKMessage(this, uskManager.lookupLatestSlot(key),
+				uskManager.getUpdateInterval(key));
 		handler.outputHandler.queue(reply);
 	}
 
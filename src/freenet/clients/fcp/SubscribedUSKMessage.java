@@ -13,6 +13,8 @@ import freenet.support.SimpleFieldSet;
  * URI=USK@60I8H8HinpgZSOuTSD66AVlIFAy-xsppFr0YCzCar7c,NzdivUGCGOdlgngOGRbbKDNfSCnjI0FXjHLzJM4xkJ4,AQABAAE/index/4
  * DontPoll=true // meaning passively subscribe, don't cause the node to actively probe for it
  * Identifier=identifier
+ * LatestEdition=5 // optional, the latest edition already known, e.g. from before a restart
+ * UpdateInterval=86400000 // optional, the mean time between editions seen by the node, in ms
  * End
  * 
  * @author Florent Daigni&egrave;re &lt;nextgens@freenetproject.org&gt;
@@ -21,9 +23,15 @@ public class SubscribedUSKMessage extends FCPMessage {
 	public static final String name = "SubscribedUSK";
 	
 	public final SubscribeUSKMessage message;
+	/** The latest known edition, or -1 */
+	final long latestEdition;
+	/** Mean time between editions in milliseconds, or -1 if not known */
+	final long updateInterval;
 	
-	SubscribedUSKMessage(SubscribeUSKMessage m) {
+	SubscribedUSKMessage(SubscribeUSKMessage m, long latestEdition, long updateInterval) {
 		this.message = m;
+		this.latestEdition = latestEdition;
+		this.updateInterval = updateInterval;
 	}
 	
 	@Override
@@ -32,6 +40,10 @@ public class SubscribedUSKMessage extends FCPMessage {
 		sfs.putSingle("Identifier", message.identifier);
 		sfs.putSingle("URI", message.key.getURI().toString());
 		sfs.put("DontPoll", message.dontPoll);
+		if(latestEdition >= 0)
+			sfs.put("LatestEdition", latestEdition);
+		if(updateInterval >= 0)
+			sfs.put("UpdateInterval", updateInterval);
 		
 		return sfs;
 	}
@@ -3,18 +3,37 @@ package freenet.clients.fcp;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 
+/**
+ * Sent when a round of polling a subscribed USK has finished.
+ * 
+ * SubscribedUSKRoundFinished
+ * Identifier=identifier
+ * PollInterval=3600000 // optional, the current maximum time until the next round, in ms
+ * UpdateInterval=86400000 // optional, the mean time between editions seen by the node, in ms
+ * End
+ */
 public class SubscribedUSKRoundFinishedMessage extends FCPMessage {
 
 	final String identifier;
+	/** Maximum time until the next round of polling in milliseconds, or -1 if not polling */
+	final long pollInterval;
+	/** Mean time between editions in milliseconds, or -1 if not known */
+	final long updateInterval;
 	
-	SubscribedUSKRoundFinishedMessage(String id) {
+	SubscribedUSKRoundFinishedMessage(String id, long pollInterval, long updateInterval) {
 		identifier = id;
+		this.pollInterval = pollInterval;
+		this.updateInterval = updateInterval;
 	}
 	
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		fs.putSingle("Identifier", identifier);
+		if(pollInterval >= 0)
+			fs.put("PollInterval", pollInterval);
+		if(updateInterval >= 0)
+			fs.put("UpdateInterval", updateInterval);
 		return fs;
 	}
 
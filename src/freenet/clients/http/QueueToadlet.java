@@ -41,6 +41,7 @@ import freenet.client.InsertContext;
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.MetadataUnresolvedException;
 import freenet.client.async.ClientContext;
+import freenet.client.async.EncodedBlockCache;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.client.async.TooManyFilesInsertException;
@@ -1512,6 +1513,13 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			navigationContent.addChild("li", l10n("totalQueuedUploads", "size", SizeUtil.formatSize(totalQueuedUploadSize)));
 			includeNavigationBar = true;
 		}
+		EncodedBlockCache encoding = core.clientContext.encodedBlockCache;
+		if (uploads && encoding.blocksEncoded() > 0) {
+			navigationContent.addChild("li", l10n("blockEncoding", new String[] { "blocks", "rate", "hits", "attempts" },
+					new String[] { String.valueOf(encoding.blocksEncoded()), SizeUtil.formatSize(encoding.encodeRate()),
+							String.valueOf(encoding.cacheHits()), String.valueOf(encoding.cacheHits() + encoding.cacheMisses()) }));
+			includeNavigationBar = true;
+		}
 
         navigationContent.addChild("li").addChild("a", "href", KEY_LIST_LOCATION,
                                                   l10n("openKeyList"));
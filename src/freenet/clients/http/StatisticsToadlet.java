@@ -47,6 +47,7 @@ import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.math.TimeHistogram;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -460,6 +461,9 @@ public class StatisticsToadlet extends Toadlet {
 					drawSeedStatsBox(nextTableCell.addChild("div", "class", "infobox"), om);
 			}
 
+			// connection setup stats box
+			drawHandshakeStatsBox(nextTableCell.addChild("div", "class", "infobox"));
+
 			// peer distribution box
 			overviewTableRow = overviewTable.addChild("tr");
 			nextTableCell = overviewTableRow.addChild("td", "class", "first");
@@ -637,18 +641,40 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
 
+		// Only if the executor queues jobs.
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
+		TimeHistogram[] queueTimes = stats.getJobQueueTimesByPriority();
+		TimeHistogram[] runTimes = stats.getJobRunTimesByPriority();
+
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("jobQueueTime"));
+			row.addChild("th", l10n("jobRunTime"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null) {
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
+				row.addChild("td", formatPercentiles(queueTimes[i]));
+				row.addChild("td", formatPercentiles(runTimes[i]));
+			}
 		}
 	}
 
+	/** Median and 99th percentile, in milliseconds. */
+	private String formatPercentiles(TimeHistogram histogram) {
+		if(histogram.countReports() == 0) return "-";
+		return fix1p2.format(histogram.percentile(0.5) / 1e6) + "ms / " +
+			fix1p2.format(histogram.percentile(0.99) / 1e6) + "ms";
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -661,6 +687,12 @@ public class StatisticsToadlet extends Toadlet {
 		om.drawSeedStatsBox(opennetStatsContent);
 	}
 
+	private void drawHandshakeStatsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("handshakeStats"));
+		HTMLNode handshakeStatsContent = box.addChild("div", "class", "infobox-content");
+		node.drawHandshakeStats(handshakeStatsContent);
+	}
+
 	private void drawClientRequestersBox(HTMLNode box) {
 		box.addChild("div", "class", "infobox-header", l10n("clientRequesterObjects"));
 		HTMLNode masterContent = box.addChild("div", "class", "infobox-content");
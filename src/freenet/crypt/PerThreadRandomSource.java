@@ -0,0 +1,208 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * Per-thread random number generators derived from a shared RandomSource, normally the node's
+ * Yarrow. Yarrow is synchronized, and on a busy node with many cores threads queue up on its
+ * lock just to generate a UID. Use this on hot paths instead. There are two kinds:
+ * <ul>
+ * <li>{@link #secure()}: A cryptographically secure generator: AES-256 in counter mode, keyed
+ * from the parent. It replaces its own key after every block of output, so earlier output
+ * can't be recovered from its state, and reseeds from the parent every
+ * {@link #RESEED_BYTES} bytes or {@link #RESEED_INTERVAL}, so entropy fed to the parent
+ * reaches it. Use it for anything an attacker must not predict: keys, nonces, IVs, UIDs,
+ * routing and probabilistic decisions.</li>
+ * <li>{@link #weak()}: A fast Mersenne Twister seeded from the parent. It is NOT secure: its
+ * output can be predicted from earlier output. Only use it where that doesn't matter, e.g.
+ * padding which is encrypted anyway.</li>
+ * </ul>
+ * The generators returned belong to the calling thread. Don't keep them in fields or pass them
+ * to other threads; call {@link #secure()} or {@link #weak()} again instead, it's cheap.
+ */
+public final class PerThreadRandomSource {
+
+	/** Reseed the secure generator from the parent after this many bytes of output. */
+	public static final int RESEED_BYTES = 1024 * 1024;
+	/** Reseed the secure generator from the parent after this long, even if little used. */
+	public static final long RESEED_INTERVAL = MINUTES.toMillis(10);
+	/** Output generated between rekeys. */
+	static final int BUFFER_SIZE = 4096;
+	private static final int KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+	private static final String ALGORITHM = "AES/CTR/NOPADDING";
+
+	private final RandomSource parent;
+
+	private final ThreadLocal<SecureThreadRandom> secure = new ThreadLocal<SecureThreadRandom>() {
+		@Override
+		protected SecureThreadRandom initialValue() {
+			return new SecureThreadRandom();
+		}
+	};
+
+	private final ThreadLocal<MersenneTwister> weak = new ThreadLocal<MersenneTwister>() {
+		@Override
+		protected MersenneTwister initialValue() {
+			byte[] seed = new byte[32];
+			parent.nextBytes(seed);
+			return new MersenneTwister(seed);
+		}
+	};
+
+	public PerThreadRandomSource(RandomSource parent) {
+		if(parent == null) throw new NullPointerException();
+		this.parent = parent;
+	}
+
+	/** @return A cryptographically secure generator for the calling thread. */
+	public RandomSource secure() {
+		return secure.get();
+	}
+
+	/** @return A fast but NOT cryptographically secure generator for the calling thread. */
+	public Random weak() {
+		return weak.get();
+	}
+
+	/** @return The RandomSource the per-thread generators are seeded from. */
+	public RandomSource getParent() {
+		return parent;
+	}
+
+	@SuppressWarnings("serial")
+	private final class SecureThreadRandom extends RandomSource {
+
+		/** Output, followed by the next key and IV. */
+		private final byte[] buffer = new byte[BUFFER_SIZE + KEY_LENGTH + IV_LENGTH];
+		private final byte[] zeros = new byte[buffer.length];
+		/** Offset of the next unused byte of output. */
+		private int offset = BUFFER_SIZE;
+		private Cipher cipher;
+		private CTRBlockCipher fallback;
+		private long bytesSinceReseed;
+		private long lastReseed;
+
+		@Override
+		protected int next(int bits) {
+			if(offset + 4 > BUFFER_SIZE) refill();
+			int val = ((buffer[offset] & 0xff) << 24) | ((buffer[offset+1] & 0xff) << 16) |
+				((buffer[offset+2] & 0xff) << 8) | (buffer[offset+3] & 0xff);
+			Arrays.fill(buffer, offset, offset + 4, (byte) 0);
+			offset += 4;
+			return val >>> (32 - bits);
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			int done = 0;
+			while(done < bytes.length) {
+				if(offset == BUFFER_SIZE) refill();
+				int count = Math.min(bytes.length - done, BUFFER_SIZE - offset);
+				System.arraycopy(buffer, offset, bytes, done, count);
+				// Don't keep output we have given out.
+				Arrays.fill(buffer, offset, offset + count, (byte) 0);
+				offset += count;
+				done += count;
+			}
+		}
+
+		@Override
+		public void setSeed(long seed) {
+			// Ignore. Called by the Random constructor; we are seeded from the parent.
+		}
+
+		private void refill() {
+			if(bytesSinceReseed >= RESEED_BYTES || cipher == null && fallback == null ||
+					System.currentTimeMillis() - lastReseed > RESEED_INTERVAL) {
+				byte[] seed = new byte[KEY_LENGTH + IV_LENGTH];
+				parent.nextBytes(seed);
+				rekey(seed, 0);
+				bytesSinceReseed = 0;
+				lastReseed = System.currentTimeMillis();
+			}
+			if(cipher != null) {
+				try {
+					cipher.update(zeros, 0, zeros.length, buffer, 0);
+				} catch (GeneralSecurityException e) {
+					throw new Error("Impossible: "+e, e);
+				}
+			} else {
+				fallback.processBytes(zeros, 0, zeros.length, buffer, 0);
+			}
+			// The end of the output is the next key.
+			rekey(buffer, BUFFER_SIZE);
+			offset = 0;
+			bytesSinceReseed += BUFFER_SIZE;
+		}
+
+		/** Key the generator from, and then clear, KEY_LENGTH+IV_LENGTH bytes of buf. */
+		private void rekey(byte[] buf, int off) {
+			try {
+				if(Rijndael.AesCtrProvider != null) {
+					if(cipher == null)
+						cipher = Cipher.getInstance(ALGORITHM, Rijndael.AesCtrProvider);
+					cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(buf, off, KEY_LENGTH, "AES"),
+							new IvParameterSpec(buf, off + KEY_LENGTH, IV_LENGTH));
+				} else {
+					Rijndael aes = new Rijndael(256, 128);
+					aes.initialize(Arrays.copyOfRange(buf, off, off + KEY_LENGTH));
+					fallback = new CTRBlockCipher(aes);
+					fallback.init(buf, off + KEY_LENGTH, IV_LENGTH);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new Error("Impossible: JCA can't do "+ALGORITHM+" after checking: "+e, e);
+			} catch (UnsupportedCipherException e) {
+				throw new Error("Impossible: "+e, e);
+			} finally {
+				Arrays.fill(buf, off, off + KEY_LENGTH + IV_LENGTH, (byte) 0);
+			}
+		}
+
+		@Override
+		public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+			return parent.acceptEntropy(source, data, entropyGuess);
+		}
+
+		@Override
+		public int acceptTimerEntropy(EntropySource timer) {
+			return parent.acceptTimerEntropy(timer);
+		}
+
+		@Override
+		public int acceptTimerEntropy(EntropySource timer, double bias) {
+			return parent.acceptTimerEntropy(timer, bias);
+		}
+
+		@Override
+		public int acceptEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+			return parent.acceptEntropyBytes(source, buf, offset, length, bias);
+		}
+
+		@Override
+		public void waitForEntropy(int bits) {
+			parent.waitForEntropy(bits);
+		}
+
+		@Override
+		public void close() {
+			// Nothing to close; the parent belongs to someone else.
+		}
+
+	}
+
+}
@@ -19,21 +19,16 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -70,7 +65,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageCodec _codec;
+	/** Primitive fields, see MessageCodec.toBits(). */
+	private final long[] _primitives;
+	/** Bit i is set if _primitives[i] has been set. */
+	private long _primitivesSet;
+	/** Other fields. Null if not set. */
+	private final Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +108,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m._primitivesSet = m._codec.decode(bb, m._primitives, m._objects);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -158,6 +151,9 @@ public class Message {
 	private Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
+		_codec = spec.getCodec();
+		_primitives = new long[_codec.primitiveCount];
+		_objects = new Object[_codec.objectCount];
 		if (source == null) {
 			_internal = true;
 			_sourceRef = null;
@@ -174,7 +170,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_codec = m._codec;
+		_primitives = m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +182,67 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The stored value of a primitive field, which must be set and of the given kind. */
+	private long getPrimitive(String key, MessageCodec.Kind kind) {
+		MessageCodec.Field f = _codec.getField(key);
+		if (f == null || (_primitivesSet & (1L << f.slot)) == 0 || !f.kind.isPrimitive()) {
+			throw new FieldNotSetException(key+" not set");
+		}
+		if (f.kind != kind) {
+			throw new IncorrectTypeException("Field " + key + " is " + f.type + ", not " + kind);
+		}
+		return _primitives[f.slot];
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getPrimitive(key, MessageCodec.Kind.BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return (byte) getPrimitive(key, MessageCodec.Kind.BYTE);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return (short) getPrimitive(key, MessageCodec.Kind.SHORT);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return (int) getPrimitive(key, MessageCodec.Kind.INT);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getPrimitive(key, MessageCodec.Kind.LONG);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return Double.longBitsToDouble(getPrimitive(key, MessageCodec.Kind.DOUBLE));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return Float.intBitsToFloat((int) getPrimitive(key, MessageCodec.Kind.FLOAT));
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		MessageCodec.Field f = _codec.getField(key);
+		if (f == null) return null;
+		if (f.kind.isPrimitive()) {
+			if ((_primitivesSet & (1L << f.slot)) == 0) return null;
+			return MessageCodec.fromBits(f.kind, _primitives[f.slot]);
+		}
+		return _objects[f.slot];
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,32 +250,51 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** Set a primitive field, which must be of the given kind. */
+	private void setPrimitive(String key, MessageCodec.Kind kind, long bits, Class<?> valueClass) {
+		MessageCodec.Field f = getFieldToSet(key);
+		if (f.kind != kind) {
+			throw new IncorrectTypeException("Got " + valueClass + ", expected " + f.type);
+		}
+		_primitives[f.slot] = bits;
+		_primitivesSet |= 1L << f.slot;
+	}
+
+	private MessageCodec.Field getFieldToSet(String key) {
+		MessageCodec.Field f = _codec.getField(key);
+		if (f == null) {
+			throw new IllegalStateException("Cannot set field \"" + key + "\" which is not defined" +
+			                                " in the message type \"" + _spec.getName() + "\".");
+		}
+		return f;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageCodec.Kind.BOOLEAN, b ? 1 : 0, Boolean.class);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageCodec.Kind.BYTE, b, Byte.class);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageCodec.Kind.SHORT, s, Short.class);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageCodec.Kind.INT, i, Integer.class);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageCodec.Kind.LONG, l, Long.class);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		setPrimitive(key, MessageCodec.Kind.DOUBLE, Double.doubleToLongBits(d), Double.class);
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		setPrimitive(key, MessageCodec.Kind.FLOAT, Float.floatToIntBits(f), Float.class);
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +304,13 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		MessageCodec.Field f = getFieldToSet(key);
+		if (f.kind.isPrimitive()) {
+			_primitives[f.slot] = MessageCodec.toBits(f.kind, value);
+			_primitivesSet |= 1L << f.slot;
+		} else {
+			_objects[f.slot] = value;
+		}
 	}
 
 	public byte[] encodeToPacket() {
@@ -275,37 +318,35 @@ public class Message {
 	}
 
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+		int sizeHint = _codec.sizeHint;
+		if (_subMessages != null && includeSubMessages) {
+			for (Message subMessage : _subMessages)
+				sizeHint += 2 + subMessage._codec.sizeHint;
+		}
+		MessageCodec.Output out = new MessageCodec.Output(sizeHint);
+		encode(out, includeSubMessages);
+		byte[] buf = out.toByteArray();
+		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
+	}
 
-		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+	private void encode(MessageCodec.Output out, boolean includeSubMessages) {
+		if (logDEBUG) Logger.debug(this, "My spec code: "+_codec.specID+" for "+_spec.getName());
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
-			dos.flush();
+			_codec.encode(_primitives, _primitivesSet, _objects, out);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException(e.getMessage());
 		}
 
 		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+			for (Message subMessage : _subMessages) {
+				// Sub-messages are preceded by their length.
+				int lengthOffset = out.skipShort();
+				subMessage.encode(out, false);
+				out.setShort(lengthOffset, out.size() - lengthOffset - 2);
 			}
 		}
-
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
 	}
 
 	@Override
@@ -315,7 +356,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +376,14 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		MessageCodec.Field f = _codec.getField(fieldName);
+		if (f == null) return false;
+		if (f.kind.isPrimitive()) return (_primitivesSet & (1L << f.slot)) != 0;
+		return _objects[f.slot] != null;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
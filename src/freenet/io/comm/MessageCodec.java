@@ -0,0 +1,331 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+
+/**
+ * The fields of a MessageType, compiled into a form which can encode and decode a Message
+ * without looking anything up by name or class. Primitive fields are kept unboxed, in a long[]
+ * in the Message, and are read and written directly; everything else goes through Serializer
+ * as before. The wire format is exactly the same as Serializer's.
+ */
+final class MessageCodec {
+
+	/** How a field is stored and serialized. */
+	enum Kind {
+		BOOLEAN(1),
+		BYTE(1),
+		SHORT(2),
+		INT(4),
+		LONG(8),
+		FLOAT(4),
+		DOUBLE(8),
+		/** A LinkedList, with the element type given separately. */
+		LIST(-1),
+		/** Anything else: String, arrays, Key's, Buffer's etc. */
+		OBJECT(-1);
+
+		/** Size on the wire, or -1 if variable. */
+		final int size;
+
+		Kind(int size) {
+			this.size = size;
+		}
+
+		boolean isPrimitive() {
+			return size > 0;
+		}
+
+		static Kind of(Class<?> type) {
+			if(type == Boolean.class) return BOOLEAN;
+			if(type == Byte.class) return BYTE;
+			if(type == Short.class) return SHORT;
+			if(type == Integer.class) return INT;
+			if(type == Long.class) return LONG;
+			if(type == Float.class) return FLOAT;
+			if(type == Double.class) return DOUBLE;
+			if(type == LinkedList.class) return LIST;
+			return OBJECT;
+		}
+	}
+
+	static final class Field {
+		final String name;
+		final Kind kind;
+		final Class<?> type;
+		/** Element type, for a LIST. */
+		final Class<?> elementType;
+		/** Index into the message's primitives or objects, depending on the kind. */
+		final int slot;
+
+		Field(String name, Kind kind, Class<?> type, Class<?> elementType, int slot) {
+			this.name = name;
+			this.kind = kind;
+			this.type = type;
+			this.elementType = elementType;
+			this.slot = slot;
+		}
+	}
+
+	/** The maximum number of primitive fields, so we can keep track of which are set in a long. */
+	static final int MAX_PRIMITIVE_FIELDS = 64;
+	/** Space to allow for each variable length field when guessing the size of a message. */
+	private static final int VARIABLE_FIELD_SIZE_HINT = 64;
+
+	/** Written at the start of each message: the hash code of its name. */
+	final int specID;
+	/** In the order they are written. */
+	private final Field[] fields;
+	private final Map<String, Field> byName;
+	final int primitiveCount;
+	final int objectCount;
+	/** Roughly how big an encoded message will be. */
+	final int sizeHint;
+
+	MessageCodec(MessageType spec) {
+		specID = spec.getName().hashCode();
+		List<String> names = spec.getOrderedFields();
+		fields = new Field[names.size()];
+		byName = new HashMap<String, Field>(names.size() * 2);
+		int primitives = 0;
+		int objects = 0;
+		int size = 4;
+		int i = 0;
+		for(String name : names) {
+			Class<?> type = spec.getFields().get(name);
+			Kind kind = Kind.of(type);
+			Field f;
+			if(kind.isPrimitive()) {
+				f = new Field(name, kind, type, null, primitives++);
+				size += kind.size;
+			} else {
+				f = new Field(name, kind, type, spec.getLinkedListTypes().get(name), objects++);
+				size += VARIABLE_FIELD_SIZE_HINT;
+			}
+			fields[i++] = f;
+			byName.put(name, f);
+		}
+		if(primitives > MAX_PRIMITIVE_FIELDS)
+			throw new IllegalStateException("Too many primitive fields in "+spec.getName()+": "+primitives);
+		primitiveCount = primitives;
+		objectCount = objects;
+		sizeHint = size;
+	}
+
+	/** @return The field, or null if the message type doesn't have it. */
+	Field getField(String name) {
+		return byName.get(name);
+	}
+
+	/** Convert a boxed primitive into how it is stored. */
+	static long toBits(Kind kind, Object value) {
+		switch(kind) {
+		case BOOLEAN:
+			return ((Boolean) value) ? 1 : 0;
+		case BYTE:
+			return (Byte) value;
+		case SHORT:
+			return (Short) value;
+		case INT:
+			return (Integer) value;
+		case LONG:
+			return (Long) value;
+		case FLOAT:
+			return Float.floatToIntBits((Float) value);
+		case DOUBLE:
+			return Double.doubleToLongBits((Double) value);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/** Convert a stored primitive back into an object. */
+	static Object fromBits(Kind kind, long bits) {
+		switch(kind) {
+		case BOOLEAN:
+			return bits != 0;
+		case BYTE:
+			return (byte) bits;
+		case SHORT:
+			return (short) bits;
+		case INT:
+			return (int) bits;
+		case LONG:
+			return bits;
+		case FLOAT:
+			return Float.intBitsToFloat((int) bits);
+		case DOUBLE:
+			return Double.longBitsToDouble(bits);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Write the message type and the fields. Doesn't write sub-messages.
+	 * @throws Message.FieldNotSetException If a field has not been set.
+	 */
+	void encode(long[] primitives, long primitivesSet, Object[] objects, Output out) throws IOException {
+		out.writeInt(specID);
+		for(Field f : fields) {
+			if(f.kind.isPrimitive()) {
+				if((primitivesSet & (1L << f.slot)) == 0)
+					throw new Message.FieldNotSetException(f.name+" not set");
+				long bits = primitives[f.slot];
+				switch(f.kind) {
+				case BOOLEAN:
+				case BYTE:
+					out.writeByte((int) bits);
+					break;
+				case SHORT:
+					out.writeShort((int) bits);
+					break;
+				case INT:
+				case FLOAT:
+					out.writeInt((int) bits);
+					break;
+				default:
+					out.writeLong(bits);
+				}
+			} else {
+				Object o = objects[f.slot];
+				if(o == null)
+					throw new Message.FieldNotSetException(f.name+" not set");
+				Serializer.writeToDataOutputStream(o, out.getDataOutputStream());
+			}
+		}
+	}
+
+	/**
+	 * Read the fields, after the message type.
+	 * @return Which primitives were set, i.e. all of them.
+	 */
+	long decode(ByteBufferInputStream bb, long[] primitives, Object[] objects) throws IOException {
+		for(Field f : fields) {
+			switch(f.kind) {
+			case BOOLEAN:
+				/* Only 0 and 1 are written; anything else indicates a problem. */
+				byte b = bb.readByte();
+				if(b != 0 && b != 1) throw new IOException("Boolean is non boolean value: " + b);
+				primitives[f.slot] = b;
+				break;
+			case BYTE:
+				primitives[f.slot] = bb.readByte();
+				break;
+			case SHORT:
+				primitives[f.slot] = bb.readShort();
+				break;
+			case INT:
+			case FLOAT:
+				primitives[f.slot] = bb.readInt();
+				break;
+			case LONG:
+			case DOUBLE:
+				primitives[f.slot] = bb.readLong();
+				break;
+			case LIST:
+				objects[f.slot] = Serializer.readListFromDataInputStream(f.elementType, bb);
+				break;
+			default:
+				objects[f.slot] = Serializer.readFromDataInputStream(f.type, bb);
+			}
+		}
+		return primitiveCount == MAX_PRIMITIVE_FIELDS ? -1L : (1L << primitiveCount) - 1;
+	}
+
+	/**
+	 * Where a message is encoded to. Like a ByteArrayOutputStream, but big-endian primitives are
+	 * written straight into the buffer, and we can go back and fill in the length of a
+	 * sub-message once we know it.
+	 */
+	static final class Output extends OutputStream {
+
+		private byte[] buf;
+		private int count;
+		private DataOutputStream dos;
+
+		Output(int initialSize) {
+			buf = new byte[Math.max(initialSize, 16)];
+		}
+
+		private void ensureCapacity(int extra) {
+			if(count + extra > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(1);
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(b, offset, buf, count, length);
+			count += length;
+		}
+
+		void writeByte(int b) {
+			write(b);
+		}
+
+		void writeShort(int s) {
+			ensureCapacity(2);
+			buf[count++] = (byte) (s >> 8);
+			buf[count++] = (byte) s;
+		}
+
+		void writeInt(int i) {
+			ensureCapacity(4);
+			buf[count++] = (byte) (i >> 24);
+			buf[count++] = (byte) (i >> 16);
+			buf[count++] = (byte) (i >> 8);
+			buf[count++] = (byte) i;
+		}
+
+		void writeLong(long l) {
+			writeInt((int) (l >> 32));
+			writeInt((int) l);
+		}
+
+		/** For fields which can only write themselves to a DataOutputStream. It isn't
+		 * buffered, so can be mixed with the other methods. */
+		DataOutputStream getDataOutputStream() {
+			if(dos == null) dos = new DataOutputStream(this);
+			return dos;
+		}
+
+		/** Leave space for a short, to be filled in later by setShort(). */
+		int skipShort() {
+			writeShort(0);
+			return count - 2;
+		}
+
+		void setShort(int offset, int s) {
+			buf[offset] = (byte) (s >> 8);
+			buf[offset+1] = (byte) s;
+		}
+
+		int size() {
+			return count;
+		}
+
+		byte[] toByteArray() {
+			return count == buf.length ? buf : Arrays.copyOf(buf, count);
+		}
+	}
+
+}
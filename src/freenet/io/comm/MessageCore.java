@@ -24,7 +24,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
@@ -57,7 +56,7 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
@@ -123,42 +122,28 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		ArrayList<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			// Only looks at the filters whose timeout has passed, and those with callbacks, which
+			// may be timed out because their client callbacks say they should be.
+			// See also the end of waitFor() for another weird case.
+			nextTimeout = _filters.removeTimedOut(tStart, timedOutFilters, nextTimeout);
+			if(logMINOR) {
+				for(MessageFilter f : timedOutFilters) {
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
+		if(!timedOutFilters.isEmpty()) {
 			for(MessageFilter f : timedOutFilters) {
 				f.setMessage(null);
 				f.onTimedOut(_executor);
@@ -195,34 +180,18 @@ public class MessageCore {
 					+ m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+			// Only one match permitted per message: the filter with the earliest timeout.
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			} else if(logDEBUG) Logger.debug(this, "Did not match any of "+_filters.size()+" filters");
 		}
-		if(timedOut != null) {
+		if(!timedOut.isEmpty()) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
 				f.setMessage(null);
@@ -241,7 +210,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -268,25 +237,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
-				}
-				if(!matched) {
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
+				} else {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
 				        Message removed = _unclaimed.removeFirst();
 				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
@@ -303,7 +259,7 @@ public class MessageCore {
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
+			if(!timedOut.isEmpty()) {
 				for(MessageFilter f : timedOut) {
 					f.setMessage(null);
 					f.onTimedOut(_executor);
@@ -324,14 +280,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for(MessageFilter f : _filters.getAll()) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -346,14 +300,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for(MessageFilter f : _filters.getAll()) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -413,22 +365,10 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+				else if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout+": "+filter);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -496,22 +436,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+				else if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout()+": "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -562,11 +489,8 @@ public class MessageCore {
 				}
 			}
 			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// We must remove it from _filters before we return, or it will still be there
+			// when it is re-added.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
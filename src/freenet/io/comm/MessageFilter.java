@@ -131,6 +131,23 @@ public final class MessageFilter {
 		return this;
 	}
 	
+	MessageType getType() {
+		return _type;
+	}
+	
+	/** @return The next filter in the or() chain, if any. */
+	MessageFilter getOr() {
+		return _or;
+	}
+	
+	/** @return The value the field must have, or null if it can have any value. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i < 0 ? null : _fields.get(i);
+		}
+	}
+
 	/**
 	 Returns the source that this filter (or chain) matches
 	 */
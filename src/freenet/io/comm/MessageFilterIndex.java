@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The MessageFilter's waiting for messages, indexed by message type, UID and source, so that
+ * MessageCore only needs to check an incoming message against the filters which could possibly
+ * match it, rather than all of them. Filters which don't specify a type are kept in a separate
+ * list which is checked for every message.
+ * <p>
+ * A filter chained with or() is indexed under each of its parts. A message goes to the matching
+ * filter with the earliest timeout, and on a tie, the one added first, as it did when the filters
+ * were a single list sorted by timeout.
+ * </p><p>
+ * Filters are also kept in order of timeout, so timed out filters can be removed without
+ * looking at the rest.
+ * </p><p>
+ * Not thread-safe: MessageCore synchronizes on it.
+ * </p>
+ */
+final class MessageFilterIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(MessageFilterIndex.class);
+	}
+
+	/** What a filter, or part of an or() chain, requires of a message. */
+	private static final class Key {
+		final MessageType type;
+		/** The value of the UID field, or null if any. */
+		final Object uid;
+		/** The source, or null if any. */
+		final PeerContext source;
+		private final int hashCode;
+
+		Key(MessageType type, Object uid, PeerContext source) {
+			this.type = type;
+			this.uid = uid;
+			this.source = source;
+			hashCode = type.hashCode() ^ (uid == null ? 0 : uid.hashCode()) ^ (source == null ? 0 : source.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return type.equals(k.type) && (uid == null ? k.uid == null : uid.equals(k.uid)) &&
+				(source == null ? k.source == null : source.equals(k.source));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The filter's timeout when it was added. */
+		final long timeout;
+		/** Order in which filters were added, for ties. */
+		final long sequence;
+		/** Where the filter is indexed, apart from the wildcard list. */
+		final List<Key> keys;
+
+		Entry(MessageFilter filter, long sequence, List<Key> keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.sequence = sequence;
+			this.keys = keys;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			if(sequence != e.sequence) return sequence < e.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final HashMap<Key, TreeSet<Entry>> byKey = new HashMap<Key, TreeSet<Entry>>();
+	/** Filters with no type, or with a part with no type. */
+	private final TreeSet<Entry> wildcard = new TreeSet<Entry>();
+	/** All filters, in order of timeout. */
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	/** Filters with a callback. These can time out early, so we have to poll them. */
+	private final TreeSet<Entry> withCallback = new TreeSet<Entry>();
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	private long sequence;
+
+	/** @return False if the filter was already added. */
+	boolean add(MessageFilter filter) {
+		if(entries.containsKey(filter)) return false;
+		List<Key> keys = new ArrayList<Key>(1);
+		boolean isWildcard = false;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			if(type == null) {
+				isWildcard = true;
+			} else {
+				Key key = new Key(type, f.getField(DMT.UID), f.getSource());
+				if(!keys.contains(key)) keys.add(key);
+			}
+		}
+		Entry entry = new Entry(filter, sequence++, keys);
+		entries.put(filter, entry);
+		byTimeout.add(entry);
+		if(filter.hasCallback()) withCallback.add(entry);
+		if(isWildcard) wildcard.add(entry);
+		for(Key key : keys) {
+			TreeSet<Entry> set = byKey.get(key);
+			if(set == null) {
+				set = new TreeSet<Entry>();
+				byKey.put(key, set);
+			}
+			set.add(entry);
+		}
+		return true;
+	}
+
+	/** @return False if the filter was not in the index. */
+	boolean remove(MessageFilter filter) {
+		Entry entry = entries.remove(filter);
+		if(entry == null) return false;
+		byTimeout.remove(entry);
+		withCallback.remove(entry);
+		wildcard.remove(entry);
+		for(Key key : entry.keys) {
+			TreeSet<Entry> set = byKey.get(key);
+			set.remove(entry);
+			if(set.isEmpty()) byKey.remove(key);
+		}
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/** @return All the filters, in order of timeout. */
+	List<MessageFilter> getAll() {
+		List<MessageFilter> filters = new ArrayList<MessageFilter>(byTimeout.size());
+		for(Entry entry : byTimeout)
+			filters.add(entry.filter);
+		return filters;
+	}
+
+	/**
+	 * Find the filter which should get a message, and remove it. Only one filter can match a
+	 * message: the one with the earliest timeout. Filters we come across which have timed out
+	 * are removed too.
+	 * @param timedOut Timed out filters will be added to this list.
+	 * @return The matched filter, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		Object uid = m.isSet(DMT.UID) ? m.getObject(DMT.UID) : null;
+		PeerContext source = m.getSource();
+		List<Entry> remove = new ArrayList<Entry>(0);
+		Entry best = matchFirst(wildcard, m, now, remove);
+		// Check every combination of specific and any UID and source.
+		for(int i=0;i<4;i++) {
+			boolean anyUID = (i & 1) != 0;
+			boolean anySource = (i & 2) != 0;
+			if(!anyUID && uid == null) continue;
+			if(!anySource && source == null) continue;
+			TreeSet<Entry> set = byKey.get(new Key(type, anyUID ? null : uid, anySource ? null : source));
+			if(set == null) continue;
+			Entry e = matchFirst(set, m, now, remove);
+			if(e != null && (best == null || e.compareTo(best) < 0))
+				best = e;
+		}
+		for(Entry e : remove) {
+			if(remove(e.filter) && !e.filter.matched())
+				timedOut.add(e.filter);
+		}
+		if(best != null) {
+			remove(best.filter);
+			return best.filter;
+		}
+		return null;
+	}
+
+	/** @return The first entry in the set which matches the message, if any. Filters which
+	 * are already matched or have timed out are added to remove. */
+	private Entry matchFirst(TreeSet<Entry> set, Message m, long now, List<Entry> remove) {
+		for(Entry e : set) {
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				remove.add(e);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				remove.add(e);
+			} else if(status == MATCHED.MATCHED) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the filters which have timed out.
+	 * @param timedOut Timed out filters will be added to this list.
+	 * @param nextTimeout The latest time to return.
+	 * @return The earliest timeout of any remaining filter with a callback, or nextTimeout if
+	 * that is earlier.
+	 */
+	long removeTimedOut(long now, List<MessageFilter> timedOut, long nextTimeout) {
+		List<Entry> remove = null;
+		for(Entry e : byTimeout) {
+			if(e.timeout >= now) break;
+			if(e.filter.timedOut(now)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			}
+		}
+		// Filters with callbacks can time out early, see MessageFilter.reallyTimedOut().
+		for(Iterator<Entry> i = withCallback.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			if(e.timeout < now) continue; // Already checked above.
+			if(e.filter.timedOut(now)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			} else if(nextTimeout > e.filter.getTimeout()) {
+				nextTimeout = e.filter.getTimeout();
+			}
+		}
+		if(remove != null) {
+			for(Entry e : remove) {
+				if(logMINOR) Logger.minor(this, "Removing "+e.filter);
+				remove(e.filter);
+				timedOut.add(e.filter);
+			}
+		}
+		return nextTimeout;
+	}
+
+}
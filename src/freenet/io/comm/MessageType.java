@@ -40,6 +40,8 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Compiled from the fields when first needed; reset if a field is added. */
+	private volatile MessageCodec codec;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -70,6 +72,7 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		codec = null;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -126,6 +129,16 @@ public class MessageType {
 		return _name;
 	}
 
+	MessageCodec getCodec() {
+		MessageCodec c = codec;
+		if(c == null) {
+			// Harmless if two threads do this at once.
+			c = new MessageCodec(this);
+			codec = c;
+		}
+		return c;
+	}
+
 	public Map<String, Class<?>> getFields() {
 		return _fields;
 	}
@@ -19,7 +19,6 @@
 package freenet.io.xfer;
 
 import java.util.HashSet;
-import java.util.Deque;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.AsyncMessageFilterCallback;
@@ -80,9 +79,12 @@ public class BlockTransmitter {
 	final long _uid;
 	private final boolean realTime;
 	final PartiallyReceivedBlock _prb;
-	private Deque<Integer> _unsent;
+	/** Packets received by the PRB but not sent yet. */
+	private BitArray _unsent;
+	private int _unsentCount;
 	private BlockSenderJob _senderThread = new BlockSenderJob();
 	private BitArray _sentPackets;
+	private int _sentCount;
 	private long timeAllSent = -1;
 	final ByteCounter _ctr;
 	final int PACKET_SIZE;
@@ -121,18 +123,25 @@ public class BlockTransmitter {
 				if(running) return;
 				running = true;
 			}
+			boolean stopped = false;
 			try {
 				while(true) {
 					int packetNo = -1;
 					BitArray copy;
 					synchronized(_senderThread) {
 						if(_failed || _receivedSendCompletion || _completed) return;
-						if(_unsent.size() == 0) {
+						if(_unsentCount == 0) {
 							// Wait for PRB callback to tell us we have more packets.
+							// Clear running while still holding the lock, so that a packet arriving
+							// now will schedule us again.
+							running = false;
+							stopped = true;
 							return;
 						}
 						else {
-							packetNo = _unsent.removeFirst();
+							packetNo = _unsent.firstOne();
+							_unsent.setBit(packetNo, false);
+							_unsentCount--;
 							if(_sentPackets.bitAt(packetNo)) {
 								Logger.error(this, "Already sent packet in run(): "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
 								continue;
@@ -140,17 +149,23 @@ public class BlockTransmitter {
 						}
 						copy = _sentPackets.copy();
 						_sentPackets.setBit(packetNo, true);
+						_sentCount++;
 					}
 					if(!innerRun(packetNo, copy)) return;
 				}
 			} finally {
-				synchronized(this) {
-					running = false;
+				if(!stopped) {
+					synchronized(this) {
+						running = false;
+					}
 				}
 			}
 		}
 		
-		public void schedule() {
+		/** If we are already sending, the running job will pick up any new packets, so we 
+		 * don't need to start another one. */
+		public synchronized void schedule() {
+			if(running) return;
 			if(_failed || _receivedSendCompletion || _completed) {
 				if(logMINOR) Logger.minor(this, "Not scheduling for "+_uid+" to "+_destination+" :"+
 						(_failed ? "(failed) " : "") + (_receivedSendCompletion ? "(receivedSendCompletion) " : "") + (_completed ? "(completed) " : ""));
@@ -181,7 +196,7 @@ public class BlockTransmitter {
 			boolean success = false;
 			boolean complete = false;
 			synchronized (_senderThread) {
-				if(_unsent.size() == 0 && getNumSent() == _prb._packets) {
+				if(_unsentCount == 0 && _sentCount == _prb._packets) {
 					//No unsent packets, no unreceived packets
 					sendAllSentNotification();
 					if(maybeAllSent()) {
@@ -287,7 +302,7 @@ public class BlockTransmitter {
 	 * @return True if everything has been sent and we are now just waiting for an
 	 * acknowledgement or timeout from the other side. */
 	public boolean maybeAllSent() {
-		if(blockSendsPending == 0 && _unsent.size() == 0 && getNumSent() == _prb._packets) {
+		if(blockSendsPending == 0 && _unsentCount == 0 && _sentCount == _prb._packets) {
 			timeAllSent = System.currentTimeMillis();
 			if(logMINOR)
 				Logger.minor(this, "Sent all blocks, none unsent on "+this);
@@ -300,7 +315,7 @@ public class BlockTransmitter {
 				Logger.minor(this, "Sent blocks and failed on "+this);
 			return true;
 		}
-		if(logMINOR) Logger.minor(this, "maybeAllSent: block sends pending = "+blockSendsPending+" unsent = "+_unsent.size()+" sent = "+getNumSent()+" on "+this);
+		if(logMINOR) Logger.minor(this, "maybeAllSent: block sends pending = "+blockSendsPending+" unsent = "+_unsentCount+" sent = "+_sentCount+" on "+this);
 		return false;
 	}
 
@@ -621,13 +636,14 @@ public class BlockTransmitter {
 		
 		try {
 			synchronized(_prb) {
-				_unsent = _prb.addListener(myListener = new PartiallyReceivedBlock.PacketReceivedListener() {;
+				BitArray received = new BitArray(_prb._packets);
+				PartiallyReceivedBlock.PacketReceivedListener listener = new PartiallyReceivedBlock.PacketReceivedListener() {
 
 					@Override
 					public void packetReceived(int packetNo) {
 						synchronized(_senderThread) {
 							if(logMINOR) Logger.minor(this, "Got packet "+packetNo+" for "+_uid+" to "+_destination);
-							if(_unsent.contains(packetNo)) {
+							if(_unsent.bitAt(packetNo)) {
 								Logger.error(this, "Already in unsent: "+packetNo+" for "+this+" unsent is "+_unsent, new Exception("error"));
 								return;
 							}
@@ -635,7 +651,8 @@ public class BlockTransmitter {
 								Logger.error(this, "Already sent packet in packetReceived: "+packetNo+" for "+this+" unsent is "+_unsent+" sent is "+_sentPackets, new Exception("error"));
 								return;
 							}
-							_unsent.addLast(packetNo);
+							_unsent.setBit(packetNo, true);
+							_unsentCount++;
 							timeAllSent = -1;
 							_senderThread.schedule();
 						}
@@ -645,7 +662,13 @@ public class BlockTransmitter {
 					public void receiveAborted(int reason, String description) {
 						onAborted(reason, description);
 					}
-				});
+				};
+				// Set _unsent before the PRB can call the listener.
+				synchronized(_senderThread) {
+					_unsent = received;
+					myListener = listener;
+					_unsentCount = _prb.addListener(listener, received);
+				}
 			}
 			_senderThread.schedule();
 
@@ -779,17 +802,6 @@ public class BlockTransmitter {
 	
 	private static MedianMeanRunningAverage avgTimeTaken = new MedianMeanRunningAverage();
 	
-	/** LOCKING: Must be called with _senderThread held. */
-	private int getNumSent() {
-		int ret = 0;
-		for (int x=0; x<_sentPackets.getSize(); x++) {
-			if (_sentPackets.bitAt(x)) {
-				ret++;
-			}
-		}
-		return ret;
-	}
-	
 	public void callCallback(final boolean success) {
 		if(_callback != null) {
 			_executor.execute(new Runnable() {
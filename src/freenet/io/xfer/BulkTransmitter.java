@@ -20,6 +20,7 @@ import freenet.support.BitArray;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ShortBuffer;
 import freenet.support.io.NativeThread;
 
 /**
@@ -319,7 +320,7 @@ outer:	while(true) {
 				continue;
 			}
 			// Send a packet
-			byte[] buf = prb.getBlockData(blockNo);
+			ShortBuffer buf = prb.getBlock(blockNo);
 			if(buf == null) {
 				if(logMINOR)
 					Logger.minor(this, "Block "+blockNo+" is null, presumably the send is cancelled: "+this);
@@ -18,10 +18,11 @@
  */
 package freenet.io.xfer;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
 
+import freenet.support.BitArray;
 import freenet.support.Buffer;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -30,8 +31,9 @@ import freenet.support.Logger.LogLevel;
 /**
  * @author ian
  * 
- * To change the template for this generated type comment go to Window - Preferences - Java - Code Generation - Code and
- * Comments
+ * A block being received, which may be forwarded to several peers at once. Each packet is sliced
+ * out of the shared data once, when it arrives, and the same Buffer is handed to every
+ * BlockTransmitter, so relaying a popular block to N peers doesn't copy or allocate per peer.
  */
 public class PartiallyReceivedBlock {
 
@@ -52,11 +54,15 @@ public class PartiallyReceivedBlock {
 	boolean[] _received;
 	int _receivedCount;
 	public final int _packets, _packetSize;
-	boolean _aborted;
+	/** Each received packet, sliced out of _data. Null if not received yet. Buffer's fields are
+	 * final, so these can safely be read without taking the lock. */
+	private final Buffer[] _slices;
+	volatile boolean _aborted;
 	boolean _abortedLocally;
 	int _abortReason;
 	String _abortDescription;
-	ArrayList<PacketReceivedListener> _packetReceivedListeners = new ArrayList<PacketReceivedListener>();
+	/** Copy on write, so addPacket() doesn't have to copy it for every packet. */
+	private PacketReceivedListener[] _packetReceivedListeners = new PacketReceivedListener[0];
 
 	public PartiallyReceivedBlock(int packets, int packetSize, byte[] data) {
 		if (data.length != packets * packetSize) {
@@ -70,6 +76,10 @@ public class PartiallyReceivedBlock {
 		_receivedCount = packets;
 		_packets = packets;
 		_packetSize = packetSize;
+		_slices = new Buffer[packets];
+		for (int x=0; x<packets; x++) {
+			_slices[x] = new Buffer(data, x * packetSize, packetSize);
+		}
 	}
 	
 	public PartiallyReceivedBlock(int packets, int packetSize) {
@@ -77,13 +87,11 @@ public class PartiallyReceivedBlock {
 		_received = new boolean[packets];
 		_packets = packets;
 		_packetSize = packetSize;
+		_slices = new Buffer[packets];
 	}
 
 	public synchronized Deque<Integer> addListener(PacketReceivedListener listener) throws AbortedException {
-		if (_aborted) {
-			throw new AbortedException("Adding listener to aborted PRB");
-		}
-		_packetReceivedListeners.add(listener);
+		innerAddListener(listener);
 		Deque<Integer> ret = new LinkedList<Integer>();
 		for (int x = 0; x < _packets; x++) {
 			if (_received[x]) {
@@ -93,6 +101,31 @@ public class PartiallyReceivedBlock {
 		return ret;
 	}
 
+	/**
+	 * Subscribe to the block, and find out which packets have already been received.
+	 * @param received Set to the packets received so far. Any packet not set will be passed to
+	 * the listener when it arrives.
+	 * @return The number of packets received so far.
+	 */
+	public synchronized int addListener(PacketReceivedListener listener, BitArray received) throws AbortedException {
+		innerAddListener(listener);
+		for (int x = 0; x < _packets; x++) {
+			if (_received[x]) {
+				received.setBit(x, true);
+			}
+		}
+		return _receivedCount;
+	}
+
+	private void innerAddListener(PacketReceivedListener listener) throws AbortedException {
+		if (_aborted) {
+			throw new AbortedException("Adding listener to aborted PRB");
+		}
+		PacketReceivedListener[] listeners = Arrays.copyOf(_packetReceivedListeners, _packetReceivedListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		_packetReceivedListeners = listeners;
+	}
+
 	public synchronized boolean isReceived(int packetNo) throws AbortedException {
 		if (_aborted) {
 			throw new AbortedException("PRB is aborted");
@@ -131,9 +164,9 @@ public class PartiallyReceivedBlock {
 			_receivedCount++;
 			packet.copyTo(_data, position * _packetSize);
 			_received[position] = true;
+			_slices[position] = new Buffer(_data, position * _packetSize, _packetSize);
 			
-			// FIXME keep it as as an array
-			prls = _packetReceivedListeners.toArray(new PacketReceivedListener[_packetReceivedListeners.size()]);
+			prls = _packetReceivedListeners;
 		}
 		
 		
@@ -162,19 +195,34 @@ public class PartiallyReceivedBlock {
 		throw new RuntimeException("Tried to get block before all packets received");
 	}
 	
-	public synchronized Buffer getPacket(int x) throws AbortedException {
+	/** @return The packet. The same Buffer is returned every time, and is shared by everyone
+	 * sending the block, so must not be modified. Doesn't lock once the packet has been received. */
+	public Buffer getPacket(int x) throws AbortedException {
+		Buffer slice = _slices[x];
 		if (_aborted) {
 			throw new AbortedException("PRB is aborted");
 		}
-		if (!_received[x]) {
-			throw new IllegalStateException("that packet is not received");
+		if (slice != null) return slice;
+		synchronized(this) {
+			if (!_received[x]) {
+				throw new IllegalStateException("that packet is not received");
+			}
+			return _slices[x];
 		}
-		return new Buffer(_data, x * _packetSize, _packetSize);
 	}
 	
 
 	public synchronized void removeListener(PacketReceivedListener listener) {
-		_packetReceivedListeners.remove(listener);
+		PacketReceivedListener[] listeners = _packetReceivedListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				PacketReceivedListener[] newListeners = new PacketReceivedListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+				_packetReceivedListeners = newListeners;
+				return;
+			}
+		}
 	}
 
 	/**
@@ -201,8 +249,8 @@ public class PartiallyReceivedBlock {
 			_abortedLocally = cancelledLocally;
 			_abortReason = reason;
 			_abortDescription = description;
-			listeners = _packetReceivedListeners.toArray(new PacketReceivedListener[_packetReceivedListeners.size()]);
-			_packetReceivedListeners.clear();
+			listeners = _packetReceivedListeners;
+			_packetReceivedListeners = new PacketReceivedListener[0];
 		}
 		for (PacketReceivedListener prl : listeners) {
 			prl.receiveAborted(reason, description);
@@ -12,6 +12,7 @@ import freenet.support.BitArray;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ShortBuffer;
 import freenet.support.api.RandomAccessBuffer;
 
 /**
@@ -19,6 +20,10 @@ import freenet.support.api.RandomAccessBuffer;
  * As presently implemented, we keep a bitmap in RAM of blocks received, so it should be adequate
  * for fairly large files (128kB for a 1GB file e.g.). We can compress this structure later on if
  * need be.
+ * 
+ * Once every block has been written, blocks are read for sending READ_AHEAD_BLOCKS at a time, with
+ * a single pread(), and each packet sent is a slice of that shared buffer. So sending a file
+ * doesn't allocate and read a separate array for every packet.
  * @author toad
  */
 public class PartiallyReceivedBulk {
@@ -36,6 +41,12 @@ public class PartiallyReceivedBulk {
 	/** The one and only BulkReceiver */
 	BulkReceiver recv;
 	private int blocksReceivedCount;
+	/** Blocks received and actually written to raf. When this reaches blocks, we can read ahead. */
+	private int blocksWrittenCount;
+	/** The blocks most recently read ahead. Shared by all the transmitters. */
+	private volatile ReadAhead readAhead;
+	/** How many blocks to read at once when sending. */
+	static final int READ_AHEAD_BLOCKS = 64;
 	// Abort status
 	boolean _aborted;
 	int _abortReason;
@@ -72,6 +83,7 @@ public class PartiallyReceivedBulk {
 		if(initialState) {
 			blocksReceived.setAllOnes();
 			blocksReceivedCount = this.blocks;
+			blocksWrittenCount = this.blocks;
 		}
 		assert(raf.size() >= size);
 	}
@@ -129,6 +141,9 @@ public class PartiallyReceivedBulk {
 		}
 		try {
 			raf.pwrite(fileOffset, data, offset, bs);
+			synchronized(this) {
+				blocksWrittenCount++;
+			}
 		} catch (Throwable t) {
 			Logger.error(this, "Failed to store received block "+blockNum+" on "+this+" : "+t, t);
 			abort(RetrievalException.IO_ERROR, t.toString());
@@ -184,6 +199,59 @@ public class PartiallyReceivedBulk {
 		return data;
 	}
 
+	/** A run of blocks read in one go. Never modified after it is read, because the packets 
+	 * being sent refer to it. */
+	private static final class ReadAhead {
+		final int firstBlock;
+		final int blockCount;
+		final byte[] data;
+
+		ReadAhead(int firstBlock, int blockCount, byte[] data) {
+			this.firstBlock = firstBlock;
+			this.blockCount = blockCount;
+			this.data = data;
+		}
+
+		boolean contains(int blockNum) {
+			return blockNum >= firstBlock && blockNum < firstBlock + blockCount;
+		}
+	}
+
+	/**
+	 * Get a block to send. If we have the whole file, this is a slice of a buffer shared with the
+	 * blocks after it, which are read at the same time.
+	 * @return The block, or null if we failed to read it, in which case we have aborted.
+	 */
+	ShortBuffer getBlock(int blockNum) {
+		ReadAhead r = readAhead;
+		if(r == null || !r.contains(blockNum)) {
+			boolean complete;
+			synchronized(this) {
+				complete = blocksWrittenCount >= blocks;
+			}
+			if(!complete) {
+				// Blocks after this one may not have been written yet.
+				byte[] data = getBlockData(blockNum);
+				return data == null ? null : new ShortBuffer(data);
+			}
+			long fileOffset = (long)blockNum * (long)blockSize;
+			int count = Math.min(READ_AHEAD_BLOCKS, blocks - blockNum);
+			int length = (int) Math.min((long)count * blockSize, size - fileOffset);
+			byte[] data = new byte[length];
+			try {
+				raf.pread(fileOffset, data, 0, length);
+			} catch (IOException e) {
+				Logger.error(this, "Failed to read stored blocks "+blockNum+" to "+(blockNum+count)+" on "+this+" : "+e, e);
+				abort(RetrievalException.IO_ERROR, e.toString());
+				return null;
+			}
+			r = new ReadAhead(blockNum, count, data);
+			readAhead = r;
+		}
+		int start = (blockNum - r.firstBlock) * blockSize;
+		return new ShortBuffer(r.data, start, Math.min(blockSize, r.data.length - start));
+	}
+
 	public synchronized void remove(BulkTransmitter remove) {
 		boolean found = false;
 		for(BulkTransmitter t: transmitters) {
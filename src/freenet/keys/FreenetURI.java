@@ -27,6 +27,7 @@ import freenet.support.Base64;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.IllegalBase64Exception;
+import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -117,17 +118,19 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 	 */
 	private final byte[] routingKey,  cryptoKey,  extra;
 	private final long suggestedEdition; // for USKs
-	private boolean hasHashCode;
+	/** Zero if not computed yet. Not synchronized: like String, every thread computes the same
+	 * value, so it doesn't matter if one of them doesn't see another's. */
 	private int hashCode;
 //	private final int uniqueHashCode;
 	static final String[] VALID_KEY_TYPES =
 		new String[]{"CHK", "SSK", "KSK", "USK"};
 
 	@Override
-	public synchronized int hashCode() {
-		if(hasHashCode)
-			return hashCode;
-		int x = keyType.hashCode();
+	public int hashCode() {
+		int x = hashCode;
+		if(x != 0)
+			return x;
+		x = keyType.hashCode();
 		if(docName != null)
 			x ^= docName.hashCode();
 		if(metaStr != null)
@@ -142,7 +145,6 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 		if(keyType.equals("USK"))
 			x ^= suggestedEdition;
 		hashCode = x;
-		hasHashCode = true;
 		return x;
 	}
 
@@ -331,6 +333,43 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 	public FreenetURI(String URI) throws MalformedURLException {
 		this(URI, false);
 	}
+
+	static final int MAX_INTERNED = 1024;
+	/** Don't keep huge URIs in the intern table. */
+	static final int MAX_INTERNED_LENGTH = 1024;
+	/** Recently parsed URIs, by the exact string they were parsed from. A TreeMap, not a
+	 * HashMap, because the strings come from content and could be chosen to collide. */
+	private static final LRUMap<String, FreenetURI> internTable = LRUMap.createSafeMap();
+
+	/** Same as intern(uri, false). */
+	public static FreenetURI intern(String uri) throws MalformedURLException {
+		return intern(uri, false);
+	}
+
+	/**
+	 * Parse a FreenetURI, returning the same object as a recent call for the same string did if
+	 * possible. A freesite links to the same few keys over and over, so when filtering a big index
+	 * page this saves parsing them again, and keeps one copy of each, with its hash code and its
+	 * string form cached. Only the last MAX_INTERNED strings are kept. FreenetURI's are immutable,
+	 * so sharing them is safe.
+	 * @throws MalformedURLException If the string could not be parsed.
+	 */
+	public static FreenetURI intern(String uri, boolean noTrim) throws MalformedURLException {
+		if(uri == null || uri.length() == 0 || uri.length() > MAX_INTERNED_LENGTH)
+			return new FreenetURI(uri, noTrim);
+		// Only if trimming would make no difference, so noTrim doesn't matter.
+		if(uri.charAt(0) <= ' ' || uri.charAt(uri.length()-1) <= ' ')
+			return new FreenetURI(uri, noTrim);
+		FreenetURI furi = internTable.get(uri);
+		if(furi == null)
+			furi = new FreenetURI(uri, true);
+		synchronized(internTable) {
+			internTable.push(uri, furi);
+			while(internTable.size() > MAX_INTERNED)
+				internTable.popKey();
+		}
+		return furi;
+	}
 	
 	/**
 	 * Create a FreenetURI from its string form. May or may not have a
@@ -359,64 +398,75 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 				throw new MalformedURLException("Invalid URI: no @ or /, or @ or / is escaped but there are invalid escapes");
 			}
 
-		URI = URI_PREFIX.matcher(URI).replaceFirst("");
+		// The regex is only needed for http:// links; don't copy the string for freenet:.
+		int start = 0;
+		if(URI.startsWith("http://"))
+			URI = URI_PREFIX.matcher(URI).replaceFirst("");
+		else if(URI.startsWith("freenet:"))
+			start = "freenet:".length();
 
 		// decode keyType
-		int atchar = URI.indexOf('@');
+		int atchar = URI.indexOf('@', start);
 		if(atchar == -1)
-			throw new MalformedURLException("There is no @ in that URI! (" + URI + ')');
-
-		String _keyType = URI.substring(0, atchar).toUpperCase();
-		URI = URI.substring(atchar + 1);
-
-		boolean validKeyType = false;
-		for(int i = 0; i < VALID_KEY_TYPES.length; i++) {
-			if (_keyType.equals(VALID_KEY_TYPES[i])) {
-				validKeyType = true;
-				_keyType = VALID_KEY_TYPES[i];
-				break;
+			throw new MalformedURLException("There is no @ in that URI! (" + URI.substring(start) + ')');
+
+		String _keyType = null;
+		if(atchar - start == 3) {
+			for(int i = 0; i < VALID_KEY_TYPES.length; i++) {
+				if(URI.regionMatches(true, start, VALID_KEY_TYPES[i], 0, 3)) {
+					_keyType = VALID_KEY_TYPES[i];
+					break;
+				}
 			}
 		}
+		if(_keyType == null)
+			throw new MalformedURLException("Invalid key type: " + URI.substring(start, atchar).toUpperCase());
 		keyType = _keyType;
-		if(!validKeyType)
-			throw new MalformedURLException("Invalid key type: " + keyType);
 
 		boolean isSSK = "SSK".equals(keyType);
 		boolean isUSK = "USK".equals(keyType);
 		boolean isKSK = "KSK".equals(keyType);
 
 		// decode metaString
-		ArrayList<String> sv = null;
-		int slash2;
-		sv = new ArrayList<String>();
-		if (isKSK) URI = "/" + URI; // ensure that KSK docNames are decoded
-		while ((slash2 = URI.lastIndexOf('/')) != -1) {
-			String s;
+		// Split forwards, in one pass, rather than cutting the last part off the whole string
+		// each time. KSK docNames start straight after the @ and are decoded too.
+		int keyEnd = atchar + 1;
+		int pos = -1;
+		if(isKSK)
+			pos = atchar + 1;
+		else {
+			int slash = URI.indexOf('/', atchar + 1);
+			if(slash == -1)
+				keyEnd = URI.length();
+			else {
+				keyEnd = slash;
+				pos = slash + 1;
+			}
+		}
+		ArrayList<String> sv = new ArrayList<String>();
+		while(pos != -1) {
+			int slash = URI.indexOf('/', pos);
 			try {
-				s = URLDecoder.decode(URI.substring(slash2 + 1 /* "/".length() */), true);
+				sv.add(URLDecoder.decode(URI.substring(pos, slash == -1 ? URI.length() : slash), true));
 			} catch(URLEncodedFormatException e) {
 				throw (MalformedURLException)new MalformedURLException(e.toString()).initCause(e);
 			}
-			if(s != null)
-				sv.add(s);
-			URI = URI.substring(0, slash2);
+			pos = slash == -1 ? -1 : slash + 1;
 		}
 
-		// sv is *backwards*
-		// this makes for more efficient handling
-
 		// SSK@ = create a random SSK
 		if(sv.isEmpty() && (isUSK || isKSK))
 			throw new MalformedURLException("No docname for " + keyType);
 		
+		int next = 0;
 		if((isSSK || isUSK || isKSK) && !sv.isEmpty()) {
 
-			docName = sv.remove(sv.size() - 1);
+			docName = sv.get(next++);
 			if(isUSK) {
-				if(sv.isEmpty())
+				if(next == sv.size())
 					throw new MalformedURLException("No suggested edition number for USK");
 				try {
-					suggestedEdition = Long.parseLong(sv.remove(sv.size() - 1));
+					suggestedEdition = Long.parseLong(sv.get(next++));
 				} catch(NumberFormatException e) {
 					throw (MalformedURLException)new MalformedURLException("Invalid suggested edition: " + e).initCause(e);
 				}
@@ -428,10 +478,10 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 			suggestedEdition = -1;
 		}
 
-		if(!sv.isEmpty()) {
-			metaStr = new String[sv.size()];
+		if(next < sv.size()) {
+			metaStr = new String[sv.size() - next];
 			for(int i = 0; i < metaStr.length; i++) {
-				metaStr[i] = sv.get(metaStr.length - 1 - i).intern();
+				metaStr[i] = sv.get(next + i).intern();
 				if(metaStr[i] == null)
 					throw new NullPointerException();
 			}
@@ -446,10 +496,11 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 		// strip 'file extensions' from CHKs
 		// added by aum (david@rebirthing.co.nz)
 		if("CHK".equals(keyType)) {
-			int idx = URI.lastIndexOf('.');
-			if(idx != -1)
-				URI = URI.substring(0, idx);
+			int idx = URI.lastIndexOf('.', keyEnd - 1);
+			if(idx > atchar)
+				keyEnd = idx;
 		}
+		URI = URI.substring(atchar + 1, keyEnd);
 
 		// URI now contains: routingKey[,cryptoKey][,metaInfo]
 		StringTokenizer st = new StringTokenizer(URI, ",");
@@ -742,9 +793,14 @@ public class FreenetURI implements Cloneable, Comparable<FreenetURI>, Serializab
 	 * @return
 	 */
 	public String toASCIIString() {
-		return toString(true, true);
+		String s = asciiStringCache;
+		if (s == null)
+			asciiStringCache = s = toString(true, true);
+		return s;
 	}
 
+	private transient String asciiStringCache;
+
 	/**
 	 * Get the FreenetURI as a string.
 	 * @param prefix Whether to include the freenet: prefix.
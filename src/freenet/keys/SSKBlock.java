@@ -73,6 +73,9 @@ public class SSKBlock implements KeyBlock {
     
     static final short ENCRYPTED_HEADERS_LENGTH = 36;
     
+    /** Signatures which have already been verified, shared by all SSKBlock's. */
+    public static final SSKSignatureCache verifiedSignatures = new SSKSignatureCache(SSKSignatureCache.DEFAULT_SIZE);
+    
     @Override
 	public boolean equals(Object o) {
     	if(!(o instanceof SSKBlock)) return false;
@@ -140,6 +143,7 @@ public class SSKBlock implements KeyBlock {
 
 			MessageDigest md = null;
 			byte[] overallHash;
+			byte[] verifiedHash;
 			try {
 				md = SHA256.getMessageDigest();
 				md.update(data);
@@ -150,25 +154,34 @@ public class SSKBlock implements KeyBlock {
 				md.update(dataHash);
 				// Makes the implicit overall hash
 				overallHash = md.digest();
+				// Identifies this signature on this content with this key.
+				md.update(nodeKey.getPubKeyHash());
+				md.update(overallHash);
+				md.update(bufR);
+				md.update(bufS);
+				verifiedHash = md.digest();
 			} finally {
 				SHA256.returnMessageDigest(md);
 			}
 			
-			// Now verify it
-			BigInteger r = new BigInteger(1, bufR);
-			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
+			if(!verifiedSignatures.isVerified(verifiedHash)) {
+				// Now verify it
+				BigInteger r = new BigInteger(1, bufR);
+				BigInteger s = new BigInteger(1, bufS);
+				DSASigner dsa = new DSASigner();
+				dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
 
-			// We probably don't need to try both here...
-			// but that's what the legacy code was doing...
-			// @see comments in Global before touching it
-			if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
-			     dsa.verifySignature(overallHash, r, s))
-			  ) {
-				if (dontVerify)
-					Logger.error(this, "DSA verification failed with dontVerify!!!!");
-				throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				// We probably don't need to try both here...
+				// but that's what the legacy code was doing...
+				// @see comments in Global before touching it
+				if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
+				     dsa.verifySignature(overallHash, r, s))
+				  ) {
+					if (dontVerify)
+						Logger.error(this, "DSA verification failed with dontVerify!!!!");
+					throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				}
+				verifiedSignatures.verified(verifiedHash);
 			}
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
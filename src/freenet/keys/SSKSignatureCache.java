@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.support.ByteArrayWrapper;
+
+/**
+ * Bounded LRU set of SSK signatures we have already verified. The same SSK blocks are
+ * constructed over and over again - from the store, from ULPR offers, when a USK fetcher
+ * turns an SSKBlock into a ClientSSKBlock, etc - and each time we would otherwise redo the
+ * DSA verification, which is far more expensive than the SHA-256 hashes needed to look it up.
+ * <p>
+ * Entries are a hash of the pubkey hash, the overall hash of the block (which covers the data
+ * and all the headers up to the signature) and the signature itself, so a hit means exactly
+ * this signature has been verified on exactly this content with exactly this key. Only
+ * successful verifications are ever added.
+ * </p>
+ */
+public final class SSKSignatureCache {
+
+	/** Default number of verified signatures to remember. 32 bytes each plus overhead. */
+	public static final int DEFAULT_SIZE = 8192;
+
+	private final Map<ByteArrayWrapper, Boolean> verified;
+	private long hits;
+	private long misses;
+
+	@SuppressWarnings("serial")
+	public SSKSignatureCache(final int maxSize) {
+		if(maxSize <= 0) throw new IllegalArgumentException("Negative or zero maxSize");
+		verified = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/** @param hash A hash of the pubkey hash, the overall hash and the signature. */
+	synchronized boolean isVerified(byte[] hash) {
+		if(verified.get(new ByteArrayWrapper(hash)) != null) {
+			hits++;
+			return true;
+		} else {
+			misses++;
+			return false;
+		}
+	}
+
+	/** Remember that a signature has been verified successfully. */
+	synchronized void verified(byte[] hash) {
+		verified.put(new ByteArrayWrapper(hash), Boolean.TRUE);
+	}
+
+	public synchronized int size() {
+		return verified.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		verified.clear();
+	}
+
+}
@@ -1215,108 +1215,8 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 					notifyAll();
 				}
 				
-				// Wait for the second timeout off-thread.
-				// FIXME wait asynchronously.
-				
-				final InsertTag tag = thisTag;
-				final PeerNode waitingFor = next;
-				final short htl = this.htl;
-				
-				Runnable r = new Runnable() {
-
-					@Override
-					public void run() {
-						// We do not need to unlock the tag here.
-						// That will happen in the BackgroundTransfer, which has already started.
-						
-						// FIXME factor out
-				        int searchTimeout = calculateTimeout(htl);
-		                MessageFilter mfInsertReply = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPInsertReply);
-		                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedOverload);
-		                MessageFilter mfRouteNotFound = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRouteNotFound);
-		                MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPDataInsertRejected);
-		                MessageFilter mfTimeout = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedTimeout);
-		                
-		                MessageFilter mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
-
-			            while (true) {
-			            	
-			            	Message msg;
-
-			    			if(failIfReceiveFailed(tag, waitingFor)) {
-			    				transfer.onCompleted();
-			    				return;
-			    			}
-							
-							try {
-								msg = node.usm.waitFor(mf, CHKInsertSender.this);
-							} catch (DisconnectedException e) {
-								Logger.normal(this, "Disconnected from " + waitingFor
-										+ " while waiting for InsertReply on " + CHKInsertSender.this);
-								transfer.onDisconnect(waitingFor);
-								return;
-							}
-							
-			    			if(failIfReceiveFailed(tag, waitingFor)) {
-			    				transfer.onCompleted();
-			    				return;
-			    			}
-							
-							if(msg == null) {
-								// Second timeout.
-								// Definitely caused by the next node, fatal.
-								Logger.error(this, "Got second (local) timeout on "+CHKInsertSender.this+" from "+waitingFor);
-			    				transfer.onCompleted();
-								waitingFor.fatalTimeout();
-								return;
-							}
-							
-							if (msg.getSpec() == DMT.FNPRejectedTimeout) {
-								// Next node timed out awaiting our DataInsert.
-								// But we already sent it, so something is wrong. :(
-								handleRejectedTimeout(msg, waitingFor);
-								transfer.kill();
-								return;
-							}
-
-							if (msg.getSpec() == DMT.FNPRejectedOverload) {
-								if(handleRejectedOverload(msg, waitingFor, tag)) {
-									// Already set the status, and handle... will have unlocked the next node, so no need to call finished().
-									transfer.onCompleted();
-									return; // Don't try another node.
-								}
-								else continue;
-							}
-
-							if (msg.getSpec() == DMT.FNPRouteNotFound) {
-								transfer.onCompleted();
-								return; // Don't try another node.
-							}
-							
-							if (msg.getSpec() == DMT.FNPDataInsertRejected) {
-								handleDataInsertRejected(msg, waitingFor, tag);
-								transfer.kill();
-								return; // Don't try another node.
-							}
-							
-							if (msg.getSpec() != DMT.FNPInsertReply) {
-								Logger.error(this, "Unknown reply: " + msg);
-								transfer.onCompleted();
-								return;
-							} else {
-								// Our task is complete, one node (quite deep), has accepted the insert.
-								// The request will not be routed to any other nodes, this is where the data *should* be.
-								// We will removeRoutingTo() after the node has sent the transfer completion notice, which never happens before the InsertReply.
-								transfer.onCompleted();
-								return;
-							}
-			            }
-					}
-					
-				};
-				
-				// Wait for the timeout off-thread.
-				node.executor.execute(r);
+				// Wait for the second timeout asynchronously, without tying up a thread.
+				new SecondTimeoutWaiter(thisTag, next, transfer, htl).schedule();
 				// Meanwhile, finish() to update allTransfersCompleted and hence allow the CHKInsertHandler to send the message downstream.
 				// We have already set the status code, this is necessary in order to avoid race conditions.
 				// However since it is set to TIMED_OUT, we are allowed to set it again.
@@ -1375,6 +1275,129 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		routeRequests();
 	}
 
+	/**
+	 * After the first timeout on an insert which has been accepted, the next node may still
+	 * complete it. Wait for its reply or the second (fatal) timeout, without blocking a thread.
+	 * We do not need to unlock the tag here: that will happen in the BackgroundTransfer, which 
+	 * has already started.
+	 */
+	private class SecondTimeoutWaiter implements SlowAsyncMessageFilterCallback {
+
+		private final InsertTag tag;
+		private final PeerNode waitingFor;
+		private final BackgroundTransfer transfer;
+		private final int searchTimeout;
+
+		SecondTimeoutWaiter(InsertTag tag, PeerNode waitingFor, BackgroundTransfer transfer, short htl) {
+			this.tag = tag;
+			this.waitingFor = waitingFor;
+			this.transfer = transfer;
+			this.searchTimeout = calculateTimeout(htl);
+		}
+
+		void schedule() {
+			if(failIfReceiveFailed(tag, waitingFor)) {
+				transfer.onCompleted();
+				return;
+			}
+			MessageFilter mfInsertReply = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPInsertReply);
+			MessageFilter mfRejectedOverload = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedOverload);
+			MessageFilter mfRouteNotFound = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRouteNotFound);
+			MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPDataInsertRejected);
+			MessageFilter mfTimeout = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedTimeout);
+			MessageFilter mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
+			try {
+				node.usm.addAsyncFilter(mf, this, CHKInsertSender.this);
+			} catch (DisconnectedException e) {
+				onDisconnect(waitingFor);
+			}
+		}
+
+		@Override
+		public void onMatched(Message msg) {
+			if(failIfReceiveFailed(tag, waitingFor)) {
+				transfer.onCompleted();
+				return;
+			}
+			
+			if (msg.getSpec() == DMT.FNPRejectedTimeout) {
+				// Next node timed out awaiting our DataInsert.
+				// But we already sent it, so something is wrong. :(
+				handleRejectedTimeout(msg, waitingFor);
+				transfer.kill();
+				return;
+			}
+
+			if (msg.getSpec() == DMT.FNPRejectedOverload) {
+				if(handleRejectedOverload(msg, waitingFor, tag)) {
+					// Already set the status, and handle... will have unlocked the next node, so no need to call finished().
+					transfer.onCompleted();
+					return; // Don't try another node.
+				}
+				else {
+					schedule();
+					return;
+				}
+			}
+
+			if (msg.getSpec() == DMT.FNPRouteNotFound) {
+				transfer.onCompleted();
+				return; // Don't try another node.
+			}
+			
+			if (msg.getSpec() == DMT.FNPDataInsertRejected) {
+				handleDataInsertRejected(msg, waitingFor, tag);
+				transfer.kill();
+				return; // Don't try another node.
+			}
+			
+			if (msg.getSpec() != DMT.FNPInsertReply) {
+				Logger.error(this, "Unknown reply: " + msg);
+			}
+			// Our task is complete, one node (quite deep), has accepted the insert.
+			// The request will not be routed to any other nodes, this is where the data *should* be.
+			// We will removeRoutingTo() after the node has sent the transfer completion notice, which never happens before the InsertReply.
+			transfer.onCompleted();
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public void onTimeout() {
+			if(failIfReceiveFailed(tag, waitingFor)) {
+				transfer.onCompleted();
+				return;
+			}
+
+			// Second timeout.
+			// Definitely caused by the next node, fatal.
+			Logger.error(this, "Got second (local) timeout on "+CHKInsertSender.this+" from "+waitingFor);
+			transfer.onCompleted();
+			waitingFor.fatalTimeout();
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			Logger.normal(this, "Disconnected from " + waitingFor
+					+ " while waiting for InsertReply on " + CHKInsertSender.this);
+			transfer.onDisconnect(waitingFor);
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+	}
+
 	@Override
 	protected boolean isInsert() {
 		return true;
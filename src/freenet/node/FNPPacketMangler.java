@@ -9,7 +9,6 @@ import java.net.InetAddress;
 import java.security.MessageDigest;
 import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 
 import freenet.crypt.BlockCipher;
@@ -35,13 +34,13 @@ import freenet.io.comm.PeerContext;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.SocketHandler;
+import freenet.l10n.NodeL10n;
 import freenet.node.OpennetManager.ConnectionType;
-import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
+import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
-import freenet.support.SerialExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.FileUtil;
@@ -75,7 +74,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * The messages are cached in hashmaps because the message retrieval from the cache
 	 * can be performed in constant time( given the key)
 	 */
-	private final HashMap<ByteArrayWrapper, byte[]> authenticatorCache;
+	private final JFKAuthenticatorCache authenticatorCache;
+	/** Runs the JFK message handlers off the packet receiving thread. */
+	private final JFKHandshakeExecutor handshakeExecutor;
 	/** The following is used in the HMAC calculation of JFK message3 and message4 */
 	private static final byte[] JFK_PREFIX_INITIATOR, JFK_PREFIX_RESPONDER;
 	static {
@@ -107,8 +108,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	private static final int HASH_LENGTH = SHA256.getDigestLength();
 	/** The size of the key used to authenticate the hmac */
 	private static final int TRANSIENT_KEY_SIZE = HASH_LENGTH;
-	/** The key used to authenticate the hmac */
-	private final byte[] transientKey = new byte[TRANSIENT_KEY_SIZE];
+	/** The key used to authenticate the hmac. Replaced, not modified, when we rekey. */
+	private volatile byte[] transientKey;
+	/** Lock for changing the transient key */
+	private final Object transientKeyLock = new Object();
 	public static final long TRANSIENT_KEY_REKEYING_MIN_INTERVAL = MINUTES.toMillis(30);
 	/** The rekeying interval for the session key (keytrackers) */
 	public static final long SESSION_KEY_REKEYING_INTERVAL = MINUTES.toMillis(60);
@@ -132,7 +135,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		this.node = node;
 		this.crypto = crypt;
 		this.sock = sock;
-		authenticatorCache = new HashMap<ByteArrayWrapper, byte[]>();
+		authenticatorCache = new JFKAuthenticatorCache();
+		handshakeExecutor = new JFKHandshakeExecutor();
 	}
 
 	/**
@@ -146,7 +150,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		for(int i=0;i<DH_CONTEXT_BUFFER_SIZE;i++) {
 			_fillJFKECDHFIFO();
 		}
-		this.authHandlingThread.start(node.executor, "FNP incoming auth packet handler thread");
+		this.handshakeExecutor.start(node.executor, "FNP incoming auth packet handler thread");
 	}
 
 	/**
@@ -490,7 +494,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 1 and 3 here.
 
 		if(packetType == 0 || packetType == 2) {
-			this.authHandlingThread.execute(new Runnable() {
+			handshakeExecutor.execute(replyTo, replyTo.getAddress(), new Runnable() {
 
 				@Override
 				public void run() {
@@ -503,7 +507,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, "JFK("+(packetType+1)+") from "+replyTo);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the responder) from "+replyTo);
 		}
@@ -550,7 +554,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 2 and 4 here.
 
 		if(packetType == 1 || packetType == 3) {
-			authHandlingThread.execute(new Runnable() {
+			handshakeExecutor.execute(pn, replyTo.getAddress(), new Runnable() {
 				
 				@Override
 				public void run() {
@@ -563,14 +567,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, "JFK("+(packetType+1)+") from "+replyTo);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the initiator) from "+replyTo);
 		}
 		
 	}
-	
-	private final SerialExecutor authHandlingThread = new SerialExecutor(NativeThread.HIGH_PRIORITY, 1000);
 
 	/**
 	 * Process a decrypted, authenticated auth packet.
@@ -644,7 +646,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			if(packetType<0 || packetType>3) {
 				Logger.error(this,"Unknown PacketType" + packetType + "from" + replyTo + "from" +pn);
 				return ;
-			} else authHandlingThread.execute(new Runnable() {
+			} else handshakeExecutor.execute(pn, replyTo.getAddress(), new Runnable() {
 
 				@Override
 				public void run() {
@@ -681,7 +683,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 						processJFKMessage4(payload, 3, pn, replyTo, oldOpennetPeer, false, -1, negType);
 					}
 				}
-			});
+			}, "JFK("+(packetType+1)+") from "+replyTo);
 		} else {
 			Logger.error(this, "Decrypted auth packet but unknown negotiation type "+negType+" from "+replyTo+" possibly from "+pn);
 			return;
@@ -843,7 +845,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		int offset = 0;
 		byte[] nonce = new byte[nonceSize];
 		byte[] myExponential = ctx.getPublicKeyNetworkFormat();
-		node.random.nextBytes(nonce);
+		node.threadRandom.secure().nextBytes(nonce);
 
 		synchronized (pn.jfkNoncesSent) {
 			pn.jfkNoncesSent.add(nonce);
@@ -892,7 +894,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		
 		// Nr
 		byte[] myNonce = new byte[nonceSize];
-		node.random.nextBytes(myNonce);
+		node.threadRandom.secure().nextBytes(myNonce);
 		byte[] myExponential = ctx.getPublicKeyNetworkFormat();
 		// Neg type 9 and later use ECDSA signature.
 		byte[] sig = ctx.ecdsaSig;
@@ -995,13 +997,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Check try to find the authenticator in the cache.
 		// If authenticator is already present, indicates duplicate/replayed message2
 		// Now simply transmit the corresponding message3
-		Object message3 = null;
-		synchronized (authenticatorCache) {
-			message3 = authenticatorCache.get(new ByteArrayWrapper(authenticator));
-		}
+		byte[] message3 = authenticatorCache.get(authenticator);
 		if(message3 != null) {
 			Logger.normal(this, "We replayed a message from the cache (shouldn't happen often) - "+pn.getPeer());
-			sendAuthPacket(1, negType, 3, (byte[]) message3, pn, replyTo);
+			sendAuthPacket(1, negType, 3, message3, pn, replyTo);
 			return;
 		}
 
@@ -1133,18 +1132,15 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Check try to find the authenticator in the cache.
 		// If authenticator is already present, indicates duplicate/replayed message3
 		// Now simply transmit the corresponding message4
-		Object message4 = null;
-		synchronized (authenticatorCache) {
-			message4 = authenticatorCache.get(new ByteArrayWrapper(authenticator));
-		}
+		byte[] message4 = authenticatorCache.get(authenticator);
 		if(message4 != null) {
 			Logger.normal(this, "We replayed a message from the cache (shouldn't happen often) - "+pn);
 			// We are replaying a JFK(4).
 			// Therefore if it is anon-initiator it is encrypted with our setup key.
 			if(unknownInitiator) {
-				sendAnonAuthPacket(1,negType,3,setupType, (byte[]) message4, null, replyTo, crypto.anonSetupCipher);
+				sendAnonAuthPacket(1,negType,3,setupType, message4, null, replyTo, crypto.anonSetupCipher);
 			} else {
-				sendAuthPacket(1, negType, 3, (byte[]) message4, pn, replyTo);
+				sendAuthPacket(1, negType, 3, message4, pn, replyTo);
 			}
 			return;
 		} else {
@@ -1317,6 +1313,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 				ivNonce, ourInitialSeqNum, theirInitialSeqNum, ourInitialMsgID, theirInitialMsgID);
 		
 		if(newTrackerID > 0) {
+			handshakeExecutor.onHandshakeCompleted();
 
 			// Send reply
 			sendJFKMessage4(1, negType, 3, nonceInitiatorHashed, nonceResponder,initiatorExponential, responderExponential,
@@ -1448,14 +1445,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Try to find the HMAC in the cache:
 		// If it is already present it indicates duplicate/replayed message4 and we can discard
 		// If it's not, we can add it with a timestamp
-		byte[] message4Timestamp = null;
-		synchronized (authenticatorCache) {
-			ByteArrayWrapper hmacBAW = new ByteArrayWrapper(hmac);
-			message4Timestamp = authenticatorCache.get(hmacBAW);
-			if(message4Timestamp == null) { // normal behaviour
-				authenticatorCache.put(hmacBAW, Fields.longToBytes(t1));
-			}
-		}
+		byte[] message4Timestamp = authenticatorCache.putIfAbsent(hmac, Fields.longToBytes(t1));
 		if(message4Timestamp != null) {
 			Logger.normal(this, "We got a replayed message4 (first handled at "+TimeUtil.formatTime(t1-Fields.bytesToLong(message4Timestamp))+") from - "+pn);
 			return true;
@@ -1556,6 +1546,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 				ivCipher, pn.ivNonce, pn.ourInitialSeqNum, pn.theirInitialSeqNum, pn.ourInitialMsgID,
 				pn.theirInitialMsgID);
 		if(newTrackerID >= 0) {
+			handshakeExecutor.onHandshakeCompleted();
 			if(dontWant) {
 				node.peers.disconnectAndRemove(pn, true, true, true);
 			} else {
@@ -1708,7 +1699,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		c.initialize(pn.jfkKe);
 		int ivLength = PCFBMode.lengthIV(c);
 		byte[] iv = new byte[ivLength];
-		node.random.nextBytes(iv);
+		node.threadRandom.secure().nextBytes(iv);
 		PCFBMode pcfb = PCFBMode.create(c, iv);
 		int cleartextOffset = 0;
 		byte[] cleartext = new byte[JFK_PREFIX_INITIATOR.length + ivLength + sig.length + data.length];
@@ -1735,10 +1726,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		System.arraycopy(cleartext, cleartextToEncypherOffset, message3, offset, cleartext.length-cleartextToEncypherOffset);
 
 		// cache the message
-		synchronized (authenticatorCache) {
-			if(!maybeResetTransientKey())
-				authenticatorCache.put(new ByteArrayWrapper(authenticator),message3);
-		}
+		if(!maybeResetTransientKey())
+			authenticatorCache.put(authenticator, message3);
 		final long timeSent = System.currentTimeMillis();
 		if(unknownInitiator) {
 			sendAnonAuthPacket(1, negType, 2, setupType, message3, pn, replyTo, pn.anonymousInitiatorSetupCipher);
@@ -1829,7 +1818,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 
 		int ivLength = PCFBMode.lengthIV(c);
 		byte[] iv=new byte[ivLength];
-		node.random.nextBytes(iv);
+		node.threadRandom.secure().nextBytes(iv);
 		PCFBMode pk=PCFBMode.create(c, iv);
 		// Don't include the last bit
 		int dataLength = data.length - hisRef.length;
@@ -1860,11 +1849,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		System.arraycopy(cyphertext, cleartextToEncypherOffset, message4, offset, cyphertext.length - cleartextToEncypherOffset);
 
 		// cache the message
-		synchronized (authenticatorCache) {
-			if(!maybeResetTransientKey())
-				authenticatorCache.put(new ByteArrayWrapper(authenticator), message4);
-			if(logDEBUG) Logger.debug(this, "Storing JFK(4) for "+HexUtil.bytesToHex(authenticator));
-		}
+		if(!maybeResetTransientKey())
+			authenticatorCache.put(authenticator, message4);
+		if(logDEBUG) Logger.debug(this, "Storing JFK(4) for "+HexUtil.bytesToHex(authenticator));
 
 		if(unknownInitiator) {
 			sendAnonAuthPacket(1, negType, 3, setupType, message4, pn, replyTo, crypto.anonSetupCipher);
@@ -1926,14 +1913,14 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			throw new IllegalStateException("Cannot send auth packet: too long: "+length);
 		}
 		byte[] iv = new byte[PCFBMode.lengthIV(cipher)];
-		node.random.nextBytes(iv);
+		node.threadRandom.secure().nextBytes(iv);
 		byte[] hash = SHA256.digest(output);
 		if(logDEBUG) Logger.debug(this, "Data hash: "+HexUtil.bytesToHex(hash));
 		int prePaddingLength = iv.length + hash.length + 2 /* length */ + output.length;
 		int maxPacketSize = sock.getMaxPacketSize();
 		int paddingLength;
 		if(prePaddingLength < maxPacketSize) {
-			paddingLength = node.fastWeakRandom.nextInt(Math.min(100, maxPacketSize - prePaddingLength));
+			paddingLength = node.threadRandom.weak().nextInt(Math.min(100, maxPacketSize - prePaddingLength));
 		} else {
 			paddingLength = 0; // Avoid oversize packets if at all possible, the MTU is an estimate and may be wrong, and fragmented packets are often dropped by firewalls.
 			// Tell the devs, this shouldn't happen.
@@ -1951,7 +1938,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		pcfb.blockEncipher(output, 0, output.length);
 		System.arraycopy(output, 0, data, hash.length+iv.length+2, output.length);
 
-		Util.randomBytes(node.fastWeakRandom, data, hash.length+iv.length+2+output.length, paddingLength);
+		Util.randomBytes(node.threadRandom.weak(), data, hash.length+iv.length+2+output.length, paddingLength);
 		try {
 			sendPacket(data, replyTo, pn);
 			node.nodeStats.reportAuthBytes(data.length + sock.getHeadersLength(replyTo));
@@ -2182,9 +2169,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	}
 
 	private byte[] getTransientKey() {
-		synchronized (authenticatorCache) {
-			return transientKey;
-		}
+		return transientKey;
 	}
 
 	// FIXME this is our Key Derivation Function for JFK.
@@ -2237,7 +2222,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		boolean isCacheTooBig = true;
 		int authenticatorCacheSize = 0;
 		int AUTHENTICATOR_CACHE_SIZE = getAuthenticatorCacheSize();
-		synchronized (authenticatorCache) {
+		synchronized (transientKeyLock) {
 			authenticatorCacheSize = authenticatorCache.size();
 			if(authenticatorCacheSize < AUTHENTICATOR_CACHE_SIZE) {
 				isCacheTooBig = false;
@@ -2246,7 +2231,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			}
 			timeLastReset = now;
 
-			node.random.nextBytes(transientKey);
+			byte[] newKey = new byte[TRANSIENT_KEY_SIZE];
+			node.random.nextBytes(newKey);
+			transientKey = newKey;
 
 			// reset the authenticator cache
 			authenticatorCache.clear();
@@ -2256,6 +2243,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		return true;
 	}
 
+	/** Add the handshake statistics to a list on the stats page. */
+	public void drawHandshakeStats(HTMLNode list) {
+		list.addChild("li", NodeL10n.getBase().getString("StatisticsToadlet.handshakeAuthenticatorCache",
+				"count", Integer.toString(authenticatorCache.size())));
+		handshakeExecutor.drawStats(list);
+	}
+
 	@Override
 	public Status getConnectivityStatus() {
 		long now = System.currentTimeMillis();
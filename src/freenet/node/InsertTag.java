@@ -22,7 +22,11 @@ public class InsertTag extends UIDTag {
 	private boolean senderFinished;
 	
 	InsertTag(boolean ssk, START start, PeerNode source, boolean realTimeFlag, long uid, Node node) {
-		super(source, realTimeFlag, uid, node);
+		this(ssk, start, source, realTimeFlag, uid, node.tracker);
+	}
+	
+	InsertTag(boolean ssk, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
 		this.start = start;
 		this.ssk = ssk;
 	}
@@ -32,13 +36,17 @@ public class InsertTag extends UIDTag {
 	}
 	
 	public void finishedSender() {
+		boolean canUnlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			senderFinished = true;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(canUnlock)
+			innerUnlock(noRecordUnlock);
+		else
+			onLoadChanged(); // mustUnlock() may have reassigned to self.
 	}
 
 	@Override
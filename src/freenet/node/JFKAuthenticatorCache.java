@@ -0,0 +1,51 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.support.ByteArrayWrapper;
+
+/**
+ * Messages cached during JFK message exchange by FNPPacketMangler: JFK(3) and JFK(4) keyed by
+ * authenticator, so a duplicate JFK(2) or JFK(3) can be answered without redoing the crypto,
+ * and the HMACs of the JFK(4)'s we have handled, to detect replays.
+ * <p>
+ * Lookups and inserts don't lock, as every handshake job uses the cache. Entries are kept until
+ * the transient key changes: an authenticator is valid for as long as the key it was made with,
+ * so dropping one earlier would let a replayed message through to the expensive crypto again.
+ * FNPPacketMangler bounds the size by rekeying, and clearing the cache, when it is full.
+ * </p>
+ */
+final class JFKAuthenticatorCache {
+
+	private final ConcurrentHashMap<ByteArrayWrapper, byte[]> entries =
+		new ConcurrentHashMap<ByteArrayWrapper, byte[]>();
+
+	/** @return The cached value, or null. */
+	byte[] get(byte[] key) {
+		return entries.get(new ByteArrayWrapper(key));
+	}
+
+	void put(byte[] key, byte[] value) {
+		entries.put(new ByteArrayWrapper(key), value);
+	}
+
+	/**
+	 * Atomically add an entry unless there is already one.
+	 * @return The existing value, or null if we added it.
+	 */
+	byte[] putIfAbsent(byte[] key, byte[] value) {
+		return entries.putIfAbsent(new ByteArrayWrapper(key), value);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+}
@@ -0,0 +1,256 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.l10n.NodeL10n;
+import freenet.support.Executor;
+import freenet.support.HTMLNode;
+import freenet.support.Logger;
+import freenet.support.SerialExecutor;
+import freenet.support.TimeUtil;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs the JFK message handlers for an FNPPacketMangler: ECDH key agreement, ECDSA signing and
+ * verification, and the authenticator HMACs. These used to run on a single serial thread, so a
+ * handshake flood against a seednode delayed every other peer's connection setup.
+ * <p>
+ * Jobs are spread over a few serial lanes. All the jobs for one peer (or for one IP address,
+ * if we don't know the peer) go to the same lane, so the messages of a handshake are still
+ * handled in order and never concurrently. The total queue is bounded, and each IP address
+ * may only queue a limited number of packets per second, so a single flooding address can't
+ * fill the queue. Loopback addresses are not rate limited, as several nodes on one machine
+ * are a normal test setup.
+ * </p>
+ */
+final class JFKHandshakeExecutor {
+
+	private static volatile boolean logMINOR;
+	static { Logger.registerClass(JFKHandshakeExecutor.class); }
+
+	/** Maximum number of lanes i.e. threads doing JFK crypto. */
+	static final int MAX_LANES = 4;
+	/** Maximum number of queued jobs, across all lanes. */
+	static final int MAX_QUEUED = 1000;
+	/** Number of packets an IP address may send in a burst. */
+	static final int IP_BURST = 20;
+	/** Number of packets per second an IP address may send after the burst. */
+	static final int IP_PACKETS_PER_SECOND = 5;
+	/** Number of IP addresses to track for rate limiting. */
+	static final int IP_TABLE_SIZE = 1024;
+	/** Period over which rates are measured. */
+	static final long RATE_PERIOD = MINUTES.toMillis(1);
+
+	private final SerialExecutor[] lanes;
+	private final AtomicInteger[] queued;
+	private final int maxQueuedPerLane;
+
+	/** Remaining allowance per IP address, in packets. */
+	private final LinkedHashMap<InetAddress, Allowance> allowances;
+
+	private final AtomicLong jobsRun = new AtomicLong();
+	private final AtomicLong droppedQueueFull = new AtomicLong();
+	private final AtomicLong droppedRateLimited = new AtomicLong();
+	private final AtomicLong handshakesCompleted = new AtomicLong();
+	private final Rate jobRate = new Rate();
+	private final Rate handshakeRate = new Rate();
+	private long totalQueueDelay;
+	private long maxQueueDelay;
+
+	private static final class Allowance {
+		double packets;
+		long lastUpdated;
+
+		Allowance(long now) {
+			packets = IP_BURST;
+			lastUpdated = now;
+		}
+	}
+
+	/** Events per second, measured over the last RATE_PERIOD or longer. */
+	private static final class Rate {
+		private long periodStart = System.currentTimeMillis();
+		private int count;
+		private double lastRate;
+
+		synchronized void report(long now) {
+			update(now);
+			count++;
+		}
+
+		synchronized double perSecond(long now) {
+			update(now);
+			return lastRate;
+		}
+
+		private void update(long now) {
+			long elapsed = now - periodStart;
+			if(elapsed < RATE_PERIOD) return;
+			lastRate = count * 1000.0 / elapsed;
+			periodStart = now;
+			count = 0;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	JFKHandshakeExecutor() {
+		int laneCount = Math.max(1, Math.min(MAX_LANES, Runtime.getRuntime().availableProcessors()));
+		lanes = new SerialExecutor[laneCount];
+		queued = new AtomicInteger[laneCount];
+		for(int i=0;i<laneCount;i++) {
+			lanes[i] = new SerialExecutor(NativeThread.HIGH_PRIORITY);
+			queued[i] = new AtomicInteger();
+		}
+		maxQueuedPerLane = MAX_QUEUED / laneCount;
+		allowances = new LinkedHashMap<InetAddress, Allowance>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, Allowance> eldest) {
+				return size() > IP_TABLE_SIZE;
+			}
+		};
+	}
+
+	void start(Executor executor, String name) {
+		for(int i=0;i<lanes.length;i++)
+			lanes[i].start(executor, name+" ("+i+")");
+	}
+
+	/**
+	 * Queue a JFK job.
+	 * @param laneKey Jobs with equal keys run in order on the same lane. The PeerNode if we
+	 * know it, otherwise the address the packet came from.
+	 * @param source The IP address the packet came from, for rate limiting. Can be null.
+	 * @return False if the job was dropped because the queue is full or the address has sent
+	 * too many packets.
+	 */
+	boolean execute(Object laneKey, InetAddress source, final Runnable job, String jobName) {
+		long now = System.currentTimeMillis();
+		if(!allowed(source, now)) {
+			droppedRateLimited.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Dropping JFK packet from "+source+": too many packets from that address");
+			return false;
+		}
+		final int lane = (laneKey.hashCode() & Integer.MAX_VALUE) % lanes.length;
+		if(queued[lane].incrementAndGet() > maxQueuedPerLane) {
+			queued[lane].decrementAndGet();
+			droppedQueueFull.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Dropping JFK packet from "+source+": queue full");
+			return false;
+		}
+		final long queuedTime = System.nanoTime();
+		lanes[lane].execute(new Runnable() {
+
+			@Override
+			public void run() {
+				queued[lane].decrementAndGet();
+				reportQueueDelay(System.nanoTime() - queuedTime);
+				try {
+					job.run();
+				} finally {
+					jobsRun.incrementAndGet();
+					jobRate.report(System.currentTimeMillis());
+				}
+			}
+
+		}, jobName);
+		return true;
+	}
+
+	private boolean allowed(InetAddress source, long now) {
+		if(source == null || source.isLoopbackAddress()) return true;
+		synchronized(allowances) {
+			Allowance a = allowances.get(source);
+			if(a == null) {
+				a = new Allowance(now);
+				allowances.put(source, a);
+			} else {
+				a.packets = Math.min(IP_BURST, a.packets + (now - a.lastUpdated) * IP_PACKETS_PER_SECOND / 1000.0);
+				a.lastUpdated = now;
+			}
+			if(a.packets < 1) return false;
+			a.packets--;
+			return true;
+		}
+	}
+
+	private synchronized void reportQueueDelay(long nanos) {
+		totalQueueDelay += nanos;
+		if(nanos > maxQueueDelay) maxQueueDelay = nanos;
+	}
+
+	/** Called when a handshake has completed successfully. */
+	void onHandshakeCompleted() {
+		handshakesCompleted.incrementAndGet();
+		handshakeRate.report(System.currentTimeMillis());
+	}
+
+	int queuedJobs() {
+		int total = 0;
+		for(AtomicInteger q : queued)
+			total += q.get();
+		return total;
+	}
+
+	long jobsRun() {
+		return jobsRun.get();
+	}
+
+	long droppedQueueFull() {
+		return droppedQueueFull.get();
+	}
+
+	long droppedRateLimited() {
+		return droppedRateLimited.get();
+	}
+
+	long handshakesCompleted() {
+		return handshakesCompleted.get();
+	}
+
+	double handshakesPerSecond() {
+		return handshakeRate.perSecond(System.currentTimeMillis());
+	}
+
+	double jobsPerSecond() {
+		return jobRate.perSecond(System.currentTimeMillis());
+	}
+
+	/** @return The average time a JFK packet waited in the queue, in milliseconds. */
+	synchronized long averageQueueDelay() {
+		long run = jobsRun.get();
+		if(run == 0) return 0;
+		return NANOSECONDS.toMillis(totalQueueDelay / run);
+	}
+
+	/** @return The longest time a JFK packet waited in the queue, in milliseconds. */
+	synchronized long maxQueueDelay() {
+		return NANOSECONDS.toMillis(maxQueueDelay);
+	}
+
+	void drawStats(HTMLNode list) {
+		list.addChild("li", l10nStats("handshakesCompleted", new String[] { "count", "rate" },
+				new String[] { Long.toString(handshakesCompleted()), String.format("%.2f", handshakesPerSecond()) }));
+		list.addChild("li", l10nStats("handshakeJFKPackets", new String[] { "count", "rate", "queued", "threads" },
+				new String[] { Long.toString(jobsRun()), String.format("%.2f", jobsPerSecond()),
+				Integer.toString(queuedJobs()), Integer.toString(lanes.length) }));
+		list.addChild("li", l10nStats("handshakeJFKQueueDelay", new String[] { "average", "max" },
+				new String[] { TimeUtil.formatTime(averageQueueDelay(), 2, true), TimeUtil.formatTime(maxQueueDelay(), 2, true) }));
+		list.addChild("li", l10nStats("handshakeJFKDropped", new String[] { "queueFull", "rateLimited" },
+				new String[] { Long.toString(droppedQueueFull()), Long.toString(droppedRateLimited()) }));
+	}
+
+	private static String l10nStats(String key, String[] patterns, String[] values) {
+		return NodeL10n.getBase().getString("StatisticsToadlet."+key, patterns, values);
+	}
+
+}
@@ -54,6 +54,7 @@ import freenet.crypt.DSAPublicKey;
 import freenet.crypt.ECDH;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.PersistentRandomSource;
+import freenet.crypt.PerThreadRandomSource;
 import freenet.crypt.RandomSource;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
@@ -123,6 +124,7 @@ import freenet.store.caching.CachingFreenetStore;
 import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.AtomicTokenBucket;
 import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
@@ -132,11 +134,11 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
-import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
-import freenet.support.TokenBucket;
+import freenet.support.TimingWheelTicker;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -630,6 +632,9 @@ public class Node implements TimeSkewDetectorCallback {
 	public final SecureRandom secureRandom;
 	/** Weak but fast RNG */
 	public final Random fastWeakRandom;
+	/** Per-thread RNGs derived from random. Use these rather than random on hot paths, to
+	 * avoid contention on its lock. */
+	public final PerThreadRandomSource threadRandom;
 	/** The object which handles incoming messages and allows us to wait for them */
 	final MessageCore usm;
 
@@ -652,11 +657,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final TimingWheelTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
-	public final TokenBucket outputThrottle;
+	public final AtomicTokenBucket outputThrottle;
 	public boolean throttleLocalData;
 	private int outputBandwidthLimit;
 	private int inputBandwidthLimit;
@@ -1118,6 +1123,7 @@ public class Node implements TimeSkewDetectorCallback {
 			this.fastWeakRandom = new MersenneTwister(buffer);
 		}else
 			this.fastWeakRandom = weakRandom;
+		this.threadRandom = new PerThreadRandomSource(random);
 
 		nodeNameUserAlert = new MeaningfulNodeNameUserAlert(this);
 		this.config = config;
@@ -1491,9 +1497,11 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ticker = new TimingWheelTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1556,7 +1564,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// FIXME: make compatible with alternate transports.
 		bucketSize = Math.max(bucketSize, 2048);
 		try {
-		outputThrottle = new TokenBucket(bucketSize, SECONDS.toNanos(1) / obwLimit, obwLimit/2);
+		outputThrottle = new AtomicTokenBucket(bucketSize, SECONDS.toNanos(1) / obwLimit, obwLimit/2);
 		} catch (IllegalArgumentException e) {
 			throw new NodeInitException(NodeInitException.EXIT_BAD_BWLIMIT, e.getMessage());
 		}
@@ -4337,6 +4345,17 @@ public class Node implements TimeSkewDetectorCallback {
 		return opennet;
 	}
 
+	/** Draw the connection setup statistics for darknet and, if enabled, opennet. */
+	public void drawHandshakeStats(HTMLNode content) {
+		content.addChild("b", NodeL10n.getBase().getString("StatisticsToadlet.handshakeDarknet"));
+		darknetCrypto.packetMangler.drawHandshakeStats(content.addChild("ul"));
+		OpennetManager om = opennet;
+		if(om != null) {
+			content.addChild("b", NodeL10n.getBase().getString("StatisticsToadlet.handshakeOpennet"));
+			om.crypto.packetMangler.drawHandshakeStats(content.addChild("ul"));
+		}
+	}
+
 	public synchronized boolean passOpennetRefsThroughDarknet() {
 		return passOpennetRefsThroughDarknet;
 	}
@@ -4562,6 +4581,7 @@ public class Node implements TimeSkewDetectorCallback {
 		hasPanicked = true;
 		clientCore.clientLayerPersister.panic();
 		clientCore.clientLayerPersister.killAndWaitForNotRunning();
+		clientCore.panic();
 		try {
 			MasterKeys.killMasterKeys(getMasterPasswordFile());
 		} catch (IOException e) {
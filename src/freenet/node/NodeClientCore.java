@@ -13,10 +13,12 @@ import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientLayerCacheFile;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.DatastoreChecker;
 import freenet.client.async.HealingQueue;
+import freenet.client.async.InsertedFileStore;
 import freenet.client.async.PersistentStatsPutter;
 import freenet.client.async.SimpleHealingQueue;
 import freenet.client.async.USKManager;
@@ -100,6 +102,8 @@ public class NodeClientCore implements Persistable {
 
 	public final PersistentStatsPutter bandwidthStatsPutter;
 	public final USKManager uskManager;
+	/** Where the InsertedFileStore keeps the files inserted by ClientPutDir. */
+	private final ClientLayerCacheFile insertedFilesFile;
 	public final ArchiveManager archiveManager;
 	public final RequestStarterGroup requestStarters;
 	private final HealingQueue healingQueue;
@@ -447,6 +451,23 @@ public class NodeClientCore implements Persistable {
 			}
 		});
 
+		shutdownHook.addEarlyJob(new NativeThread("Write USK editions",
+							  NativeThread.HIGH_PRIORITY, true) {
+			@Override
+			public void realRun() {
+				uskManager.writeEditions();
+			}
+		});
+
+		shutdownHook.addEarlyJob(new NativeThread("Write inserted files",
+							  NativeThread.HIGH_PRIORITY, true) {
+			@Override
+			public void realRun() {
+				if(clientContext != null && clientContext.insertedFileStore != null)
+					clientContext.insertedFileStore.write();
+			}
+		});
+
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown database", NativeThread.HIGH_PRIORITY,
 						 true) {
@@ -612,6 +633,8 @@ public class NodeClientCore implements Persistable {
 						  defaultFetchContext, defaultInsertContext);
 		compressor.setClientContext(clientContext);
 		storeChecker.setContext(clientContext);
+		insertedFilesFile = new ClientLayerCacheFile(node.nodeDir().dir(), "inserted-files.dat");
+		clientContext.setInsertedFileStore(new InsertedFileStore(insertedFilesFile));
 		clientLayerPersister.start(clientContext);
 
 		try {
@@ -956,13 +979,35 @@ public class NodeClientCore implements Persistable {
 	}
 
 	/** Give ClientLayerPersister a filename and possibly an encryption key. May cause it to load,
-	 * but can also be called afterwards to change where to write to.
+	 * but can also be called afterwards to change where to write to. The client layer's cache
+	 * files are stored the same way.
 	 * @param databaseKey The encryption key.
 	 * @throws MasterKeysWrongPasswordException If it needs an encryption key.
 	 */
 	private void initStorage(DatabaseKey databaseKey) throws MasterKeysWrongPasswordException {
 	    clientLayerPersister.setFilesAndLoad(node.nodeDir.dir(), "client.dat", 
 	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random);
+	    uskManager.setEditionFiles(node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey);
+	    final InsertedFileStore insertedFiles = clientContext.insertedFileStore;
+	    boolean rewrite = insertedFilesFile.setFiles(node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey);
+	    insertedFiles.load();
+	    if(rewrite) {
+	        insertedFiles.setDirty();
+	        node.executor.execute(new Runnable() {
+
+	            @Override
+	            public void run() {
+	                insertedFiles.write();
+	            }
+
+	        }, "Rewrite inserted files");
+	    }
+	}
+
+	/** Delete the client layer's cache files. Called on panic. */
+	void panic() {
+		uskManager.onPanic();
+		insertedFilesFile.panic();
 	}
 	
 	/** Must only be called after we have loaded master.keys */
@@ -1086,7 +1131,7 @@ public class NodeClientCore implements Persistable {
 	 * all. */
 	long makeUID() {
 		while(true) {
-			long uid = random.nextLong();
+			long uid = node.threadRandom.secure().nextLong();
 			if(uid != -1) return uid;
 		}
 	}
@@ -14,6 +14,7 @@ import java.util.UUID;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.JceLoader;
@@ -25,9 +26,12 @@ import freenet.support.JVMVersion;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
+import freenet.support.api.BooleanCallback;
+import freenet.support.api.IntCallback;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.io.NativeThread;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -137,7 +141,7 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		Executor executor = createExecutor(cfg.createSubConfig("node.executor"));
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +153,8 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof PooledExecutor)
+			((PooledExecutor) executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -203,6 +208,55 @@ public class NodeStarter implements WrapperListener {
 		return null;
 	}
 
+	private boolean workStealingExecutor;
+	private int maxThreadsPerPriority;
+
+	/**
+	 * Create the executor. This has to happen before the node is created, so changing the options
+	 * only takes effect on restart.
+	 */
+	private Executor createExecutor(SubConfig executorConfig) {
+		executorConfig.register("workStealing", false, 1, true, false, "NodeStarter.workStealing",
+				"NodeStarter.workStealingLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return workStealingExecutor;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val == workStealingExecutor) return;
+						workStealingExecutor = val;
+						throw new NodeNeedRestartException("node.executor.workStealing");
+					}
+				});
+		workStealingExecutor = executorConfig.getBoolean("workStealing");
+
+		executorConfig.register("maxThreadsPerPriority", 500, 2, true, false, "NodeStarter.maxThreadsPerPriority",
+				"NodeStarter.maxThreadsPerPriorityLong",
+				new IntCallback() {
+					@Override
+					public Integer get() {
+						return maxThreadsPerPriority;
+					}
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 1) throw new InvalidConfigValueException("Must be at least 1");
+						if(val == maxThreadsPerPriority) return;
+						maxThreadsPerPriority = val;
+						throw new NodeNeedRestartException("node.executor.maxThreadsPerPriority");
+					}
+				}, false);
+		maxThreadsPerPriority = Math.max(1, executorConfig.getInt("maxThreadsPerPriority"));
+
+		executorConfig.finishedInitialization();
+		if(workStealingExecutor) {
+			System.out.println("Using work stealing executor with up to "+maxThreadsPerPriority+" threads per priority");
+			return new WorkStealingExecutor(maxThreadsPerPriority);
+		}
+		return new PooledExecutor();
+	}
+
 	/**
 	 * Called when the application is shutting down.  The Wrapper assumes that
 	 *  this method will return fairly quickly.  If the shutdown code code
@@ -32,6 +32,7 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -39,6 +40,7 @@ import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
+import freenet.support.math.TimeHistogram;
 import freenet.support.math.TrivialRunningAverage;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -937,16 +939,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			CountedRequests countSSK = new CountedRequests();
 			CountedRequests countCHKSR = new CountedRequests();
 			CountedRequests countSSKSR = new CountedRequests();
-			tracker.countRequests(true, false, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(true, true, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(true, false, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(true, true, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(false, false, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(false, true, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(false, false, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(false, true, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(false, false, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(false, true, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
+			tracker.countAllRequests(false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
+			tracker.countAllRequests(true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
 			this.expectedTransfersInCHK = countCHK.expectedTransfersIn();
 			this.expectedTransfersInSSK = countSSK.expectedTransfersIn();
 			this.expectedTransfersOutCHK = countCHK.expectedTransfersOut();
@@ -990,16 +984,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 				countCHKSR = new CountedRequests();
 				countSSKSR = new CountedRequests();
 			}
-			tracker.countRequests(source, requestsToNode, true, false, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(source, requestsToNode, true, true, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(source, requestsToNode, true, false, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(source, requestsToNode, true, true, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(source, requestsToNode, false, false, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(source, requestsToNode, false, true, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(source, requestsToNode, false, false, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(source, requestsToNode, false, true, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
-			tracker.countRequests(source, requestsToNode, false, false, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
-			tracker.countRequests(source, requestsToNode, false, true, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
+			tracker.countAllRequests(source, requestsToNode, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countCHK, countCHKSR);
+			tracker.countAllRequests(source, requestsToNode, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, countSSK, countSSKSR);
 			if(!requestsToNode) {
 				this.expectedTransfersInCHKSR = countCHKSR.expectedTransfersIn();
 				this.expectedTransfersInSSKSR = countSSKSR.expectedTransfersIn();
@@ -1924,6 +1910,24 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.executor.waitingThreads();
 	}
 
+	/** @return Jobs waiting for a thread at each priority, or null if the executor doesn't queue jobs. */
+	public int[] getQueuedJobsByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor) node.executor).queuedJobs();
+	}
+
+	/** @return How long jobs waited for a thread at each priority, or null if the executor doesn't queue jobs. */
+	public TimeHistogram[] getJobQueueTimesByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor) node.executor).queueTimes();
+	}
+
+	/** @return How long jobs ran for at each priority, or null if the executor doesn't keep track. */
+	public TimeHistogram[] getJobRunTimesByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor) node.executor).runTimes();
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -2089,6 +2093,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("recentOutputRate", recent_output_rate);
 		fs.put("recentInputRate", recent_input_rate);
 
+		fs.put("outputThrottleTokens", node.outputThrottle.getCount());
+		fs.put("outputThrottleBucketSize", node.outputThrottle.getSize());
+		fs.put("outputThrottleRate", node.outputThrottle.getRate());
+
 		fs.put("ackOnlyBytes", getNotificationOnlyPacketsSentBytes());
 		fs.put("resentBytes", getResendBytesSent());
 		fs.put("updaterOutputBytes", getUOMBytesSent());
@@ -3828,7 +3836,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	 * @return Value +/- Gaussian percentage.
 	 */
 	public final double randomNoise(final double input, final double sigma) {
-		double multiplier = (node.random.nextGaussian() * sigma) + 1.0;
+		double multiplier = (node.threadRandom.secure().nextGaussian() * sigma) + 1.0;
 
 		/*
 		 * Cap noise to [0.5, 1.5]. Such amounts are very rare (5 sigma at 10%) and serve only to throw off the
@@ -160,6 +160,10 @@ public class PacketSender implements Runnable {
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
+		// If there is plenty in the node's bucket, nobody is waiting, so a peer may use more than
+		// its share.
+		boolean spareBandwidth = count >= node.outputThrottle.getSize() / 2;
+		int connectedPeers = pm.countConnectedPeers();
 		if(count > MAX_PACKET_SIZE)
 			canSendThrottled = true;
 		else {
@@ -212,6 +216,20 @@ public class PacketSender implements Runnable {
 				
 				boolean shouldThrottle = pn.shouldThrottle();
 				
+				// The node has bandwidth to spare, but this peer may have used its share of it.
+				boolean peerCanSendThrottled = canSendThrottled;
+				long peerCanSendAt = Long.MAX_VALUE;
+				if(shouldThrottle) {
+					pn.updateOutputShare(node.outputThrottle, connectedPeers);
+					if(canSendThrottled && !spareBandwidth) {
+						long wait = pn.nanosUntilOutputShare(MAX_PACKET_SIZE);
+						if(wait > 0) {
+							peerCanSendThrottled = false;
+							peerCanSendAt = now + MILLISECONDS.convert(wait + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
+						}
+					}
+				}
+				
 				pn.checkForLostPackets();
 
 				// Is the node dead?
@@ -243,7 +261,7 @@ public class PacketSender implements Runnable {
 
 				// The peer is connected.
 				
-				if(canSendThrottled || !shouldThrottle) {
+				if(peerCanSendThrottled || !shouldThrottle) {
 					// We can send to this peer.
 					long sendTime = pn.getNextUrgentTime(now);
 					if(sendTime != Long.MAX_VALUE) {
@@ -270,7 +288,7 @@ public class PacketSender implements Runnable {
 								urgentFullPacketPeers.add(pn);
 						}
 					}
-				} else if(shouldThrottle && !canSendThrottled) {
+				} else if(shouldThrottle && !peerCanSendThrottled) {
 					long ackTime = pn.timeSendAcks();
 					if(ackTime != Long.MAX_VALUE) {
 						if(ackTime <= now) {
@@ -287,7 +305,7 @@ public class PacketSender implements Runnable {
 					}
 				}
 				
-				if(canSendThrottled || !shouldThrottle) {
+				if(peerCanSendThrottled || !shouldThrottle) {
 					long urgentTime = pn.getNextUrgentTime(now);
 					// Should spam the logs, unless there is a deadlock
 					if(urgentTime < Long.MAX_VALUE && logMINOR)
@@ -295,6 +313,8 @@ public class PacketSender implements Runnable {
 					nextActionTime = Math.min(nextActionTime, urgentTime);
 				} else {
 					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+					if(peerCanSendAt != Long.MAX_VALUE && pn.getNextUrgentTime(now) != Long.MAX_VALUE)
+						nextActionTime = Math.min(nextActionTime, peerCanSendAt);
 				}
 			} else
 				// Not connected
@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -72,6 +73,11 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** Built from connectedPeers and their locations when needed. */
+	private volatile RoutingIndex routingIndex;
+	/** Incremented whenever routingIndex becomes out of date. Not protected by a lock, because
+	 * PeerNode's call invalidateRoutingIndex() with their own locks held. */
+	private final AtomicInteger routingIndexVersion = new AtomicInteger();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -431,6 +437,7 @@ public class PeerManager {
 				PeerNode[] newConnectedPeers = new PeerNode[a.size()];
 				newConnectedPeers = a.toArray(newConnectedPeers);
 				connectedPeers = newConnectedPeers;
+				invalidateRoutingIndex();
 
 				// removing from myPeers
 				PeerNode[] newMyPeers = new PeerNode[myPeers.length - 1];
@@ -461,6 +468,7 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			invalidateRoutingIndex();
 		}
 		for(PeerNode oldPeer: oldPeers)
 			oldPeer.onRemove();
@@ -486,6 +494,7 @@ public class PeerManager {
 			PeerNode[] newConnectedPeers = new PeerNode[a.size()];
 			newConnectedPeers = a.toArray(newConnectedPeers);
 			connectedPeers = newConnectedPeers;
+			invalidateRoutingIndex();
 		}
                 if(!pn.isSeed())
                     updatePMUserAlert();
@@ -536,6 +545,7 @@ public class PeerManager {
 				Logger.minor(this, "Connecting: " + pn);
 			connectedPeers = Arrays.copyOf(connectedPeers, connectedPeers.length + 1);
 			connectedPeers[connectedPeers.length - 1] = pn;
+			invalidateRoutingIndex();
 			if(logMINOR)
 				Logger.minor(this, "Connected peers: " + connectedPeers.length);
 		}
@@ -792,7 +802,7 @@ public class PeerManager {
 		if(connectedPeers.length == 0)
 			return null;
 		for(int i = 0; i < 5; i++) {
-			PeerNode pn = connectedPeers[node.random.nextInt(connectedPeers.length)];
+			PeerNode pn = connectedPeers[node.threadRandom.secure().nextInt(connectedPeers.length)];
 			if(pn == exclude)
 				continue;
 			if(pn.isRoutable())
@@ -820,9 +830,10 @@ public class PeerManager {
 		if(logMINOR)
 			Logger.minor(this, "Connected peers (in getRandomPeer): " + newConnectedPeers.length + " was " + connectedPeers.length);
 		connectedPeers = newConnectedPeers;
+		invalidateRoutingIndex();
 		if(lengthWithoutExcluded == 0)
 			return null;
-		return connectedPeers[node.random.nextInt(lengthWithoutExcluded)];
+		return connectedPeers[node.threadRandom.secure().nextInt(lengthWithoutExcluded)];
 	}
 
 	public void localBroadcast(Message msg, boolean ignoreRoutability, 
@@ -966,6 +977,21 @@ public class PeerManager {
 		if(key != null)
 			entry = node.failureTable.getTimedOutNodesList(key);
 		
+		if(addUnpickedLocsTo == null && (recentlyFailed == null || entry == null)) {
+			// The common case: we only want the best peer, and can't send RecentlyFailed, so
+			// don't need to look at all of them.
+			double limit = maxDistance;
+			if(!ignoreSelf) limit = Math.min(limit, maxDiff);
+			PeerNode best = closestFromIndex(pn, routedTo, target, limit, minVersion, entry, outgoingHTL,
+					ignoreBackoffUnder, realTime, ignoreTimeout, now, newLoadManagement, myLoc, prevLoc);
+			if(best != null) {
+				if(calculateMisrouting)
+					reportBackedOffPercent();
+				return best;
+			}
+			// Everything is backed off or timed out, or the index can't be used: check all of them.
+		}
+		
 		double[] selectionRates = new double[peers.length];
 		double totalSelectionRate = 0.0;
 		for(int i=0;i<peers.length;i++) {
@@ -984,49 +1010,10 @@ public class PeerManager {
 
 		for(int i = 0; i < peers.length; i++) {
 			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement))
 				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			if(enableFOAFMitigationHack && isOverSelected(p, selectionRates[i], totalSelectionRate))
 				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
-			if(enableFOAFMitigationHack) {
-				double selectionRate = selectionRates[i];
-				double selectionSamplesPercentage = selectionRate / totalSelectionRate;
-				if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
-					if(logMINOR)
-						Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
-					continue;
-				}
-			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
-				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1231,12 +1218,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1248,6 +1231,161 @@ public class PeerManager {
 		return best;
 	}
 
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/** @return False if we can't route to the peer at all, whatever its location. */
+	private boolean canRouteTo(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion, boolean realTime,
+			long now, boolean newLoadManagement) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isOverSelected(PeerNode p, double selectionRate, double totalSelectionRate) {
+		double selectionSamplesPercentage = selectionRate / totalSelectionRate;
+		if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
+			return true;
+		}
+		return false;
+	}
+
+	/** A peer's share of the selections can't be more than 1, so unless the threshold is less
+	 * than that, no peer is ever skipped for being over-selected, and we needn't add them up. */
+	private static final boolean CAN_BE_OVER_SELECTED = PeerNode.SELECTION_PERCENTAGE_WARNING < 1.0;
+
+	/**
+	 * Find the closest peer to the target, counting its peers' locations if we route by them,
+	 * which is neither backed off nor timed out for the key. Walks outwards from the target
+	 * through the RoutingIndex, so usually only looks at a few peers.
+	 * @param limit Ignore peers further than this from the target.
+	 * @return The peer, or null if there isn't one, or the index couldn't be used.
+	 */
+	private PeerNode closestFromIndex(PeerNode pn, Set<PeerNode> routedTo, double target, double limit,
+			int minVersion, TimedOutNodesList entry, short outgoingHTL, long ignoreBackoffUnder, boolean realTime,
+			boolean ignoreTimeout, long now, boolean newLoadManagement, double myLoc, double prevLoc) {
+		RoutingIndex index = getRoutingIndex();
+		if(!index.isValid()) return null;
+		int count = index.peerCount();
+		double totalSelectionRate = 0.0;
+		if(CAN_BE_OVER_SELECTED && count >= PeerNode.SELECTION_MIN_PEERS) {
+			for(int i=0;i<count;i++)
+				totalSelectionRate += index.getPeer(i).selectionRate();
+		}
+		// Our peers' peers at these locations are not worth routing towards.
+		double[] excludeLocations = new double[routedTo.size() + 2];
+		int excluded = 0;
+		excludeLocations[excluded++] = myLoc;
+		excludeLocations[excluded++] = prevLoc;
+		for(PeerNode routedToNode : routedTo)
+			excludeLocations[excluded++] = routedToNode.getLocation();
+		// Peers we have already considered, at their closest location.
+		boolean[] visited = new boolean[count];
+		PeerNode best = null;
+		double bestDistance = Double.MAX_VALUE;
+		double bestRealDistance = Double.MAX_VALUE;
+		RoutingIndex.Walk walk = index.walk(target);
+		while(walk.next()) {
+			double diff = walk.distance();
+			// Only look beyond the best for an exact tie.
+			if(diff > limit || diff > bestDistance) break;
+			int i = walk.peer();
+			if(visited[i]) continue;
+			PeerNode p = index.getPeer(i);
+			boolean direct = walk.isDirect();
+			if(!direct) {
+				// Its own location will come up later.
+				if(!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)) continue;
+				double loc = walk.location();
+				boolean isExcluded = false;
+				for(int j=0;j<excluded;j++) {
+					if(excludeLocations[j] == loc) {
+						isExcluded = true;
+						break;
+					}
+				}
+				if(isExcluded) continue;
+			}
+			visited[i] = true;
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement))
+				continue;
+			if(totalSelectionRate > 0.0 && isOverSelected(p, p.selectionRate(), totalSelectionRate))
+				continue;
+			if(entry != null && !ignoreTimeout && entry.getTimeoutTime(p, outgoingHTL, now, true) > now) {
+				if(logMINOR) Logger.minor(this, "Skipping (timed out for key): "+p.getPeer());
+				continue;
+			}
+			if(p.isRoutingBackedOff(ignoreBackoffUnder, realTime)) {
+				if(logMINOR) Logger.minor(this, "Skipping (backed off): "+p.getPeer());
+				continue;
+			}
+			double realDiff = direct ? diff : Location.distance(index.getPeerLocation(i), target);
+			if(best == null || direct || realDiff < bestRealDistance) {
+				best = p;
+				bestDistance = diff;
+				bestRealDistance = realDiff;
+				if(logMINOR)
+					Logger.minor(this, "New best: " + diff + " (" + walk.location() + " for " + p.getPeer());
+			}
+		}
+		return best;
+	}
+
+	/** @return The routing index, rebuilding it if the peers or their locations have changed. */
+	private RoutingIndex getRoutingIndex() {
+		int version = routingIndexVersion.get();
+		RoutingIndex index = routingIndex;
+		if(index != null && index.version == version) return index;
+		// If something changes while we are building it, the next caller will rebuild it.
+		index = RoutingIndex.create(connectedPeers(), version);
+		routingIndex = index;
+		return index;
+	}
+
+	/** Called when a connected peer's location, or its peers' locations, may have changed, and
+	 * when connectedPeers changes. */
+	void invalidateRoutingIndex() {
+		routingIndexVersion.incrementAndGet();
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
@@ -2044,6 +2182,7 @@ public class PeerManager {
 			}
 			myPeers = keep.toArray(new PeerNode[keep.size()]);
 			connectedPeers = keep.toArray(new PeerNode[conn.size()]);
+			invalidateRoutingIndex();
 		}
 		updatePMUserAlert();
 		notifyPeerStatusChangeListeners();
@@ -66,6 +66,7 @@ import freenet.node.NodeStats.RequestType;
 import freenet.node.NodeStats.RunningRequestsSnapshot;
 import freenet.node.OpennetManager.ConnectionType;
 import freenet.node.PeerManager.PeerStatusChangeListener;
+import freenet.support.AtomicTokenBucket;
 import freenet.support.Base64;
 import freenet.support.BooleanLastTrueTracker;
 import freenet.support.Fields;
@@ -1744,8 +1745,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.peers.updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.peers.invalidateRoutingIndex();
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2527,6 +2530,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
+					if(peers != null)
+						peers.invalidateRoutingIndex();
 				}
 			}
 		}
@@ -5409,7 +5414,50 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	
 	@Override
 	public void sentThrottledBytes(int count) {
-		node.outputThrottle.forceGrab(count);
+		AtomicTokenBucket throttle = outputThrottle;
+		if(throttle != null)
+			throttle.forceGrab(count); // Also charges the node's bucket.
+		else
+			node.outputThrottle.forceGrab(count);
+	}
+
+	/** How many times an equal share of the node's output bandwidth a single peer may use when
+	 * other peers are waiting to send. */
+	static final int OUTPUT_SHARE = 2;
+	/** The smallest per-peer output bucket, so that it can hold a full packet. */
+	static final int MIN_OUTPUT_BUCKET = 2048;
+
+	/** This peer's share of Node.outputThrottle, or null until updateOutputShare() is called. */
+	private volatile AtomicTokenBucket outputThrottle;
+
+	/**
+	 * Set this peer's share of the node's output bandwidth, from the node's limit and the number
+	 * of connected peers. Cheap if nothing has changed, so called by PacketSender on every run.
+	 */
+	void updateOutputShare(AtomicTokenBucket nodeThrottle, int connectedPeers) {
+		int peers = Math.max(connectedPeers, 1);
+		long nanosPerTick = Math.max(nodeThrottle.getNanosPerTick() * peers / OUTPUT_SHARE, nodeThrottle.getNanosPerTick());
+		long size = Math.max(Math.min(nodeThrottle.getSize() * OUTPUT_SHARE / peers, nodeThrottle.getSize()), MIN_OUTPUT_BUCKET);
+		AtomicTokenBucket throttle = outputThrottle;
+		if(throttle == null) {
+			synchronized(this) {
+				if(outputThrottle == null)
+					outputThrottle = nodeThrottle.createChild(size, nanosPerTick);
+			}
+		} else if(throttle.getNanosPerTick() != nanosPerTick || throttle.getSize() != size) {
+			throttle.changeNanosAndBucketSize(nanosPerTick, size);
+		}
+	}
+
+	/**
+	 * @return How long until this peer has enough of its share of the output bandwidth left to
+	 * send a packet of the given size, in nanoseconds. 0 if it can send now, or before
+	 * updateOutputShare() has been called.
+	 */
+	long nanosUntilOutputShare(int bytes) {
+		AtomicTokenBucket throttle = outputThrottle;
+		if(throttle == null) return 0;
+		return throttle.nanosUntil(bytes);
 	}
 	
 	@Override
@@ -785,7 +785,7 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSenderL
 			finishOpennetNoRelayInner(om);
 			return;
 		}
-		if(noderef != null && node.random.nextInt(OpennetManager.RESET_PATH_FOLDING_PROB) == 0) {
+		if(noderef != null && node.threadRandom.secure().nextInt(OpennetManager.RESET_PATH_FOLDING_PROB) == 0) {
 			
 			// Check whether it is actually the noderef of the peer.
 			// If so, we need to relay it anyway.
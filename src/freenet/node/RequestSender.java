@@ -482,39 +482,8 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 				finish(TIMED_OUT, waitingFor, false);
 			}
     		
-			// Wait for second timeout.
-    		// FIXME make this async.
-    		long deadline = System.currentTimeMillis() + searchTimeout;
-			while(true) {
-				
-				Message msg;
-				try {
-		        	int timeout = (int)(Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
-					msg = node.usm.waitFor(createMessageFilter(timeout, waitingFor), RequestSender.this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + waitingFor
-							+ " while waiting for reply on " + this);
-					waitingFor.noLongerRoutingTo(origTag, false);
-					return;
-				}
-				
-				if(msg == null) {
-					// Second timeout.
-					Logger.error(this, "Fatal timeout waiting for reply after Accepted on "+this+" from "+waitingFor);
-					waitingFor.fatalTimeout(origTag, false);
-					return;
-				}
-				
-				DO action = handleMessage(msg, noReroute, waitingFor, this);
-				
-				if(action == DO.FINISHED)
-					return;
-				else if(action == DO.NEXT_PEER) {
-					waitingFor.noLongerRoutingTo(origTag, false);
-					return; // Don't try others
-				}
-				// else if(action == DO.WAIT) continue;
-			}
+			// Wait for second timeout, without tying up a thread.
+			new SecondTimeoutWaiter(waitingFor, noReroute, this).schedule();
 		}
 
 		@Override
@@ -543,6 +512,81 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     	
     };
     
+    /** After the first timeout, the peer may still answer. Wait for its reply or the second 
+     * (fatal) timeout. We don't reroute whatever happens. */
+    private class SecondTimeoutWaiter implements SlowAsyncMessageFilterCallback {
+    	
+    	private final PeerNode waitingFor;
+    	private final boolean noReroute;
+    	/** Keeps the SSK headers and data if they arrive in separate messages. */
+    	private final MainLoopCallback waiter;
+    	private final long deadline;
+    	
+    	SecondTimeoutWaiter(PeerNode waitingFor, boolean noReroute, MainLoopCallback waiter) {
+    		this.waitingFor = waitingFor;
+    		this.noReroute = noReroute;
+    		this.waiter = waiter;
+    		deadline = System.currentTimeMillis() + waiter.searchTimeout;
+    	}
+    	
+    	void schedule() {
+    		int timeout = (int)(Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
+    		if(timeout <= 0) {
+    			onTimeout();
+    			return;
+    		}
+    		try {
+    			node.usm.addAsyncFilter(createMessageFilter(timeout, waitingFor), this, RequestSender.this);
+    		} catch (DisconnectedException e) {
+    			onDisconnect(waitingFor);
+    		}
+    	}
+
+		@Override
+		public void onMatched(Message msg) {
+			DO action = handleMessage(msg, noReroute, waitingFor, waiter);
+			
+			if(action == DO.FINISHED)
+				return;
+			else if(action == DO.NEXT_PEER) {
+				waitingFor.noLongerRoutingTo(origTag, false);
+				return; // Don't try others
+			}
+			else /*if(action == DO.WAIT)*/
+				schedule();
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public void onTimeout() {
+			// Second timeout.
+			Logger.error(this, "Fatal timeout waiting for reply after Accepted on "+RequestSender.this+" from "+waitingFor);
+			waitingFor.fatalTimeout(origTag, false);
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			Logger.normal(this, "Disconnected from " + waitingFor
+					+ " while waiting for reply on " + RequestSender.this);
+			waitingFor.noLongerRoutingTo(origTag, false);
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+    	
+    }
+    
     enum OFFER_STATUS {
     	FETCHING, // Fetching asynchronously or already fetched.
     	TWO_STAGE_TIMEOUT, // Waiting asynchronously for two stage timeout; remove the offer, but don't unlock the tag.
@@ -1366,7 +1410,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     	try {
 			block = new SSKBlock(sskData, headers, (NodeSSK)key, false);
 			node.storeShallow(block, canWriteClientCache, canWriteDatastore, false);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.threadRandom.secure().nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
 			synchronized(this) {
 				finalHeaders = headers;
@@ -1410,7 +1454,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 				finalSskData = sskData;
 			}
 			node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.threadRandom.secure().nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
 			finish(SUCCESS, next, true);
 			return true;
@@ -1446,7 +1490,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     		// store; simulations it is best to only include data from requests
     		// which go all the way i.e. inserts.
     		node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.threadRandom.secure().nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
     	} else /*if (key instanceof NodeSSK)*/ {
     		synchronized(this) {
@@ -1686,7 +1730,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
                 node.nodeStats.nodePinger.averagePingTime();
         pingTime = Math.min(pingTime, MAX_PING_TIME);
         double delay =
-                ((node.random.nextGaussian() * PINGS_STDDEV) + PINGS) * pingTime;
+                ((node.threadRandom.secure().nextGaussian() * PINGS_STDDEV) + PINGS) * pingTime;
         return Math.max((long) delay, 0L);
     }
 
@@ -1,6 +1,8 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -44,20 +46,28 @@ public class RequestTag extends UIDTag {
 	private NodeCHK key;
 
 	public RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, Node node) {
-		super(source, realTimeFlag, uid, node);
+		this(isSSK, start, source, realTimeFlag, uid, node.tracker);
+	}
+
+	RequestTag(boolean isSSK, START start, PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(source, realTimeFlag, uid, tracker);
 		this.start = start;
 		this.isSSK = isSSK;
 	}
 
 	public void setRequestSenderFinished(int status) {
+		boolean canUnlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(status == RequestSender.NOT_FINISHED) throw new IllegalArgumentException();
 			requestSenderFinishedCode = status;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(canUnlock)
+			innerUnlock(noRecordUnlock);
+		else
+			onLoadChanged(); // mustUnlock() may have reassigned to self.
 	}
 
 	public synchronized void setSender(RequestSender rs, boolean coalesced) {
@@ -192,8 +202,12 @@ public class RequestTag extends UIDTag {
 	
 	private boolean completedDownstreamTransfers;
 
-	public synchronized void completedDownstreamTransfers() {
-		this.completedDownstreamTransfers = true;
+	public void completedDownstreamTransfers() {
+		synchronized(this) {
+			if(completedDownstreamTransfers) return;
+			this.completedDownstreamTransfers = true;
+		}
+		onLoadChanged();
 	}
 
 	@Override
@@ -211,13 +225,17 @@ public class RequestTag extends UIDTag {
 		return false;
 	}
 
-	public synchronized void waitingForOpennet(PeerNode next) {
-		if(waitingForOpennet != null)
-			Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
-		this.waitingForOpennet = next.myRef;
+	public void waitingForOpennet(PeerNode next) {
+		synchronized(this) {
+			if(waitingForOpennet != null)
+				Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
+			this.waitingForOpennet = next.myRef;
+		}
+		onLoadChanged();
 	}
 
 	public void finishedWaitingForOpennet(PeerNode next) {
+		boolean canUnlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(waitingForOpennet == null) {
@@ -229,10 +247,13 @@ public class RequestTag extends UIDTag {
 				Logger.error(this, "Finished waiting for opennet on "+next+" but was waiting for "+got);
 			}
 			waitingForOpennet = null;
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(canUnlock)
+			innerUnlock(noRecordUnlock);
+		else
+			onLoadChanged();
 	}
 	
 	@Override
@@ -241,6 +262,16 @@ public class RequestTag extends UIDTag {
 			return true;
 		return super.currentlyRoutingTo(peer);
 	}
+	
+	@Override
+	synchronized Set<PeerNode> getPeersRoutingTo() {
+		Set<PeerNode> peers = super.getPeersRoutingTo();
+		PeerNode opennet = waitingForOpennet == null ? null : waitingForOpennet.get();
+		if(opennet == null || peers.contains(opennet)) return peers;
+		peers = new HashSet<PeerNode>(peers);
+		peers.add(opennet);
+		return peers;
+	}
 
 	public void handlerTransferBegins() {
 		synchronized(this) {
@@ -4,10 +4,12 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -57,6 +59,23 @@ public class RequestTracker {
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
 	
+	// Load counters. These are updated when a tag is locked or unlocked, and when its state
+	// changes, so that admission control doesn't need to scan all the running UIDs for 
+	// every request. They are indexed by category(ssk, realTimeFlag).
+	// LOCKING: Lock order is running* map, then loadLock, then the tag.
+	
+	private final Object loadLock = new Object();
+	/** All running requests. */
+	private final LoadCounter[] globalLoad;
+	/** All running requests which countAsSourceRestarted(). */
+	private final LoadCounter[] globalLoadSourceRestarted;
+	/** Requests by the peer they came from, or null if local. The second half of each array is 
+	 * for requests which countAsSourceRestarted(). */
+	private final HashMap<PeerNode, LoadCounter[]> loadFromPeer;
+	/** Requests by the peers they are currently routed to. */
+	private final HashMap<PeerNode, LoadCounter[]> loadToPeer;
+	private static final int CATEGORIES = 4;
+	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
@@ -85,6 +104,10 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
+		globalLoad = newCounters(CATEGORIES);
+		globalLoadSourceRestarted = newCounters(CATEGORIES);
+		loadFromPeer = new HashMap<PeerNode, LoadCounter[]>();
+		loadToPeer = new HashMap<PeerNode, LoadCounter[]>();
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -137,6 +160,7 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			trackLoad(tag);
 		}
 		return true;
 	}
@@ -189,8 +213,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				untrackLoad(tag);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -222,6 +248,242 @@ public class RequestTracker {
 		public int expectedTransfersIn() {
 			return expectedTransfersIn;
 		}
+		void add(CountedRequests c) {
+			total += c.total;
+			expectedTransfersOut += c.expectedTransfersOut;
+			expectedTransfersIn += c.expectedTransfersIn;
+		}
+		boolean sameAs(CountedRequests c) {
+			return total == c.total && expectedTransfersOut == c.expectedTransfersOut && 
+				expectedTransfersIn == c.expectedTransfersIn;
+		}
+		@Override
+		public String toString() {
+			return "total="+total+" out="+expectedTransfersOut+" in="+expectedTransfersIn;
+		}
+	}
+	
+	/** What a single tag adds to the load counters. Immutable. */
+	static final class TagLoad {
+		
+		/** Number of transfer counts, see index(). */
+		static final int SLOTS = 16;
+		
+		final PeerNode source;
+		final boolean sourceRestarted;
+		final Set<PeerNode> routingTo;
+		/** Expected transfers for every combination of forAccept and ignoreLocalVsRemote. 
+		 * These are linear in transfersPerInsert, so we store the constant and the multiplier
+		 * separately. */
+		private final int[] transfers;
+		
+		private TagLoad(UIDTag tag) {
+			synchronized(tag) {
+				source = tag.getSource();
+				sourceRestarted = tag.countAsSourceRestarted();
+				routingTo = tag.getPeersRoutingTo();
+				transfers = new int[SLOTS];
+				for(boolean forAccept : new boolean[] { false, true }) {
+					for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+						int i = index(forAccept, ignoreLocalVsRemote);
+						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, forAccept);
+						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, forAccept);
+						transfers[i] = in;
+						transfers[i+1] = tag.expectedTransfersIn(ignoreLocalVsRemote, 1, forAccept) - in;
+						transfers[i+2] = out;
+						transfers[i+3] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, forAccept) - out;
+					}
+				}
+			}
+		}
+		
+		/** @return The index of the transfers in, followed by transfers in per insert, 
+		 * transfers out, and transfers out per insert. */
+		static int index(boolean forAccept, boolean ignoreLocalVsRemote) {
+			return (forAccept ? 8 : 0) + (ignoreLocalVsRemote ? 4 : 0);
+		}
+		
+		boolean sameAs(TagLoad load) {
+			return source == load.source && sourceRestarted == load.sourceRestarted && 
+				routingTo.equals(load.routingTo) && Arrays.equals(transfers, load.transfers);
+		}
+	}
+	
+	/** Running totals for a group of requests. */
+	private static final class LoadCounter {
+		private int total;
+		private final int[] transfers = new int[TagLoad.SLOTS];
+		
+		void add(TagLoad load, int sign) {
+			total += sign;
+			for(int i=0;i<transfers.length;i++)
+				transfers[i] += sign * load.transfers[i];
+		}
+		
+		void addTo(CountedRequests counter, boolean forAccept, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			int i = TagLoad.index(forAccept, ignoreLocalVsRemote);
+			counter.total += total;
+			counter.expectedTransfersIn += transfers[i] + transfers[i+1] * transfersPerInsert;
+			counter.expectedTransfersOut += transfers[i+2] + transfers[i+3] * transfersPerInsert;
+		}
+	}
+	
+	private static LoadCounter[] newCounters(int count) {
+		LoadCounter[] counters = new LoadCounter[count];
+		for(int i=0;i<count;i++)
+			counters[i] = new LoadCounter();
+		return counters;
+	}
+	
+	private static int category(boolean ssk, boolean realTimeFlag) {
+		return (ssk ? 1 : 0) + (realTimeFlag ? 2 : 0);
+	}
+	
+	/** Add a newly locked tag to the load counters. Caller must hold the lock on the running* map. */
+	private void trackLoad(UIDTag tag) {
+		synchronized(loadLock) {
+			if(tag.trackedLoad != null) return;
+			tag.trackedLoad = new TagLoad(tag);
+			addLoad(tag, tag.trackedLoad, 1);
+		}
+	}
+	
+	/** Remove an unlocked tag from the load counters. Caller must hold the lock on the running* map. */
+	private void untrackLoad(UIDTag tag) {
+		synchronized(loadLock) {
+			if(tag.trackedLoad == null) return;
+			addLoad(tag, tag.trackedLoad, -1);
+			tag.trackedLoad = null;
+		}
+	}
+	
+	/** Called by a tag after its state has changed, without holding its lock. */
+	void onLoadChanged(UIDTag tag) {
+		synchronized(loadLock) {
+			TagLoad oldLoad = tag.trackedLoad;
+			if(oldLoad == null) return; // Not locked, or already unlocked.
+			TagLoad load = new TagLoad(tag);
+			if(load.sameAs(oldLoad)) return;
+			addLoad(tag, oldLoad, -1);
+			addLoad(tag, load, 1);
+			tag.trackedLoad = load;
+		}
+	}
+	
+	private void addLoad(UIDTag tag, TagLoad load, int sign) {
+		int category = category(tag.isSSK(), tag.realTimeFlag);
+		globalLoad[category].add(load, sign);
+		if(load.sourceRestarted)
+			globalLoadSourceRestarted[category].add(load, sign);
+		LoadCounter[] from = loadFromPeer.get(load.source);
+		if(from == null) {
+			from = newCounters(CATEGORIES * 2);
+			loadFromPeer.put(load.source, from);
+		}
+		from[category].add(load, sign);
+		if(load.sourceRestarted)
+			from[CATEGORIES + category].add(load, sign);
+		if(from[category].total == 0)
+			removeIfEmpty(loadFromPeer, load.source, from);
+		for(PeerNode peer : load.routingTo) {
+			LoadCounter[] to = loadToPeer.get(peer);
+			if(to == null) {
+				to = newCounters(CATEGORIES);
+				loadToPeer.put(peer, to);
+			}
+			to[category].add(load, sign);
+			if(to[category].total == 0)
+				removeIfEmpty(loadToPeer, peer, to);
+		}
+	}
+	
+	private static void removeIfEmpty(HashMap<PeerNode, LoadCounter[]> map, PeerNode peer, LoadCounter[] counters) {
+		for(LoadCounter counter : counters)
+			if(counter.total != 0) return;
+		map.remove(peer);
+	}
+	
+	/** Count all running requests, inserts and offer replies, local and remote, for one type of 
+	 * key. Equivalent to calling countRequests() for each combination of local, insert and offer,
+	 * but constant time, as it uses counters which are kept up to date as requests start, change
+	 * state and finish.
+	 * @param ssk If true, count SSKs, if false, count CHKs.
+	 * @param realTimeFlag If true, count real-time requests, if false, count bulk requests. 
+	 * @param transfersPerInsert Assume that any insert will cause this many outgoing transfers.
+	 * @param ignoreLocalVsRemote If true, pretend that the request is remote even if it's local.
+	 * @param counter Transfer counts for all requests will be added to this counter object.
+	 * @param counterSourceRestarted Transfer counts for requests whose source restarted will be
+	 * added to this counter object. Can be null. */
+	public void countAllRequests(boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
+		int category = category(ssk, realTimeFlag);
+		CountedRequests all = new CountedRequests();
+		CountedRequests restarted = new CountedRequests();
+		synchronized(loadLock) {
+			globalLoad[category].addTo(all, true, ignoreLocalVsRemote, transfersPerInsert);
+			globalLoadSourceRestarted[category].addTo(restarted, true, ignoreLocalVsRemote, transfersPerInsert);
+		}
+		if(logDEBUG) {
+			// Cross-check against a full scan. Differences can be transient, as tags notify us
+			// of changes after they have happened.
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedRestarted = new CountedRequests();
+			for(boolean local : new boolean[] { false, true }) {
+				countRequests(local, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+				countRequests(local, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+			}
+			countRequests(false, ssk, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+			if(!(scanned.sameAs(all) && scannedRestarted.sameAs(restarted)))
+				Logger.normal(this, "Load counters differ from scan for ssk="+ssk+" realTime="+realTimeFlag+": "+all+" restarted "+restarted+" but scanned "+scanned+" restarted "+scannedRestarted);
+		}
+		counter.add(all);
+		if(counterSourceRestarted != null)
+			counterSourceRestarted.add(restarted);
+	}
+	
+	/** Count running requests, inserts and offer replies, local and remote, for one type of key,
+	 * either accepted from a peer or routed to it. Equivalent to calling countRequests() for each
+	 * combination of local, insert and offer, but constant time.
+	 * @param peer The peer the requests were accepted from or routed to.
+	 * @param requestsToNode If true, count requests sent to the node and currently running. 
+	 * If false, count requests originated by the node.
+	 * @param ssk If true, count SSKs, if false, count CHKs.
+	 * @param realTimeFlag If true, count real-time requests, if false, count bulk requests. 
+	 * @param transfersPerInsert Assume that any insert will cause this many outgoing transfers.
+	 * @param ignoreLocalVsRemote If true, pretend that the request is remote even if it's local.
+	 * @param counter Transfer counts for all requests will be added to this counter object.
+	 * @param counterSR Transfer counts for requests whose source restarted will be added to this
+	 * counter object. Can be null, and ignored if requestsToNode. */
+	public void countAllRequests(PeerNode peer, boolean requestsToNode, boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		int category = category(ssk, realTimeFlag);
+		CountedRequests all = new CountedRequests();
+		CountedRequests restarted = new CountedRequests();
+		synchronized(loadLock) {
+			if(requestsToNode) {
+				LoadCounter[] to = loadToPeer.get(peer);
+				if(to != null)
+					to[category].addTo(all, false, ignoreLocalVsRemote, transfersPerInsert);
+			} else {
+				LoadCounter[] from = loadFromPeer.get(peer);
+				if(from != null) {
+					from[category].addTo(all, true, ignoreLocalVsRemote, transfersPerInsert);
+					from[CATEGORIES + category].addTo(restarted, true, ignoreLocalVsRemote, transfersPerInsert);
+				}
+			}
+		}
+		if(logDEBUG) {
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedRestarted = new CountedRequests();
+			for(boolean local : new boolean[] { false, true }) {
+				countRequests(peer, requestsToNode, local, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+				countRequests(peer, requestsToNode, local, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+			}
+			countRequests(peer, requestsToNode, false, ssk, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedRestarted);
+			if(!(scanned.sameAs(all) && (requestsToNode || scannedRestarted.sameAs(restarted))))
+				Logger.normal(this, "Load counters differ from scan for "+peer+" to="+requestsToNode+" ssk="+ssk+" realTime="+realTimeFlag+": "+all+" restarted "+restarted+" but scanned "+scanned+" restarted "+scannedRestarted);
+		}
+		counter.add(all);
+		if(counterSR != null && !requestsToNode)
+			counterSR.add(restarted);
 	}
 
 	/** Count all requests running globally which match particular parameters.
@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Snapshot of the locations we can route to: each connected peer's location, and the locations
+ * of its peers (FOAF), sorted around the keyspace. PeerManager rebuilds it when peers connect or
+ * disconnect or their locations change. Lets closerPeer() visit the peers in order of distance
+ * from the target, starting from the closest, rather than looking at every location of every
+ * peer.
+ * <p>
+ * Immutable. Backoff, failure table timeouts etc change far too often to be included here, so
+ * the caller checks them as it comes to each peer.
+ * </p>
+ */
+final class RoutingIndex {
+
+	/** The peers, in the order given to the constructor. */
+	private final PeerNode[] peers;
+	/** Each peer's own location when the index was built. */
+	private final double[] peerLocations;
+	/** All the locations, sorted. */
+	private final double[] locations;
+	/** Index into peers for each location. */
+	private final int[] owners;
+	/** Whether each location is the peer's own location, rather than one of its peers'. */
+	private final boolean[] direct;
+	/** If any peer had an invalid location, the index can't be used. */
+	private final boolean valid;
+	/** Used by PeerManager to tell whether the index is out of date. */
+	final int version;
+
+	/** Build an index from the peers' current locations. */
+	static RoutingIndex create(PeerNode[] peers, int version) {
+		double[] peerLocations = new double[peers.length];
+		double[][] foaf = new double[peers.length][];
+		for(int i=0;i<peers.length;i++) {
+			peerLocations[i] = peers[i].getLocation();
+			foaf[i] = peers[i].getPeersLocationArray();
+		}
+		return new RoutingIndex(peers, peerLocations, foaf, version);
+	}
+
+	/**
+	 * @param peerLocations Each peer's location.
+	 * @param foaf The locations of each peer's peers. Elements may be null.
+	 */
+	RoutingIndex(PeerNode[] peers, double[] peerLocations, double[][] foaf, int version) {
+		this.peers = peers;
+		this.peerLocations = peerLocations;
+		this.version = version;
+		int count = 0;
+		boolean allValid = true;
+		for(int i=0;i<peers.length;i++) {
+			if(!Location.isValid(peerLocations[i])) allValid = false;
+			count += 1 + (foaf[i] == null ? 0 : foaf[i].length);
+		}
+		valid = allValid;
+		// Sort the entries' indexes, so the owner and kind stay with each location.
+		final double[] locs = new double[count];
+		int[] peer = new int[count];
+		boolean[] isDirect = new boolean[count];
+		int x = 0;
+		for(int i=0;i<peers.length;i++) {
+			locs[x] = peerLocations[i];
+			peer[x] = i;
+			isDirect[x] = true;
+			x++;
+			if(foaf[i] == null) continue;
+			for(double l : foaf[i]) {
+				locs[x] = l;
+				peer[x] = i;
+				x++;
+			}
+		}
+		Integer[] order = new Integer[count];
+		for(int i=0;i<count;i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(locs[a], locs[b]);
+			}
+		});
+		locations = new double[count];
+		owners = new int[count];
+		direct = new boolean[count];
+		for(int i=0;i<count;i++) {
+			locations[i] = locs[order[i]];
+			owners[i] = peer[order[i]];
+			direct[i] = isDirect[order[i]];
+		}
+	}
+
+	/** @return False if some peer had an invalid location, so closerPeer() must check them all. */
+	boolean isValid() {
+		return valid;
+	}
+
+	int peerCount() {
+		return peers.length;
+	}
+
+	PeerNode getPeer(int i) {
+		return peers[i];
+	}
+
+	double getPeerLocation(int i) {
+		return peerLocations[i];
+	}
+
+	/** @return A Walk visiting every location in order of distance from the target. */
+	Walk walk(double target) {
+		return new Walk(target);
+	}
+
+	/** Walks outwards from the target in both directions around the keyspace. Not thread-safe. */
+	final class Walk {
+
+		private final double target;
+		private int left;
+		private int right;
+		private int remaining;
+		private int current = -1;
+		private double distance;
+
+		private Walk(double target) {
+			this.target = target;
+			int n = locations.length;
+			remaining = n;
+			if(n == 0) return;
+			int pos = Arrays.binarySearch(locations, target);
+			if(pos < 0) pos = -pos - 1;
+			right = pos % n;
+			left = (pos + n - 1) % n;
+		}
+
+		/** Move to the next closest location. @return False if there are none left. */
+		boolean next() {
+			if(remaining == 0) return false;
+			remaining--;
+			int n = locations.length;
+			double leftDistance = Location.distance(locations[left], target);
+			double rightDistance = Location.distance(locations[right], target);
+			if(rightDistance <= leftDistance) {
+				current = right;
+				distance = rightDistance;
+				right = (right + 1) % n;
+			} else {
+				current = left;
+				distance = leftDistance;
+				left = (left + n - 1) % n;
+			}
+			return true;
+		}
+
+		/** @return The distance from the current location to the target. */
+		double distance() {
+			return distance;
+		}
+
+		double location() {
+			return locations[current];
+		}
+
+		/** @return Index of the peer the current location belongs to. */
+		int peer() {
+			return owners[current];
+		}
+
+		/** @return True if the current location is the peer's own, false if it is one of its peers'. */
+		boolean isDirect() {
+			return direct[current];
+		}
+	}
+
+}
@@ -3,7 +3,9 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
@@ -57,12 +59,20 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** Our contribution to the RequestTracker's load counters, or null if we are not locked. 
+	 * LOCKING: Protected by the RequestTracker, not by this. */
+	RequestTracker.TagLoad trackedLoad;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
+		this(source, realTimeFlag, uid, node.tracker);
+	}
+	
+	UIDTag(PeerNode source, boolean realTimeFlag, long uid, RequestTracker tracker) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
 		wasLocal = source == null;
 		this.realTimeFlag = realTimeFlag;
-		this.tracker = node.tracker;
+		this.tracker = tracker;
 		this.uid = uid;
 		if(logMINOR)
 			Logger.minor(this, "Created "+this);
@@ -86,18 +96,23 @@ public abstract class UIDTag {
 	 * @return True if we were already routing to (or fetching an offered key 
 	 * from, depending on offeredKey) the peer.
 	 */
-	public synchronized boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
-		if(logMINOR)
-			Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
-		if(routedTo == null) routedTo = new HashSet<PeerNode>();
-		routedTo.add(peer);
-		if(offeredKey) {
-			if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<PeerNode>();
-			return fetchingOfferedKeyFrom.add(peer);
-		} else {
-			if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<PeerNode>();
-			return currentlyRoutingTo.add(peer);
+	public boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
+		boolean added;
+		synchronized(this) {
+			if(logMINOR)
+				Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
+			if(routedTo == null) routedTo = new HashSet<PeerNode>();
+			routedTo.add(peer);
+			if(offeredKey) {
+				if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<PeerNode>();
+				added = fetchingOfferedKeyFrom.add(peer);
+			} else {
+				if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<PeerNode>();
+				added = currentlyRoutingTo.add(peer);
+			}
 		}
+		if(added) onLoadChanged();
+		return added;
 	}
 
 	public synchronized boolean hasRoutedTo(PeerNode peer) {
@@ -129,6 +144,7 @@ public abstract class UIDTag {
 	 * @param next The node we are no longer fetching an offered key from.
 	 */
 	public void removeFetchingOfferedKeyFrom(PeerNode next) {
+		boolean canUnlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(fetchingOfferedKeyFrom == null) return;
@@ -136,9 +152,13 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			onLoadChanged();
+			return;
+		}
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
@@ -161,6 +181,7 @@ public abstract class UIDTag {
 		if(logMINOR) {
 			Logger.minor(this, "No longer routing to "+next+" on "+this, new Exception("debug"));
 		}
+		boolean canUnlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(currentlyRoutingTo == null) {
@@ -174,9 +195,13 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			canUnlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!canUnlock) {
+			onLoadChanged();
+			return;
+		}
 		if(logMINOR) {
 			Logger.minor(this, "Unlocking "+this);
 		}
@@ -186,6 +211,24 @@ public abstract class UIDTag {
 	protected void innerUnlock(boolean noRecordUnlock) {
 		tracker.unlockUID(this, false, noRecordUnlock);
 	}
+	
+	/** Must be called after any change which might affect what getLoad() would return, 
+	 * after releasing the lock on the tag, so that the tracker's load counters are 
+	 * updated. Harmless if the tag is not locked. */
+	protected void onLoadChanged() {
+		tracker.onLoadChanged(this);
+	}
+	
+	/** @return The peers we are currently routing to or fetching an offered key from. */
+	synchronized Set<PeerNode> getPeersRoutingTo() {
+		if((currentlyRoutingTo == null || currentlyRoutingTo.isEmpty()) && 
+				(fetchingOfferedKeyFrom == null || fetchingOfferedKeyFrom.isEmpty()))
+			return Collections.emptySet();
+		HashSet<PeerNode> peers = new HashSet<PeerNode>();
+		if(currentlyRoutingTo != null) peers.addAll(currentlyRoutingTo);
+		if(fetchingOfferedKeyFrom != null) peers.addAll(fetchingOfferedKeyFrom);
+		return peers;
+	}
 
 	public void postUnlock() {
 		PeerNode[] peers;
@@ -220,8 +263,12 @@ public abstract class UIDTag {
 	 */
 	public abstract int expectedTransfersOut(boolean ignoreLocalVsRemote, int outwardTransfersPerInsert, boolean forAccept);
 	
-	public synchronized void setNotRoutedOnwards() {
-		this.notRoutedOnwards = true;
+	public void setNotRoutedOnwards() {
+		synchronized(this) {
+			if(notRoutedOnwards) return;
+			this.notRoutedOnwards = true;
+		}
+		onLoadChanged();
 	}
 
 	private boolean reassigned;
@@ -235,9 +282,19 @@ public abstract class UIDTag {
 	}
 
 	/** Reassign the tag to us rather than its original sender. */
-	public synchronized void reassignToSelf() {
-		if(wasLocal) return;
+	public void reassignToSelf() {
+		synchronized(this) {
+			if(!innerReassignToSelf()) return;
+		}
+		onLoadChanged();
+	}
+	
+	/** @return True if the tag was not already reassigned. Caller must call onLoadChanged() 
+	 * after releasing the lock. */
+	private synchronized boolean innerReassignToSelf() {
+		if(wasLocal || reassigned) return false;
 		reassigned = true;
+		return true;
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -286,7 +343,7 @@ public abstract class UIDTag {
 					else
 						Logger.error(this, "Unlocked handler but still routing to "+currentlyRoutingTo+" yet not reassigned on "+this, new Exception("debug"));
 				} else
-					reassignToSelf();
+					innerReassignToSelf();
 			}
 			return false;
 		}
@@ -307,7 +364,7 @@ public abstract class UIDTag {
 					// Fork succeeds can't happen for fetch-offered-keys.
 					Logger.error(this, "Unlocked handler but still fetching offered keys from "+fetchingOfferedKeyFrom+" yet not reassigned on "+this, new Exception("debug"));
 				else
-					reassignToSelf();
+					innerReassignToSelf();
 			}
 			return false;
 		}
@@ -337,6 +394,7 @@ public abstract class UIDTag {
 			innerUnlock(noRecordUnlock);
 		else {
 			Logger.normal(this, "Cannot unlock yet in unlockHandler, still sending requests");
+			onLoadChanged();
 		}
 	}
 
@@ -401,8 +459,12 @@ public abstract class UIDTag {
 		}
 	}
 
-	public synchronized void setAccepted() {
-		accepted = true;
+	public void setAccepted() {
+		synchronized(this) {
+			if(accepted) return;
+			accepted = true;
+		}
+		onLoadChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -411,13 +473,21 @@ public abstract class UIDTag {
 	 * but can't terminate it yet. We will terminate the request if we have to
 	 * reroute it, and we count it towards the peer's limit, but we don't stop
 	 * messages to the request source. */
-	public synchronized void timedOutToHandlerButContinued() {
-		timedOutButContinued = true;
+	public void timedOutToHandlerButContinued() {
+		synchronized(this) {
+			if(timedOutButContinued) return;
+			timedOutButContinued = true;
+		}
+		onLoadChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
-	public synchronized void onRestartOrDisconnectSource() {
-		sourceRestarted = true;
+	public void onRestartOrDisconnectSource() {
+		synchronized(this) {
+			if(sourceRestarted) return;
+			sourceRestarted = true;
+		}
+		onLoadChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
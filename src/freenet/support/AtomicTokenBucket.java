@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket which doesn't lock, for limiting output bandwidth. Replaces TokenBucket, whose
+ * monitor is taken for every packet sent by every thread.
+ * <p>
+ * Rather than a balance and the time of the last tick, we keep a single value, the time at which
+ * the bucket was (or will be) empty. The balance is the number of ticks since then, capped at the
+ * bucket size; it is negative if tokens have been forcibly grabbed faster than they are added.
+ * Grabbing tokens moves that time forward, with a compare and set. Uses System.nanoTime(), so it
+ * doesn't care about the wall clock going backwards.
+ * </p>
+ * <p>
+ * A bucket can have children, e.g. one per peer, for a share of its bandwidth. Tokens taken from a
+ * child are also taken from its parent, so the children together never exceed the parent. A
+ * child's debt is limited to its size, so that a peer which was allowed to use more than its
+ * share while nobody else needed it isn't blocked for long afterwards.
+ * </p>
+ */
+public class AtomicTokenBucket {
+
+	/** The rate and size, replaced as a whole when they change. */
+	private static final class Params {
+		final long nanosPerTick;
+		final long max;
+
+		Params(long nanosPerTick, long max) {
+			if(nanosPerTick <= 0) throw new IllegalArgumentException("Bad nanos per tick: "+nanosPerTick);
+			if(max <= 0) throw new IllegalArgumentException("Bad bucket size: "+max);
+			this.nanosPerTick = nanosPerTick;
+			this.max = max;
+		}
+	}
+
+	private volatile Params params;
+	/** When the bucket was empty, in System.nanoTime() terms. Always read before params. */
+	private final AtomicLong emptyAt;
+	/** Also charged for everything taken from this bucket, or null. */
+	private final AtomicTokenBucket parent;
+
+	/**
+	 * @param max The maximum size of the bucket, in tokens.
+	 * @param nanosPerTick The number of nanoseconds between each token being added.
+	 * @param initialValue The number of tokens to start with.
+	 */
+	public AtomicTokenBucket(long max, long nanosPerTick, long initialValue) {
+		this(null, max, nanosPerTick, initialValue);
+	}
+
+	private AtomicTokenBucket(AtomicTokenBucket parent, long max, long nanosPerTick, long initialValue) {
+		this.parent = parent;
+		Params p = new Params(nanosPerTick, max);
+		if(initialValue > max) {
+			Logger.error(this, "initial value ("+initialValue+") > max ("+max+")", new Exception("error"));
+			initialValue = max;
+		}
+		params = p;
+		emptyAt = new AtomicLong(System.nanoTime() - initialValue * nanosPerTick);
+	}
+
+	/**
+	 * Create a bucket for part of the traffic limited by this one. It starts full.
+	 * @param max The maximum size of the child bucket, in tokens.
+	 * @param nanosPerTick The number of nanoseconds between each token being added to it.
+	 */
+	public AtomicTokenBucket createChild(long max, long nanosPerTick) {
+		return new AtomicTokenBucket(this, max, nanosPerTick, max);
+	}
+
+	/** @return The time the bucket was empty, no earlier than it would have been if it was full. */
+	private static long clip(long empty, long now, Params p) {
+		return Math.max(empty, now - p.max * p.nanosPerTick);
+	}
+
+	/** Divide rounding down, so a fraction of a token in debt counts as a whole token. */
+	private static long balance(long empty, long now, Params p) {
+		long elapsed = now - empty;
+		if(elapsed >= 0) return elapsed / p.nanosPerTick;
+		return -((-elapsed + p.nanosPerTick - 1) / p.nanosPerTick);
+	}
+
+	/**
+	 * Either grab a bunch of tokens, or don't. Never block.
+	 * @param tokens The number of tokens to grab.
+	 * @return True if we could acquire the tokens, from this bucket and its parent.
+	 */
+	public boolean instantGrab(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		while(true) {
+			long empty = emptyAt.get();
+			Params p = params;
+			long now = System.nanoTime();
+			long clipped = clip(empty, now, p);
+			long newEmpty = clipped + tokens * p.nanosPerTick;
+			if(newEmpty > now) return false;
+			if(emptyAt.compareAndSet(empty, newEmpty)) break;
+		}
+		if(parent != null && !parent.instantGrab(tokens)) {
+			recycleOwn(tokens);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove tokens, without blocking, even if it causes the balance to go negative.
+	 * @param tokens The number of tokens to remove, from this bucket and its parent.
+	 */
+	public void forceGrab(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		while(true) {
+			long empty = emptyAt.get();
+			Params p = params;
+			long now = System.nanoTime();
+			long newEmpty = clip(empty, now, p) + tokens * p.nanosPerTick;
+			if(parent != null)
+				newEmpty = Math.min(newEmpty, now + p.max * p.nanosPerTick);
+			if(emptyAt.compareAndSet(empty, newEmpty)) break;
+		}
+		if(parent != null) parent.forceGrab(tokens);
+	}
+
+	/**
+	 * Grab some tokens, waiting until the balance of this bucket and its parent is no longer
+	 * negative.
+	 * @param tokens The number of tokens to grab.
+	 */
+	public void blockingGrab(long tokens) throws InterruptedException {
+		forceGrab(tokens);
+		while(true) {
+			long wait = 0;
+			for(AtomicTokenBucket b = this; b != null; b = b.parent)
+				wait = Math.max(wait, b.emptyAt.get() - System.nanoTime());
+			if(wait <= 0) return;
+			NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/** Put back tokens which were grabbed but not used. */
+	public void recycle(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't recycle negative tokens: "+tokens);
+		recycleOwn(tokens);
+		if(parent != null) parent.recycle(tokens);
+	}
+
+	private void recycleOwn(long tokens) {
+		while(true) {
+			long empty = emptyAt.get();
+			Params p = params;
+			long now = System.nanoTime();
+			long newEmpty = clip(empty - tokens * p.nanosPerTick, now, p);
+			if(emptyAt.compareAndSet(empty, newEmpty)) return;
+		}
+	}
+
+	/**
+	 * Get the current number of available tokens in this bucket, not counting the parent's.
+	 * Negative if we are in debt.
+	 */
+	public long getCount() {
+		long empty = emptyAt.get();
+		Params p = params;
+		long now = System.nanoTime();
+		return balance(clip(empty, now, p), now, p);
+	}
+
+	/**
+	 * Change the rate and the size of the bucket, keeping the current balance (clipped to the new
+	 * size).
+	 */
+	public void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
+		Params p = new Params(nanosPerTick, newMax);
+		Params old;
+		synchronized(this) {
+			// Only so that two changes at once don't mix their parameters.
+			old = params;
+			// Set this first, so that a grab which read the old parameters can't overwrite the
+			// rebased time: it read emptyAt before we changed it, so its CAS will fail.
+			params = p;
+			while(true) {
+				long empty = emptyAt.get();
+				long now = System.nanoTime();
+				long balance = Math.min(balance(clip(empty, now, old), now, old), newMax);
+				if(emptyAt.compareAndSet(empty, now - balance * nanosPerTick)) return;
+			}
+		}
+	}
+
+	/** @return How long until this bucket, not counting the parent, has the given number of
+	 * tokens, in nanoseconds. */
+	public long nanosUntil(long tokens) {
+		long empty = emptyAt.get();
+		Params p = params;
+		long now = System.nanoTime();
+		return Math.max(0, clip(empty, now, p) + tokens * p.nanosPerTick - now);
+	}
+
+	public long getNanosPerTick() {
+		return params.nanosPerTick;
+	}
+
+	public long getSize() {
+		return params.max;
+	}
+
+	/** @return The number of tokens added per second. */
+	public long getRate() {
+		return SECONDS.toNanos(1) / params.nanosPerTick;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": "+getCount()+" of "+getSize()+" tokens, "+getRate()+"/sec";
+	}
+
+}
@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -14,10 +15,17 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Deque;
@@ -25,7 +33,7 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -109,23 +117,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	/** Wake up the writer thread when there are more bytes than this waiting. */
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Logging threads add to the buffer without taking a lock. If it is full, the line is dropped
+	 * and the writer thread says how many it has lost.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final LogBuffer list;
+	private volatile Thread writerThread;
+	/** For waiting for the writer thread to finish when closing. */
+	private final Object closedSync = new Object();
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +151,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
+		list.setMaxBytes(len);
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -238,7 +243,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	/** The writer thread waits no longer than this, since the CloserThread might be waiting for closedFinished. */
+	private static final long MAX_WRITER_WAIT = 500;
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -298,11 +305,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			// When we must flush what we have written, or -1 if we have written nothing since.
+			long flushAt = -1;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -322,66 +326,35 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 						}
 					}
 					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
+					long dropped = list.takeDroppedLines();
+					if(dropped != 0) {
+						// Where the lost lines would have been, more or less.
+						o = ("GRRR: ERROR: Logging too fast, chopped " + dropped + " entries, " + list.takeDroppedBytes()
+								+ " bytes, " + list.bytes() + " bytes in memory\n").getBytes(ENCODING);
+					} else {
 						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
-						}
 					}
-					if(timeoutFlush || died) {
-						// Flush to disk 
-						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+					if(o == null) {
+						if(closed && list.isEmpty()) {
+							died = true;
+						} else if(flushAt != -1 && thisTime >= flushAt) {
+							// Flush to disk 
+							myWrite(logStream, null);
+							if(altLogStream != null)
+								myWrite(altLogStream, null);
+							flushAt = -1;
+						} else {
+							// Wait until there is enough to be worth writing, or it's time to flush.
+							long wait = MAX_WRITER_WAIT;
+							if(flushAt != -1)
+								wait = Math.min(wait, flushAt - thisTime);
+							LockSupport.parkNanos(this, MILLISECONDS.toNanos(wait));
+						}
 					}
 					if(died) {
+						myWrite(logStream, null);
+						if(altLogStream != null)
+							myWrite(altLogStream, null);
 						try {
 							logStream.close();
 						} catch (IOException e) {
@@ -394,9 +367,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closedSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closedSync.notifyAll();
 						}
 						return;
 					}
@@ -404,6 +377,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					myWrite(logStream,  o);
 			        if(altLogStream != null)
 			        	myWrite(altLogStream, o);
+					if(flushAt == -1)
+						flushAt = thisTime + flushTime;
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -538,7 +513,93 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** The last date formatted, since many lines are logged in the same millisecond. */
+	private static final class FormattedDate {
+		final long time;
+		final String formatted;
+
+		FormattedDate(long time, String formatted) {
+			this.time = time;
+			this.formatted = formatted;
+		}
+	}
+
+	private volatile FormattedDate lastDate = new FormattedDate(Long.MIN_VALUE, null);
+
+	/**
+	 * Per-thread state for turning a log call into bytes, so that logging threads don't share
+	 * anything but the buffer. Reused for every line logged by the thread.
+	 */
+	private final class LineFormatter {
+		/** Don't keep buffers this big after logging a huge stack trace. */
+		private static final int MAX_KEPT_SIZE = 64 * 1024;
+
+		final DateFormat dateFormat = (DateFormat) df.clone();
+		final Date date = new Date();
+		final CharsetEncoder encoder = Charset.forName(ENCODING).newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		/** Set while formatting a line, in case formatting it logs something else. */
+		boolean inUse;
+		StringBuilder sb = new StringBuilder(1024);
+		char[] chars = new char[1024];
+		ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+		String formatDate(long now) {
+			FormattedDate last = lastDate;
+			if(last.time == now) return last.formatted;
+			date.setTime(now);
+			String formatted = dateFormat.format(date);
+			lastDate = new FormattedDate(now, formatted);
+			return formatted;
+		}
+
+		/** Encode the line, leaving the buffers ready for the next one. */
+		byte[] encode() {
+			int length = sb.length();
+			if(chars.length < length)
+				chars = new char[Math.max(length, chars.length * 2)];
+			sb.getChars(0, length, chars, 0);
+			CharBuffer in = CharBuffer.wrap(chars, 0, length);
+			encoder.reset();
+			bytes.clear();
+			while(true) {
+				CoderResult result = encoder.encode(in, bytes, true);
+				if(result.isOverflow()) {
+					grow();
+					continue;
+				}
+				result = encoder.flush(bytes);
+				if(result.isOverflow()) {
+					grow();
+					continue;
+				}
+				break;
+			}
+			byte[] line = Arrays.copyOf(bytes.array(), bytes.position());
+			if(sb.capacity() > MAX_KEPT_SIZE) {
+				sb = new StringBuilder(1024);
+				chars = new char[1024];
+				bytes = ByteBuffer.allocate(1024);
+			} else {
+				sb.setLength(0);
+			}
+			return line;
+		}
+
+		private void grow() {
+			ByteBuffer bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+			bytes.flip();
+			bigger.put(bytes);
+			bytes = bigger;
+		}
+	}
+
+	private final ThreadLocal<LineFormatter> formatters = new ThreadLocal<LineFormatter>() {
+		@Override
+		protected LineFormatter initialValue() {
+			return new LineFormatter();
+		}
+	};
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -806,6 +867,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -854,7 +916,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new LogBuffer(MAX_LIST_SIZE, MAX_LIST_BYTES);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -924,7 +986,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		LineFormatter formatter = formatters.get();
+		if(formatter.inUse)
+			formatter = new LineFormatter();
+		formatter.inUse = true;
+		try {
+			log(formatter, o, c, msg, e, priority);
+		} finally {
+			formatter.inUse = false;
+		}
+	}
+
+	private void log(LineFormatter formatter, Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
+		StringBuilder sb = formatter.sb;
+		sb.setLength(0);
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,11 +1008,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					sb.append(formatter.formatDate(System.currentTimeMillis()));
 					break;
 				case CLASS :
 					sb.append(c == null ? "<none>" : c.getName());
@@ -988,70 +1059,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			else break;
 		}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
+		offer(formatter.encode());
 	}
 
-	/** Memory allocation overhead (estimated through experimentation with bsh) */
-	private static final int LINE_OVERHEAD = 60;
-	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
+		offer(b);
+	}
+
+	private void offer(byte[] b) {
+		long before = list.offer(b);
+		if(before < 0) return;
+		long threshold = LIST_WRITE_THRESHOLD;
+		if(before <= threshold && before + b.length + LogBuffer.LINE_OVERHEAD > threshold) {
+			// Enough to be worth writing. Otherwise the writer will get to it within MAX_WRITER_WAIT.
+			Thread t = writerThread;
+			if(t != null) LockSupport.unpark(t);
 		}
 	}
 
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return list.bytes();
 	}
 
 	public static int numberOf(char c) {
@@ -1083,14 +1110,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			closed = true;
+			Thread t = writerThread;
+			if(t != null) LockSupport.unpark(t);
+			synchronized(closedSync) {
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closedSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1219,7 +1248,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
 	}
 }
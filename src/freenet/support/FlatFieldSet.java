@@ -0,0 +1,608 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import freenet.node.FSParseException;
+
+/**
+ * A read-only SimpleFieldSet, kept as the bytes it was read from plus an index of where each key
+ * and value is. Reading a message creates no Strings and no maps: keys are compared as bytes, a
+ * value is only decoded when it is asked for, and numbers are parsed straight from the bytes.
+ * Keys are found by binary search over the fields sorted by key, so a lookup takes O(log n)
+ * comparisons whatever keys the sender chooses. Subsets are views of the same buffer. It can't change once read, so reads aren't synchronized.
+ * Use toSimpleFieldSet() to change it, or to pass it to code which takes a SimpleFieldSet.
+ *
+ * The format is the same as SimpleFieldSet's: optional "# header" lines, then key=value lines,
+ * where "key==value" means the value is Base64 if allowed, and finally the end marker, the first
+ * line without a "=". As with SimpleFieldSet, keys are trimmed, and if multiple values are allowed
+ * then repeated keys have their values joined with ";".
+ */
+public final class FlatFieldSet {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Set on the value length if the value was Base64. */
+	private static final int BASE64 = 0x80000000;
+	private static final int FIELD_SIZE = 4;
+	private static final int READ_BLOCK_SIZE = 1024;
+
+	private final byte[] buf;
+	/** For each field: key offset, key length, value offset, value length (or'ed with BASE64).
+	 * For a Base64 value, the offset is of the second "=", so we can write it back as it was. */
+	private final int[] index;
+	private final int count;
+	/** Decoded values, by field. Filled in on demand, or when parsing for Base64. */
+	private final String[] decoded;
+	/** The field numbers, sorted by key, and fields with the same key in the order they were
+	 * read. Only the first count are used. */
+	private final int[] sorted;
+	/** The next field with the same key, or -1. Null if there are no repeated keys. */
+	private int[] next;
+	/** True if an earlier field has the same key. Null if there are no repeated keys. */
+	private boolean[] repeated;
+	private final String[] header;
+	private final String endMarker;
+
+	private FlatFieldSet(byte[] buf, int[] index, int count, String[] decoded, String[] header, String endMarker, boolean allowMultiple) {
+		this.buf = buf;
+		this.header = header;
+		this.endMarker = endMarker;
+		int[] sorted = sort(buf, index, count);
+		if(!allowMultiple) {
+			// Drop repeated keys, keeping the first, so size() is right.
+			boolean[] drop = null;
+			for(int i=1;i<count;i++) {
+				if(compareKeys(buf, index, sorted[i-1], sorted[i]) != 0) continue;
+				if(drop == null) drop = new boolean[count];
+				drop[sorted[i]] = true;
+			}
+			if(drop != null) {
+				int[] renumbered = new int[count];
+				int kept = 0;
+				for(int field=0;field<count;field++) {
+					if(drop[field]) continue;
+					if(kept != field) {
+						System.arraycopy(index, field * FIELD_SIZE, index, kept * FIELD_SIZE, FIELD_SIZE);
+						decoded[kept] = decoded[field];
+						decoded[field] = null;
+					}
+					renumbered[field] = kept++;
+				}
+				int j = 0;
+				for(int i=0;i<count;i++)
+					if(!drop[sorted[i]]) sorted[j++] = renumbered[sorted[i]];
+				count = kept;
+			}
+		} else {
+			for(int i=1;i<count;i++) {
+				if(compareKeys(buf, index, sorted[i-1], sorted[i]) != 0) continue;
+				if(next == null) {
+					next = new int[count];
+					Arrays.fill(next, -1);
+					repeated = new boolean[count];
+				}
+				next[sorted[i-1]] = sorted[i];
+				repeated[sorted[i]] = true;
+			}
+		}
+		this.index = index;
+		this.count = count;
+		this.decoded = decoded;
+		this.sorted = sorted;
+	}
+
+	/**
+	 * Read a field set from a stream, up to and including the end marker. Doesn't read any
+	 * further, so a message can be followed by data. Reads in blocks if the stream supports
+	 * mark(), otherwise a byte at a time, so pass a buffered stream.
+	 * @param maxLineLength The longest line allowed, in bytes.
+	 * @param allowMultiple If true, repeated keys have their values joined, otherwise all but the
+	 * first are ignored.
+	 * @param allowBase64 If true, "key==value" means the value is Base64.
+	 * @throws EOFException If the stream ends before the first line.
+	 * @throws IOException If reading fails, a line is too long, or a Base64 value is invalid.
+	 */
+	public static FlatFieldSet readFrom(InputStream is, int maxLineLength, boolean allowMultiple, boolean allowBase64) throws IOException {
+		Parser parser = new Parser(allowBase64);
+		boolean blocks = is.markSupported();
+		byte[] buf = new byte[READ_BLOCK_SIZE];
+		int length = 0;
+		int lineStart = 0;
+		while(true) {
+			if(buf.length - length < READ_BLOCK_SIZE)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			int read;
+			if(blocks) {
+				is.mark(READ_BLOCK_SIZE);
+				read = is.read(buf, length, READ_BLOCK_SIZE);
+			} else {
+				int b = is.read();
+				if(b != -1) buf[length] = (byte) b;
+				read = b == -1 ? -1 : 1;
+			}
+			if(read == 0) throw new EOFException(); // Don't busy-loop.
+			if(read < 0) {
+				if(length > lineStart) parser.line(buf, lineStart, length);
+				break;
+			}
+			int end = length + read;
+			boolean finished = false;
+			for(;length<end;length++) {
+				if(buf[length] == '\n') {
+					if(parser.line(buf, lineStart, length)) {
+						finished = true;
+						break;
+					}
+					lineStart = length + 1;
+				} else if(length - lineStart >= maxLineLength)
+					throw new IOException("Line longer than "+maxLineLength);
+			}
+			if(finished) {
+				if(blocks) {
+					// Leave anything after the end marker in the stream.
+					int unread = end - length - 1;
+					if(unread > 0) {
+						is.reset();
+						long skip = read - unread;
+						while(skip > 0) {
+							long skipped = is.skip(skip);
+							if(skipped <= 0) throw new EOFException();
+							skip -= skipped;
+						}
+					}
+				}
+				break;
+			}
+		}
+		return parser.finish(buf, allowMultiple);
+	}
+
+	/**
+	 * Parse a field set from part of an array, which is used as it is, not copied, so it must
+	 * not change afterwards.
+	 * @see #readFrom(InputStream, int, boolean, boolean)
+	 */
+	public static FlatFieldSet parse(byte[] data, int offset, int length, boolean allowMultiple, boolean allowBase64) throws IOException {
+		Parser parser = new Parser(allowBase64);
+		int end = offset + length;
+		int lineStart = offset;
+		for(int i=offset;i<end;i++) {
+			if(data[i] != '\n') continue;
+			if(parser.line(data, lineStart, i)) return parser.finish(data, allowMultiple);
+			lineStart = i + 1;
+		}
+		if(lineStart < end) parser.line(data, lineStart, end);
+		return parser.finish(data, allowMultiple);
+	}
+
+	private static class Parser {
+
+		private final boolean allowBase64;
+		private int[] index = new int[16 * FIELD_SIZE];
+		private String[] decoded = new String[16];
+		private int count;
+		private String[] header;
+		private String endMarker;
+		private boolean firstLine = true;
+		private boolean headerSection = true;
+
+		Parser(boolean allowBase64) {
+			this.allowBase64 = allowBase64;
+		}
+
+		/** @return True if this was the end marker. */
+		boolean line(byte[] buf, int start, int end) throws IOException {
+			if(end > start && buf[end-1] == '\r') end--;
+			if(end == start) return false;
+			firstLine = false;
+			if(buf[start] == '#') {
+				if(headerSection) {
+					String line = new String(buf, start + 1, end - start - 1, UTF8).trim();
+					if(header == null)
+						header = new String[] { line };
+					else {
+						header = Arrays.copyOf(header, header.length + 1);
+						header[header.length - 1] = line;
+					}
+				}
+				return false;
+			}
+			headerSection = false;
+			int sep = -1;
+			for(int i=start;i<end;i++) {
+				if(buf[i] == SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) {
+					sep = i;
+					break;
+				}
+			}
+			if(sep == -1) {
+				endMarker = new String(buf, start, end - start, UTF8);
+				return true;
+			}
+			int keyStart = start;
+			int keyEnd = sep;
+			while(keyStart < keyEnd && (buf[keyStart] & 0xff) <= ' ') keyStart++;
+			while(keyEnd > keyStart && (buf[keyEnd-1] & 0xff) <= ' ') keyEnd--;
+			int valueStart = sep + 1;
+			int valueLength = end - valueStart;
+			String value = null;
+			if(allowBase64 && valueLength > 0 && buf[valueStart] == SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) {
+				String encoded = new String(buf, valueStart + 1, valueLength - 1, UTF8).replaceAll("\\s", "");
+				try {
+					value = Base64.decodeUTF8(encoded);
+				} catch (IllegalBase64Exception e) {
+					throw new IOException("Unable to decode UTF8, = should not be allowed as first character of a value");
+				}
+				valueLength |= BASE64;
+			}
+			if(count * FIELD_SIZE == index.length) {
+				index = Arrays.copyOf(index, index.length * 2);
+				decoded = Arrays.copyOf(decoded, decoded.length * 2);
+			}
+			int i = count * FIELD_SIZE;
+			index[i] = keyStart;
+			index[i+1] = keyEnd - keyStart;
+			index[i+2] = valueStart;
+			index[i+3] = valueLength;
+			decoded[count] = value;
+			count++;
+			return false;
+		}
+
+		FlatFieldSet finish(byte[] buf, boolean allowMultiple) throws EOFException {
+			if(firstLine) throw new EOFException();
+			if(endMarker == null) Logger.error(this, "No end marker");
+			return new FlatFieldSet(buf, index, count, decoded, header, endMarker, allowMultiple);
+		}
+
+	}
+
+	// Keys
+
+	/** Compare keys as unsigned bytes, which for UTF-8 is the same as comparing code points. */
+	private static int compareKeys(byte[] buf, int[] index, int a, int b) {
+		int aOffset = index[a * FIELD_SIZE];
+		int aLength = index[a * FIELD_SIZE + 1];
+		int bOffset = index[b * FIELD_SIZE];
+		int bLength = index[b * FIELD_SIZE + 1];
+		int length = Math.min(aLength, bLength);
+		for(int i=0;i<length;i++) {
+			int diff = (buf[aOffset+i] & 0xff) - (buf[bOffset+i] & 0xff);
+			if(diff != 0) return diff;
+		}
+		return aLength - bLength;
+	}
+
+	/** @return The field numbers sorted by key. Stable, so repeated keys stay in order. */
+	private static int[] sort(byte[] buf, int[] index, int count) {
+		int[] sorted = new int[count];
+		for(int i=0;i<count;i++) sorted[i] = i;
+		mergeSort(buf, index, sorted, new int[count], 0, count);
+		return sorted;
+	}
+
+	private static void mergeSort(byte[] buf, int[] index, int[] fields, int[] tmp, int from, int to) {
+		if(to - from < 2) return;
+		int mid = (from + to) >>> 1;
+		mergeSort(buf, index, fields, tmp, from, mid);
+		mergeSort(buf, index, fields, tmp, mid, to);
+		// Messages are often written in order.
+		if(compareKeys(buf, index, fields[mid-1], fields[mid]) <= 0) return;
+		System.arraycopy(fields, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for(int k=from;k<to;k++) {
+			if(j == to || (i < mid && compareKeys(buf, index, tmp[i], tmp[j]) <= 0))
+				fields[k] = tmp[i++];
+			else
+				fields[k] = tmp[j++];
+		}
+	}
+
+	private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for(int i=0;i<length;i++)
+			if(a[aOffset+i] != b[bOffset+i]) return false;
+		return true;
+	}
+
+	/** Compare the key of a field with a key we are looking for.
+	 * @param encoded The key as UTF-8, or null if it is all ASCII. */
+	private int compareKey(int field, String key, byte[] encoded) {
+		int offset = index[field * FIELD_SIZE];
+		int length = index[field * FIELD_SIZE + 1];
+		int keyLength = encoded == null ? key.length() : encoded.length;
+		int common = Math.min(length, keyLength);
+		for(int i=0;i<common;i++) {
+			int c = encoded == null ? key.charAt(i) : encoded[i] & 0xff;
+			int diff = (buf[offset+i] & 0xff) - c;
+			if(diff != 0) return diff;
+		}
+		return length - keyLength;
+	}
+
+	/** @return The first field with the given key, or -1. */
+	private int find(String key) {
+		byte[] encoded = null;
+		for(int i=0;i<key.length();i++) {
+			if(key.charAt(i) >= 0x80) {
+				encoded = key.getBytes(UTF8);
+				break;
+			}
+		}
+		// The first position whose key isn't less than the one we want.
+		int low = 0;
+		int high = count;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(compareKey(sorted[mid], key, encoded) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if(low < count && compareKey(sorted[low], key, encoded) == 0)
+			return sorted[low];
+		return -1;
+	}
+
+	private String key(int field) {
+		return new String(buf, index[field * FIELD_SIZE], index[field * FIELD_SIZE + 1], UTF8);
+	}
+
+	// Values
+
+	private String value(int field) {
+		String s = decoded[field];
+		if(s == null) {
+			// If two threads do this at once, they get equal Strings, which doesn't matter.
+			s = new String(buf, index[field * FIELD_SIZE + 2], index[field * FIELD_SIZE + 3], UTF8);
+			decoded[field] = s;
+		}
+		return s;
+	}
+
+	private String joinedValue(int field) {
+		if(next == null || next[field] == -1) return value(field);
+		StringBuilder sb = new StringBuilder(value(field));
+		for(int f = next[field]; f != -1; f = next[f])
+			sb.append(SimpleFieldSet.MULTI_VALUE_CHAR).append(value(f));
+		return sb.toString();
+	}
+
+	/**
+	 * Get a value. Keys in subsets are written out in full, e.g. subset.key.
+	 * @return The value, or null if there is no such key.
+	 */
+	public String get(String key) {
+		int field = find(key);
+		if(field == -1) return null;
+		return joinedValue(field);
+	}
+
+	public String[] getAll(String key) {
+		return SimpleFieldSet.split(get(key));
+	}
+
+	public String getString(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No such element "+key);
+		return s;
+	}
+
+	/** Parse a decimal value from the bytes if we can, otherwise as Long.parseLong() would. */
+	private long parseLong(int field) {
+		int length = index[field * FIELD_SIZE + 3];
+		if((length & BASE64) != 0 || (next != null && next[field] != -1) || length == 0)
+			return Long.parseLong(joinedValue(field));
+		int offset = index[field * FIELD_SIZE + 2];
+		boolean negative = buf[offset] == '-';
+		int i = negative ? 1 : 0;
+		if(i == length) return Long.parseLong(value(field));
+		// Accumulate negatively, like Long.parseLong(), so MIN_VALUE works.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin = limit / 10;
+		long result = 0;
+		for(;i<length;i++) {
+			int digit = buf[offset+i] - '0';
+			if(digit < 0 || digit > 9 || result < multmin) return Long.parseLong(value(field));
+			result *= 10;
+			if(result < limit + digit) return Long.parseLong(value(field));
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	private int parseInt(int field) {
+		long l = parseLong(field);
+		if(l < Integer.MIN_VALUE || l > Integer.MAX_VALUE)
+			throw new NumberFormatException("Out of range for an int: "+value(field));
+		return (int) l;
+	}
+
+	public int getInt(String key, int def) {
+		int field = find(key);
+		if(field == -1) return def;
+		try {
+			return parseInt(field);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public int getInt(String key) throws FSParseException {
+		int field = find(key);
+		if(field == -1) throw new FSParseException("No key "+key);
+		try {
+			return parseInt(field);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+joinedValue(field)+" for integer "+key);
+		}
+	}
+
+	public long getLong(String key, long def) {
+		int field = find(key);
+		if(field == -1) return def;
+		try {
+			return parseLong(field);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public long getLong(String key) throws FSParseException {
+		int field = find(key);
+		if(field == -1) throw new FSParseException("No key "+key);
+		try {
+			return parseLong(field);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+joinedValue(field)+" for long "+key);
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) {
+		return Fields.stringToBool(get(key), def);
+	}
+
+	public boolean getBoolean(String key) throws FSParseException {
+		try {
+			return Fields.stringToBool(get(key));
+		} catch(NumberFormatException e) {
+			throw new FSParseException(e);
+		}
+	}
+
+	// Structure
+
+	/**
+	 * A view of the keys which start with the given prefix followed by ".", without the prefix.
+	 * Shares the buffer, but not the decoded values, so keep the original if there is a choice.
+	 * @return The subset, or null if there are no such keys.
+	 */
+	public FlatFieldSet subset(String prefix) {
+		byte[] p = prefix.getBytes(UTF8);
+		int[] subIndex = null;
+		String[] subDecoded = null;
+		int subCount = 0;
+		for(int field=0;field<count;field++) {
+			int keyOffset = index[field * FIELD_SIZE];
+			int keyLength = index[field * FIELD_SIZE + 1];
+			if(keyLength <= p.length || buf[keyOffset + p.length] != SimpleFieldSet.MULTI_LEVEL_CHAR ||
+					!equals(buf, keyOffset, p, 0, p.length)) continue;
+			if(subIndex == null) {
+				subIndex = new int[(count - field) * FIELD_SIZE];
+				subDecoded = new String[count - field];
+			}
+			int i = subCount * FIELD_SIZE;
+			subIndex[i] = keyOffset + p.length + 1;
+			subIndex[i+1] = keyLength - p.length - 1;
+			subIndex[i+2] = index[field * FIELD_SIZE + 2];
+			subIndex[i+3] = index[field * FIELD_SIZE + 3];
+			// Base64 values can't be decoded again from the buffer.
+			if((subIndex[i+3] & BASE64) != 0) subDecoded[subCount] = decoded[field];
+			subCount++;
+		}
+		if(subCount == 0) return null;
+		return new FlatFieldSet(buf, subIndex, subCount, subDecoded, null, null, true);
+	}
+
+	/** @return The number of distinct keys, including those in subsets. */
+	public int size() {
+		if(repeated == null) return count;
+		int size = 0;
+		for(int i=0;i<count;i++)
+			if(!repeated[i]) size++;
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/** Iterate over all the keys, in the order they were read, including those in subsets. */
+	public Iterator<String> keyIterator() {
+		return new Iterator<String>() {
+
+			private int field = skipRepeated(0);
+
+			@Override
+			public boolean hasNext() {
+				return field < count;
+			}
+
+			@Override
+			public String next() {
+				if(field >= count) throw new NoSuchElementException();
+				String key = key(field);
+				field = skipRepeated(field + 1);
+				return key;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+	private int skipRepeated(int field) {
+		if(repeated != null)
+			while(field < count && repeated[field]) field++;
+		return field;
+	}
+
+	/** @return The end marker, e.g. "End", or null if there wasn't one. */
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	/** @return The header lines, without the "#", or null. */
+	public String[] getHeader() {
+		return header == null ? null : header.clone();
+	}
+
+	/** Copy into a SimpleFieldSet, which can be changed. */
+	public SimpleFieldSet toSimpleFieldSet(boolean shortLived) {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		if(header != null) fs.setHeader(header.clone());
+		for(int field=0;field<count;field++) {
+			if(repeated != null && repeated[field]) continue;
+			fs.putOverwrite(key(field), joinedValue(field));
+		}
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	/** Write to the given OutputStream, the values as they were read, and flush it. */
+	public void writeTo(OutputStream os) throws IOException {
+		SimpleFieldSetWriter w = new SimpleFieldSetWriter(os);
+		w.write(this);
+		w.flush();
+	}
+
+	void writeTo(SimpleFieldSetWriter w) throws IOException {
+		if(header != null) {
+			for(String line : header)
+				w.writeLine("# " + line);
+		}
+		for(int field=0;field<count;field++) {
+			int i = field * FIELD_SIZE;
+			w.writeField(buf, index[i], index[i+1], index[i+2], index[i+3] & ~BASE64);
+		}
+		w.writeLine(endMarker == null ? "End" : endMarker);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+size()+" keys";
+	}
+
+}
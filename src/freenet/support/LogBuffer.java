@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lines waiting to be written by FileLoggerHook's writer thread. A ring buffer which any number of
+ * threads can add to without locking, and one thread takes from. It is limited both in the number
+ * of lines and the number of bytes; lines which don't fit are dropped, and counted, rather than
+ * blocking the thread which is logging.
+ */
+final class LogBuffer {
+
+	/** Memory allocation overhead (estimated through experimentation with bsh) */
+	static final int LINE_OVERHEAD = 60;
+
+	private final AtomicReferenceArray<byte[]> slots;
+	private final int capacity;
+	/** The next slot to add to. Only ever increases. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next slot to take from. Only written by the consumer. */
+	private volatile long head;
+	/** Bytes in the buffer, including LINE_OVERHEAD for each line. */
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong droppedLines = new AtomicLong();
+	private final AtomicLong droppedBytes = new AtomicLong();
+	private volatile long maxBytes;
+
+	LogBuffer(int capacity, long maxBytes) {
+		if(capacity <= 0) throw new IllegalArgumentException("Bad capacity: "+capacity);
+		this.capacity = capacity;
+		this.slots = new AtomicReferenceArray<byte[]>(capacity);
+		this.maxBytes = maxBytes;
+	}
+
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Add a line, unless the buffer is full, in which case count it as dropped.
+	 * @return The number of bytes in the buffer before adding the line, or -1 if it was dropped.
+	 */
+	long offer(byte[] line) {
+		long size = line.length + LINE_OVERHEAD;
+		long before = bytes.getAndAdd(size);
+		if(before + size > maxBytes && before > 0) {
+			// Always accept one line, however long, so that we don't lose huge stack traces.
+			bytes.addAndGet(-size);
+			drop(line);
+			return -1;
+		}
+		while(true) {
+			long t = tail.get();
+			if(t - head >= capacity) {
+				bytes.addAndGet(-size);
+				drop(line);
+				return -1;
+			}
+			if(tail.compareAndSet(t, t + 1)) {
+				// The consumer cleared the slot before moving head past it.
+				slots.set((int) (t % capacity), line);
+				return before;
+			}
+		}
+	}
+
+	private void drop(byte[] line) {
+		droppedLines.incrementAndGet();
+		droppedBytes.addAndGet(line.length);
+	}
+
+	/**
+	 * Take the oldest line. Only one thread may call this.
+	 * @return The line, or null if the buffer is empty, or the next line hasn't been filled in
+	 * yet.
+	 */
+	byte[] poll() {
+		long h = head;
+		if(h == tail.get()) return null;
+		int slot = (int) (h % capacity);
+		byte[] line = slots.get(slot);
+		if(line == null) return null;
+		slots.set(slot, null);
+		head = h + 1;
+		bytes.addAndGet(-(line.length + LINE_OVERHEAD));
+		return line;
+	}
+
+	long bytes() {
+		return bytes.get();
+	}
+
+	boolean isEmpty() {
+		return head == tail.get();
+	}
+
+	/** @return The number of lines dropped since the last call, resetting it to 0. */
+	long takeDroppedLines() {
+		return droppedLines.getAndSet(0);
+	}
+
+	/** @return The number of bytes dropped since the last call, resetting it to 0. */
+	long takeDroppedBytes() {
+		return droppedBytes.getAndSet(0);
+	}
+
+}
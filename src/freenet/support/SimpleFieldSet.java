@@ -1,9 +1,7 @@
 package freenet.support;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,7 +9,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -510,6 +507,32 @@ public class SimpleFieldSet {
     	}
     }
 
+    /**
+     * Write the contents of the SimpleFieldSet to a SimpleFieldSetWriter. Same output as
+     * writeTo(Writer, String, boolean, boolean), with the prefix kept by the writer.
+     */
+    synchronized void writeTo(SimpleFieldSetWriter w, boolean noEndMarker, boolean useBase64) throws IOException {
+    	if(header != null) {
+    		for(String line : header)
+    			w.writeLine("# " + line);
+    	}
+    	for (Map.Entry<String, String> entry: values.entrySet()) {
+    		String value = entry.getValue();
+    		w.writeField(entry.getKey(), value, (useBase64 || alwaysUseBase64) && shouldBase64(value));
+    	}
+    	if(subsets != null) {
+    		for (Map.Entry<String, SimpleFieldSet> entry: subsets.entrySet()) {
+    			SimpleFieldSet subset = entry.getValue();
+    			if(subset == null) throw new NullPointerException();
+    			w.pushPrefix(entry.getKey());
+    			subset.writeTo(w, true, useBase64);
+    			w.popPrefix();
+    		}
+    	}
+    	if(!noEndMarker)
+    		w.writeLine(endMarker == null ? "End" : endMarker);
+    }
+
     private void writeValue(Writer w, String key, String value, String prefix, boolean useBase64) throws IOException {
         w.write(prefix);
         w.write(key);
@@ -988,20 +1011,9 @@ public class SimpleFieldSet {
 	
 	/** Write to the given OutputStream and flush it. */
     public void writeTo(OutputStream os, int bufferSize) throws IOException {
-        BufferedOutputStream bos = null;
-        OutputStreamWriter osw = null;
-        BufferedWriter bw = null;
-        
-        bos = new BufferedOutputStream(os, bufferSize);
-        try {
-            osw = new OutputStreamWriter(bos, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Logger.error(SimpleFieldSet.class, "Impossible: " + e, e);
-            throw e;
-        }
-        bw = new BufferedWriter(osw);
-        writeTo(bw);
-        bw.flush();
+        SimpleFieldSetWriter w = new SimpleFieldSetWriter(os, bufferSize);
+        w.write(this);
+        w.flush();
     }
 
     /** Get an integer value for the given key. This may be at the top level or lower in the tree,
@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Writes SimpleFieldSet lines as UTF-8 straight to an OutputStream, through one buffer, instead of
+ * building a String or going through a Writer and an encoder. Keys in subsets are written as each
+ * level of the prefix in turn, so the full keys are never concatenated. Not thread-safe.
+ */
+public class SimpleFieldSetWriter {
+
+	private final OutputStream os;
+	private final byte[] buf;
+	private int pos;
+	/** Names of the subsets we are in, outermost first. */
+	private final ArrayList<String> prefix = new ArrayList<String>();
+
+	public SimpleFieldSetWriter(OutputStream os) {
+		this(os, 4096);
+	}
+
+	public SimpleFieldSetWriter(OutputStream os, int bufferSize) {
+		this.os = os;
+		this.buf = new byte[Math.max(bufferSize, 16)];
+	}
+
+	/** Write a SimpleFieldSet, including its header and its end marker. */
+	public void write(SimpleFieldSet fs) throws IOException {
+		fs.writeTo(this, false, false);
+	}
+
+	/**
+	 * Write a SimpleFieldSet, including its header and its end marker.
+	 * @param useBase64 If true, write values with whitespace, control characters or characters
+	 * used by SimpleFieldSet as Base64, as SimpleFieldSet.writeToOrdered() can.
+	 */
+	public void write(SimpleFieldSet fs, boolean useBase64) throws IOException {
+		fs.writeTo(this, false, useBase64);
+	}
+
+	/** Write a FlatFieldSet, with its values as they were read. */
+	public void write(FlatFieldSet fs) throws IOException {
+		fs.writeTo(this);
+	}
+
+	/** Write a line on its own, e.g. the name of an FCP message. */
+	public void writeLine(String line) throws IOException {
+		write(line);
+		write('\n');
+	}
+
+	/** Write key=value, with the current prefix. */
+	public void writeField(String key, String value) throws IOException {
+		writeField(key, value, false);
+	}
+
+	/** Write key=value, or key==base64 value, with the current prefix. */
+	void writeField(String key, String value, boolean base64) throws IOException {
+		writePrefix();
+		write(key);
+		write(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+		if(base64) {
+			write(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+			write(Base64.encodeUTF8(value));
+		} else
+			write(value);
+		write('\n');
+	}
+
+	/** Write key=value where both are already encoded, with the current prefix. */
+	void writeField(byte[] data, int keyOffset, int keyLength, int valueOffset, int valueLength) throws IOException {
+		writePrefix();
+		write(data, keyOffset, keyLength);
+		write(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+		write(data, valueOffset, valueLength);
+		write('\n');
+	}
+
+	/** Keys written from now on are in the given subset, until popPrefix(). */
+	public void pushPrefix(String name) {
+		prefix.add(name);
+	}
+
+	public void popPrefix() {
+		prefix.remove(prefix.size()-1);
+	}
+
+	private void writePrefix() throws IOException {
+		for(int i=0;i<prefix.size();i++) {
+			write(prefix.get(i));
+			write(SimpleFieldSet.MULTI_LEVEL_CHAR);
+		}
+	}
+
+	/** Write whatever is buffered to the stream, without flushing the stream. */
+	public void flushBuffer() throws IOException {
+		if(pos == 0) return;
+		os.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	/** Write whatever is buffered to the stream, and flush the stream. */
+	public void flush() throws IOException {
+		flushBuffer();
+		os.flush();
+	}
+
+	private void write(char c) throws IOException {
+		// Only used for ASCII.
+		if(pos == buf.length) flushBuffer();
+		buf[pos++] = (byte) c;
+	}
+
+	private void write(byte[] data, int offset, int length) throws IOException {
+		if(length > buf.length - pos) {
+			flushBuffer();
+			if(length >= buf.length) {
+				os.write(data, offset, length);
+				return;
+			}
+		}
+		System.arraycopy(data, offset, buf, pos, length);
+		pos += length;
+	}
+
+	/** Encode as UTF-8. Unpaired surrogates are written as '?', like the standard encoder. */
+	private void write(String s) throws IOException {
+		int length = s.length();
+		for(int i=0;i<length;i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				if(pos == buf.length) flushBuffer();
+				buf[pos++] = (byte) c;
+				continue;
+			}
+			if(buf.length - pos < 4) flushBuffer();
+			if(c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				buf[pos++] = (byte) '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,346 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker using a hashed timing wheel: an array of buckets, one per millisecond, which wraps
+ * around. A job goes in the bucket for the millisecond it is due in, and stays there for as many
+ * turns of the wheel as it takes to become due. Unlike PrioritizedTicker, which keeps jobs in a
+ * TreeMap under a lock, queueing a job doesn't lock or block: it goes on a concurrent queue, and
+ * the ticker thread, which is the only thread to touch the wheel, moves it into its bucket.
+ * Removing a job just marks it as cancelled. So queueing and removing are O(1) however many
+ * timeouts are pending, and the ticker thread only looks at the buckets for the milliseconds which
+ * have passed.
+ */
+public class TimingWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Number of buckets, each one millisecond. Must be a power of 2. */
+	static final int WHEEL_SIZE = 1024;
+	private static final int MASK = WHEEL_SIZE - 1;
+	static final int MAX_SLEEP_TIME = 200;
+
+	/** Key for finding a job by its Runnable. Equal if the Runnable is the same object. */
+	private final static class JobKey {
+		final Runnable job;
+
+		JobKey(Runnable job) {
+			this.job = job;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof JobKey)) return false;
+			return ((JobKey)o).job == job;
+		}
+
+		@Override
+		public int hashCode() {
+			return job.hashCode();
+		}
+	}
+
+	private final static class Entry {
+		static final int QUEUED = 0;
+		static final int CANCELLED = 1;
+		static final int RUN = 2;
+		private static final AtomicIntegerFieldUpdater<Entry> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+		final JobKey key;
+		final String name;
+		final long time;
+		private volatile int state = QUEUED;
+		/** Next in the bucket. Only used by the ticker thread. */
+		Entry next;
+
+		Entry(JobKey key, String name, long time) {
+			this.key = key;
+			this.name = name;
+			this.time = time;
+		}
+
+		/** Move out of the QUEUED state. Only one of cancelling and running can succeed. */
+		boolean claim(int newState) {
+			return STATE.compareAndSet(this, QUEUED, newState);
+		}
+
+		boolean isQueued() {
+			return state == QUEUED;
+		}
+
+		@Override
+		public String toString() {
+			return name+" at "+time;
+		}
+	}
+
+	/** Only accessed by the ticker thread. */
+	private final Entry[] wheel = new Entry[WHEEL_SIZE];
+	/** The next millisecond whose bucket has not been processed. Only accessed by the ticker thread. */
+	private long nextTick;
+	/** Jobs which have been queued but not yet put in the wheel. */
+	private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+	/** The most recently queued entry for each job, for noDupes and removeQueuedJob(). */
+	private final ConcurrentHashMap<JobKey, Entry> byJob = new ConcurrentHashMap<JobKey, Entry>();
+	/** Jobs queued and not yet run or removed. */
+	private final AtomicInteger queued = new AtomicInteger();
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+		nextTick = now();
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		long now = now();
+		if(now < nextTick - 1) {
+			// The clock has gone backwards. Carry on from now, rather than waiting for it to
+			// catch up. As with PrioritizedTicker, jobs queued earlier still run at the time they
+			// were queued for.
+			Logger.normal(this, "Clock went back by "+(nextTick - 1 - now)+"ms");
+			nextTick = now;
+			rebucket();
+		}
+		Entry e;
+		while((e = incoming.poll()) != null) {
+			if(!e.isQueued()) continue;
+			int bucket = (int) (Math.max(e.time, nextTick) & MASK);
+			e.next = wheel[bucket];
+			wheel[bucket] = e;
+		}
+		if(now >= nextTick) {
+			// If the clock has jumped forward, just go around the wheel once.
+			long ticks = Math.min(now - nextTick + 1, WHEEL_SIZE);
+			for(long t = 0; t < ticks; t++)
+				expire((int) ((nextTick + t) & MASK), now);
+			nextTick = now + 1;
+		}
+		if(!incoming.isEmpty()) return;
+		long sleepTime = MAX_SLEEP_TIME;
+		for(int t = 0; t < MAX_SLEEP_TIME; t++) {
+			if(wheel[(int) ((nextTick + t) & MASK)] != null) {
+				sleepTime = t + 1;
+				break;
+			}
+		}
+		sleep(sleepTime);
+	}
+
+	/** Put every job back in the bucket for when it is due, or for nextTick if that is later. */
+	private void rebucket() {
+		Entry all = null;
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			Entry e = wheel[i];
+			wheel[i] = null;
+			while(e != null) {
+				Entry next = e.next;
+				e.next = all;
+				all = e;
+				e = next;
+			}
+		}
+		while(all != null) {
+			Entry next = all.next;
+			int bucket = (int) (Math.max(all.time, nextTick) & MASK);
+			all.next = wheel[bucket];
+			wheel[bucket] = all;
+			all = next;
+		}
+	}
+
+	/** Run all the jobs in the bucket which are due by now, and drop any which are cancelled. */
+	private void expire(int bucket, long now) {
+		Entry prev = null;
+		Entry e = wheel[bucket];
+		while(e != null) {
+			Entry next = e.next;
+			if(!e.isQueued() || e.time <= now) {
+				if(prev == null) wheel[bucket] = next;
+				else prev.next = next;
+				e.next = null;
+				if(e.claim(Entry.RUN)) {
+					queued.decrementAndGet();
+					byJob.remove(e.key, e);
+					runJob(e);
+				}
+			} else {
+				prev = e;
+			}
+			e = next;
+		}
+	}
+
+	private void runJob(Entry e) {
+		Runnable job = e.key.job;
+		if(logMINOR)
+			Logger.minor(this, "Running " + e);
+		if(job instanceof FastRunnable) {
+			// Run in-line
+			try {
+				job.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running " + e, t);
+			}
+		} else {
+			try {
+				executor.execute(job, e.name, true);
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+				System.err.println("Will retry above failed operation...");
+				queueTimedJob(job, e.name, 200, true, false);
+			}
+		}
+	}
+
+	/** The current time, in milliseconds. Overridden by tests. */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	protected void sleep(long sleepTime) {
+		if(logMINOR)
+			Logger.minor(this, "Sleeping for " + sleepTime);
+		// Any wake up will do; we recompute what is due anyway.
+		LockSupport.parkNanos(this, MILLISECONDS.toNanos(sleepTime));
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time (offset in milliseconds from "now").
+	 * @see PrioritizedTicker#queueTimedJob(Runnable, String, long, boolean, boolean)
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		long now = now();
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, now+offset, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		long now = now();
+		queueTimedJobInner(runner, name, time, time-now, runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, String name, long runJobAt, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		JobKey key = new JobKey(runner);
+		Entry entry = new Entry(key, name, runJobAt);
+		if(noDupes) {
+			while(true) {
+				Entry old = byJob.get(key);
+				if(old == null) {
+					if(byJob.putIfAbsent(key, entry) == null) break;
+				} else if(!old.isQueued()) {
+					// Running now, so queue it again.
+					if(byJob.replace(key, old, entry)) break;
+				} else if(old.time <= runJobAt) {
+					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+					return;
+				} else if(byJob.replace(key, old, entry)) {
+					// Delete the existing job because the new job will run first.
+					cancel(old);
+					break;
+				}
+			}
+		} else {
+			byJob.put(key, entry);
+		}
+		queued.incrementAndGet();
+		incoming.add(entry);
+		if(offset < MAX_SLEEP_TIME)
+			wakeUp();
+	}
+
+	private void cancel(Entry e) {
+		if(e.claim(Entry.CANCELLED))
+			queued.decrementAndGet();
+	}
+
+	/** Wake up, and run any queued jobs. */
+	void wakeUp() {
+		LockSupport.unpark(myThread);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** @return The number of jobs queued and not yet run or removed. */
+	int queuedJobs() {
+		return queued.get();
+	}
+
+	/**
+	 * Remove a queued job. If the same Runnable has been queued more than once, only the most
+	 * recently queued one is removed.
+	 */
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		Entry e = byJob.remove(new JobKey(runnable));
+		if(e != null) cancel(e);
+	}
+
+}
@@ -41,6 +41,8 @@ public class URLDecoder
 		if (s.length() == 0)
 			return "";
 		int len = s.length();
+		if (!needsDecoding(s))
+			return s;
 		ByteArrayOutputStream decodedBytes = new ByteArrayOutputStream();
 		boolean hasDecodedSomething = false;
 
@@ -94,4 +96,16 @@ public class URLDecoder
 		throw new URLEncodedFormatException(s);
 	}
 
+	/** Most parts of URIs have no escapes, and only characters which come out of the loop in
+	 * decode() unchanged, so we can return them as they are. Surrogates don't: each half is
+	 * encoded on its own, as '?'. */
+	private static boolean needsDecoding(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%' || Character.isSurrogate(c))
+				return true;
+		}
+		return false;
+	}
+
 }
@@ -0,0 +1,344 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.FastRunnable;
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+import freenet.support.math.TimeHistogram;
+
+/**
+ * Executor with a bounded pool of threads for each priority, which queues jobs rather than
+ * creating a thread for every one. PooledExecutor hands each job to a waiting thread or starts a
+ * new one, under a global lock, so a burst of jobs means a burst of new threads.
+ * <p>
+ * Each worker thread has its own deque. A job submitted by a worker, for its own priority, goes on
+ * the front of that worker's deque, and the worker takes jobs from the front; anything else goes
+ * on a shared queue for the priority. A worker which runs out of jobs takes from the shared queue,
+ * then steals from the back of the other workers' deques, and only then waits. Threads are started
+ * when a job is queued and none is waiting, up to the limit, and exit after a minute idle.
+ * </p><p>
+ * Jobs which block for a long time tie up a thread, so with a low limit, jobs which wait for other
+ * jobs at the same priority can stall. The limit should be well above the number of such jobs the
+ * node runs at once.
+ * </p>
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+
+	private final Band[] bands = new Band[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreadsPerPriority;
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+
+	/**
+	 * @param maxThreadsPerPriority The maximum number of threads at each priority. Further jobs
+	 * are queued until a thread is free.
+	 */
+	public WorkStealingExecutor(int maxThreadsPerPriority) {
+		if(maxThreadsPerPriority < 1)
+			throw new IllegalArgumentException("Need at least one thread per priority: "+maxThreadsPerPriority);
+		this.maxThreadsPerPriority = maxThreadsPerPriority;
+		for(int i = 0; i < bands.length; i++)
+			bands[i] = new Band(i + 1);
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Band band = bands[prio - 1];
+		Job job = new Job(runnable, jobName);
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).band == band)
+			((Worker) current).jobs.addFirst(job);
+		else
+			band.submitted.add(job);
+		band.queued.incrementAndGet();
+		band.signal(fromTicker);
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].threads.get() - bands[i].waiting.get();
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].waiting.get();
+		return result;
+	}
+
+	/** Count the number of jobs queued and not yet started at each priority level */
+	public int[] queuedJobs() {
+		int[] result = new int[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].queued.get();
+		return result;
+	}
+
+	/** @return For each priority level, how long jobs waited between being queued and starting. */
+	public TimeHistogram[] queueTimes() {
+		TimeHistogram[] result = new TimeHistogram[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].queueTimes;
+		return result;
+	}
+
+	/** @return For each priority level, how long jobs took to run. */
+	public TimeHistogram[] runTimes() {
+		TimeHistogram[] result = new TimeHistogram[bands.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bands[i].runTimes;
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		int total = 0;
+		for(Band band : bands)
+			total += band.waiting.get();
+		return total;
+	}
+
+	public int getMaxThreadsPerPriority() {
+		return maxThreadsPerPriority;
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+		private final long queuedAt;
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+	/** The threads and queues for one priority level. */
+	private class Band {
+		final int prio;
+		/** Jobs submitted by threads other than this band's workers. */
+		final ConcurrentLinkedQueue<Job> submitted = new ConcurrentLinkedQueue<Job>();
+		/** All workers, for stealing from. */
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Workers waiting for a job, most recently idle first, so the others time out. */
+		final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+		/** Threads running or waiting, including those being started. */
+		final AtomicInteger threads = new AtomicInteger();
+		/** Threads on the idle list. */
+		final AtomicInteger waiting = new AtomicInteger();
+		/** Jobs queued anywhere in this band and not yet started. */
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		final TimeHistogram queueTimes = new TimeHistogram();
+		final TimeHistogram runTimes = new TimeHistogram();
+
+		Band(int prio) {
+			this.prio = prio;
+		}
+
+		/** A job has been queued: wake a waiting thread, or start one if we are under the limit. */
+		void signal(boolean fromTicker) {
+			Worker w = idle.poll();
+			if(w != null) {
+				waiting.decrementAndGet();
+				LockSupport.unpark(w);
+				return;
+			}
+			while(true) {
+				int count = threads.get();
+				if(count >= maxThreadsPerPriority) {
+					// It will be run when a thread is free.
+					if(logMINOR) Logger.minor(this, "All " + count + " threads busy at prio " + prio);
+					return;
+				}
+				if(threads.compareAndSet(count, count + 1)) break;
+			}
+			Ticker t = ticker;
+			if(t != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > Thread.currentThread().getPriority()) {
+				// Get the ticker to create a thread for it with the right priority, since we can't.
+				t.queueTimedJob(new FastRunnable() {
+					@Override
+					public void run() {
+						startThread(false);
+					}
+				}, "Start thread for prio " + prio, 0, true, false);
+				return;
+			}
+			startThread(!fromTicker);
+		}
+
+		/** Start a thread, which has already been counted in threads. */
+		void startThread(boolean dontCheckRenice) {
+			long threadNo = threadCounter.getAndIncrement();
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker w = new Worker(this, "Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo, dontCheckRenice);
+			w.setDaemon(true);
+			workers.add(w);
+			w.start();
+		}
+
+		/** Get the next job for a worker: its own first, then submitted jobs, then other workers'. */
+		Job poll(Worker w) {
+			Job job = w.jobs.pollFirst();
+			if(job == null)
+				job = submitted.poll();
+			if(job == null) {
+				for(Worker victim : workers) {
+					if(victim == w) continue;
+					job = victim.jobs.pollLast();
+					if(job != null) break;
+				}
+			}
+			if(job != null)
+				queued.decrementAndGet();
+			return job;
+		}
+
+		void addIdle(Worker w) {
+			waiting.incrementAndGet();
+			idle.addFirst(w);
+		}
+
+		/** @return False if somebody else has already taken the worker off the idle list. */
+		boolean removeIdle(Worker w) {
+			if(!idle.remove(w)) return false;
+			waiting.decrementAndGet();
+			return true;
+		}
+
+		void exited(Worker w) {
+			workers.remove(w);
+			threads.decrementAndGet();
+			// A job may have been queued while we were leaving, and found no waiting thread.
+			if(queued.get() > 0)
+				signal(true);
+		}
+	}
+
+	private class Worker extends NativeThread {
+		final Band band;
+		final String defaultName;
+		final long threadNo;
+		/** Jobs queued by this thread. Taken from the front by this thread, from the back by others. */
+		final ConcurrentLinkedDeque<Job> jobs = new ConcurrentLinkedDeque<Job>();
+
+		Worker(Band band, String defaultName, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, band.prio, dontCheckRenice);
+			this.band = band;
+			this.defaultName = defaultName;
+			this.threadNo = threadNo;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			try {
+				while(true) {
+					Job job = band.poll(this);
+					if(job == null) {
+						setName(defaultName);
+						job = waitForJob();
+						if(job == null) {
+							if(logMINOR)
+								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+							return;
+						}
+					}
+					run(job);
+					ranJobs++;
+				}
+			} finally {
+				band.exited(this);
+			}
+		}
+
+		/** @return A job, or null if none turned up before the timeout. */
+		private Job waitForJob() {
+			long deadline = System.nanoTime() + MILLISECONDS.toNanos(TIMEOUT);
+			while(true) {
+				band.addIdle(this);
+				// Look again, in case a job was queued before we were on the idle list.
+				Job job = band.poll(this);
+				if(job != null) {
+					band.removeIdle(this);
+					return job;
+				}
+				long wait = deadline - System.nanoTime();
+				if(wait <= 0) {
+					if(band.removeIdle(this)) return null;
+					// Just woken up, so look again.
+					continue;
+				}
+				LockSupport.parkNanos(this, wait);
+				band.removeIdle(this);
+			}
+		}
+
+		private void run(Job job) {
+			long start = System.nanoTime();
+			band.queueTimes.report(start - job.queuedAt);
+			try {
+				setName(job.name + "(" + threadNo + ")");
+				job.runnable.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + job, t);
+			}
+			band.runTimes.report(System.nanoTime() - start);
+		}
+	}
+}
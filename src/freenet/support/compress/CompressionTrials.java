@@ -0,0 +1,378 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+
+/**
+ * Tries several codecs on the same data, for an insert, and picks the best. The trials run in
+ * parallel if the RealCompressor has threads to spare, otherwise one after another, in order.
+ * <p>
+ * A trial is aborted as soon as its output is bigger than the smallest finished so far, since it
+ * can't win. If a trial fits in minSize (i.e. one block), it wins, and the trials after it are
+ * cancelled. Otherwise the codec giving the fewest blocks wins, provided that is fewer than the
+ * uncompressed data.
+ * </p><p>
+ * Each codec's output is a single ordinary stream, as existing nodes expect: we don't split the
+ * data into independently compressed chunks, because the decompressors can't read that.
+ * </p>
+ */
+public class CompressionTrials {
+
+	/** Don't bother running trials in parallel for less data than this. */
+	public static final long MIN_PARALLEL_SIZE = 1024 * 1024;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(CompressionTrials.class);
+	}
+
+	public enum Outcome {
+		/** Compressed successfully; the output may or may not have been used. */
+		COMPRESSED,
+		/** Aborted because the output was bigger than the best so far or the original data. */
+		TOO_BIG,
+		/** Not run, or aborted, because an earlier codec fitted in a single block. */
+		CANCELLED,
+		/** The codec threw. */
+		FAILED
+	}
+
+	/** The result of trying one codec. */
+	public static final class Trial {
+		public final COMPRESSOR_TYPE codec;
+		private Outcome outcome;
+		private RandomAccessBucket output;
+		private long compressedSize = -1;
+		private long time;
+		private volatile boolean cancelled;
+
+		Trial(COMPRESSOR_TYPE codec) {
+			this.codec = codec;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/** @return The size of the compressed data, or -1 if the trial didn't complete. */
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		/** @return The time taken by the trial, in milliseconds. */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return codec.name+":"+outcome+":"+compressedSize+":"+time+"ms";
+		}
+	}
+
+	/** Called when each trial starts, from the thread running it. */
+	public interface StartCallback {
+		/** @param parallelTrials The number of trials which may be running at once. */
+		void onStart(COMPRESSOR_TYPE codec, int parallelTrials);
+	}
+
+	private final Trial[] trials;
+	private final RandomAccessBucket input;
+	private final long origSize;
+	private final BucketFactory bf;
+	private final long minSize;
+	private final long generateHashes;
+	/** Size of the smallest output so far. Trials bigger than this are aborted. */
+	private final AtomicLong bestSize;
+	private final AtomicInteger nextTrial = new AtomicInteger();
+	private int finishedTrials;
+	private int parallelTrials = 1;
+	private HashResult[] hashes;
+	private IOException failure;
+	private long time;
+
+	/**
+	 * @param minSize If a codec compresses the data to this size or less, it wins.
+	 * @param generateHashes Hashes to compute on the original data while compressing it, see
+	 * HashType. 0 for none.
+	 */
+	public CompressionTrials(COMPRESSOR_TYPE[] codecs, RandomAccessBucket input, BucketFactory bf,
+			long minSize, long generateHashes) {
+		trials = new Trial[codecs.length];
+		for(int i=0;i<codecs.length;i++)
+			trials[i] = new Trial(codecs[i]);
+		this.input = input;
+		this.origSize = input.size();
+		this.bf = bf;
+		this.minSize = minSize;
+		this.generateHashes = generateHashes;
+		this.bestSize = new AtomicLong(origSize);
+	}
+
+	/**
+	 * Run the trials, returning when all of them have finished.
+	 * @param rc Used to run trials on other threads, if it has any spare. If null, or it has none,
+	 * they are all run on this thread.
+	 * @throws IOException If reading the data or writing the output failed. Output buckets
+	 * will have been freed.
+	 */
+	public void run(RealCompressor rc, final StartCallback callback) throws IOException {
+		long startTime = System.currentTimeMillis();
+		Runnable worker = new Runnable() {
+
+			@Override
+			public void run() {
+				int i;
+				while((i = nextTrial.getAndIncrement()) < trials.length) {
+					try {
+						runTrial(trials[i], i == 0 && generateHashes != 0, callback);
+					} finally {
+						synchronized(CompressionTrials.this) {
+							finishedTrials++;
+							CompressionTrials.this.notifyAll();
+						}
+					}
+				}
+			}
+
+		};
+		if(rc != null && origSize >= MIN_PARALLEL_SIZE) {
+			for(int i=1;i<trials.length;i++) {
+				if(!rc.tryExecuteInParallel(worker, "Compression trials for "+input)) break;
+				synchronized(this) {
+					parallelTrials++;
+				}
+			}
+		}
+		worker.run();
+		boolean interrupted = false;
+		synchronized(this) {
+			while(finishedTrials < trials.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		time = System.currentTimeMillis() - startTime;
+		if(logMINOR) Logger.minor(this, "Compression trials for "+input+" took "+time+"ms on "+parallelTrials+" threads: "+this);
+		synchronized(this) {
+			if(failure != null) {
+				freeExcept(null);
+				throw failure;
+			}
+		}
+		if(generateHashes != 0 && hashes == null) {
+			// The trial generating the hashes failed.
+			InputStream is = null;
+			try {
+				MultiHashInputStream hasher = new MultiHashInputStream(input.getInputStream(), generateHashes);
+				is = hasher;
+				hasher.skip(Long.MAX_VALUE);
+				hashes = hasher.getResults();
+			} catch (IOException e) {
+				freeExcept(null);
+				throw e;
+			} finally {
+				Closer.close(is);
+			}
+		}
+	}
+
+	private void runTrial(Trial trial, boolean hash, StartCallback callback) {
+		if(trial.cancelled) {
+			trial.outcome = Outcome.CANCELLED;
+			return;
+		}
+		int parallel;
+		synchronized(this) {
+			parallel = parallelTrials;
+		}
+		try {
+			callback.onStart(trial.codec, parallel);
+		} catch (Throwable t) {
+			Logger.error(this, "Start callback threw "+t, t);
+		}
+		if(logMINOR) Logger.minor(this, "Attempt to compress using " + trial.codec);
+		long startTime = System.currentTimeMillis();
+		InputStream is = null;
+		OutputStream os = null;
+		MultiHashInputStream hasher = null;
+		RandomAccessBucket result = null;
+		boolean keep = false;
+		try {
+			is = input.getInputStream();
+			if(hash) is = hasher = new MultiHashInputStream(is, generateHashes);
+			result = bf.makeBucket(-1);
+			os = new LimitedOutputStream(result.getOutputStream(), trial);
+			try {
+				trial.codec.compress(is, os, origSize, bestSize.get());
+			} catch (CompressionOutputSizeException e) {
+				trial.outcome = trial.cancelled ? Outcome.CANCELLED : Outcome.TOO_BIG;
+				if(hasher != null) {
+					hasher.skip(Long.MAX_VALUE);
+					hashes = hasher.getResults();
+				}
+				return;
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				// RuntimeException is iffy, so lets not trust the hasher.
+				Logger.error(this, "Compression failed with codec "+trial.codec+" : "+e, e);
+				trial.outcome = Outcome.FAILED;
+				return;
+			}
+			if(hasher != null) hashes = hasher.getResults();
+			os.close();
+			os = null;
+			long size = result.size();
+			trial.output = result;
+			trial.compressedSize = size;
+			trial.outcome = Outcome.COMPRESSED;
+			keep = true;
+			long best;
+			while(size < (best = bestSize.get()) && !bestSize.compareAndSet(best, size)) {
+				// Retry.
+			}
+			if(size <= minSize) {
+				if(logMINOR)
+					Logger.minor(this, "New size " + size + " smaller then minSize " + minSize);
+				for(int i=indexOf(trial)+1;i<trials.length;i++)
+					trials[i].cancelled = true;
+			}
+		} catch (IOException e) {
+			trial.outcome = Outcome.FAILED;
+			synchronized(this) {
+				if(failure == null) failure = e;
+			}
+			// Fatal, don't waste any more time.
+			for(Trial t : trials)
+				t.cancelled = true;
+		} finally {
+			trial.time = System.currentTimeMillis() - startTime;
+			Closer.close(is);
+			Closer.close(os);
+			if(!keep && result != null) result.free();
+		}
+	}
+
+	private int indexOf(Trial trial) {
+		for(int i=0;i<trials.length;i++)
+			if(trials[i] == trial) return i;
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Choose the best codec, and free the output of all the others. Call after run().
+	 * @param blockSize The size of the blocks the data will be inserted as.
+	 * @return The winning trial, or null if the data should be inserted uncompressed.
+	 */
+	public Trial chooseBest(long blockSize) {
+		Trial best = null;
+		long bestBlocks = origSize / blockSize;
+		for(Trial t : trials) {
+			if(t.outcome != Outcome.COMPRESSED) continue;
+			if(t.compressedSize <= minSize) {
+				best = t;
+				break;
+			}
+			long blocks = t.compressedSize / blockSize;
+			if(blocks < bestBlocks || best != null && blocks == bestBlocks && t.compressedSize < best.compressedSize) {
+				best = t;
+				bestBlocks = blocks;
+			}
+		}
+		freeExcept(best);
+		return best;
+	}
+
+	private void freeExcept(Trial keep) {
+		for(Trial t : trials) {
+			if(t != keep && t.output != null) {
+				t.output.free();
+				t.output = null;
+			}
+		}
+	}
+
+	/** @return The compressed data for a trial, if it hasn't been freed. */
+	public RandomAccessBucket getOutput(Trial trial) {
+		return trial.output;
+	}
+
+	/** @return The hashes of the original data, or null if none were asked for. */
+	public HashResult[] getHashes() {
+		return hashes;
+	}
+
+	public Trial[] getTrials() {
+		return trials.clone();
+	}
+
+	/** @return The time taken for all the trials, in milliseconds. */
+	public long getTime() {
+		return time;
+	}
+
+	public long getOriginalSize() {
+		return origSize;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Trial t : trials) {
+			if(sb.length() > 0) sb.append(' ');
+			sb.append(t);
+		}
+		return sb.toString();
+	}
+
+	/** Aborts the trial if the output is bigger than the best so far, or it has been cancelled. */
+	private class LimitedOutputStream extends FilterOutputStream {
+
+		private final Trial trial;
+		private long written;
+
+		LimitedOutputStream(OutputStream os, Trial trial) {
+			super(os);
+			this.trial = trial;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			check(length);
+			out.write(buf, offset, length);
+		}
+
+		private void check(int length) throws IOException {
+			written += length;
+			if(trial.cancelled || written > bestSize.get())
+				throw new CompressionOutputSizeException(written);
+		}
+
+	}
+
+}
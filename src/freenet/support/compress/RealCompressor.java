@@ -7,6 +7,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 
 import freenet.client.InsertException;
@@ -18,6 +19,11 @@ import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** Runs parts of jobs, e.g. codec trials, in parallel, when trialThreads allows. */
+    private final ExecutorService trialExecutorService;
+    /** Threads available to trialExecutorService. One less than the number of job threads,
+     * so a single job can use all of them, but total CPU usage stays bounded. */
+    private final Semaphore trialThreads;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -26,8 +32,14 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
+        this(getMaxRunningCompressionThreads());
+    }
+
+    RealCompressor(int maxThreads) {
+        this.executorService = Executors.newFixedThreadPool(maxThreads,
                                                             new CompressorThreadFactory());
+        this.trialExecutorService = Executors.newCachedThreadPool(new CompressorThreadFactory());
+        this.trialThreads = new Semaphore(maxThreads - 1);
     }
 
     public void setClientContext(ClientContext context) {
@@ -80,6 +92,33 @@ public class RealCompressor {
         }
     }
 
+    /**
+     * Run part of a compression job on another thread, if one is available.
+     * @return False if there are no spare threads, in which case the caller should do the work
+     * itself.
+     */
+    public boolean tryExecuteInParallel(final Runnable r, final String name) {
+        if(executorService.isShutdown() || !trialThreads.tryAcquire()) return false;
+        try {
+            trialExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } catch (Throwable t) {
+                        Logger.error(this, "Caught " + t + " running " + name, t);
+                    } finally {
+                        trialThreads.release();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            trialThreads.release();
+            return false;
+        }
+    }
+
     private static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
@@ -107,6 +146,7 @@ public class RealCompressor {
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        this.trialExecutorService.shutdown();
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with buckets whose bounds double: bucket 0 is under a
+ * microsecond, bucket 1 up to 2 microseconds, bucket 2 up to 4 and so on. Reporting is a single
+ * atomic increment, so it can be called for every job run by an executor.
+ */
+public final class TimeHistogram {
+
+	/** The last bucket takes everything over 2^(BUCKETS-2) microseconds, about 9 minutes. */
+	static final int BUCKETS = 31;
+	private static final long MICROSECOND = 1000;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** Record a duration. Negative durations (e.g. the clock going backwards) count as zero. */
+	public void report(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	static int bucket(long nanos) {
+		long micros = nanos / MICROSECOND;
+		if(micros <= 0) return 0;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/** @return The upper bound of a bucket, in nanoseconds. */
+	static long upperBound(int bucket) {
+		return (1L << bucket) * MICROSECOND;
+	}
+
+	public long countReports() {
+		long total = 0;
+		for(int i=0;i<BUCKETS;i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * @param fraction Between 0 and 1, e.g. 0.5 for the median.
+	 * @return The upper bound of the bucket containing the given fraction of the reports, in
+	 * nanoseconds, so an overestimate by up to a factor of 2. Zero if nothing has been reported.
+	 */
+	public long percentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) return 0;
+		long target = (long) Math.ceil(total * fraction);
+		if(target < 1) target = 1;
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += snapshot[i];
+			if(seen >= target) return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+}
@@ -0,0 +1,248 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final int FILES = 50;
+	private static final long MAX_FILE_SIZE = 4096;
+
+	private final Random random = new Random(1234);
+
+	private static class Callback implements ArchiveExtractCallback {
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail(e.toString());
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail(e.toString());
+		}
+	}
+
+	private static String name(int i) {
+		return "dir/file" + i + ".html";
+	}
+
+	private static byte[] content(int i) {
+		byte[] data = new byte[(int) (i * 37 % MAX_FILE_SIZE)];
+		for(int j=0;j<data.length;j++)
+			data[j] = (byte) (i + j);
+		return data;
+	}
+
+	private static Bucket makeTar(byte[] big) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		for(int i=0;i<FILES;i++)
+			addTar(tar, name(i), content(i));
+		addTar(tar, "big.bin", big);
+		addTar(tar, "index.html", content(FILES));
+		tar.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static void addTar(TarArchiveOutputStream tar, String name, byte[] data) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(name);
+		entry.setSize(data.length);
+		tar.putArchiveEntry(entry);
+		tar.write(data);
+		tar.closeArchiveEntry();
+	}
+
+	private static Bucket makeZip(byte[] big) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(baos);
+		// Deflated entries don't have a size until after the data.
+		for(int i=0;i<FILES;i++)
+			addZip(zip, name(i), content(i));
+		addZip(zip, "big.bin", big);
+		addZip(zip, "index.html", content(FILES));
+		zip.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static void addZip(ZipOutputStream zip, String name, byte[] data) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(data);
+		zip.closeEntry();
+	}
+
+	private ArchiveManager makeManager(boolean index, int maxElements) {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, MAX_FILE_SIZE, maxElements, new ArrayBucketFactory());
+		manager.setIndexContainers(index);
+		return manager;
+	}
+
+	private Callback extract(ArchiveManager manager, FreenetURI key, ARCHIVE_TYPE type, Bucket data, String element) throws Exception {
+		ArchiveStoreContext ctx = manager.makeContext(key, type, null, false);
+		Callback callback = new Callback();
+		manager.extractToCache(key, type, null, data, new ArchiveContext(64*1024*1024, 1), ctx, element, callback, null);
+		return callback;
+	}
+
+	private static void assertData(byte[] expected, Bucket data) throws IOException {
+		assertNotNull(data);
+		assertEquals(expected.length, data.size());
+		byte[] buf = BucketTools.toByteArray(data);
+		for(int i=0;i<expected.length;i++)
+			assertEquals(expected[i], buf[i]);
+		data.free();
+	}
+
+	private void checkExtract(ARCHIVE_TYPE type, Bucket archive, boolean index) throws Exception {
+		ArchiveManager manager = makeManager(index, 1000);
+		FreenetURI key = FreenetURI.generateRandomCHK(random);
+		Callback callback = extract(manager, key, type, archive, "index.html");
+		assertFalse(callback.notInArchive);
+		assertData(content(FILES), callback.data);
+		for(int i=0;i<FILES;i++)
+			assertData(content(i), manager.getCached(key, name(i)));
+		// Too big, so recorded as an error.
+		assertNull(manager.getCached(key, "big.bin"));
+		// Generated, because there wasn't one.
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		// Reading twice works.
+		assertData(content(1), manager.getCached(key, name(1)));
+		callback = extract(manager, key, type, archive, "missing.html");
+		assertTrue(callback.notInArchive);
+	}
+
+	public void testTar() throws Exception {
+		Bucket archive = makeTar(new byte[(int) MAX_FILE_SIZE + 1]);
+		checkExtract(ARCHIVE_TYPE.TAR, archive, true);
+		checkExtract(ARCHIVE_TYPE.TAR, archive, false);
+	}
+
+	public void testZip() throws Exception {
+		Bucket archive = makeZip(new byte[(int) MAX_FILE_SIZE * 3]);
+		checkExtract(ARCHIVE_TYPE.ZIP, archive, true);
+		checkExtract(ARCHIVE_TYPE.ZIP, archive, false);
+	}
+
+	public void testBigElementRequested() throws Exception {
+		byte[] big = new byte[(int) MAX_FILE_SIZE * 2];
+		random.nextBytes(big);
+		for(boolean index : new boolean[] { true, false }) {
+			ArchiveManager manager = makeManager(index, 1000);
+			FreenetURI key = FreenetURI.generateRandomCHK(random);
+			Callback callback = extract(manager, key, ARCHIVE_TYPE.TAR, makeTar(big), "big.bin");
+			assertData(big, callback.data);
+			assertNull(manager.getCached(key, "big.bin"));
+		}
+	}
+
+	public void testEviction() throws Exception {
+		ArchiveManager manager = makeManager(true, 10);
+		FreenetURI key = FreenetURI.generateRandomCHK(random);
+		Bucket archive = makeTar(new byte[1]);
+		Callback callback = extract(manager, key, ARCHIVE_TYPE.TAR, archive, "index.html");
+		Bucket held = callback.data;
+		int cached = 0;
+		for(int i=0;i<FILES;i++) {
+			Bucket data = manager.getCached(key, name(i));
+			if(data == null) continue;
+			cached++;
+			assertData(content(i), data);
+		}
+		assertTrue(cached > 0 && cached < 10);
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		// Evict everything, by extracting another archive.
+		FreenetURI key2 = FreenetURI.generateRandomCHK(random);
+		extract(manager, key2, ARCHIVE_TYPE.TAR, archive, "index.html");
+		for(int i=0;i<FILES;i++)
+			assertNull(manager.getCached(key, name(i)));
+		// Data already handed out is still readable.
+		assertData(content(FILES), held);
+	}
+
+	public void testSpaceUsed() throws Exception {
+		long total = 0;
+		for(int i=0;i<=FILES;i++)
+			total += content(i).length;
+		// Only a few files stay cached, but they keep the whole buffer.
+		ArchiveManager manager = makeManager(true, 10);
+		FreenetURI key = FreenetURI.generateRandomCHK(random);
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.TAR, null, false);
+		Callback callback = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.TAR, null, makeTar(new byte[1]), new ArchiveContext(64*1024*1024, 1), ctx, "index.html", callback, null);
+		callback.data.free();
+		assertTrue(manager.getCachedData() >= total);
+		// Freed, and no longer charged, once all the files have gone.
+		ctx.removeAllCachedItems(manager);
+		assertEquals(0, manager.getCachedData());
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		// A freesite with a lot of small files.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		int files = 500;
+		for(int i=0;i<files;i++)
+			addTar(tar, name(i), content(i));
+		tar.close();
+		Bucket archive = new ArrayBucket(baos.toByteArray());
+		for(int round=0;round<3;round++) {
+			for(boolean index : new boolean[] { false, true }) {
+				ArchiveManager manager = new ArchiveManager(10, 64*1024*1024, MAX_FILE_SIZE, 10000, new CountingBucketFactory());
+				manager.setIndexContainers(index);
+				long start = System.nanoTime();
+				for(int i=0;i<10;i++)
+					extract(manager, FreenetURI.generateRandomCHK(random), ARCHIVE_TYPE.TAR, archive, name(0));
+				long time = System.nanoTime() - start;
+				System.out.println((index ? "Indexed: " : "Per file: ") + (time / 10 / 1000) + "us per extraction, " +
+						(CountingBucketFactory.made / 10) + " buckets per extraction");
+				CountingBucketFactory.made = 0;
+			}
+		}
+	}
+
+	private static class CountingBucketFactory extends ArrayBucketFactory {
+		static int made;
+
+		@Override
+		public RandomAccessBucket makeBucket(long size) throws IOException {
+			made++;
+			return super.makeBucket(size);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata.DocumentType;
+import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+
+public class LazyManifestTest extends TestCase {
+
+	private final Random random = new Random(5678);
+
+	private Metadata redirect(FreenetURI uri) {
+		return new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, uri, new ClientMetadata("text/html"));
+	}
+
+	/** A site with the given number of files, an index, and a sub-directory. */
+	private byte[] makeSite(int files, FreenetURI[] uris) throws MetadataUnresolvedException {
+		SimpleManifestComposer site = new SimpleManifestComposer();
+		for(int i=0;i<files;i++) {
+			uris[i] = FreenetURI.generateRandomCHK(random);
+			site.addItem("file" + i + ".html", redirect(uris[i]));
+		}
+		site.addItem("", redirect(uris[0]));
+		SimpleManifestComposer dir = new SimpleManifestComposer();
+		dir.addItem("inner.html", redirect(uris[1]));
+		site.addItem("dir", dir.getMetadata());
+		return site.getMetadata().writeToByteArray();
+	}
+
+	public void testLookup() throws Exception {
+		int files = 100;
+		FreenetURI[] uris = new FreenetURI[files];
+		Metadata site = Metadata.construct(makeSite(files, uris));
+		assertTrue(site.isSimpleManifest());
+		assertEquals(files + 2, site.countDocuments());
+		for(int i=0;i<files;i++) {
+			Metadata doc = site.getDocument("file" + i + ".html");
+			assertEquals(uris[i], doc.getSingleTarget());
+			assertEquals("text/html", doc.getMIMEType());
+		}
+		assertNull(site.getDocument("missing.html"));
+		assertEquals(uris[0], site.getDefaultDocument().getSingleTarget());
+		Metadata dir = site.getDocument("dir");
+		assertTrue(dir.isSimpleManifest());
+		assertEquals(uris[1], dir.getDocument("inner.html").getSingleTarget());
+		assertEquals(files + 1, site.getDocuments().size());
+		// Each lookup is a new copy, so grabbing doesn't change the manifest.
+		assertNotSame(site.getDocument("file1.html"), site.getDocument("file1.html"));
+		assertNotNull(site.grabDocument("file1.html"));
+		assertNotNull(site.getDocument("file1.html"));
+	}
+
+	public void testWriteUnchanged() throws Exception {
+		int files = 20;
+		FreenetURI[] uris = new FreenetURI[files];
+		Metadata site = Metadata.construct(makeSite(files, uris));
+		Metadata clone = (Metadata) site.clone();
+		byte[] written = site.writeToByteArray();
+		Metadata reread = Metadata.construct(written);
+		assertEquals(files + 2, reread.countDocuments());
+		assertEquals(uris[5], reread.getDocument("file5.html").getSingleTarget());
+		assertEquals(uris[1], reread.getDocument("dir").getDocument("inner.html").getSingleTarget());
+		assertEquals(uris[5], clone.getDocument("file5.html").getSingleTarget());
+	}
+
+	/** A manifest in the binary format, with the given names and entries. */
+	private static byte[] rawManifest(String[] names, byte[][] entries) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeLong(Metadata.FREENET_METADATA_MAGIC);
+		dos.writeShort(0);
+		dos.writeByte(DocumentType.SIMPLE_MANIFEST.code);
+		dos.writeInt(names.length);
+		for(int i=0;i<names.length;i++) {
+			byte[] name = names[i].getBytes("UTF-8");
+			dos.writeShort(name.length);
+			dos.write(name);
+			dos.writeShort(entries[i].length);
+			dos.write(entries[i]);
+		}
+		dos.close();
+		return baos.toByteArray();
+	}
+
+	public void testDuplicateAndInvalidEntries() throws Exception {
+		FreenetURI first = FreenetURI.generateRandomCHK(random);
+		FreenetURI second = FreenetURI.generateRandomCHK(random);
+		byte[] bad = new byte[] { 1, 2, 3 };
+		Metadata site = Metadata.construct(rawManifest(
+				new String[] { "a", "bad", "a" },
+				new byte[][] { redirect(first).writeToByteArray(), bad, redirect(second).writeToByteArray() }));
+		assertEquals(2, site.countDocuments());
+		// The last one wins, as when they were put into a HashMap.
+		assertEquals(second, site.getDocument("a").getSingleTarget());
+		// Only fails when it is looked up.
+		try {
+			site.getDocument("bad");
+			fail("Parsed invalid entry");
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		int files = 20000;
+		byte[] data = makeSite(files, new FreenetURI[files]);
+		for(int round=0;round<3;round++) {
+			int lookups = 100;
+			long start = System.nanoTime();
+			for(int i=0;i<lookups;i++) {
+				Metadata site = Metadata.construct(data);
+				// What the eager parser used to do.
+				site.getDocuments();
+			}
+			long eager = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<lookups;i++)
+				Metadata.construct(data).getDocument("file" + i + ".html");
+			long lazy = System.nanoTime() - start;
+			Metadata cached = Metadata.construct(data);
+			start = System.nanoTime();
+			for(int i=0;i<lookups;i++)
+				((Metadata) cached.clone()).getDocument("file" + i + ".html");
+			long clone = System.nanoTime() - start;
+			System.out.println(files + " entries: full parse " + (eager / lookups / 1000) + "us, lazy parse and lookup " +
+					(lazy / lookups / 1000) + "us, lookup in cached copy " + (clone / lookups / 1000) + "us");
+		}
+	}
+
+}
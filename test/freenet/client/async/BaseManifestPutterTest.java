@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.client.ClientMetadata;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.InsertContext;
+import freenet.client.Metadata;
+import freenet.client.Metadata.DocumentType;
+import freenet.client.async.BaseManifestPutter.PutHandler;
+import freenet.client.events.SimpleEventProducer;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.support.Executor;
+import freenet.support.api.ManifestElement;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+
+/** Tests reusing files which were inserted with an earlier edition of a site. The inserters are
+ * replaced with mocks, so nothing is actually inserted. */
+public class BaseManifestPutterTest extends TestCase {
+
+	private final File base = new File("tmp.base-manifest-putter-test");
+	private final RandomSource random = new DummyRandomSource(5052);
+	private InsertedFileStore store;
+	private ClientLayerPersister jobRunner;
+	private ClientContext context;
+	private InsertContext ctx;
+
+	@Override
+	protected void setUp() throws IOException {
+		FileUtil.removeAll(base);
+		base.mkdir();
+		ClientLayerCacheFile file = new ClientLayerCacheFile(base, "inserted-files.dat");
+		file.setFiles(false, false, null);
+		store = spy(new InsertedFileStore(file));
+		assertTrue(store.load());
+		// Only look for unchanged files, on this thread; drop inserting the manifest.
+		Executor executor = mock(Executor.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(executor).execute(any(Runnable.class), startsWith("Look for unchanged files"));
+		// For the manifest.
+		Answer<ArrayBucket> makeBucket = new Answer<ArrayBucket>() {
+			@Override
+			public ArrayBucket answer(InvocationOnMock invocation) {
+				return new ArrayBucket();
+			}
+		};
+		TempBucketFactory tbf = mock(TempBucketFactory.class);
+		when(tbf.makeBucket(anyLong())).thenAnswer(makeBucket);
+		PersistentTempBucketFactory ptbf = mock(PersistentTempBucketFactory.class);
+		when(ptbf.makeBucket(anyLong())).thenAnswer(makeBucket);
+		jobRunner = mock(ClientLayerPersister.class);
+		context = new ClientContext(0, jobRunner, executor, null, ptbf, tbf, null, null, null,
+				random, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+		context.insertedFileStore = store;
+		ctx = HighLevelSimpleClientImpl.makeDefaultInsertContext(new ArrayBucketFactory(), new SimpleEventProducer());
+		ctx.reuseUnchangedFiles = true;
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private BaseManifestPutter makePutter(FreenetURI target, byte[] content) throws Exception {
+		return makePutter(target, content, false);
+	}
+
+	private BaseManifestPutter makePutter(FreenetURI target, byte[] content, boolean persistent) throws Exception {
+		HashMap<String, Object> elements = new HashMap<String, Object>();
+		elements.put("index.html", new ManifestElement("index.html", new ArrayBucket(content.clone()), "text/html", content.length));
+		RequestClient client = mock(RequestClient.class);
+		when(client.persistent()).thenReturn(persistent);
+		ClientPutCallback cb = mock(ClientPutCallback.class);
+		when(cb.getRequestClient()).thenReturn(client);
+		return new PlainManifestPutter(cb, elements, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+				target, "index.html", ctx, false, false, persistent, null, context);
+	}
+
+	/** @return The file's put handler, whose inserter is replaced by the given mock. */
+	private PutHandler replaceInserter(BaseManifestPutter putter, ClientPutState inserter) {
+		PutHandler[] handlers = putter.getRunningPutHandlers();
+		assertEquals(1, handlers.length);
+		handlers[0].origSFI = inserter;
+		return handlers[0];
+	}
+
+	private byte[] makeContent() {
+		byte[] content = new byte[1000];
+		random.nextBytes(content);
+		return content;
+	}
+
+	/** Insert the first edition, recording the file in the store as if it had been inserted.
+	 * @return The metadata recorded. */
+	private Metadata insertFirstEdition(FreenetURI site, byte[] content) throws Exception {
+		BaseManifestPutter first = makePutter(site, content);
+		ClientPutState inserter = mock(ClientPutState.class);
+		PutHandler handler = replaceInserter(first, inserter);
+		first.start(context);
+		verify(inserter).schedule(context);
+		// What the inserter does when it finishes.
+		Metadata m = new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, FreenetURI.generateRandomCHK(random),
+				new ClientMetadata("text/html"));
+		handler.onMetadata(m, inserter, context);
+		handler.onBlockSetFinished(inserter, context);
+		handler.onSuccess(inserter, context);
+		verify(store).put(anyString(), eq(m));
+		assertEquals(1, store.size());
+		return m;
+	}
+
+	public void testReuseUnchangedFile() throws Exception {
+		FreenetURI site = InsertableClientSSK.createRandom(random, "site").getInsertURI();
+		byte[] content = makeContent();
+		Metadata m = insertFirstEdition(site, content);
+		// The next edition, with the same file.
+		BaseManifestPutter second = makePutter(site.setDocName("site-2"), content);
+		ClientPutState inserter = mock(ClientPutState.class);
+		PutHandler handler = replaceInserter(second, inserter);
+		second.start(context);
+		verify(inserter, never()).schedule(any(ClientContext.class));
+		// The store keeps its own copy.
+		assertEquals(m.getSingleTarget(), handler.metadata.getSingleTarget());
+		// Finished with it, as if it had been inserted.
+		assertEquals(0, second.getRunningPutHandlers().length);
+		// Not recorded again, as it wasn't inserted.
+		verify(store, times(1)).put(anyString(), any(Metadata.class));
+	}
+
+	public void testInsertChangedFile() throws Exception {
+		FreenetURI site = InsertableClientSSK.createRandom(random, "site").getInsertURI();
+		insertFirstEdition(site, makeContent());
+		BaseManifestPutter second = makePutter(site.setDocName("site-2"), makeContent());
+		ClientPutState inserter = mock(ClientPutState.class);
+		PutHandler handler = replaceInserter(second, inserter);
+		second.start(context);
+		verify(inserter).schedule(context);
+		assertNull(handler.metadata);
+	}
+
+	public void testNotReusingFiles() throws Exception {
+		FreenetURI site = InsertableClientSSK.createRandom(random, "site").getInsertURI();
+		byte[] content = makeContent();
+		insertFirstEdition(site, content);
+		ctx.reuseUnchangedFiles = false;
+		BaseManifestPutter second = makePutter(site.setDocName("site-2"), content);
+		ClientPutState inserter = mock(ClientPutState.class);
+		PutHandler handler = replaceInserter(second, inserter);
+		second.start(context);
+		verify(inserter).schedule(context);
+		// No content key, so nothing is recorded when it finishes.
+		Metadata m = new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, FreenetURI.generateRandomCHK(random),
+				new ClientMetadata("text/html"));
+		handler.onMetadata(m, inserter, context);
+		handler.onBlockSetFinished(inserter, context);
+		handler.onSuccess(inserter, context);
+		verify(store, times(1)).put(anyString(), any(Metadata.class));
+	}
+
+	public void testPersistentStartsOnJobRunner() throws Exception {
+		FreenetURI site = InsertableClientSSK.createRandom(random, "site").getInsertURI();
+		byte[] content = makeContent();
+		insertFirstEdition(site, content);
+		BaseManifestPutter second = makePutter(site.setDocName("site-2"), content, true);
+		ClientPutState inserter = mock(ClientPutState.class);
+		PutHandler handler = replaceInserter(second, inserter);
+		second.start(context);
+		// Hashed, but nothing changed until the job runs.
+		ArgumentCaptor<PersistentJob> job = ArgumentCaptor.forClass(PersistentJob.class);
+		verify(jobRunner).queue(job.capture(), anyInt());
+		assertNull(handler.metadata);
+		assertEquals(1, second.getRunningPutHandlers().length);
+		job.getValue().run(context);
+		verify(inserter, never()).schedule(any(ClientContext.class));
+		assertNotNull(handler.metadata);
+		assertEquals(0, second.getRunningPutHandlers().length);
+	}
+
+}
@@ -0,0 +1,227 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.client.async.SplitFileInserterSegmentStorage.BlockInsert;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.Executor;
+
+/** Tests the cache with a segment whose blocks are encoded instantly, so it doesn't need FEC. */
+public class EncodedBlockCacheTest extends TestCase {
+
+	private static final int BLOCKS = 8;
+
+	private final SplitFileInserterSegmentStorage segment = mock(SplitFileInserterSegmentStorage.class);
+	/** What the segment returns for each block. A new block each time, like a real encode. */
+	private final ClientCHKBlock[] lastEncoded = new ClientCHKBlock[BLOCKS];
+
+	@Override
+	protected void setUp() throws IOException {
+		when(segment.encodeBlock(anyInt())).thenAnswer(new Answer<ClientCHKBlock>() {
+			@Override
+			public ClientCHKBlock answer(InvocationOnMock invocation) {
+				int blockNo = (Integer) invocation.getArguments()[0];
+				ClientCHKBlock block = mock(ClientCHKBlock.class);
+				synchronized(lastEncoded) {
+					lastEncoded[blockNo] = block;
+				}
+				return block;
+			}
+		});
+	}
+
+	private BlockInsert block(int blockNo) {
+		return new BlockInsert(segment, blockNo);
+	}
+
+	public void testHitsAndMisses() throws IOException {
+		EncodedBlockCache cache = new EncodedBlockCache(4, null, 0);
+		ClientCHKBlock encoded = cache.encode(block(0));
+		assertSame(lastEncoded[0], encoded);
+		assertEquals(1, cache.blocksEncoded());
+		assertEquals(0, cache.cacheHits());
+		assertEquals(1, cache.cacheMisses());
+		assertEquals(0, cache.size());
+		// A failed insert is kept for the retry, which doesn't encode again.
+		cache.failed(block(0), encoded);
+		assertEquals(1, cache.size());
+		assertSame(encoded, cache.encode(block(0)));
+		verify(segment, times(1)).encodeBlock(0);
+		verify(segment).checkCanInsert(0);
+		assertEquals(1, cache.blocksEncoded());
+		assertEquals(1, cache.cacheHits());
+		assertEquals(1, cache.cacheMisses());
+		// Only used once.
+		assertEquals(0, cache.size());
+		assertNotSame(encoded, cache.encode(block(0)));
+		assertEquals(2, cache.blocksEncoded());
+		assertEquals(2, cache.cacheMisses());
+		// Another block, even with the same number in another segment, is a miss.
+		cache.failed(block(1), cache.encode(block(1)));
+		assertEquals(3, cache.cacheMisses());
+		SplitFileInserterSegmentStorage other = mock(SplitFileInserterSegmentStorage.class);
+		cache.encode(new BlockInsert(other, 1));
+		assertEquals(4, cache.cacheMisses());
+		assertEquals(1, cache.size());
+		assertTrue(cache.encodeRate() > 0);
+	}
+
+	public void testHitStillChecked() throws IOException {
+		EncodedBlockCache cache = new EncodedBlockCache(4, null, 0);
+		cache.failed(block(2), cache.encode(block(2)));
+		// E.g. inserted by another request in the meantime.
+		doThrow(new IOException("Already inserted")).when(segment).checkCanInsert(2);
+		try {
+			cache.encode(block(2));
+			fail("Used a block which can't be inserted");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(0, cache.cacheHits());
+	}
+
+	public void testEviction() throws IOException {
+		EncodedBlockCache cache = new EncodedBlockCache(2, null, 0);
+		ClientCHKBlock[] encoded = new ClientCHKBlock[3];
+		for(int i=0;i<3;i++) {
+			encoded[i] = cache.encode(block(i));
+			cache.failed(block(i), encoded[i]);
+		}
+		// Least recently failed dropped.
+		assertEquals(2, cache.size());
+		assertNotSame(encoded[0], cache.encode(block(0)));
+		assertSame(encoded[1], cache.encode(block(1)));
+		assertSame(encoded[2], cache.encode(block(2)));
+		assertEquals(2, cache.cacheHits());
+		assertEquals(4, cache.cacheMisses());
+		assertEquals(4, cache.blocksEncoded());
+	}
+
+	/** The encoder jobs started so far. They only run when the test runs them. */
+	private List<Runnable> started(Executor executor, int times) {
+		ArgumentCaptor<Runnable> jobs = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor, times(times)).execute(jobs.capture(), anyString());
+		return jobs.getAllValues();
+	}
+
+	public void testNoExecutor() throws IOException {
+		EncodedBlockCache cache = new EncodedBlockCache(4, null, 0);
+		assertFalse(cache.encodeInAdvance(block(0)));
+		assertEquals(0, cache.size());
+		cache.encode(block(0));
+		assertEquals(1, cache.cacheMisses());
+		assertEquals(0, cache.blocksEncodedInAdvance());
+	}
+
+	public void testEncodeInAdvance() throws IOException {
+		Executor executor = mock(Executor.class);
+		EncodedBlockCache cache = new EncodedBlockCache(64, executor, 1);
+		assertTrue(cache.encodeInAdvance(block(0)));
+		// Already queued.
+		assertTrue(cache.encodeInAdvance(block(0)));
+		List<Runnable> jobs = started(executor, 1);
+		jobs.get(0).run();
+		assertEquals(1, cache.size());
+		// Already encoded.
+		assertTrue(cache.encodeInAdvance(block(0)));
+		started(executor, 1);
+		assertSame(lastEncoded[0], cache.encode(block(0)));
+		verify(segment, times(1)).encodeBlock(0);
+		assertEquals(1, cache.blocksEncoded());
+		assertEquals(1, cache.blocksEncodedInAdvance());
+		assertEquals(1, cache.cacheHits());
+		assertEquals(0, cache.cacheMisses());
+	}
+
+	public void testBoundedQueue() throws IOException {
+		Executor executor = mock(Executor.class);
+		// 4 blocks may wait, 1 thread.
+		EncodedBlockCache cache = new EncodedBlockCache(64, executor, 1);
+		for(int i=0;i<4;i++)
+			assertTrue(cache.encodeInAdvance(block(i)));
+		assertFalse(cache.encodeInAdvance(block(4)));
+		List<Runnable> jobs = started(executor, 1);
+		jobs.get(0).run();
+		assertEquals(4, cache.size());
+		assertEquals(4, cache.blocksEncodedInAdvance());
+		verify(segment, never()).encodeBlock(4);
+		// The thread has finished, so the next block starts another.
+		assertTrue(cache.encodeInAdvance(block(4)));
+		started(executor, 2);
+	}
+
+	public void testEncodeQueued() throws IOException {
+		Executor executor = mock(Executor.class);
+		EncodedBlockCache cache = new EncodedBlockCache(64, executor, 1);
+		assertTrue(cache.encodeInAdvance(block(0)));
+		// Not started yet, so the sender encodes it rather than waiting.
+		ClientCHKBlock encoded = cache.encode(block(0));
+		assertSame(lastEncoded[0], encoded);
+		assertEquals(1, cache.cacheMisses());
+		started(executor, 1).get(0).run();
+		verify(segment, times(1)).encodeBlock(0);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.blocksEncodedInAdvance());
+	}
+
+	public void testWaitForEncoder() throws Exception {
+		final CountDownLatch encoding = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		final ClientCHKBlock encoded = mock(ClientCHKBlock.class);
+		when(segment.encodeBlock(0)).thenAnswer(new Answer<ClientCHKBlock>() {
+			@Override
+			public ClientCHKBlock answer(InvocationOnMock invocation) throws InterruptedException {
+				encoding.countDown();
+				finish.await();
+				return encoded;
+			}
+		});
+		Executor executor = mock(Executor.class);
+		final EncodedBlockCache cache = new EncodedBlockCache(64, executor, 1);
+		assertTrue(cache.encodeInAdvance(block(0)));
+		Thread encoder = new Thread(started(executor, 1).get(0));
+		encoder.start();
+		encoding.await();
+		final ClientCHKBlock[] result = new ClientCHKBlock[1];
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = cache.encode(block(0));
+				} catch (IOException e) {
+					// Checked below.
+				}
+			}
+		};
+		sender.start();
+		Thread.sleep(100);
+		finish.countDown();
+		sender.join();
+		encoder.join();
+		assertSame(encoded, result[0]);
+		verify(segment, times(1)).encodeBlock(0);
+		assertEquals(1, cache.cacheHits());
+		assertEquals(0, cache.cacheMisses());
+	}
+
+}
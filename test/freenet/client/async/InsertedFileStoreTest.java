@@ -0,0 +1,227 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.ClientMetadata;
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.client.Metadata;
+import freenet.client.Metadata.DocumentType;
+import freenet.client.MetadataUnresolvedException;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.Key;
+import freenet.node.DatabaseKey;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileUtil;
+
+public class InsertedFileStoreTest extends TestCase {
+
+	private final File base = new File("tmp.inserted-file-store-test");
+	private final RandomSource random = new DummyRandomSource(5050);
+
+	@Override
+	protected void setUp() {
+		FileUtil.removeAll(base);
+		base.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private ArrayBucket makeData(int size) {
+		byte[] buf = new byte[size];
+		random.nextBytes(buf);
+		return new ArrayBucket(buf);
+	}
+
+	private Metadata makeMetadata(String mime) {
+		return new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, FreenetURI.generateRandomCHK(random),
+				mime == null ? null : new ClientMetadata(mime));
+	}
+
+	private ClientLayerCacheFile makeFile(boolean encrypted, boolean noWrite, DatabaseKey key) {
+		ClientLayerCacheFile file = new ClientLayerCacheFile(base, "inserted-files.dat");
+		file.setFiles(encrypted, noWrite, key);
+		return file;
+	}
+
+	private InsertedFileStore makeStore(ClientLayerCacheFile file) {
+		InsertedFileStore store = new InsertedFileStore(file);
+		assertTrue(store.load());
+		return store;
+	}
+
+	private FreenetURI makeSite(String name) {
+		return InsertableClientSSK.createRandom(random, name).getInsertURI();
+	}
+
+	public void testMakeScope() {
+		FreenetURI site = makeSite("site");
+		byte[] scope = InsertedFileStore.makeScope(site, Key.ALGO_AES_CTR_256_SHA256, null, true);
+		// The next edition of the same site.
+		FreenetURI edition = site.setDocName("site-5");
+		assertTrue(Arrays.equals(scope, InsertedFileStore.makeScope(edition, Key.ALGO_AES_CTR_256_SHA256, null, true)));
+		assertTrue(Arrays.equals(scope, InsertedFileStore.makeScope(edition.uskForSSK(), Key.ALGO_AES_CTR_256_SHA256, null, true)));
+		// Another site.
+		assertFalse(Arrays.equals(scope, InsertedFileStore.makeScope(makeSite("site"), Key.ALGO_AES_CTR_256_SHA256, null, true)));
+		// Other crypto settings.
+		assertFalse(Arrays.equals(scope, InsertedFileStore.makeScope(site, Key.ALGO_AES_PCFB_256_SHA256, null, true)));
+		assertFalse(Arrays.equals(scope, InsertedFileStore.makeScope(site, Key.ALGO_AES_CTR_256_SHA256, null, false)));
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		byte[] forced = InsertedFileStore.makeScope(site, Key.ALGO_AES_CTR_256_SHA256, cryptoKey, false);
+		assertFalse(Arrays.equals(scope, forced));
+		cryptoKey[0]++;
+		assertFalse(Arrays.equals(forced, InsertedFileStore.makeScope(site, Key.ALGO_AES_CTR_256_SHA256, cryptoKey, false)));
+		// A CHK site has no key, but its files can still be reused.
+		assertNotNull(InsertedFileStore.makeScope(FreenetURI.EMPTY_CHK_URI, Key.ALGO_AES_CTR_256_SHA256, null, false));
+		assertNull(InsertedFileStore.makeScope(new FreenetURI("KSK", "site"), Key.ALGO_AES_CTR_256_SHA256, null, true));
+	}
+
+	public void testMakeKey() throws IOException {
+		byte[] scope = InsertedFileStore.makeScope(makeSite("site"), Key.ALGO_AES_CTR_256_SHA256, null, true);
+		ArrayBucket data = makeData(1000);
+		ClientMetadata html = new ClientMetadata("text/html");
+		String key = InsertedFileStore.makeKey(scope, data, html, CompatibilityMode.COMPAT_CURRENT);
+		// Same content under another name.
+		ArrayBucket copy = new ArrayBucket(data.toByteArray());
+		assertEquals(key, InsertedFileStore.makeKey(scope, copy, new ClientMetadata("text/html"), CompatibilityMode.COMPAT_CURRENT));
+		// The MIME type and the compatibility mode are part of the metadata.
+		assertFalse(key.equals(InsertedFileStore.makeKey(scope, data, null, CompatibilityMode.COMPAT_CURRENT)));
+		assertFalse(key.equals(InsertedFileStore.makeKey(scope, data, html, CompatibilityMode.COMPAT_1255)));
+		byte[] changed = data.toByteArray();
+		changed[500]++;
+		assertFalse(key.equals(InsertedFileStore.makeKey(scope, new ArrayBucket(changed), html, CompatibilityMode.COMPAT_CURRENT)));
+		// Not reused for another site.
+		byte[] other = InsertedFileStore.makeScope(makeSite("other"), Key.ALGO_AES_CTR_256_SHA256, null, true);
+		assertFalse(key.equals(InsertedFileStore.makeKey(other, data, html, CompatibilityMode.COMPAT_CURRENT)));
+	}
+
+	public void testRestart() throws IOException {
+		File file = new File(base, "inserted-files.dat");
+		InsertedFileStore store = makeStore(makeFile(false, false, null));
+		assertFalse(store.load());
+		assertEquals(0, store.size());
+		assertNull(store.get("missing"));
+		Metadata a = makeMetadata("image/png");
+		Metadata b = makeMetadata(null);
+		store.put("a", a);
+		store.put("b", b);
+		store.write();
+		assertTrue(file.exists());
+
+		InsertedFileStore reloaded = makeStore(makeFile(false, false, null));
+		assertEquals(2, reloaded.size());
+		Metadata m = reloaded.get("a");
+		assertEquals(a.getSingleTarget(), m.getSingleTarget());
+		assertEquals("image/png", m.getMIMEType());
+		assertEquals(b.getSingleTarget(), reloaded.get("b").getSingleTarget());
+		// Each get() returns a new copy, which can go into a manifest.
+		assertNotSame(reloaded.get("a"), reloaded.get("a"));
+	}
+
+	public void testLoadKeepsNewer() {
+		InsertedFileStore store = makeStore(makeFile(false, false, null));
+		store.put("a", makeMetadata("text/plain"));
+		store.write();
+		// Inserted before the file could be read, e.g. while waiting for the password.
+		InsertedFileStore reloaded = new InsertedFileStore(makeFile(false, false, null));
+		Metadata b = makeMetadata("text/plain");
+		reloaded.put("b", b);
+		// Not written over the file before it has been read.
+		reloaded.write();
+		assertTrue(reloaded.load());
+		assertEquals(2, reloaded.size());
+		assertEquals(b.getSingleTarget(), reloaded.get("b").getSingleTarget());
+	}
+
+	public void testEncrypted() {
+		DatabaseKey key = DatabaseKey.createRandom(random);
+		File plain = new File(base, "inserted-files.dat");
+		File crypt = new File(base, "inserted-files.dat.crypt");
+		InsertedFileStore store = makeStore(makeFile(true, false, key));
+		store.put("a", makeMetadata("text/html"));
+		store.write();
+		assertTrue(crypt.exists());
+		assertFalse(plain.exists());
+		assertEquals(1, makeStore(makeFile(true, false, key)).size());
+		// Can't be read without the key.
+		assertEquals(0, makeStore(makeFile(true, false, DatabaseKey.createRandom(random))).size());
+	}
+
+	public void testNoWrite() {
+		File file = new File(base, "inserted-files.dat");
+		InsertedFileStore store = makeStore(makeFile(false, false, null));
+		store.put("a", makeMetadata("text/html"));
+		store.write();
+		assertTrue(file.exists());
+		// Physical security level MAXIMUM: nothing on disk.
+		store = makeStore(makeFile(false, true, null));
+		assertFalse(file.exists());
+		assertEquals(0, store.size());
+		store.put("b", makeMetadata("text/html"));
+		store.write();
+		assertEquals(0, base.list().length);
+	}
+
+	public void testPanic() {
+		ClientLayerCacheFile file = makeFile(true, false, DatabaseKey.createRandom(random));
+		InsertedFileStore store = makeStore(file);
+		store.put("a", makeMetadata("text/html"));
+		store.write();
+		assertTrue(new File(base, "inserted-files.dat.crypt").exists());
+		file.panic();
+		assertEquals(0, base.list().length);
+		store.put("b", makeMetadata("text/html"));
+		store.write();
+		assertEquals(0, base.list().length);
+	}
+
+	public void testBounded() throws MetadataUnresolvedException {
+		Metadata m = makeMetadata("text/html");
+		int length = m.writeToByteArray().length;
+		InsertedFileStore store = new InsertedFileStore(makeFile(false, true, null), length * 2);
+		store.put("a", m);
+		store.put("b", makeMetadata("text/html"));
+		// Used, so not dropped.
+		assertNotNull(store.get("a"));
+		store.put("c", makeMetadata("text/html"));
+		assertEquals(2, store.size());
+		assertNotNull(store.get("a"));
+		assertNull(store.get("b"));
+		assertNotNull(store.get("c"));
+		// Replacing doesn't count twice.
+		store.put("c", makeMetadata("text/html"));
+		assertEquals(2, store.size());
+	}
+
+	public void testCorruptFile() throws IOException {
+		File file = new File(base, "inserted-files.dat");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		fos.close();
+		InsertedFileStore store = makeStore(makeFile(false, false, null));
+		assertEquals(0, store.size());
+		// Truncated.
+		store.put("a", makeMetadata("text/plain"));
+		store.write();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+		assertEquals(0, makeStore(makeFile(false, false, null)).size());
+	}
+
+}
@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata;
+import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.keys.FreenetURI;
+
+public class ManifestCacheTest extends TestCase {
+
+	private final Random random = new Random(91011);
+
+	private Metadata manifest() throws Exception {
+		SimpleManifestComposer composer = new SimpleManifestComposer();
+		composer.addItem("dir", new SimpleManifestComposer().getMetadata());
+		return Metadata.construct(composer.getMetadata().writeToByteArray());
+	}
+
+	public void testGetReturnsCopy() throws Exception {
+		ManifestCache cache = new ManifestCache();
+		FreenetURI key = FreenetURI.generateRandomCHK(random);
+		assertNull(cache.get(key));
+		Metadata m = manifest();
+		cache.put(key, m, 100);
+		Metadata got = cache.get(key);
+		assertNotNull(got);
+		assertNotSame(m, got);
+		assertNotSame(got, cache.get(key));
+		assertEquals(1, got.countDocuments());
+		assertNotNull(got.getDocument("dir"));
+	}
+
+	public void testLimits() throws Exception {
+		ManifestCache cache = new ManifestCache(3, 1000);
+		FreenetURI[] keys = new FreenetURI[5];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = FreenetURI.generateRandomCHK(random);
+			cache.put(keys[i], manifest(), 100);
+		}
+		assertEquals(3, cache.size());
+		assertNull(cache.get(keys[0]));
+		assertNull(cache.get(keys[1]));
+		// Most recently used is kept.
+		assertNotNull(cache.get(keys[2]));
+		cache.put(FreenetURI.generateRandomCHK(random), manifest(), 850);
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(keys[2]));
+		assertNull(cache.get(keys[3]));
+		// Too big to cache at all.
+		FreenetURI big = FreenetURI.generateRandomCHK(random);
+		cache.put(big, manifest(), 1001);
+		assertNull(cache.get(big));
+	}
+
+}
@@ -373,6 +373,95 @@ public class SplitFileInserterStorageTest extends TestCase {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
+    public void testEncodedBlockCache() throws IOException, InsertException, MissingKeyException {
+        Random r = new Random(12121);
+        long size = 65536; // Exact multiple, so no last block
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        InsertContext context = baseContext.clone();
+        context.maxInsertRetries = 2;
+        MyKeysFetchingLocally keys = new MyKeysFetchingLocally();
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, false, context, 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        storage.start();
+        cb.waitForFinishedEncode();
+        SplitFileInserterSegmentStorage segment = storage.segments[0];
+        EncodedBlockCache cache = new EncodedBlockCache(segment.totalBlockCount, null, 0);
+        ClientCHKBlock[] encoded = new ClientCHKBlock[segment.totalBlockCount];
+        // Choose and fail all blocks.
+        for(int i=0;i<segment.totalBlockCount;i++) {
+            BlockInsert chosen = segment.chooseBlock();
+            keys.addInsert(chosen);
+            ClientCHKBlock block = cache.encode(chosen);
+            encoded[chosen.blockNumber] = block;
+            cache.failed(chosen, block);
+            segment.onFailure(chosen.blockNumber, new InsertException(InsertExceptionMode.ROUTE_NOT_FOUND));
+        }
+        keys.clear();
+        assertEquals(segment.totalBlockCount, cache.blocksEncoded());
+        assertEquals(0, cache.cacheHits());
+        // The retries use the cached blocks, which are the same as encoding again.
+        for(int i=0;i<segment.totalBlockCount;i++) {
+            BlockInsert chosen = segment.chooseBlock();
+            keys.addInsert(chosen);
+            ClientCHKBlock block = cache.encode(chosen);
+            assertSame(encoded[chosen.blockNumber], block);
+            assertEquals(segment.encodeBlock(chosen.blockNumber).getClientKey(), block.getClientKey());
+            segment.onInsertedBlock(chosen.blockNumber, block.getClientKey());
+        }
+        assertEquals(segment.totalBlockCount, cache.cacheHits());
+        assertEquals(segment.totalBlockCount, cache.blocksEncoded());
+        assertEquals(0, cache.size());
+        cb.waitForSucceededInsert();
+        assertEquals(storage.getStatus(), Status.SUCCEEDED);
+    }
+
+    public void testEncodeInAdvance() throws IOException, InsertException {
+        Random r = new Random(12123);
+        long size = CHKBlock.DATA_LENGTH * 20;
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        InsertContext context = baseContext.clone();
+        MyKeysFetchingLocally keys = new MyKeysFetchingLocally();
+        // Not started, we only need the data blocks.
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, false, context,
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker,
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        SplitFileInserterSegmentStorage segment = storage.segments[0];
+        assertEquals(20, segment.dataBlockCount);
+        assertFalse(new EncodedBlockCache(64, null, 0).encodeInAdvance(new BlockInsert(segment, 0)));
+        EncodedBlockCache cache = new EncodedBlockCache(64, executor, 8);
+        for(int i=0;i<segment.dataBlockCount;i++)
+            assertTrue(cache.encodeInAdvance(new BlockInsert(segment, i)));
+        // Already queued or encoded.
+        assertTrue(cache.encodeInAdvance(new BlockInsert(segment, 0)));
+        executor.waitForIdle();
+        assertEquals(segment.dataBlockCount, cache.blocksEncodedInAdvance());
+        assertEquals(segment.dataBlockCount, cache.size());
+        for(int i=0;i<segment.dataBlockCount;i++) {
+            ClientCHKBlock block = cache.encode(new BlockInsert(segment, i));
+            assertEquals(segment.encodeBlock(i).getClientKey(), block.getClientKey());
+        }
+        assertEquals(segment.dataBlockCount, cache.cacheHits());
+        assertEquals(0, cache.cacheMisses());
+        assertEquals(0, cache.size());
+        // Some of them won't be queued, or will be dropped from the cache, so the sender
+        // encodes them itself.
+        EncodedBlockCache full = new EncodedBlockCache(2, executor, 1);
+        for(int i=0;i<segment.dataBlockCount;i++)
+            full.encodeInAdvance(new BlockInsert(segment, i));
+        for(int i=0;i<segment.dataBlockCount;i++)
+            assertEquals(segment.encodeBlock(i).getClientKey(),
+                    full.encode(new BlockInsert(segment, i)).getClientKey());
+        executor.waitForIdle();
+        assertEquals(segment.dataBlockCount, full.cacheHits() + full.cacheMisses());
+    }
+
     public void testSmallSplitfileChooseCooldown() throws IOException, InsertException, MissingKeyException {
         Random r = new Random(12121);
         long size = 65536; // Exact multiple, so no last block
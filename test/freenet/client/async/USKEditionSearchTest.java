@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import junit.framework.TestCase;
+
+public class USKEditionSearchTest extends TestCase {
+
+	private static final int WINDOW = 3;
+
+	/**
+	 * Search for the latest edition, as if editions up to latest exist and nothing else is found.
+	 * @return The number of probes.
+	 */
+	private int search(USKEditionSearch search, long latest) {
+		int probes = 0;
+		long probe;
+		while((probe = search.nextProbe()) != -1) {
+			assertTrue(probes++ < 100);
+			if(probe <= latest)
+				search.found(probe);
+			else
+				assertTrue(search.notFound(probe));
+		}
+		return probes;
+	}
+
+	/** @return The latest edition found, by polling the window after it. */
+	private long poll(USKEditionSearch search, long known, long latest) {
+		while(known < latest && known + WINDOW >= latest) {
+			known = Math.min(latest, known + WINDOW);
+			search.found(known);
+		}
+		return known;
+	}
+
+	public void testNoNewEditions() {
+		USKEditionSearch search = new USKEditionSearch(10, 0, WINDOW);
+		assertEquals(1, search(search, 10));
+		assertTrue(search.isFinished());
+	}
+
+	public void testFindsLatest() {
+		for(long latest : new long[] { 14, 15, 50, 1000, 123456 }) {
+			USKEditionSearch search = new USKEditionSearch(10, 0, WINDOW);
+			int probes = search(search, latest);
+			assertTrue(search.isFinished());
+			// Logarithmic in the number of new editions.
+			assertTrue(probes <= 2 * (64 - Long.numberOfLeadingZeros(latest - 10)) + 1);
+		}
+	}
+
+	public void testStartsAtExpected() {
+		USKEditionSearch search = new USKEditionSearch(100, 40, WINDOW);
+		assertEquals(140, search.nextProbe());
+		// The expected number was right, so it's quick.
+		search.found(140);
+		assertTrue(search.notFound(180));
+		assertTrue(search(search, 141) <= 6);
+	}
+
+	public void testLeavesWindowToPolling() {
+		USKEditionSearch search = new USKEditionSearch(10, 0, WINDOW);
+		search(search, 12);
+		assertTrue(search.isFinished());
+		assertEquals(12, poll(search, 10, 12));
+	}
+
+	public void testFoundBeyondGap() {
+		USKEditionSearch search = new USKEditionSearch(10, 0, WINDOW);
+		assertEquals(14, search.nextProbe());
+		assertTrue(search.notFound(14));
+		assertTrue(search.isFinished());
+		search = new USKEditionSearch(10, 100, WINDOW);
+		assertTrue(search.notFound(110));
+		// Found by something else, e.g. a date hint or another fetcher.
+		search.found(200);
+		assertFalse(search.isFinished());
+		assertTrue(search.nextProbe() > 200);
+		assertFalse(search.notFound(150));
+	}
+
+}
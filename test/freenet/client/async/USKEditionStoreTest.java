@@ -0,0 +1,209 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+import freenet.node.DatabaseKey;
+import freenet.support.io.FileUtil;
+
+public class USKEditionStoreTest extends TestCase {
+
+	private final File base = new File("tmp.usk-edition-store-test");
+	private final RandomSource random = new DummyRandomSource(4321);
+
+	@Override
+	protected void setUp() {
+		FileUtil.removeAll(base);
+		base.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private USK makeUSK(String name) {
+		return new USK(InsertableClientSSK.createRandom(random, name), 0);
+	}
+
+	private ClientLayerCacheFile makeFile(boolean encrypted, boolean noWrite, DatabaseKey key) {
+		ClientLayerCacheFile file = new ClientLayerCacheFile(base, "usk-editions.dat");
+		file.setFiles(encrypted, noWrite, key);
+		return file;
+	}
+
+	private USKEditionStore makeStore(ClientLayerCacheFile file) {
+		USKEditionStore store = new USKEditionStore(file);
+		assertTrue(store.load());
+		return store;
+	}
+
+	public void testRestart() throws IOException {
+		File file = new File(base, "usk-editions.dat");
+		USKEditionStore store = makeStore(makeFile(false, false, null));
+		assertFalse(store.load());
+		assertEquals(0, store.size());
+		USK a = makeUSK("a");
+		USK b = makeUSK("b");
+		long now = System.currentTimeMillis();
+		store.update(a, 5, 7, now);
+		store.update(b, -1, 3, now);
+		// Two new editions in 10 hours.
+		store.update(b, -1, 5, now + HOURS.toMillis(10));
+		store.write();
+		assertTrue(file.exists());
+
+		USKEditionStore reloaded = makeStore(makeFile(false, false, null));
+		assertEquals(2, reloaded.size());
+		Map<USK, Long> knownGood = new HashMap<USK, Long>();
+		Map<USK, Long> slots = new HashMap<USK, Long>();
+		reloaded.copyEditions(knownGood, slots);
+		assertEquals(5L, (long) knownGood.get(a));
+		assertEquals(7L, (long) slots.get(a));
+		assertFalse(knownGood.containsKey(b));
+		assertEquals(5L, (long) slots.get(b));
+		assertEquals(-1, reloaded.getUpdateInterval(a));
+		assertEquals(HOURS.toMillis(5), reloaded.getUpdateInterval(b));
+		assertEquals(0, reloaded.expectedNewEditions(a, now + HOURS.toMillis(100)));
+		assertEquals(4, reloaded.expectedNewEditions(b, now + HOURS.toMillis(30)));
+	}
+
+	public void testEncrypted() throws IOException {
+		DatabaseKey key = DatabaseKey.createRandom(random);
+		File plain = new File(base, "usk-editions.dat");
+		File crypt = new File(base, "usk-editions.dat.crypt");
+		USKEditionStore store = makeStore(makeFile(true, false, key));
+		USK usk = makeUSK("a");
+		store.update(usk, 5, 7, 0);
+		store.write();
+		assertTrue(crypt.exists());
+		assertFalse(plain.exists());
+		assertEquals(1, makeStore(makeFile(true, false, key)).size());
+		// Can't be read without the key.
+		assertEquals(0, makeStore(makeFile(true, false, DatabaseKey.createRandom(random))).size());
+		// Physical security level lowered: read the old file, rewrite it, delete the old one.
+		ClientLayerCacheFile file = new ClientLayerCacheFile(base, "usk-editions.dat");
+		assertTrue(file.setFiles(false, false, key));
+		USKEditionStore lowered = makeStore(file);
+		assertEquals(1, lowered.size());
+		lowered.setDirty();
+		lowered.write();
+		assertTrue(plain.exists());
+		assertFalse(crypt.exists());
+	}
+
+	public void testNoWrite() {
+		File file = new File(base, "usk-editions.dat");
+		USKEditionStore store = makeStore(makeFile(false, false, null));
+		store.update(makeUSK("a"), 1, 1, 0);
+		store.write();
+		assertTrue(file.exists());
+		// Physical security level MAXIMUM: nothing on disk.
+		ClientLayerCacheFile maximum = makeFile(false, true, null);
+		assertFalse(file.exists());
+		store = makeStore(maximum);
+		assertEquals(0, store.size());
+		store.update(makeUSK("b"), 1, 1, 0);
+		store.write();
+		assertFalse(file.exists());
+	}
+
+	public void testPanic() {
+		ClientLayerCacheFile file = makeFile(true, false, DatabaseKey.createRandom(random));
+		USKEditionStore store = makeStore(file);
+		store.update(makeUSK("a"), 1, 1, 0);
+		store.write();
+		File crypt = new File(base, "usk-editions.dat.crypt");
+		assertTrue(crypt.exists());
+		file.panic();
+		assertFalse(crypt.exists());
+		store.update(makeUSK("b"), 1, 1, 0);
+		store.write();
+		assertEquals(0, base.list().length);
+	}
+
+	public void testLoadKeepsNewer() {
+		USK a = makeUSK("a");
+		USK b = makeUSK("b");
+		USKEditionStore store = makeStore(makeFile(false, false, null));
+		store.update(a, 3, 3, 0);
+		store.update(a, 4, 4, HOURS.toMillis(2));
+		store.update(b, 1, 1, 0);
+		store.write();
+		// Updated before the file could be read, e.g. while waiting for the password.
+		USKEditionStore reloaded = new USKEditionStore(makeFile(false, false, null));
+		reloaded.update(a, 2, 6, HOURS.toMillis(10));
+		assertTrue(reloaded.load());
+		Map<USK, Long> knownGood = new HashMap<USK, Long>();
+		Map<USK, Long> slots = new HashMap<USK, Long>();
+		knownGood.put(b, 2L);
+		reloaded.copyEditions(knownGood, slots);
+		assertEquals(4L, (long) knownGood.get(a));
+		assertEquals(6L, (long) slots.get(a));
+		assertEquals(HOURS.toMillis(2), reloaded.getUpdateInterval(a));
+		// Not moved backwards.
+		assertEquals(2L, (long) knownGood.get(b));
+		assertEquals(1L, (long) slots.get(b));
+	}
+
+	public void testMeanInterval() {
+		USKEditionStore store = makeStore(makeFile(false, true, null));
+		USK usk = makeUSK("site");
+		long now = 0;
+		store.update(usk, 0, 0, now);
+		now += HOURS.toMillis(4);
+		store.update(usk, 1, 1, now);
+		assertEquals(HOURS.toMillis(4), store.getUpdateInterval(usk));
+		// Only fetching a known edition doesn't change anything.
+		store.update(usk, 1, 1, now + HOURS.toMillis(1));
+		assertEquals(HOURS.toMillis(4), store.getUpdateInterval(usk));
+		now += HOURS.toMillis(8);
+		store.update(usk, 2, 2, now);
+		assertEquals(HOURS.toMillis(5), store.getUpdateInterval(usk));
+	}
+
+	public void testBounded() {
+		USKEditionStore store = new USKEditionStore(makeFile(false, true, null), 2);
+		USK[] usks = new USK[] { makeUSK("a"), makeUSK("b"), makeUSK("c") };
+		for(int i=0;i<usks.length;i++)
+			store.update(usks[i], i, i, 0);
+		assertEquals(2, store.size());
+		// Least recently updated dropped.
+		Map<USK, Long> slots = new HashMap<USK, Long>();
+		store.copyEditions(new HashMap<USK, Long>(), slots);
+		assertFalse(slots.containsKey(usks[0]));
+		assertTrue(slots.containsKey(usks[2]));
+	}
+
+	public void testCorruptFile() throws IOException {
+		File file = new File(base, "usk-editions.dat");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		fos.close();
+		USKEditionStore store = makeStore(makeFile(false, false, null));
+		assertEquals(0, store.size());
+		// Truncated.
+		store.update(makeUSK("a"), 1, 1, 0);
+		store.write();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+		assertEquals(0, makeStore(makeFile(false, false, null)).size());
+	}
+
+}
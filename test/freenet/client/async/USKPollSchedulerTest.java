@@ -0,0 +1,253 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.Key;
+import freenet.keys.SSKBlock;
+import freenet.keys.USK;
+import freenet.support.Executor;
+import freenet.support.Ticker;
+
+public class USKPollSchedulerTest extends TestCase {
+
+	private final RandomSource random = new DummyRandomSource(4747);
+	private final ClientContext context = mock(ClientContext.class);
+	private final USKManager uskManager = mock(USKManager.class);
+	private final FakeTicker ticker = new FakeTicker();
+	/** Fetchers whose rounds have been started, in order. */
+	private final List<USKFetcher> started = new ArrayList<USKFetcher>();
+	private long now = HOURS.toMillis(1000);
+	private USKPollScheduler scheduler;
+
+	/** Records the next wake-up, which the test runs by calling tick(). */
+	private static class FakeTicker implements Ticker {
+		Runnable job;
+		long time = -1;
+
+		@Override
+		public void queueTimedJob(Runnable job, long offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Executor getExecutor() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeQueuedJob(Runnable job) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+			this.job = job;
+			this.time = time;
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		scheduler = makeScheduler(2);
+	}
+
+	private USKPollScheduler makeScheduler(int maxActive) {
+		USKPollScheduler scheduler = new USKPollScheduler(uskManager, maxActive) {
+			@Override
+			long now() {
+				return now;
+			}
+		};
+		when(uskManager.lookupLatestSlot(any(USK.class))).thenReturn(-1L);
+		Executor executor = mock(Executor.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(executor).execute(any(Runnable.class), anyString());
+		scheduler.init(context, ticker, executor);
+		return scheduler;
+	}
+
+	private USKFetcher makeFetcher(String name) {
+		final USKFetcher fetcher = mock(USKFetcher.class);
+		when(fetcher.getOriginalUSK()).thenReturn(new USK(InsertableClientSSK.createRandom(random, name), 0));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				started.add(fetcher);
+				return null;
+			}
+		}).when(fetcher).schedule(context);
+		return fetcher;
+	}
+
+	/** Advance the clock to the next wake-up, and run it. */
+	private void tick() {
+		assertTrue(ticker.time >= 0);
+		now = Math.max(now, ticker.time);
+		ticker.time = -1;
+		ticker.job.run();
+	}
+
+	private static Key watchedKey(USKFetcher fetcher, long edition) {
+		return fetcher.getOriginalUSK().getSSK(edition).getNodeKey(false);
+	}
+
+	public void testParkAndWake() {
+		USKFetcher a = makeFetcher("a");
+		USKFetcher b = makeFetcher("b");
+		scheduler.start(a);
+		scheduler.start(b);
+		assertEquals(Arrays.asList(a, b), started);
+		assertEquals(2, scheduler.countRunning());
+		// Already running, so not started twice.
+		scheduler.start(a);
+		assertEquals(2, started.size());
+
+		scheduler.park(a, 1000, 1);
+		scheduler.park(b, 500, 1);
+		assertEquals(0, scheduler.countRunning());
+		assertEquals(2, scheduler.countParked());
+		started.clear();
+		// Woken in order of when they are due.
+		assertEquals(now + 500, ticker.time);
+		tick();
+		assertEquals(Arrays.asList(b), started);
+		assertEquals(1, scheduler.countParked());
+		tick();
+		assertEquals(Arrays.asList(b, a), started);
+		assertEquals(0, scheduler.countParked());
+		assertEquals(2, scheduler.countRunning());
+	}
+
+	public void testStartParked() {
+		USKFetcher a = makeFetcher("a");
+		scheduler.start(a);
+		scheduler.park(a, HOURS.toMillis(1), 1);
+		started.clear();
+		// E.g. a new edition was found: start now, not in an hour.
+		scheduler.start(a);
+		assertEquals(Arrays.asList(a), started);
+		assertEquals(0, scheduler.countParked());
+	}
+
+	public void testMaxActive() {
+		USKFetcher a = makeFetcher("a");
+		USKFetcher b = makeFetcher("b");
+		USKFetcher c = makeFetcher("c");
+		scheduler.start(a);
+		scheduler.start(b);
+		scheduler.start(c);
+		assertEquals(Arrays.asList(a, b), started);
+		assertEquals(2, scheduler.countRunning());
+		assertEquals(1, scheduler.countParked());
+		// A round finishing makes room.
+		scheduler.park(a, HOURS.toMillis(1), 1);
+		assertEquals(Arrays.asList(a, b, c), started);
+		assertEquals(2, scheduler.countRunning());
+		assertEquals(1, scheduler.countParked());
+		// So does one being cancelled.
+		scheduler.park(b, 0, 1);
+		scheduler.remove(c);
+		assertEquals(Arrays.asList(a, b, c, b), started);
+	}
+
+	public void testMaxRoundTime() {
+		USKFetcher a = makeFetcher("a");
+		USKFetcher b = makeFetcher("b");
+		USKFetcher c = makeFetcher("c");
+		scheduler.start(a);
+		now += 1000;
+		scheduler.start(b);
+		scheduler.start(c);
+		assertEquals(2, started.size());
+		// Woken when the oldest round stops counting.
+		assertEquals(now - 1000 + USKPollScheduler.MAX_ROUND_TIME + 1, ticker.time);
+		tick();
+		assertEquals(Arrays.asList(a, b, c), started);
+		assertEquals(2, scheduler.countRunning());
+		assertEquals(0, scheduler.countParked());
+	}
+
+	public void testRemove() {
+		USKFetcher a = makeFetcher("a");
+		USKFetcher b = makeFetcher("b");
+		scheduler.start(a);
+		scheduler.start(b);
+		scheduler.park(b, HOURS.toMillis(1), 1);
+		scheduler.remove(a);
+		scheduler.remove(b);
+		assertEquals(0, scheduler.countRunning());
+		assertEquals(0, scheduler.countParked());
+		assertEquals(0, scheduler.countKeys());
+		started.clear();
+		// A round finishing, or a new edition, after remove() but before the fetcher has been
+		// cancelled, must not queue it again.
+		scheduler.park(a, 0, 1);
+		scheduler.start(b);
+		assertTrue(started.isEmpty());
+		assertEquals(0, scheduler.countRunning());
+		assertEquals(0, scheduler.countParked());
+		assertEquals(0, scheduler.countKeys());
+	}
+
+	public void testHandleBlock() {
+		USKFetcher a = makeFetcher("a");
+		USKFetcher b = makeFetcher("b");
+		scheduler.start(a);
+		scheduler.start(b);
+		scheduler.park(a, HOURS.toMillis(10), 5);
+		scheduler.park(b, HOURS.toMillis(10), 5);
+		assertEquals(2 * USKPollScheduler.WATCH_EDITIONS, scheduler.countKeys());
+		started.clear();
+		SSKBlock block = mock(SSKBlock.class);
+		Key key = watchedKey(a, 6);
+		assertTrue(scheduler.probablyWantKey(key, null));
+		assertFalse(scheduler.probablyWantKey(watchedKey(a, 5 + USKPollScheduler.WATCH_EDITIONS), null));
+		assertFalse(scheduler.handleBlock(watchedKey(a, 4), null, block, context));
+		assertTrue(started.isEmpty());
+
+		assertTrue(scheduler.handleBlock(key, null, block, context));
+		verify(uskManager).updateSlot(a.getOriginalUSK(), 6, context);
+		assertEquals(Arrays.asList(a), started);
+		// No longer watched.
+		assertFalse(scheduler.probablyWantKey(watchedKey(a, 5), null));
+		assertEquals(USKPollScheduler.WATCH_EDITIONS, scheduler.countKeys());
+		assertEquals(1, scheduler.countParked());
+
+		// A removed fetcher isn't woken.
+		scheduler.remove(b);
+		assertFalse(scheduler.handleBlock(watchedKey(b, 5), null, block, context));
+		assertEquals(Arrays.asList(a), started);
+	}
+
+}
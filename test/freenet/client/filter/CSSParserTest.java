@@ -27,6 +27,7 @@ import freenet.client.filter.CharsetExtractor.BOMDetection;
 import freenet.client.filter.ContentFilter.FilterStatus;
 import freenet.l10n.NodeL10n;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
@@ -330,6 +331,18 @@ public class CSSParserTest extends TestCase {
 
 	private static final String CSS_INVALID_MEDIA_CASCADE = "@media blah { h1, h2 { color: green;} }";
 
+	/** Typical freesite stylesheet, $ is replaced to make the selectors unique. */
+	private static final String BENCHMARK_STYLESHEET =
+		"body.page$ { margin: 0; padding: 0; font-family: Verdana, Arial, sans-serif; font-size: 10pt; color: #333; background-color: #fff; }\n" +
+		"#header$ { width: 100%; height: 80px; border-bottom: 1px solid #ccc; background: #f0f0f0 url(\"header.png\") repeat-x; }\n" +
+		"#content$ p { margin: 0 auto 1em auto; line-height: 1.4em; text-align: justify; }\n" +
+		"#content$ h1, #content$ h2 { font-weight: bold; color: #036; margin-top: 1.5em; }\n" +
+		"a.link$:hover { color: #c00; text-decoration: underline; }\n" +
+		"ul.menu$ li { display: inline; list-style-type: none; padding: 0 10px; border-right: 1px dotted #999; }\n" +
+		"table.list$ td { border: 1px solid #ddd; padding: 2px 4px; vertical-align: top; white-space: nowrap; }\n" +
+		"@media print { #header$ { display: none; } body.page$ { font-size: 12pt; color: black; } }\n" +
+		".box$ { float: left; width: 30%; min-height: 100px; margin: 5px; box-shadow: 2px 2px 4px #888; border-radius: 4px; }\n";
+
 	private final static LinkedHashMap<String, String> propertyTests = new LinkedHashMap<String, String>();
 	static {
 		// Check that the last part of a double bar works
@@ -1003,10 +1016,58 @@ public class CSSParserTest extends TestCase {
 		}
 	}
 
+	public void testDeclarationCache() throws IOException, URISyntaxException {
+		CSSDeclarationCache cache = new CSSDeclarationCache(CSSDeclarationCache.DEFAULT_SIZE);
+		for(int i=0;i<2;i++) {
+			for(Entry<String, String> entry : propertyTests.entrySet()) {
+				String key = entry.getKey();
+				String value = entry.getValue();
+				assertEquals("key=\""+key+"\" pass "+i, value, filter(key, cache));
+			}
+		}
+		assertTrue(cache.hits() > 0);
+		// Declarations with url()'s depend on the callback and must not be cached.
+		cache.clear();
+		assertEquals(CSS_BACKGROUND_URLC, filter(CSS_BACKGROUND_URL, cache));
+		assertEquals(0, cache.size());
+		// Cached verdicts depend on the media.
+		cache.clear();
+		assertEquals("@media aural { h1 { voice-family: male;}}", filter("@media aural { h1 { voice-family: male;}}", cache));
+		assertEquals("@media screen { h1 {}}", filter("@media screen { h1 { voice-family: male;}}", cache));
+		assertEquals("@media aural { h1 { voice-family: male;}}", filter("@media aural { h1 { voice-family: male;}}", cache));
+	}
+
+	public void testBenchmark() throws IOException, URISyntaxException {
+		if(!TestProperty.BENCHMARK) return;
+
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<50;i++)
+			sb.append(BENCHMARK_STYLESHEET.replace("$", Integer.toString(i)));
+		String css = sb.toString();
+		CSSDeclarationCache cache = new CSSDeclarationCache(CSSDeclarationCache.DEFAULT_SIZE);
+		assertEquals(filter(css, null), filter(css, cache));
+		final int ITERATIONS = 50;
+		long t1 = System.currentTimeMillis();
+		for(int i=0;i<ITERATIONS;i++)
+			filter(css, null);
+		long t2 = System.currentTimeMillis();
+		for(int i=0;i<ITERATIONS;i++)
+			filter(css, cache);
+		long t3 = System.currentTimeMillis();
+		double mb = ((double)css.length() * ITERATIONS) / (1024 * 1024);
+		System.out.println("Filtered "+ITERATIONS+" x "+css.length()+" chars of CSS:");
+		System.out.println("Without declaration cache: "+(t2-t1)+"ms ("+(mb * 1000 / Math.max(1, t2-t1))+" MB/s)");
+		System.out.println("With declaration cache: "+(t3-t2)+"ms ("+(mb * 1000 / Math.max(1, t3-t2))+" MB/s), hits "+cache.hits()+" misses "+cache.misses());
+	}
+
 	private String filter(String css) throws IOException, URISyntaxException {
+		return filter(css, CSSTokenizerFilter.sharedDeclarationCache);
+	}
+
+	private String filter(String css, CSSDeclarationCache cache) throws IOException, URISyntaxException {
 		StringWriter w = new StringWriter();
 		GenericReadFilterCallback cb = new GenericReadFilterCallback(new URI("/CHK@OR904t6ylZOwoobMJRmSn7HsPGefHSP7zAjoLyenSPw,x2EzszO4Kqot8akqmKYXJbkD-fSj6noOVGB-K2YisZ4,AAIC--8/1-works.html"), null, null, null);
-		CSSParser p = new CSSParser(new StringReader(css), w, false, cb, "UTF-8", false, false);
+		CSSParser p = new CSSParser(new StringReader(css), w, false, cb, "UTF-8", false, false, cache);
 		p.parse();
 		return w.toString();
 	}
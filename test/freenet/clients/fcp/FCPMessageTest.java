@@ -2,6 +2,7 @@ package freenet.clients.fcp;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.mockito.Mockito.mock;
@@ -12,6 +13,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import freenet.node.Node;
+import freenet.support.FlatFieldSet;
 import freenet.support.SimpleFieldSet;
 
 import org.junit.Test;
@@ -80,4 +82,29 @@ public class FCPMessageTest {
         verify(originalMessage).send(outputStream);
     }
 
+    private static FlatFieldSet flatFieldSet(String fields) throws IOException {
+        byte[] data = fields.getBytes("UTF-8");
+        return FlatFieldSet.parse(data, 0, data.length, true, true);
+    }
+
+    @Test
+    public void pollingMessagesAreReadFlat() throws IOException, MessageInvalidException {
+        assertThat(FCPMessage.readsFlat(GetRequestStatusMessage.NAME), is(true));
+        assertThat(FCPMessage.readsFlat(ClientHelloMessage.NAME), is(false));
+        FCPMessage message = FCPMessage.create(GetRequestStatusMessage.NAME,
+                flatFieldSet("Identifier=" + IDENTIFIER + "\nGlobal=true\nEndMessage\n"), null, null);
+        assertThat(message, instanceOf(GetRequestStatusMessage.class));
+        GetRequestStatusMessage getRequestStatus = (GetRequestStatusMessage) message;
+        assertThat(getRequestStatus.identifier, is(IDENTIFIER));
+        assertThat(getRequestStatus.global, is(true));
+        assertThat(getRequestStatus.onlyData, is(false));
+    }
+
+    @Test
+    public void otherMessagesAreCreatedFromACopy() throws IOException, MessageInvalidException {
+        FCPMessage message = FCPMessage.create(ClientHelloMessage.NAME,
+                flatFieldSet("Name=" + IDENTIFIER + "\nExpectedVersion=2.0\nEndMessage\n"), null, null);
+        assertThat(message, instanceOf(ClientHelloMessage.class));
+    }
+
 }
@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class PerThreadRandomSourceTest extends TestCase {
+
+	/** Counts how much has been taken from it. */
+	@SuppressWarnings("serial")
+	private static class CountingRandomSource extends DummyRandomSource {
+		final AtomicLong bytesRead = new AtomicLong();
+
+		CountingRandomSource(long seed) {
+			super(seed);
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			bytesRead.addAndGet(bytes.length);
+			super.nextBytes(bytes);
+		}
+	}
+
+	public void testSameGeneratorPerThread() throws Exception {
+		final PerThreadRandomSource source = new PerThreadRandomSource(new DummyRandomSource(1234));
+		assertSame(source.secure(), source.secure());
+		assertSame(source.weak(), source.weak());
+		final Object[] other = new Object[2];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				other[0] = source.secure();
+				other[1] = source.weak();
+			}
+		};
+		t.start();
+		t.join();
+		assertNotSame(source.secure(), other[0]);
+		assertNotSame(source.weak(), other[1]);
+	}
+
+	public void testSecureOutput() {
+		PerThreadRandomSource source = new PerThreadRandomSource(new DummyRandomSource(1234));
+		RandomSource r = source.secure();
+		// Several buffers' worth, with odd sized reads, so we cross the rekeying boundaries.
+		byte[] buf = new byte[PerThreadRandomSource.BUFFER_SIZE * 4 + 17];
+		r.nextBytes(buf);
+		int[] counts = new int[256];
+		for(byte b : buf)
+			counts[b & 0xff]++;
+		int expected = buf.length / 256;
+		for(int count : counts) {
+			assertTrue(count > expected / 3);
+			assertTrue(count < expected * 3);
+		}
+		// No repeats across the buffer boundary.
+		byte[] more = new byte[buf.length];
+		r.nextBytes(more);
+		assertFalse(Arrays.equals(buf, more));
+		for(int i=0;i<1000;i++) {
+			int x = r.nextInt(10);
+			assertTrue(x >= 0 && x < 10);
+		}
+	}
+
+	public void testThreadsGetDifferentStreams() throws Exception {
+		final PerThreadRandomSource source = new PerThreadRandomSource(new DummyRandomSource(1234));
+		final byte[] mine = new byte[64];
+		final byte[] theirs = new byte[64];
+		source.secure().nextBytes(mine);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				source.secure().nextBytes(theirs);
+			}
+		};
+		t.start();
+		t.join();
+		assertFalse(Arrays.equals(mine, theirs));
+	}
+
+	public void testReseedsFromParent() {
+		CountingRandomSource parent = new CountingRandomSource(1234);
+		PerThreadRandomSource source = new PerThreadRandomSource(parent);
+		RandomSource r = source.secure();
+		r.nextLong();
+		long seeded = parent.bytesRead.get();
+		assertTrue(seeded > 0);
+		byte[] buf = new byte[PerThreadRandomSource.RESEED_BYTES / 2];
+		r.nextBytes(buf);
+		// Not yet.
+		assertEquals(seeded, parent.bytesRead.get());
+		r.nextBytes(buf);
+		r.nextBytes(buf);
+		assertTrue(parent.bytesRead.get() > seeded);
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		File seed = File.createTempFile("prng-benchmark", ".seed");
+		try {
+			Yarrow yarrow = new Yarrow(seed, "SHA1", "Rijndael", false, false, false);
+			final PerThreadRandomSource source = new PerThreadRandomSource(yarrow);
+			int threads = Runtime.getRuntime().availableProcessors() * 2;
+			final int longsPerThread = 200000;
+			for(int round=0;round<3;round++) {
+				report("Yarrow", threads, longsPerThread, benchmark(threads, longsPerThread, new Generator() {
+					@Override
+					public Random get() {
+						return source.getParent();
+					}
+				}));
+				report("Per-thread secure", threads, longsPerThread, benchmark(threads, longsPerThread, new Generator() {
+					@Override
+					public Random get() {
+						return source.secure();
+					}
+				}));
+				report("Per-thread weak", threads, longsPerThread, benchmark(threads, longsPerThread, new Generator() {
+					@Override
+					public Random get() {
+						return source.weak();
+					}
+				}));
+			}
+		} finally {
+			seed.delete();
+		}
+	}
+
+	private interface Generator {
+		Random get();
+	}
+
+	private static void report(String name, int threads, int longsPerThread, long nanos) {
+		double perSecond = threads * (double) longsPerThread * 1000 * 1000 * 1000 / nanos;
+		System.out.println(name + ": " + threads + " threads: " + (long) perSecond + " nextLong()/sec");
+	}
+
+	/** @return The time taken for all threads to generate their longs, in nanoseconds. */
+	private static long benchmark(int threads, final int longsPerThread, final Generator generator)
+	throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					long total = 0;
+					for(int j=0;j<longsPerThread;j++)
+						total += generator.get().nextLong();
+					if(total == 42) System.out.println("Unlikely");
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : workers)
+			t.start();
+		for(Thread t : workers)
+			t.join();
+		return System.nanoTime() - start;
+	}
+
+}
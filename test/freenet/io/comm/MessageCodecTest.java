@@ -0,0 +1,214 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.TestProperty;
+
+public class MessageCodecTest extends TestCase {
+
+	private static final MessageType allTypes = new MessageType("MessageCodecTest", DMT.PRIORITY_LOW) {{
+		addField("boolean", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("float", Float.class);
+		addField("double", Double.class);
+		addField("string", String.class);
+		addField("double[]", double[].class);
+		addField("float[]", float[].class);
+		addLinkedListField("list", Long.class);
+	}};
+
+	/** The old way of encoding a message, field by field through Serializer. */
+	private static byte[] serialize(Message m, Message... subMessages) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for (String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+		for (Message sub : subMessages) {
+			byte[] buf = serialize(sub);
+			dos.writeShort(buf.length);
+			dos.write(buf);
+		}
+		return baos.toByteArray();
+	}
+
+	/** The old way of decoding a message's fields. */
+	private static HashMap<String, Object> deserialize(byte[] buf) throws IOException {
+		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
+		MessageType spec = MessageType.getSpec(bb.readInt(), false);
+		HashMap<String, Object> payload = new HashMap<String, Object>();
+		for (String name : spec.getOrderedFields()) {
+			Class<?> type = spec.getFields().get(name);
+			if (type.equals(LinkedList.class))
+				payload.put(name, Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(name), bb));
+			else
+				payload.put(name, Serializer.readFromDataInputStream(type, bb));
+		}
+		return payload;
+	}
+
+	private static NodeCHK randomKey(Random r) {
+		byte[] routingKey = new byte[32];
+		r.nextBytes(routingKey);
+		return new NodeCHK(routingKey, (byte) 2);
+	}
+
+	private static Message packetTransmit(Random r) {
+		byte[] data = new byte[1024];
+		r.nextBytes(data);
+		BitArray sent = new BitArray(32);
+		sent.setBit(3, true);
+		return DMT.createPacketTransmit(r.nextLong(), 3, sent, new Buffer(data), false);
+	}
+
+	private static Message allTypes() {
+		Message m = new Message(allTypes);
+		m.set("boolean", true);
+		m.set("byte", (byte) -3);
+		m.set("short", (short) -1234);
+		m.set("int", 0x12345678);
+		m.set("long", -0x123456789abcdefL);
+		m.set("float", -1.5f);
+		m.set("double", Math.PI);
+		m.set("string", "Hello world ☺");
+		m.set("double[]", new double[] { Math.E, -0.0 });
+		m.set("float[]", new float[] { 1.0f, Float.NaN });
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(Long.MIN_VALUE);
+		m.set("list", list);
+		return m;
+	}
+
+	private static void assertSameWireFormat(Message m, Message... subMessages) throws IOException {
+		byte[] encoded = m.encodeToPacket();
+		assertTrue(m.toString(), Arrays.equals(serialize(m, subMessages), encoded));
+		Message decoded = Message.decodeMessageLax(encoded, null, 0);
+		assertEquals(m.getSpec(), decoded.getSpec());
+		assertTrue(m.toString(), Arrays.equals(encoded, decoded.encodeToPacket()));
+		HashMap<String, Object> payload = deserialize(encoded);
+		for (String name : m.getSpec().getOrderedFields())
+			assertTrue(name, Arrays.deepEquals(new Object[] { payload.get(name) }, new Object[] { decoded.getObject(name) }));
+	}
+
+	public void testWireFormat() throws IOException {
+		Random r = new Random(1);
+		assertSameWireFormat(DMT.createFNPAccepted(r.nextLong()));
+		assertSameWireFormat(DMT.createFNPCHKDataRequest(r.nextLong(), (short) 18, randomKey(r)));
+		assertSameWireFormat(packetTransmit(r));
+		assertSameWireFormat(allTypes());
+	}
+
+	public void testSubMessages() throws IOException {
+		Message m = DMT.createFNPCHKDataRequest(1, (short) 10, randomKey(new Random(2)));
+		Message flag = DMT.createFNPRealTimeFlag(true);
+		m.addSubMessage(flag);
+		assertSameWireFormat(m, flag);
+		Message decoded = Message.decodeMessageLax(m.encodeToPacket(), null, 0);
+		assertTrue(DMT.getRealTimeFlag(decoded));
+		assertNull(decoded.cloneAndDropSubMessages().getSubMessage(DMT.FNPRealTimeFlag));
+	}
+
+	public void testPrimitiveAccessors() {
+		Message m = allTypes();
+		assertTrue(m.getBoolean("boolean"));
+		assertEquals((byte) -3, m.getByte("byte"));
+		assertEquals((short) -1234, m.getShort("short"));
+		assertEquals(0x12345678, m.getInt("int"));
+		assertEquals(-0x123456789abcdefL, m.getLong("long"));
+		assertEquals(-1.5f, m.getFloat("float"));
+		assertEquals(Math.PI, m.getDouble("double"));
+		assertEquals(Long.valueOf(-0x123456789abcdefL), m.getObject("long"));
+		// Setting a boxed value is the same as setting a primitive.
+		m.set("long", Long.valueOf(42));
+		assertEquals(42, m.getLong("long"));
+		try {
+			m.set("long", 42);
+			fail("Set a long field to an int");
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			m.set("nonexistent", 42);
+			fail("Set a field which doesn't exist");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	public void testUnsetFields() {
+		Message m = new Message(DMT.FNPAccepted);
+		assertFalse(m.isSet(DMT.UID));
+		assertNull(m.getObject(DMT.UID));
+		assertFalse(m.isSet("nonexistent"));
+		try {
+			m.getLong(DMT.UID);
+			fail("Got an unset field");
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		try {
+			m.encodeToPacket();
+			fail("Encoded a message with an unset field");
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		m.set(DMT.UID, 1L);
+		assertTrue(m.isSet(DMT.UID));
+	}
+
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK) return;
+		Random r = new Random(4);
+		Message[] messages = new Message[] {
+				DMT.createFNPCHKDataRequest(r.nextLong(), (short) 18, randomKey(r)),
+				packetTransmit(r),
+				DMT.createFNPAccepted(r.nextLong())
+		};
+		final int iterations = 200000;
+		for (int round = 0; round < 3; round++) {
+			for (Message m : messages) {
+				byte[] encoded = m.encodeToPacket();
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					encoded = serialize(m);
+				long serializerEncode = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					encoded = m.encodeToPacket();
+				long codecEncode = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					deserialize(encoded);
+				long serializerDecode = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					Message.decodeMessageLax(encoded, null, 0);
+				long codecDecode = System.nanoTime() - start;
+				System.out.println(m.getSpec().getName() + ": encode " + (serializerEncode / iterations) +
+						"ns -> " + (codecEncode / iterations) + "ns, decode " + (serializerDecode / iterations) +
+						"ns -> " + (codecDecode / iterations) + "ns");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class MessageCoreTest extends TestCase {
+
+	/** Records what happened to a filter. */
+	private static class Callback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<Message>();
+		int timedOut;
+		boolean shouldTimeout;
+
+		@Override
+		public void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			// Ignore.
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore.
+		}
+	}
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		core = new MessageCore(null);
+	}
+
+	private Callback add(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	public void testMatchesByUID() throws DisconnectedException {
+		Callback one = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(10000));
+		Callback two = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(10000));
+		Message m = DMT.createFNPAccepted(2);
+		core.checkFilters(m, null);
+		assertTrue(one.matched.isEmpty());
+		assertEquals(1, two.matched.size());
+		assertSame(m, two.matched.get(0));
+		// Only one match per filter, so the next one is unclaimed.
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertEquals(1, two.matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		// Wrong type.
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertTrue(one.matched.isEmpty());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+	}
+
+	public void testEarliestTimeoutWins() throws DisconnectedException {
+		// Matches any UID, but times out later.
+		Callback any = add(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(20000));
+		Callback uid = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(10000));
+		// No type at all.
+		Callback wildcard = add(MessageFilter.create().setField(DMT.UID, 1L).setTimeout(30000));
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, uid.matched.size());
+		assertTrue(any.matched.isEmpty());
+		assertTrue(wildcard.matched.isEmpty());
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, any.matched.size());
+		assertTrue(wildcard.matched.isEmpty());
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertEquals(1, wildcard.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testOrChain() throws DisconnectedException {
+		Callback cb = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(10000)
+				.or(MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(10000)));
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertEquals(1, cb.matched.size());
+		// Removed under both keys.
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testUnclaimedMatchedOnAdd() throws DisconnectedException {
+		Message m = DMT.createFNPAccepted(3);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		Callback cb = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 3L).setTimeout(10000));
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testTimeouts() throws Exception {
+		Callback expires = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(1));
+		Callback cancelled = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(100000));
+		Callback waiting = add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 3L).setTimeout(100000));
+		Thread.sleep(10);
+		long now = System.currentTimeMillis();
+		// The callback says it should time out early.
+		cancelled.shouldTimeout = true;
+		long next = core.removeTimedOutFilters(now + 1000000);
+		assertEquals(1, expires.timedOut);
+		assertEquals(1, cancelled.timedOut);
+		assertEquals(0, waiting.timedOut);
+		// Only filters with callbacks determine when we run next.
+		assertTrue(next > now && next <= now + 100000);
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertTrue(expires.matched.isEmpty());
+		assertTrue(cancelled.matched.isEmpty());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+	}
+
+	public void testBenchmark() throws DisconnectedException {
+		if(!TestProperty.BENCHMARK) return;
+		// A busy node has thousands of filters waiting, nearly all for a specific UID.
+		final int filters = 10000;
+		for(int round=0;round<3;round++) {
+			for(int i=0;i<filters;i++)
+				add(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, (long) i).setTimeout(100000));
+			long start = System.nanoTime();
+			for(int i=0;i<filters;i++)
+				core.checkFilters(DMT.createFNPAccepted(i), null);
+			long time = System.nanoTime() - start;
+			System.out.println("Matched " + filters + " messages against " + filters + " filters in " +
+					(time / 1000000) + "ms (" + (time / filters) + "ns each)");
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+
+public class PartiallyReceivedBlockTest extends TestCase {
+
+	private static final int PACKETS = 8;
+	private static final int PACKET_SIZE = 16;
+
+	private static class Listener implements PartiallyReceivedBlock.PacketReceivedListener {
+		final List<Integer> received = new ArrayList<Integer>();
+		int aborted;
+
+		@Override
+		public void packetReceived(int packetNo) {
+			received.add(packetNo);
+		}
+
+		@Override
+		public void receiveAborted(int reason, String description) {
+			aborted++;
+		}
+	}
+
+	private static Buffer packet(int x) {
+		byte[] data = new byte[PACKET_SIZE];
+		Arrays.fill(data, (byte) x);
+		return new Buffer(data);
+	}
+
+	public void testPacketsSharedBetweenSubscribers() throws AbortedException {
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		prb.addPacket(2, packet(2));
+		Listener a = new Listener();
+		Listener b = new Listener();
+		BitArray received = new BitArray(PACKETS);
+		assertEquals(1, prb.addListener(a, received));
+		assertTrue(received.bitAt(2));
+		assertEquals(1, prb.addListener(b).size());
+		prb.addPacket(5, packet(5));
+		// Duplicates are ignored.
+		prb.addPacket(5, packet(5));
+		assertEquals(Arrays.asList(5), a.received);
+		assertEquals(Arrays.asList(5), b.received);
+		// Sliced once, not per caller.
+		Buffer p = prb.getPacket(5);
+		assertSame(p, prb.getPacket(5));
+		assertEquals(5, p.byteAt(PACKET_SIZE - 1));
+		try {
+			prb.getPacket(3);
+			fail("Got a packet which hasn't been received");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		prb.removeListener(a);
+		prb.addPacket(0, packet(0));
+		assertEquals(Arrays.asList(5), a.received);
+		assertEquals(Arrays.asList(5, 0), b.received);
+	}
+
+	public void testAbort() throws AbortedException {
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		Listener a = new Listener();
+		prb.addListener(a, new BitArray(PACKETS));
+		assertNull(prb.abort(0, "test", true));
+		assertEquals(1, a.aborted);
+		try {
+			prb.addListener(new Listener(), new BitArray(PACKETS));
+			fail("Subscribed to an aborted block");
+		} catch (AbortedException e) {
+			// Expected.
+		}
+	}
+
+	public void testFullBlock() throws AbortedException {
+		byte[] data = new byte[PACKETS * PACKET_SIZE];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) (i / PACKET_SIZE);
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, data);
+		BitArray received = new BitArray(PACKETS);
+		assertEquals(PACKETS, prb.addListener(new Listener(), received));
+		for(int i=0;i<PACKETS;i++) {
+			assertTrue(received.bitAt(i));
+			assertEquals(i, prb.getPacket(i).byteAt(0));
+		}
+		// Already complete, so abort returns the data.
+		assertSame(data, prb.abort(0, "test", true));
+	}
+
+}
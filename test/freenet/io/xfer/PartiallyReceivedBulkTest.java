@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.ShortBuffer;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+public class PartiallyReceivedBulkTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static void assertBlock(byte[] data, int blockNum, ShortBuffer block) {
+		int start = blockNum * BLOCK_SIZE;
+		int end = Math.min(start + BLOCK_SIZE, data.length);
+		assertTrue("Block "+blockNum, Arrays.equals(Arrays.copyOfRange(data, start, end), block.getData()));
+	}
+
+	public void testReadAheadWholeFile() {
+		// Not a multiple of the block size, and more than one read ahead.
+		int blocks = PartiallyReceivedBulk.READ_AHEAD_BLOCKS * 2 + 5;
+		byte[] data = randomData(blocks * BLOCK_SIZE - 100);
+		PartiallyReceivedBulk prb = new PartiallyReceivedBulk(null, data.length, BLOCK_SIZE,
+				new ByteArrayRandomAccessBuffer(data.clone()), true);
+		assertEquals(blocks, prb.blocks);
+		for(int i=0;i<blocks;i++)
+			assertBlock(data, i, prb.getBlock(i));
+		// Out of order, as when resending.
+		assertBlock(data, 3, prb.getBlock(3));
+		assertBlock(data, blocks - 1, prb.getBlock(blocks - 1));
+		assertEquals(BLOCK_SIZE - 100, prb.getBlock(blocks - 1).getLength());
+	}
+
+	public void testPartialFile() {
+		int blocks = 10;
+		byte[] data = randomData(blocks * BLOCK_SIZE);
+		PartiallyReceivedBulk prb = new PartiallyReceivedBulk(null, data.length, BLOCK_SIZE,
+				new ByteArrayRandomAccessBuffer(new byte[data.length]), false);
+		prb.received(0, data, 0, BLOCK_SIZE);
+		prb.received(2, data, 2 * BLOCK_SIZE, BLOCK_SIZE);
+		assertBlock(data, 0, prb.getBlock(0));
+		assertBlock(data, 2, prb.getBlock(2));
+		// Once it's all there, reads ahead.
+		for(int i=0;i<blocks;i++)
+			prb.received(i, data, i * BLOCK_SIZE, BLOCK_SIZE);
+		assertTrue(prb.hasWholeFile());
+		for(int i=0;i<blocks;i++)
+			assertBlock(data, i, prb.getBlock(i));
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.Arrays;
 
 import junit.framework.TestCase;
 
+import freenet.support.TestProperty;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ArrayBucketFactory;
@@ -91,4 +92,42 @@ public class ClientCHKBlockTest extends TestCase {
 		}
 	}
 
+	/** Splitfile blocks encoded per second, on one thread and on one thread per core. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int blocks = 2000;
+		final byte[] cryptoKey = new byte[32];
+		MersenneTwister random = new MersenneTwister(1234);
+		random.nextBytes(cryptoKey);
+		final byte[][] data = new byte[64][CHKBlock.DATA_LENGTH];
+		for(byte[] buf : data)
+			random.nextBytes(buf);
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int round=0;round<3;round++) {
+			for(int threads : new int[] { 1, cores }) {
+				Thread[] t = new Thread[threads];
+				long start = System.nanoTime();
+				for(int i=0;i<threads;i++) {
+					t[i] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								for(int j=0;j<blocks;j++)
+									ClientCHKBlock.encodeSplitfileBlock(data[j % data.length], cryptoKey, Key.ALGO_AES_CTR_256_SHA256);
+							} catch (CHKEncodeException e) {
+								throw new Error(e);
+							}
+						}
+					};
+					t[i].start();
+				}
+				for(Thread thread : t)
+					thread.join();
+				long nanos = System.nanoTime() - start;
+				long perSecond = (long) blocks * threads * 1000 * 1000 * 1000 / nanos;
+				System.out.println(threads + " threads: " + perSecond + " blocks/sec, " + (perSecond / threads) + " per thread");
+			}
+		}
+	}
+
 }
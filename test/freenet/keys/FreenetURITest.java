@@ -1,7 +1,12 @@
 package freenet.keys;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
+import freenet.support.Base64;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class FreenetURITest extends TestCase {
@@ -100,4 +105,166 @@ public class FreenetURITest extends TestCase {
             // Success
         }
 	}
+
+	public void testParse() throws MalformedURLException {
+		FreenetURI uri = new FreenetURI(WANNA_USK_1);
+		assertEquals("USK", uri.getKeyType());
+		assertEquals("Search", uri.getDocName());
+		assertEquals(17, uri.getSuggestedEdition());
+		assertEquals(1, uri.getAllMetaStrings().length);
+		assertEquals("index_d51.xml", uri.getAllMetaStrings()[0]);
+		assertEquals(WANNA_USK_1, uri.toString());
+
+		// Prefixes, case, and a query are all ignored.
+		assertEquals(uri, new FreenetURI("freenet:" + WANNA_USK_1));
+		assertEquals(uri, new FreenetURI("http://127.0.0.1:8888/" + WANNA_USK_1));
+		assertEquals(uri, new FreenetURI("http://127.0.0.1:8888//freenet:" + WANNA_USK_1));
+		assertEquals(uri, new FreenetURI("usk" + WANNA_USK_1.substring(3) + "?max-size=100"));
+		assertEquals(uri, new FreenetURI("  " + WANNA_USK_1 + " \n"));
+
+		// Escapes, empty and trailing meta-strings.
+		uri = new FreenetURI(WANNA_SSK_1 + "/a%20b//c%2fd/");
+		assertEquals("Search-17", uri.getDocName());
+		String[] meta = uri.getAllMetaStrings();
+		assertEquals(5, meta.length);
+		assertEquals("index_d51.xml", meta[0]);
+		assertEquals("a b", meta[1]);
+		assertEquals("", meta[2]);
+		assertEquals("c/d", meta[3]);
+		assertEquals("", meta[4]);
+		assertEquals(uri, new FreenetURI(uri.toString()));
+
+		// File extensions are stripped from CHKs.
+		uri = new FreenetURI(WANNA_CHK_1);
+		assertNull(uri.getDocName());
+		assertEquals("index_d51.xml", uri.getAllMetaStrings()[0]);
+		FreenetURI ext = new FreenetURI(WANNA_CHK_1.substring(0, WANNA_CHK_1.indexOf('/')) + ".xml");
+		assertEquals(uri.setMetaString(null), ext);
+		assertEquals(5, ext.getExtra().length);
+
+		uri = new FreenetURI("KSK@gpl.txt/x%2Fy");
+		assertEquals("gpl.txt", uri.getDocName());
+		assertEquals("x/y", uri.getAllMetaStrings()[0]);
+		assertNull(uri.getRoutingKey());
+		assertEquals(uri, new FreenetURI("KSK%40gpl.txt%2Fx%252Fy"));
+
+		for(String bad : new String[] { "", "CHK", "XYZ@abc", "CHKK@abc", "USK@abc", "USK@abc/site", "USK@abc/site/x", "KSK@%zz" }) {
+			try {
+				new FreenetURI(bad);
+				fail("Parsed "+bad);
+			} catch (MalformedURLException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testHashCodeAndStrings() throws MalformedURLException {
+		FreenetURI uri = new FreenetURI(WANNA_SSK_1);
+		FreenetURI copy = new FreenetURI(WANNA_SSK_1);
+		assertEquals(uri.hashCode(), copy.hashCode());
+		assertEquals(uri.hashCode(), uri.hashCode());
+		assertEquals(0, FreenetURI.FAST_COMPARATOR.compare(uri, copy));
+		assertEquals("freenet:" + WANNA_SSK_1, uri.toASCIIString());
+		assertSame(uri.toASCIIString(), uri.toASCIIString());
+		assertSame(uri.toString(), uri.toString());
+		FreenetURI other = new FreenetURI("KSK@\u00e9t\u00e9");
+		assertEquals("freenet:ksk@%c3%a9t%c3%a9", other.toASCIIString().toLowerCase());
+		assertEquals("KSK@\u00e9t\u00e9", other.toString());
+	}
+
+	public void testIntern() throws MalformedURLException {
+		FreenetURI uri = FreenetURI.intern(WANNA_CHK_1);
+		assertEquals(new FreenetURI(WANNA_CHK_1), uri);
+		assertSame(uri, FreenetURI.intern(WANNA_CHK_1));
+		assertSame(uri, FreenetURI.intern(WANNA_CHK_1, true));
+		// Whitespace matters for noTrim, so those aren't shared.
+		assertNotSame(uri, FreenetURI.intern(" " + WANNA_CHK_1));
+		assertEquals(uri, FreenetURI.intern(" " + WANNA_CHK_1));
+		try {
+			FreenetURI.intern(" " + WANNA_USK_1, true);
+			fail("Parsed a USK with a space in the key type");
+		} catch (MalformedURLException e) {
+			// Expected.
+		}
+		try {
+			FreenetURI.intern("CHK@%zz");
+			fail("Parsed a bad URI");
+		} catch (MalformedURLException e) {
+			// Expected.
+		}
+		// Bounded: push it out with others.
+		for(int i=0;i<FreenetURI.MAX_INTERNED;i++)
+			FreenetURI.intern("KSK@test-"+i);
+		FreenetURI again = FreenetURI.intern(WANNA_CHK_1);
+		assertEquals(uri, again);
+		assertNotSame(uri, again);
+	}
+
+	/** Links as they appear on a freesite index page: a few sites, many files on each. */
+	private static List<String> freesiteLinks(Random random) {
+		List<String> sites = new ArrayList<String>();
+		for(int i=0;i<50;i++) {
+			String keys = randomBase64(random, 32) + ',' + randomBase64(random, 32) + ",AQACAAE";
+			sites.add("USK@" + keys + "/site" + i + '/' + random.nextInt(100) + '/');
+			sites.add("SSK@" + keys + "/site" + i + '-' + random.nextInt(100) + '/');
+		}
+		List<String> files = new ArrayList<String>();
+		for(int i=0;i<100;i++)
+			files.add("CHK@" + randomBase64(random, 32) + ',' + randomBase64(random, 32) + ",AAMC--8/file" + i + ".zip");
+		// Index pages link to the same sites many times.
+		List<String> links = new ArrayList<String>();
+		for(int i=0;i<2000;i++) {
+			String site = sites.get(random.nextInt(sites.size()));
+			switch(random.nextInt(4)) {
+			case 0:
+				links.add(site);
+				break;
+			case 1:
+				links.add(site + "index.html");
+				break;
+			case 2:
+				links.add(site + "images/picture%20" + random.nextInt(3) + ".jpg");
+				break;
+			default:
+				links.add(files.get(random.nextInt(files.size())));
+			}
+		}
+		return links;
+	}
+
+	private static String randomBase64(Random random, int bytes) {
+		byte[] buf = new byte[bytes];
+		random.nextBytes(buf);
+		return Base64.encode(buf);
+	}
+
+	public void testBenchmark() throws MalformedURLException {
+		if(!TestProperty.BENCHMARK) return;
+		List<String> links = freesiteLinks(new Random(49));
+		int iterations = 200;
+		for(int round=0;round<3;round++) {
+			int dummy = 0;
+			long start = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				for(String link : links)
+					dummy += new FreenetURI(link, true).hashCode();
+			long parse = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				for(String link : links)
+					dummy += FreenetURI.intern(link, true).toString().length();
+			long intern = System.nanoTime() - start;
+			List<FreenetURI> uris = new ArrayList<FreenetURI>();
+			for(String link : links)
+				uris.add(new FreenetURI(link));
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				for(int j=1;j<uris.size();j++)
+					dummy += FreenetURI.FAST_COMPARATOR.compare(uris.get(j-1), uris.get(j));
+			long compare = System.nanoTime() - start;
+			long count = (long) iterations * links.size();
+			System.out.println("Freesite links: parse "+(parse / count)+"ns, intern "+(intern / count)+
+					"ns, compare "+(compare / count)+"ns per link ("+dummy+")");
+		}
+	}
 }
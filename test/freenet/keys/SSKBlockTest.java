@@ -0,0 +1,60 @@
+package freenet.keys;
+
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.support.io.ArrayBucket;
+
+public class SSKBlockTest extends TestCase {
+
+	private DummyRandomSource random;
+	private InsertableClientSSK key;
+
+	@Override
+	protected void setUp() throws Exception {
+		random = new DummyRandomSource(1234);
+		key = InsertableClientSSK.createRandom(random, "test");
+		SSKBlock.verifiedSignatures.clear();
+	}
+
+	private SSKBlock makeBlock(String content) throws Exception {
+		byte[] buf = content.getBytes("UTF-8");
+		ClientSSKBlock block = key.encode(new ArrayBucket(buf), false, false, (short)-1, buf.length, random, null, false);
+		return (SSKBlock) block.getBlock();
+	}
+
+	public void testVerifiedSignatureCache() throws Exception {
+		SSKBlock block = makeBlock("Hello world");
+		NodeSSK nodeKey = block.getKey();
+		long hits = SSKBlock.verifiedSignatures.getHits();
+		SSKBlock first = new SSKBlock(block.getRawData(), block.getRawHeaders(), nodeKey, false);
+		assertEquals(hits, SSKBlock.verifiedSignatures.getHits());
+		assertEquals(1, SSKBlock.verifiedSignatures.size());
+		SSKBlock second = new SSKBlock(block.getRawData(), block.getRawHeaders(), nodeKey, false);
+		assertEquals(hits + 1, SSKBlock.verifiedSignatures.getHits());
+		assertEquals(first, second);
+	}
+
+	public void testTamperedSignatureStillFails() throws Exception {
+		SSKBlock block = makeBlock("Hello world");
+		NodeSSK nodeKey = block.getKey();
+		byte[] headers = block.getRawHeaders().clone();
+		headers[headers.length - 1] ^= 1;
+		try {
+			new SSKBlock(block.getRawData(), headers, nodeKey, false);
+			fail("Should not verify");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		try {
+			new SSKBlock(data, block.getRawHeaders(), nodeKey, false);
+			fail("Should not verify");
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package freenet.node;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class JFKAuthenticatorCacheTest extends TestCase {
+
+	private static byte[] key(int i) {
+		byte[] buf = new byte[32];
+		Arrays.fill(buf, (byte) i);
+		return buf;
+	}
+
+	public void testGetPut() {
+		JFKAuthenticatorCache cache = new JFKAuthenticatorCache();
+		assertNull(cache.get(key(1)));
+		cache.put(key(1), new byte[] { 1 });
+		// A different array with the same contents must match.
+		assertTrue(Arrays.equals(new byte[] { 1 }, cache.get(key(1))));
+		assertNull(cache.get(key(2)));
+		assertEquals(1, cache.size());
+		// Kept until cleared, i.e. until the transient key changes.
+		cache.clear();
+		assertNull(cache.get(key(1)));
+		assertEquals(0, cache.size());
+	}
+
+	public void testPutIfAbsent() {
+		JFKAuthenticatorCache cache = new JFKAuthenticatorCache();
+		assertNull(cache.putIfAbsent(key(1), new byte[] { 1 }));
+		assertTrue(Arrays.equals(new byte[] { 1 }, cache.putIfAbsent(key(1), new byte[] { 2 })));
+		assertTrue(Arrays.equals(new byte[] { 1 }, cache.get(key(1))));
+	}
+
+}
@@ -0,0 +1,82 @@
+package freenet.node;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import freenet.support.PooledExecutor;
+
+public class JFKHandshakeExecutorTest extends TestCase {
+
+	private PooledExecutor executor;
+
+	@Override
+	protected void setUp() {
+		executor = new PooledExecutor();
+		executor.start();
+	}
+
+	public void testSameKeyRunsInOrder() throws Exception {
+		JFKHandshakeExecutor jfk = new JFKHandshakeExecutor();
+		jfk.start(executor, "JFK test");
+		final List<Integer> order = new ArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(JFKHandshakeExecutor.IP_BURST);
+		Object key = new Object();
+		InetAddress addr = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		for(int i=0;i<JFKHandshakeExecutor.IP_BURST;i++) {
+			final int x = i;
+			assertTrue(jfk.execute(key, addr, new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized(order) {
+						order.add(x);
+					}
+					done.countDown();
+				}
+
+			}, "test"));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		synchronized(order) {
+			assertEquals(JFKHandshakeExecutor.IP_BURST, order.size());
+			for(int i=0;i<order.size();i++)
+				assertEquals(i, order.get(i).intValue());
+		}
+	}
+
+	public void testRateLimitPerAddress() throws Exception {
+		JFKHandshakeExecutor jfk = new JFKHandshakeExecutor();
+		// Not started, so nothing runs.
+		Runnable nothing = new Runnable() {
+
+			@Override
+			public void run() {
+				// Do nothing.
+			}
+
+		};
+		InetAddress flooder = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		InetAddress other = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+		int accepted = 0;
+		for(int i=0;i<JFKHandshakeExecutor.IP_BURST * 2;i++) {
+			if(jfk.execute(flooder, flooder, nothing, "test")) accepted++;
+		}
+		// Allow for a refill if the loop was slow.
+		assertTrue(accepted >= JFKHandshakeExecutor.IP_BURST);
+		assertTrue(accepted < JFKHandshakeExecutor.IP_BURST * 2);
+		assertTrue(jfk.droppedRateLimited() > 0);
+		// Other addresses are unaffected.
+		assertTrue(jfk.execute(other, other, nothing, "test"));
+		// Loopback is never limited.
+		InetAddress local = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		for(int i=0;i<JFKHandshakeExecutor.IP_BURST * 2;i++)
+			assertTrue(jfk.execute(local, local, nothing, "test"));
+		assertEquals(accepted + 1 + JFKHandshakeExecutor.IP_BURST * 2, jfk.queuedJobs());
+	}
+
+}
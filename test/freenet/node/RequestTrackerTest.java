@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import junit.framework.TestCase;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+public class RequestTrackerTest extends TestCase {
+
+	private static final int TRANSFERS_PER_INSERT = 3;
+
+	private RequestTracker tracker;
+
+	@Override
+	protected void setUp() {
+		tracker = new RequestTracker(null, null);
+	}
+
+	/** Check the counters against a full scan, for every combination of parameters. */
+	private void checkCounters() {
+		for(boolean ssk : new boolean[] { false, true }) {
+			for(boolean realTime : new boolean[] { false, true }) {
+				for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+					CountedRequests counted = new CountedRequests();
+					CountedRequests countedSR = new CountedRequests();
+					tracker.countAllRequests(ssk, realTime, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, counted, countedSR);
+					CountedRequests scanned = new CountedRequests();
+					CountedRequests scannedSR = new CountedRequests();
+					for(boolean local : new boolean[] { false, true }) {
+						tracker.countRequests(local, ssk, false, false, realTime, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, scanned, scannedSR);
+						tracker.countRequests(local, ssk, true, false, realTime, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, scanned, scannedSR);
+					}
+					tracker.countRequests(false, ssk, false, true, realTime, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, scanned, scannedSR);
+					assertTrue(counted+" vs "+scanned, counted.sameAs(scanned));
+					assertTrue(countedSR+" vs "+scannedSR, countedSR.sameAs(scannedSR));
+
+					// Local requests are counted as coming from null.
+					CountedRequests fromLocal = new CountedRequests();
+					tracker.countAllRequests(null, false, ssk, realTime, TRANSFERS_PER_INSERT, ignoreLocalVsRemote, fromLocal, null);
+					assertTrue(fromLocal+" vs "+scanned, fromLocal.sameAs(scanned));
+				}
+			}
+		}
+	}
+
+	public void testCountersFollowTags() {
+		checkCounters();
+		RequestTag chk = new RequestTag(false, RequestTag.START.LOCAL, null, false, 1, tracker);
+		RequestTag ssk = new RequestTag(true, RequestTag.START.LOCAL, null, true, 2, tracker);
+		InsertTag insert = new InsertTag(false, InsertTag.START.LOCAL, null, false, 3, tracker);
+		assertTrue(tracker.lockUID(chk));
+		assertTrue(tracker.lockUID(ssk));
+		assertTrue(tracker.lockUID(insert));
+		checkCounters();
+		CountedRequests counted = new CountedRequests();
+		tracker.countAllRequests(false, false, TRANSFERS_PER_INSERT, true, counted, null);
+		assertEquals(2, counted.total());
+		assertEquals(1 + TRANSFERS_PER_INSERT, counted.expectedTransfersOut());
+
+		// State changes which affect the expected transfers.
+		chk.setNotRoutedOnwards();
+		checkCounters();
+		insert.setNotRoutedOnwards();
+		checkCounters();
+		chk.completedDownstreamTransfers();
+		checkCounters();
+		counted = new CountedRequests();
+		tracker.countAllRequests(false, false, TRANSFERS_PER_INSERT, true, counted, null);
+		assertEquals(2, counted.total());
+		assertEquals(0, counted.expectedTransfersOut());
+
+		// Nothing routed, so unlocking the handler unlocks the tag.
+		chk.unlockHandler();
+		ssk.unlockHandler();
+		insert.unlockHandler();
+		checkCounters();
+		counted = new CountedRequests();
+		for(boolean isSSK : new boolean[] { false, true })
+			for(boolean realTime : new boolean[] { false, true })
+				tracker.countAllRequests(isSSK, realTime, TRANSFERS_PER_INSERT, true, counted, null);
+		assertEquals(0, counted.total());
+	}
+
+	public void testDuplicateUID() {
+		RequestTag a = new RequestTag(false, RequestTag.START.LOCAL, null, false, 1, tracker);
+		RequestTag b = new RequestTag(false, RequestTag.START.LOCAL, null, false, 1, tracker);
+		assertTrue(tracker.lockUID(a));
+		assertFalse(tracker.lockUID(b));
+		checkCounters();
+		// Not locked, so changing its state doesn't affect the counters.
+		b.setNotRoutedOnwards();
+		checkCounters();
+		a.unlockHandler();
+		checkCounters();
+	}
+
+}
@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class RoutingIndexTest extends TestCase {
+
+	private static final double EPSILON = 1e-15;
+
+	private static RoutingIndex randomIndex(Random r, int peers, int degree) {
+		double[] locations = new double[peers];
+		double[][] foaf = new double[peers][];
+		for(int i=0;i<peers;i++) {
+			locations[i] = r.nextDouble();
+			// Some peers don't send their peers' locations.
+			if(i % 5 == 0) continue;
+			foaf[i] = new double[degree];
+			for(int j=0;j<degree;j++)
+				foaf[i][j] = r.nextDouble();
+			Arrays.sort(foaf[i]);
+		}
+		return new RoutingIndex(new PeerNode[peers], locations, foaf, 0);
+	}
+
+	public void testWalkVisitsInOrderOfDistance() {
+		Random r = new Random(1);
+		for(int peers : new int[] { 1, 2, 3, 10, 50 }) {
+			RoutingIndex index = randomIndex(r, peers, 7);
+			double[] targets = new double[] { 0.0, 1 - 1e-12, 0.5, r.nextDouble(), r.nextDouble() };
+			for(double target : targets) {
+				RoutingIndex.Walk walk = index.walk(target);
+				double last = 0.0;
+				int count = 0;
+				int[] directSeen = new int[peers];
+				while(walk.next()) {
+					assertTrue(walk.distance() >= last);
+					assertEquals(Location.distance(walk.location(), target), walk.distance(), EPSILON);
+					last = walk.distance();
+					if(walk.isDirect()) {
+						directSeen[walk.peer()]++;
+						assertEquals(index.getPeerLocation(walk.peer()), walk.location());
+					}
+					count++;
+				}
+				assertEquals(peers + (peers - (peers + 4) / 5) * 7, count);
+				for(int seen : directSeen)
+					assertEquals(1, seen);
+			}
+		}
+	}
+
+	public void testClosestPerPeerMatchesScan() {
+		Random r = new Random(2);
+		double[] locations = new double[20];
+		double[][] foaf = new double[20][];
+		for(int i=0;i<locations.length;i++) {
+			locations[i] = r.nextDouble();
+			foaf[i] = new double[] { r.nextDouble(), r.nextDouble(), r.nextDouble() };
+			Arrays.sort(foaf[i]);
+		}
+		RoutingIndex index = new RoutingIndex(new PeerNode[locations.length], locations, foaf, 0);
+		for(int t=0;t<100;t++) {
+			double target = r.nextDouble();
+			// The first time each peer comes up is its closest location to the target.
+			boolean[] seen = new boolean[locations.length];
+			RoutingIndex.Walk walk = index.walk(target);
+			while(walk.next()) {
+				int p = walk.peer();
+				if(seen[p]) continue;
+				seen[p] = true;
+				double closest = Location.distance(locations[p], target);
+				for(double l : foaf[p])
+					closest = Math.min(closest, Location.distance(l, target));
+				assertEquals(closest, walk.distance(), EPSILON);
+			}
+		}
+	}
+
+	public void testInvalidLocation() {
+		RoutingIndex index = new RoutingIndex(new PeerNode[2], new double[] { 0.5, -1.0 },
+				new double[2][], 0);
+		assertFalse(index.isValid());
+		assertTrue(randomIndex(new Random(3), 5, 3).isValid());
+		assertFalse(new RoutingIndex(new PeerNode[0], new double[0], new double[0][], 0).walk(0.5).next());
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(4);
+		final int peers = 200;
+		final int degree = 100;
+		RoutingIndex index = randomIndex(r, peers, degree);
+		double[] locations = new double[peers];
+		double[][] foaf = new double[peers][];
+		for(int i=0;i<peers;i++) {
+			locations[i] = index.getPeerLocation(i);
+			foaf[i] = new double[degree];
+			for(int j=0;j<degree;j++)
+				foaf[i][j] = r.nextDouble();
+			Arrays.sort(foaf[i]);
+		}
+		index = new RoutingIndex(new PeerNode[peers], locations, foaf, 0);
+		final int iterations = 100000;
+		for(int round=0;round<3;round++) {
+			// Find the 3 closest peers, as a request skipping backed off peers might.
+			long start = System.nanoTime();
+			long total = 0;
+			for(int i=0;i<iterations;i++) {
+				double target = r.nextDouble();
+				boolean[] seen = new boolean[peers];
+				int found = 0;
+				RoutingIndex.Walk walk = index.walk(target);
+				while(found < 3 && walk.next()) {
+					if(seen[walk.peer()]) continue;
+					seen[walk.peer()] = true;
+					found++;
+				}
+				total += found;
+			}
+			long indexTime = System.nanoTime() - start;
+			// What closerPeer() used to do: look at every peer, binary search its peers.
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				double target = r.nextDouble();
+				double best = Double.MAX_VALUE;
+				for(int p=0;p<peers;p++) {
+					double d = Location.distance(locations[p], target);
+					double l = foaf[p][PeerLocation.findClosestLocation(foaf[p], target)];
+					best = Math.min(best, Math.min(d, Location.distance(l, target)));
+				}
+				if(best > 1.0) total++;
+			}
+			long scanTime = System.nanoTime() - start;
+			System.out.println(peers + " peers, degree " + degree + ": scan " + (scanTime / iterations) +
+					"ns, index walk " + (indexTime / iterations) + "ns (" + total + ")");
+		}
+	}
+
+}
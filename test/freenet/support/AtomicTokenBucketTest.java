@@ -0,0 +1,168 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import junit.framework.TestCase;
+
+public class AtomicTokenBucketTest extends TestCase {
+
+	/** Slow enough that no tokens are added while the test runs. */
+	private static final long SLOW = SECONDS.toNanos(1000);
+
+	public void testGrab() {
+		AtomicTokenBucket bucket = new AtomicTokenBucket(100, SLOW, 50);
+		assertEquals(50, bucket.getCount());
+		assertTrue(bucket.instantGrab(30));
+		assertFalse(bucket.instantGrab(30));
+		assertEquals(20, bucket.getCount());
+		bucket.forceGrab(30);
+		assertEquals(-10, bucket.getCount());
+		assertFalse(bucket.instantGrab(1));
+		bucket.recycle(15);
+		assertEquals(5, bucket.getCount());
+		// Can't recycle more than the bucket holds.
+		bucket.recycle(1000);
+		assertEquals(100, bucket.getCount());
+	}
+
+	public void testInitialValueClipped() {
+		assertEquals(10, new AtomicTokenBucket(10, SLOW, 20).getCount());
+	}
+
+	public void testRefill() throws InterruptedException {
+		// 1000 tokens a second.
+		AtomicTokenBucket bucket = new AtomicTokenBucket(20, MILLISECONDS.toNanos(1), 0);
+		bucket.forceGrab(10);
+		assertTrue(bucket.getCount() < 0);
+		Thread.sleep(100);
+		// Full, but not more.
+		assertEquals(20, bucket.getCount());
+		long start = System.nanoTime();
+		bucket.blockingGrab(40);
+		assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(20));
+		assertTrue(bucket.getCount() >= 0);
+	}
+
+	public void testChangeRate() {
+		AtomicTokenBucket bucket = new AtomicTokenBucket(100, SLOW, 80);
+		// Keeps the balance, clipped to the new size.
+		bucket.changeNanosAndBucketSize(SLOW * 2, 200);
+		assertEquals(80, bucket.getCount());
+		assertEquals(200, bucket.getSize());
+		bucket.changeNanosAndBucketSize(SLOW, 50);
+		assertEquals(50, bucket.getCount());
+		bucket.forceGrab(70);
+		bucket.changeNanosAndBucketSize(SLOW / 2, 50);
+		assertEquals(-20, bucket.getCount());
+		try {
+			bucket.changeNanosAndBucketSize(0, 50);
+			fail("Accepted zero rate");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testChild() {
+		AtomicTokenBucket parent = new AtomicTokenBucket(1000, SLOW, 100);
+		AtomicTokenBucket a = parent.createChild(60, SLOW);
+		AtomicTokenBucket b = parent.createChild(60, SLOW);
+		assertEquals(60, a.getCount());
+		// Taken from both.
+		assertTrue(a.instantGrab(50));
+		assertEquals(10, a.getCount());
+		assertEquals(50, parent.getCount());
+		assertEquals(0, a.nanosUntil(10));
+		long wait = a.nanosUntil(11);
+		assertTrue(wait > 0 && wait <= SLOW);
+		// Not enough in the child.
+		assertFalse(a.instantGrab(20));
+		assertEquals(50, parent.getCount());
+		// Not enough in the parent: nothing taken from the child either.
+		b.forceGrab(40);
+		assertEquals(10, parent.getCount());
+		assertFalse(b.instantGrab(15));
+		assertEquals(20, b.getCount());
+		assertEquals(10, parent.getCount());
+		b.recycle(10);
+		assertEquals(30, b.getCount());
+		assertEquals(20, parent.getCount());
+		// The parent's debt isn't limited, the child's is limited to its size.
+		a.forceGrab(500);
+		assertEquals(-60, a.getCount());
+		assertEquals(-480, parent.getCount());
+	}
+
+	public void testConcurrentGrabs() throws InterruptedException {
+		final AtomicTokenBucket bucket = new AtomicTokenBucket(1000000, SLOW, 1000000);
+		final int threads = 4;
+		final int grabs = 10000;
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<grabs;j++) {
+						if(j % 2 == 0)
+							bucket.forceGrab(3);
+						else
+							assertTrue(bucket.instantGrab(7));
+					}
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+		assertEquals(1000000 - threads * grabs / 2 * 10, bucket.getCount());
+	}
+
+	@SuppressWarnings("deprecation")
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int threads = 4;
+		final int grabs = 1000000;
+		for(int round=0;round<3;round++) {
+			final TokenBucket old = new TokenBucket(Long.MAX_VALUE / 2, 1, 0);
+			final AtomicTokenBucket bucket = new AtomicTokenBucket(Long.MAX_VALUE / 2, 1, 0);
+			long start = System.nanoTime();
+			runThreads(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0;i<grabs;i++) {
+						old.forceGrab(1400);
+						old.getCount();
+					}
+				}
+			});
+			long oldTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			runThreads(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0;i<grabs;i++) {
+						bucket.forceGrab(1400);
+						bucket.getCount();
+					}
+				}
+			});
+			long newTime = System.nanoTime() - start;
+			System.out.println(threads + " threads, forceGrab() and getCount(): TokenBucket " +
+					(oldTime / grabs / threads) + "ns, AtomicTokenBucket " + (newTime / grabs / threads) + "ns");
+		}
+	}
+
+	private static void runThreads(int count, Runnable r) throws InterruptedException {
+		Thread[] t = new Thread[count];
+		for(int i=0;i<count;i++) {
+			t[i] = new Thread(r);
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+	}
+
+}
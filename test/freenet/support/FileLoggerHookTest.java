@@ -0,0 +1,115 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import freenet.support.FileLoggerHook.IntervalParseException;
+import freenet.support.Logger.LogLevel;
+import freenet.support.math.TimeHistogram;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static String waitForOutput(ByteArrayOutputStream out, String expected) throws UnsupportedEncodingException, InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		String s;
+		while(!(s = out.toString("UTF-8")).contains(expected) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		return s;
+	}
+
+	public void testFormat() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "d p: m", "yyyy", LogLevel.NORMAL, false);
+		hook.start();
+		hook.log(this, getClass(), "Hello é世", null, LogLevel.NORMAL);
+		hook.log(this, getClass(), "Not logged", null, LogLevel.MINOR);
+		hook.log(this, getClass(), "Failed", new Exception("Oops"), LogLevel.ERROR);
+		hook.close();
+		String s = waitForOutput(out, "Oops");
+		int year = Calendar.getInstance(TimeZone.getTimeZone("UTC")).get(Calendar.YEAR);
+		assertTrue(s, s.startsWith(year + " NORMAL: Hello é世\n" + year + " ERROR: Failed\njava.lang.Exception: Oops\n\tat "));
+		assertFalse(s.contains("Not logged"));
+		assertEquals(0, hook.listBytes());
+	}
+
+	public void testConcurrent() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(out, "t m", "", LogLevel.NORMAL, false);
+		hook.start();
+		final int threads = 4;
+		final int lines = 1000;
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread("Logger " + i) {
+				@Override
+				public void run() {
+					for(int j=0;j<lines;j++)
+						hook.log(this, getClass(), "line " + j, null, LogLevel.NORMAL);
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+		hook.close();
+		String s = waitForOutput(out, "Logger 3 line " + (lines - 1) + "\n");
+		// Wait for the rest.
+		Thread.sleep(100);
+		s = out.toString("UTF-8");
+		String[] written = s.split("\n");
+		assertEquals(threads * lines, written.length);
+		for(int i=0;i<threads;i++)
+			assertTrue(s.contains("Logger " + i + " line " + (lines - 1) + "\n"));
+	}
+
+	public void testBenchmark() throws InterruptedException, IntervalParseException {
+		if(!TestProperty.BENCHMARK) return;
+		OutputStream discard = new OutputStream() {
+			@Override
+			public void write(int b) {
+				// Discard.
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// Discard.
+			}
+		};
+		for(int threads : new int[] { 1, 4, 16 }) {
+			final FileLoggerHook hook = new FileLoggerHook(discard, "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.NORMAL, false);
+			hook.start();
+			final int lines = 200000;
+			final TimeHistogram latency = new TimeHistogram();
+			Thread[] t = new Thread[threads];
+			long start = System.nanoTime();
+			for(int i=0;i<threads;i++) {
+				t[i] = new Thread("Logger " + i) {
+					@Override
+					public void run() {
+						for(int j=0;j<lines;j++) {
+							long before = System.nanoTime();
+							hook.log(this, FileLoggerHookTest.class, "Benchmark line " + j, null, LogLevel.NORMAL);
+							latency.report(System.nanoTime() - before);
+						}
+					}
+				};
+				t[i].start();
+			}
+			for(Thread thread : t)
+				thread.join();
+			long time = System.nanoTime() - start;
+			hook.close();
+			System.out.println(threads + " threads logging: " + (time / lines) + "ns per line per thread, latency median " +
+					latency.percentile(0.5) + "ns, 99% " + latency.percentile(0.99) + "ns, 99.9% " + latency.percentile(0.999) + "ns");
+		}
+	}
+
+}
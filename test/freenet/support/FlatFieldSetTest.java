@@ -0,0 +1,347 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.node.FSParseException;
+import freenet.support.io.LineReadingInputStream;
+
+public class FlatFieldSetTest extends TestCase {
+
+	private static final String CLIENT_GET =
+		"IgnoreDS=false\n" +
+		"DSOnly=false\n" +
+		"URI=CHK@ZuTiiHRHzYmRCb9t4f0Ri8dbyVLbvlNmXFP9S0tm0x8,Sy2~oVS4ZBqYs1cSCwxwGVpGr8MB3QAQc3E~vbKLeFU,AAMC--8/freenet-build01480.jar\n" +
+		"Identifier=Request Number One\n" +
+		"Verbosity=1023\n" +
+		"ReturnType=direct\n" +
+		"MaxSize=104857600\n" +
+		"MaxTempSize=209715200\n" +
+		"MaxRetries=-1\n" +
+		"PriorityClass=2\n" +
+		"Persistence=forever\n" +
+		"ClientToken=hello\n" +
+		"Global=true\n" +
+		"BinaryBlob=false\n" +
+		"FilterData=true\n" +
+		"InitialMetadata.DataLength=0\n" +
+		"EndMessage\n";
+
+	private static final String CLIENT_PUT =
+		"URI=CHK@\n" +
+		"Metadata.ContentType=text/html;charset=utf-8\n" +
+		"Identifier=Insert-1 été\n" +
+		"Verbosity=1\n" +
+		"MaxRetries=10\n" +
+		"PriorityClass=3\n" +
+		"GetCHKOnly=false\n" +
+		"Global=false\n" +
+		"DontCompress=true\n" +
+		"Codecs=LZMA_NEW,BZIP2\n" +
+		"ClientToken=Hello!!!\n" +
+		"Persistence=reboot\n" +
+		"TargetFilename=index.html\n" +
+		"EarlyEncode=false\n" +
+		"UploadFrom=direct\n" +
+		"DataLength=100\n" +
+		"Data\n";
+
+	private static FlatFieldSet flat(String s, boolean allowMultiple, boolean allowBase64) throws IOException {
+		byte[] data = s.getBytes("UTF-8");
+		return FlatFieldSet.parse(data, 0, data.length, allowMultiple, allowBase64);
+	}
+
+	private static SimpleFieldSet simple(String s, boolean allowMultiple, boolean allowBase64) throws IOException {
+		InputStream is = new ByteArrayInputStream(s.getBytes("UTF-8"));
+		return new SimpleFieldSet(new LineReadingInputStream(is), 65536, 128, true, allowMultiple, true, allowBase64);
+	}
+
+	private static void assertSame(SimpleFieldSet expected, FlatFieldSet actual) {
+		int keys = 0;
+		for(Iterator<String> it = expected.keyIterator();it.hasNext();) {
+			String key = it.next();
+			assertEquals(key, expected.get(key), actual.get(key));
+			keys++;
+		}
+		assertEquals(keys, actual.size());
+		assertEquals(expected.getEndMarker(), actual.getEndMarker());
+		assertTrue(Arrays.equals(expected.getHeader(), actual.getHeader()));
+	}
+
+	public void testMessages() throws IOException {
+		for(String message : new String[] { CLIENT_GET, CLIENT_PUT, peer(new Random(1)) })
+			assertSame(simple(message, true, true), flat(message, true, true));
+		FlatFieldSet fs = flat(CLIENT_GET, true, false);
+		assertEquals("Request Number One", fs.get("Identifier"));
+		assertEquals("0", fs.get("InitialMetadata.DataLength"));
+		assertNull(fs.get("InitialMetadata"));
+		assertNull(fs.get("Identifie"));
+		assertNull(fs.get("Identifierr"));
+		assertEquals("Insert-1 été", flat(CLIENT_PUT, true, false).get("Identifier"));
+	}
+
+	public void testFormat() throws IOException {
+		String s = "# Header one\n#Header two\n\n  Spaced Key  = value \r\nEmpty=\n# comment\nUnicodeé=€\nEnd\nAfter=1\n";
+		FlatFieldSet fs = flat(s, false, false);
+		assertSame(simple(s, false, false), fs);
+		assertEquals(" value ", fs.get("Spaced Key"));
+		assertEquals("", fs.get("Empty"));
+		assertEquals("€", fs.get("Unicodeé"));
+		assertNull(fs.get("After"));
+		assertEquals("End", fs.getEndMarker());
+		assertTrue(Arrays.equals(new String[] { "Header one", "Header two" }, fs.getHeader()));
+	}
+
+	public void testMultiple() throws IOException {
+		String s = "A=1\nB=2\nA=3\nA=4\nEnd\n";
+		FlatFieldSet fs = flat(s, true, false);
+		assertSame(simple(s, true, false), fs);
+		assertEquals("1;3;4", fs.get("A"));
+		assertTrue(Arrays.equals(new String[] { "1", "3", "4" }, fs.getAll("A")));
+		assertEquals(2, fs.size());
+		fs = flat(s, false, false);
+		assertSame(simple(s, false, false), fs);
+		assertEquals("1", fs.get("A"));
+		assertEquals(2, fs.size());
+	}
+
+	public void testNumbers() throws IOException, FSParseException {
+		FlatFieldSet fs = flat("Zero=0\nNegative=-12\nMax="+Long.MAX_VALUE+"\nMin="+Long.MIN_VALUE+
+				"\nOver=9223372036854775808\nPlus=+5\nText=12a\nIntMax="+Integer.MAX_VALUE+"\nIntOver=2147483648\nMinus=-\nEmpty=\nEnd\n", false, false);
+		assertEquals(0, fs.getInt("Zero"));
+		assertEquals(-12, fs.getInt("Negative"));
+		assertEquals(Long.MAX_VALUE, fs.getLong("Max"));
+		assertEquals(Long.MIN_VALUE, fs.getLong("Min"));
+		assertEquals(7, fs.getLong("Over", 7));
+		assertEquals(5, fs.getLong("Plus"));
+		assertEquals(7, fs.getInt("Text", 7));
+		assertEquals(Integer.MAX_VALUE, fs.getInt("IntMax"));
+		assertEquals(7, fs.getInt("IntOver", 7));
+		assertEquals(Integer.MAX_VALUE, fs.getLong("IntMax"));
+		assertEquals(7, fs.getInt("Minus", 7));
+		assertEquals(7, fs.getInt("Empty", 7));
+		assertEquals(7, fs.getInt("Missing", 7));
+		for(String key : new String[] { "Text", "Missing", "Over" }) {
+			try {
+				fs.getLong(key);
+				fail();
+			} catch (FSParseException e) {
+				// Expected.
+			}
+		}
+		assertTrue(flat(CLIENT_GET, false, false).getBoolean("Global"));
+		assertFalse(flat(CLIENT_GET, false, false).getBoolean("Missing", false));
+	}
+
+	public void testBase64() throws IOException {
+		String value = "a=b;c.d\ne f";
+		String s = "Key=="+Base64.encodeUTF8(value)+"\nEnd\n";
+		FlatFieldSet fs = flat(s, false, true);
+		assertEquals(value, fs.get("Key"));
+		assertEquals("="+Base64.encodeUTF8(value), flat(s, false, false).get("Key"));
+		try {
+			flat("Key==!!\nEnd\n", false, true);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Written as it was read. SimpleFieldSet doesn't allow newlines by default.
+		value = "a=b;c.d e\tf";
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		fs = flat("Key=="+Base64.encodeUTF8(value)+"\nEnd\n", false, true);
+		fs.writeTo(baos);
+		assertEquals(value, simple(new String(baos.toByteArray(), "UTF-8"), false, true).get("Key"));
+	}
+
+	public void testSubset() throws IOException {
+		String s = peer(new Random(2));
+		FlatFieldSet fs = flat(s, false, true);
+		SimpleFieldSet sfs = simple(s, false, true);
+		FlatFieldSet physical = fs.subset("physical");
+		assertEquals(sfs.subset("physical").get("udp"), physical.get("udp"));
+		assertEquals(1, physical.size());
+		FlatFieldSet ecdsa = fs.subset("ecdsa.P256");
+		assertEquals(sfs.get("ecdsa.P256.pub"), ecdsa.get("pub"));
+		assertEquals(sfs.get("ecdsa.P256.pub"), fs.subset("ecdsa").subset("P256").get("pub"));
+		assertNull(fs.subset("identity"));
+		assertNull(fs.subset("nothing"));
+		assertNull(fs.subset("ecdsa.P25"));
+	}
+
+	public void testLookup() throws IOException {
+		// "Aa" and "BB" have the same hash code, so do any strings made of them.
+		StringBuilder sb = new StringBuilder();
+		List<String> keys = new ArrayList<String>();
+		for(int i=0;i<256;i++) {
+			StringBuilder key = new StringBuilder();
+			for(int bit=0;bit<8;bit++)
+				key.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+			keys.add(key.toString());
+		}
+		keys.add("é");
+		keys.add("e");
+		keys.add("f");
+		keys.add("ee");
+		keys.add("€");
+		Random random = new Random(5);
+		List<String> shuffled = new ArrayList<String>(keys);
+		Collections.shuffle(shuffled, random);
+		for(String key : shuffled)
+			sb.append(key).append('=').append(keys.indexOf(key)).append('\n');
+		sb.append("End\n");
+		String s = sb.toString();
+		FlatFieldSet fs = flat(s, false, false);
+		assertSame(simple(s, false, false), fs);
+		for(int i=0;i<keys.size();i++)
+			assertEquals(Integer.toString(i), fs.get(keys.get(i)));
+		assertNull(fs.get("AaAaAaAaAaAaAaAa.x"));
+		assertNull(fs.get("AaAaAaAaAaAaAaA"));
+		assertNull(fs.get("d"));
+		assertNull(fs.get("g"));
+		assertNull(fs.get("ê"));
+		assertNull(fs.get(""));
+	}
+
+	public void testKeyIterator() throws IOException {
+		FlatFieldSet fs = flat("B=1\nA.C=2\nB=3\nA=4\nEnd\n", true, false);
+		List<String> keys = new ArrayList<String>();
+		for(Iterator<String> it = fs.keyIterator();it.hasNext();)
+			keys.add(it.next());
+		assertEquals(Arrays.asList("B", "A.C", "A"), keys);
+	}
+
+	public void testReadFrom() throws IOException {
+		byte[] data = (CLIENT_PUT + "0123456789").getBytes("UTF-8");
+		InputStream is = new ByteArrayInputStream(data);
+		FlatFieldSet fs = FlatFieldSet.readFrom(is, 4096, true, true);
+		assertSame(simple(CLIENT_PUT, true, true), fs);
+		assertEquals('0', is.read());
+		try {
+			FlatFieldSet.readFrom(new ByteArrayInputStream(new byte[0]), 4096, true, true);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+		try {
+			FlatFieldSet.readFrom(new ByteArrayInputStream(CLIENT_GET.getBytes("UTF-8")), 16, true, true);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		fs = FlatFieldSet.readFrom(new ByteArrayInputStream("A=1\nB=2".getBytes("UTF-8")), 4096, true, true);
+		assertEquals("2", fs.get("B"));
+		assertNull(fs.getEndMarker());
+	}
+
+	public void testRoundTrip() throws IOException {
+		String s = peer(new Random(3));
+		FlatFieldSet fs = flat(s, false, true);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		fs.writeTo(baos);
+		assertEquals(s, new String(baos.toByteArray(), "UTF-8"));
+		SimpleFieldSet sfs = fs.toSimpleFieldSet(true);
+		assertSame(sfs, fs);
+		sfs.putOverwrite("physical.udp", "changed");
+		assertEquals("changed", sfs.get("physical.udp"));
+	}
+
+	/** Something like a Peer message from ListPeers, with the node reference, metadata and volatile
+	 * fields. */
+	private static String peer(Random random) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("lastGoodVersion=Fred,0.7,1.0,1475\n");
+		sb.append("opennet=false\n");
+		sb.append("identity=").append(randomBase64(random, 32)).append('\n');
+		sb.append("myName=Node ").append(random.nextInt(1000)).append('\n');
+		sb.append("location=").append(random.nextDouble()).append('\n');
+		sb.append("testnet=false\n");
+		sb.append("version=Fred,0.7,1.0,1481\n");
+		sb.append("physical.udp=192.168.").append(random.nextInt(256)).append('.').append(random.nextInt(256)).append(':').append(random.nextInt(65536)).append('\n');
+		sb.append("ark.pubURI=SSK@").append(randomBase64(random, 32)).append(',').append(randomBase64(random, 32)).append(",AQACAAE/ark\n");
+		sb.append("ark.number=").append(random.nextInt(1000)).append('\n');
+		sb.append("auth.negTypes=10\n");
+		sb.append("ecdsa.P256.pub=").append(randomBase64(random, 91)).append('\n');
+		sb.append("sigP256=").append(randomBase64(random, 72)).append('\n');
+		sb.append("metadata.routableConnectionCheckCount=").append(random.nextInt(100)).append('\n');
+		sb.append("metadata.hadRoutableConnectionCount=").append(random.nextInt(100)).append('\n');
+		sb.append("metadata.timeLastConnected=").append(System.currentTimeMillis()).append('\n');
+		sb.append("metadata.timeLastReceivedPacket=").append(System.currentTimeMillis()).append('\n');
+		sb.append("metadata.detected.udp=10.0.0.").append(random.nextInt(256)).append(':').append(random.nextInt(65536)).append('\n');
+		sb.append("volatile.averagePingTime=").append(random.nextDouble() * 1000).append('\n');
+		sb.append("volatile.overloadProbability=").append(random.nextDouble()).append('\n');
+		sb.append("volatile.idle=").append(random.nextInt(100000)).append('\n');
+		sb.append("volatile.lastRoutingBackoffReasonRT=ForwardRejectedOverload\n");
+		sb.append("volatile.routingBackoffPercent=").append(random.nextDouble() * 100).append('\n');
+		sb.append("volatile.totalBytesIn=").append(random.nextInt(Integer.MAX_VALUE)).append('\n');
+		sb.append("volatile.totalBytesOut=").append(random.nextInt(Integer.MAX_VALUE)).append('\n');
+		sb.append("volatile.percentTimeRoutableConnection=").append(random.nextDouble() * 100).append('\n');
+		sb.append("volatile.status=CONNECTED\n");
+		sb.append("EndMessage\n");
+		return sb.toString();
+	}
+
+	private static String randomBase64(Random random, int bytes) {
+		byte[] buf = new byte[bytes];
+		random.nextBytes(buf);
+		return Base64.encode(buf);
+	}
+
+	public void testParseBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(4);
+		StringBuilder listPeers = new StringBuilder();
+		for(int i=0;i<100;i++)
+			listPeers.append(peer(random));
+		String[] names = new String[] { "ClientGet", "ClientPut", "ListPeers (100 peers)" };
+		String[] messages = new String[] { CLIENT_GET, CLIENT_PUT, listPeers.toString() };
+		String[][] keys = new String[][] {
+				{ "Identifier", "URI", "Verbosity", "MaxRetries", "PriorityClass", "Persistence", "Global", "ReturnType" },
+				{ "Identifier", "URI", "Verbosity", "MaxRetries", "PriorityClass", "Persistence", "UploadFrom", "DataLength" },
+				{ "identity", "physical.udp", "location", "volatile.status", "volatile.averagePingTime" } };
+		for(int round=0;round<3;round++) {
+			for(int m=0;m<messages.length;m++) {
+				byte[] data = messages[m].getBytes("UTF-8");
+				int iterations = m == 2 ? 1000 : 100000;
+				int dummy = 0;
+				long start = System.nanoTime();
+				for(int i=0;i<iterations;i++) {
+					InputStream is = new ByteArrayInputStream(data);
+					LineReadingInputStream lis = new LineReadingInputStream(is);
+					do {
+						SimpleFieldSet fs = new SimpleFieldSet(lis, 65536, 128, true, true, true);
+						for(String key : keys[m])
+							dummy += fs.get(key).length();
+					} while(is.available() > 0);
+				}
+				long simple = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(int i=0;i<iterations;i++) {
+					InputStream is = new ByteArrayInputStream(data);
+					do {
+						FlatFieldSet fs = FlatFieldSet.readFrom(is, 65536, true, true);
+						for(String key : keys[m])
+							dummy += fs.get(key).length();
+					} while(is.available() > 0);
+				}
+				long flat = System.nanoTime() - start;
+				System.out.println(names[m] + ": parse and read " + keys[m].length + " fields: SimpleFieldSet " +
+						(simple / iterations / 1000.0) + "us, FlatFieldSet " + (flat / iterations / 1000.0) +
+						"us" + (dummy == 0 ? "" : ""));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import junit.framework.TestCase;
+
+public class LogBufferTest extends TestCase {
+
+	private static final int OVERHEAD = LogBuffer.LINE_OVERHEAD;
+
+	public void testOfferPoll() {
+		LogBuffer buffer = new LogBuffer(4, 1000);
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+		assertEquals(0, buffer.offer(new byte[] { 1 }));
+		assertEquals(1 + OVERHEAD, buffer.offer(new byte[] { 2, 2 }));
+		assertEquals(3 + 2 * OVERHEAD, buffer.bytes());
+		assertFalse(buffer.isEmpty());
+		assertEquals(1, buffer.poll()[0]);
+		assertEquals(2 + OVERHEAD, buffer.bytes());
+		assertEquals(2, buffer.poll()[0]);
+		assertNull(buffer.poll());
+		assertEquals(0, buffer.bytes());
+		assertTrue(buffer.isEmpty());
+	}
+
+	public void testFull() {
+		LogBuffer buffer = new LogBuffer(2, 1000);
+		// Go round the ring a few times.
+		for(int i=0;i<5;i++) {
+			assertTrue(buffer.offer(new byte[] { 1 }) >= 0);
+			assertTrue(buffer.offer(new byte[] { 2 }) >= 0);
+			assertEquals(-1, buffer.offer(new byte[] { 3, 3, 3 }));
+			assertEquals(1, buffer.takeDroppedLines());
+			assertEquals(3, buffer.takeDroppedBytes());
+			assertEquals(0, buffer.takeDroppedLines());
+			assertEquals(2 + 2 * OVERHEAD, buffer.bytes());
+			assertEquals(1, buffer.poll()[0]);
+			assertEquals(2, buffer.poll()[0]);
+			assertNull(buffer.poll());
+		}
+	}
+
+	public void testMaxBytes() {
+		LogBuffer buffer = new LogBuffer(100, 200);
+		// One line is always accepted, however big.
+		assertEquals(0, buffer.offer(new byte[500]));
+		assertEquals(-1, buffer.offer(new byte[1]));
+		assertEquals(1, buffer.takeDroppedLines());
+		assertEquals(500, buffer.poll().length);
+		assertEquals(0, buffer.offer(new byte[100]));
+		assertEquals(-1, buffer.offer(new byte[100]));
+		buffer.setMaxBytes(1000);
+		assertEquals(100 + OVERHEAD, buffer.offer(new byte[100]));
+	}
+
+	public void testConcurrentProducers() throws InterruptedException {
+		final LogBuffer buffer = new LogBuffer(64, Long.MAX_VALUE);
+		final int threads = 4;
+		final int lines = 10000;
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final byte producer = (byte) i;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<lines;j++)
+						buffer.offer(new byte[] { producer, (byte) (j >> 16), (byte) (j >> 8), (byte) j });
+				}
+			};
+			t[i].start();
+		}
+		int received = 0;
+		int[] last = new int[threads];
+		for(int i=0;i<threads;i++) last[i] = -1;
+		while(true) {
+			boolean alive = false;
+			for(Thread thread : t)
+				alive |= thread.isAlive();
+			byte[] line = buffer.poll();
+			if(line == null) {
+				if(!alive && buffer.isEmpty()) break;
+				Thread.yield();
+				continue;
+			}
+			received++;
+			int j = ((line[1] & 0xFF) << 16) | ((line[2] & 0xFF) << 8) | (line[3] & 0xFF);
+			// Each thread's lines come out in the order it logged them.
+			assertTrue(j > last[line[0]]);
+			last[line[0]] = j;
+		}
+		assertEquals(threads * lines, received + buffer.takeDroppedLines());
+		assertEquals(0, buffer.bytes());
+	}
+
+}
@@ -17,6 +17,7 @@
 package freenet.support;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -790,6 +791,58 @@ public class SimpleFieldSetTest extends TestCase {
 		assertTrue(sfsCheck.get("foo.blah").equals(""));
 	}
 	
+	public void testWriteToOutputStream() throws IOException {
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.setHeader("Header");
+		sfs.putSingle("Plain", "value");
+		sfs.putSingle("Unicode", "caf\u00e9 \u20ac \ud83d\ude00 \ud800");
+		sfs.putSingle("Sub.Sub.Key", "deep");
+		sfs.putSingle("Sub.Key", "shallow");
+		sfs.setEndMarker("EndMessage");
+		// A small buffer, so the writer has to flush in the middle of characters.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		sfs.writeTo(baos, 5);
+		assertTrue(Arrays.equals(sfs.toString().getBytes("UTF-8"), baos.toByteArray()));
+		
+		sfs = new SimpleFieldSet(true, true);
+		sfs.putSingle("Newline", "a\nb");
+		baos = new ByteArrayOutputStream();
+		sfs.writeTo(baos);
+		assertEquals(sfs.toString(), new String(baos.toByteArray(), "UTF-8"));
+		assertEquals("Newline=="+Base64.encodeUTF8("a\nb")+"\nEnd\n", sfs.toString());
+	}
+
+	public void testWriteBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		// Something like a Peer message from ListPeers.
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.setHeader("Peer");
+		for(int i=0;i<10;i++) {
+			sfs.putSingle("field"+i, "value "+i);
+			sfs.putSingle("metadata.field"+i, Integer.toString(i * 1000003));
+			sfs.putSingle("volatile.field"+i, Double.toString(i / 7.0));
+		}
+		sfs.setEndMarker("EndMessage");
+		int iterations = 100000;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				baos.reset();
+				baos.write(sfs.toString().getBytes("UTF-8"));
+			}
+			long viaString = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++) {
+				baos.reset();
+				sfs.writeTo(baos);
+			}
+			long streaming = System.nanoTime() - start;
+			System.out.println("Writing a SimpleFieldSet: via String "+(viaString / iterations / 1000.0)+
+					"us, streaming "+(streaming / iterations / 1000.0)+"us");
+		}
+	}
+
 	public void testSplit() {
 	    assertTrue(Arrays.equals(SimpleFieldSet.split("blah"), new String[] { "blah" }));
 	    assertTrue(Arrays.equals(SimpleFieldSet.split("blah; blah"), new String[] { "blah", " blah" }));
@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import freenet.node.FastRunnable;
+
+public class TimingWheelTickerTest extends TestCase {
+
+	private TimingWheelTicker ticker;
+
+	@Override
+	protected void setUp() {
+		ticker = new TimingWheelTicker(new PooledExecutor(), 0);
+		ticker.start();
+	}
+
+	/** Records when it ran, on the ticker thread. */
+	private static class Job implements FastRunnable {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile long ranAt;
+
+		@Override
+		public void run() {
+			ranAt = System.currentTimeMillis();
+			runs.incrementAndGet();
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testRunsInOrder() throws InterruptedException {
+		final List<Integer> order = new ArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(3);
+		long start = System.currentTimeMillis();
+		for(final int delay : new int[] { 150, 50, 100 }) {
+			ticker.queueTimedJob(new FastRunnable() {
+				@Override
+				public void run() {
+					synchronized(order) {
+						order.add(delay);
+					}
+					done.countDown();
+				}
+			}, "Job "+delay, delay, true, false);
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		synchronized(order) {
+			assertEquals(50, (int) order.get(0));
+			assertEquals(100, (int) order.get(1));
+			assertEquals(150, (int) order.get(2));
+		}
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testNotEarly() throws InterruptedException {
+		// More than once around the wheel.
+		long delay = TimingWheelTicker.WHEEL_SIZE + 300;
+		Job job = new Job();
+		long start = System.currentTimeMillis();
+		ticker.queueTimedJob(job, "Far", delay, true, false);
+		job.await();
+		assertTrue(job.ranAt - start >= delay);
+		// An absolute time in the past runs straight away.
+		Job past = new Job();
+		ticker.queueTimedJobAbsolute(past, "Past", System.currentTimeMillis() - 1000, true, false);
+		past.await();
+	}
+
+	public void testRemove() throws InterruptedException {
+		Job removed = new Job();
+		Job kept = new Job();
+		ticker.queueTimedJob(removed, "Removed", 100, true, false);
+		ticker.queueTimedJob(kept, "Kept", 200, true, false);
+		assertEquals(2, ticker.queuedJobs());
+		ticker.removeQueuedJob(removed);
+		// Not queued, doesn't throw.
+		ticker.removeQueuedJob(new Job());
+		assertEquals(1, ticker.queuedJobs());
+		kept.await();
+		assertEquals(0, removed.runs.get());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testNoDupes() throws InterruptedException {
+		Job job = new Job();
+		ticker.queueTimedJob(job, "First", 100, false, true);
+		// Later, so ignored.
+		ticker.queueTimedJob(job, "Second", 200, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		job.await();
+		Thread.sleep(200);
+		assertEquals(1, job.runs.get());
+		// Earlier, so replaces the one queued.
+		Job job2 = new Job();
+		long start = System.currentTimeMillis();
+		ticker.queueTimedJob(job2, "Late", 5000, false, true);
+		ticker.queueTimedJob(job2, "Early", 50, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		job2.await();
+		assertTrue(job2.ranAt - start < 5000);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testClockGoesBack() throws InterruptedException {
+		final AtomicLong skew = new AtomicLong();
+		TimingWheelTicker stepped = new TimingWheelTicker(new PooledExecutor(), 0) {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + skew.get();
+			}
+		};
+		stepped.start();
+		Job before = new Job();
+		stepped.queueTimedJob(before, "Before", 50, true, false);
+		before.await();
+		// E.g. NTP correcting the clock, long after the node started.
+		skew.set(-60000);
+		Job after = new Job();
+		long start = System.currentTimeMillis();
+		stepped.queueTimedJob(after, "After", 100, true, false);
+		after.await();
+		assertTrue(after.ranAt - start >= 100);
+		assertEquals(0, stepped.queuedJobs());
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		// Timeouts are nearly always queued and then removed before they fire.
+		final int threads = 4;
+		final int jobs = 100000;
+		for(int round=0;round<3;round++) {
+			final PrioritizedTicker old = new PrioritizedTicker(new PooledExecutor(), 0);
+			old.start();
+			long oldTime = queueAndRemove(old, threads, jobs);
+			long newTime = queueAndRemove(ticker, threads, jobs);
+			System.out.println(threads + " threads, queue and remove " + jobs + " timeouts each: PrioritizedTicker " +
+					(oldTime / jobs / threads) + "ns, TimingWheelTicker " + (newTime / jobs / threads) + "ns");
+		}
+	}
+
+	private static long queueAndRemove(final Ticker ticker, int threads, final int jobs) throws InterruptedException {
+		Thread[] t = new Thread[threads];
+		long start = System.nanoTime();
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					Runnable[] queued = new Runnable[jobs];
+					for(int j=0;j<jobs;j++) {
+						queued[j] = new Job();
+						ticker.queueTimedJob(queued[j], "Timeout", 60000 + j % 1000, false, false);
+					}
+					for(int j=0;j<jobs;j++)
+						ticker.removeQueuedJob(queued[j]);
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t)
+			thread.join();
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import freenet.support.math.TimeHistogram;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static final int NORM = NativeThread.NORM_PRIORITY - 1;
+
+	/** Counts down a latch, after waiting for another one if given. */
+	private static class Job implements PrioRunnable {
+		private final int prio;
+		private final CountDownLatch done;
+		private final CountDownLatch release;
+
+		Job(int prio, CountDownLatch done, CountDownLatch release) {
+			this.prio = prio;
+			this.done = done;
+			this.release = release;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(release != null) release.await();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+	}
+
+	private static int total(int[] counts) {
+		int total = 0;
+		for(int c : counts) total += c;
+		return total;
+	}
+
+	public void testRunsAllPriorities() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		int jobs = 1000;
+		CountDownLatch done = new CountDownLatch(jobs);
+		for(int i=0;i<jobs;i++)
+			executor.execute(new Job(NativeThread.MIN_PRIORITY + i % NativeThread.JAVA_PRIORITY_RANGE, done, null), "Job "+i);
+		await(done);
+		assertEquals(0, total(executor.queuedJobs()));
+		long reported = 0;
+		for(TimeHistogram h : executor.queueTimes())
+			reported += h.countReports();
+		assertEquals(jobs, reported);
+		for(int running : executor.runningThreads())
+			assertTrue(running <= 4);
+	}
+
+	public void testBounded() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(10);
+		for(int i=0;i<10;i++)
+			executor.execute(new Job(NativeThread.NORM_PRIORITY, done, release), "Blocked "+i);
+		// Two threads, both running, the rest queued.
+		long deadline = System.currentTimeMillis() + 10000;
+		while(executor.queuedJobs()[NORM] != 8 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(8, executor.queuedJobs()[NORM]);
+		assertEquals(2, executor.runningThreads()[NORM]);
+		assertEquals(0, executor.waitingThreads()[NORM]);
+		release.countDown();
+		await(done);
+		assertEquals(0, executor.queuedJobs()[NORM]);
+		// Threads wait for more work rather than exiting.
+		deadline = System.currentTimeMillis() + 10000;
+		while(executor.waitingThreads()[NORM] != 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(2, executor.getWaitingThreadsCount());
+		assertEquals(0, executor.runningThreads()[NORM]);
+	}
+
+	public void testStealFromBlockedThread() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(3);
+		final int children = 100;
+		final CountDownLatch childrenDone = new CountDownLatch(children);
+		final CountDownLatch done = new CountDownLatch(1);
+		// Queues jobs on its own deque, then waits for them, so they must be stolen.
+		executor.execute(new PrioRunnable() {
+			@Override
+			public void run() {
+				for(int i=0;i<children;i++)
+					executor.execute(new Job(NativeThread.NORM_PRIORITY, childrenDone, null), "Child "+i);
+				try {
+					if(childrenDone.await(10, TimeUnit.SECONDS))
+						done.countDown();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.NORM_PRIORITY;
+			}
+		}, "Parent");
+		await(done);
+	}
+
+	public void testBadPriority() {
+		WorkStealingExecutor executor = new WorkStealingExecutor(1);
+		try {
+			executor.execute(new Job(NativeThread.MAX_PRIORITY + 1, new CountDownLatch(1), null), "Bad");
+			fail("Accepted bad priority");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		// Bursts of short jobs, as when a lot of messages arrive at once.
+		final int bursts = 100;
+		final int jobs = 1000;
+		for(int round=0;round<3;round++) {
+			long oldTime = runBursts(new PooledExecutor(), bursts, jobs);
+			long newTime = runBursts(new WorkStealingExecutor(Runtime.getRuntime().availableProcessors() * 2), bursts, jobs);
+			System.out.println(bursts + " bursts of " + jobs + " jobs: PooledExecutor " +
+					(oldTime / bursts / jobs) + "ns per job, WorkStealingExecutor " + (newTime / bursts / jobs) + "ns per job");
+		}
+	}
+
+	private static long runBursts(Executor executor, int bursts, int jobs) throws InterruptedException {
+		long start = System.nanoTime();
+		for(int i=0;i<bursts;i++) {
+			CountDownLatch done = new CountDownLatch(jobs);
+			for(int j=0;j<jobs;j++)
+				executor.execute(new Job(NativeThread.NORM_PRIORITY, done, null), "Burst");
+			await(done);
+		}
+		return System.nanoTime() - start;
+	}
+
+}
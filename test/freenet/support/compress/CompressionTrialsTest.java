@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.SHA256;
+import freenet.support.TestProperty;
+import freenet.support.compress.CompressionTrials.Outcome;
+import freenet.support.compress.CompressionTrials.Trial;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class CompressionTrialsTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] CODECS =
+		new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+	private static final int BLOCK_SIZE = 32768;
+
+	private static final CompressionTrials.StartCallback NO_CALLBACK = new CompressionTrials.StartCallback() {
+		@Override
+		public void onStart(COMPRESSOR_TYPE codec, int parallelTrials) {
+			// Ignore.
+		}
+	};
+
+	/** Text-like data: compresses well, but not to nothing. */
+	private static byte[] compressible(int length, long seed) {
+		Random r = new Random(seed);
+		String[] words = { "freenet", "node", "insert", "request", "block", "key", "peer", "the", "a" };
+		byte[] data = new byte[length];
+		for(int i=0;i<length;) {
+			byte[] word = (words[r.nextInt(words.length)]+" ").getBytes();
+			int count = Math.min(word.length, length - i);
+			System.arraycopy(word, 0, data, i, count);
+			i += count;
+		}
+		return data;
+	}
+
+	private static byte[] sha256(byte[] data) {
+		MessageDigest md = SHA256.getMessageDigest();
+		byte[] hash = md.digest(data);
+		SHA256.returnMessageDigest(md);
+		return hash;
+	}
+
+	public void testFitsInOneBlock() throws IOException {
+		byte[] data = compressible(100000, 1);
+		CompressionTrials trials = new CompressionTrials(CODECS, new ArrayBucket(data),
+				new ArrayBucketFactory(), BLOCK_SIZE, HashType.SHA256.bitmask);
+		trials.run(null, NO_CALLBACK);
+		Trial best = trials.chooseBest(BLOCK_SIZE);
+		// The first codec fits, so we don't bother with the second.
+		assertEquals(COMPRESSOR_TYPE.GZIP, best.codec);
+		Trial[] results = trials.getTrials();
+		assertEquals(Outcome.COMPRESSED, results[0].getOutcome());
+		assertEquals(Outcome.CANCELLED, results[1].getOutcome());
+		assertEquals(best.getCompressedSize(), trials.getOutput(best).size());
+		assertTrue(Arrays.equals(sha256(data), HashResult.get(trials.getHashes(), HashType.SHA256)));
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[BLOCK_SIZE * 3 + 100];
+		new Random(2).nextBytes(data);
+		CompressionTrials trials = new CompressionTrials(CODECS, new ArrayBucket(data),
+				new ArrayBucketFactory(), BLOCK_SIZE, HashType.SHA256.bitmask);
+		trials.run(null, NO_CALLBACK);
+		assertNull(trials.chooseBest(BLOCK_SIZE));
+		for(Trial t : trials.getTrials()) {
+			assertEquals(Outcome.TOO_BIG, t.getOutcome());
+			assertNull(trials.getOutput(t));
+		}
+		// Still get the hashes even though compression was aborted.
+		assertTrue(Arrays.equals(sha256(data), HashResult.get(trials.getHashes(), HashType.SHA256)));
+	}
+
+	public void testParallelMatchesSequential() throws IOException {
+		byte[] data = compressible((int) CompressionTrials.MIN_PARALLEL_SIZE * 2, 3);
+		RealCompressor rc = new RealCompressor(CODECS.length);
+		try {
+			CompressionTrials sequential = new CompressionTrials(CODECS, new ArrayBucket(data),
+					new ArrayBucketFactory(), BLOCK_SIZE, HashType.SHA256.bitmask);
+			sequential.run(null, NO_CALLBACK);
+			final int[] maxParallel = new int[1];
+			CompressionTrials parallel = new CompressionTrials(CODECS, new ArrayBucket(data),
+					new ArrayBucketFactory(), BLOCK_SIZE, HashType.SHA256.bitmask);
+			parallel.run(rc, new CompressionTrials.StartCallback() {
+				@Override
+				public void onStart(COMPRESSOR_TYPE codec, int parallelTrials) {
+					synchronized(maxParallel) {
+						maxParallel[0] = Math.max(maxParallel[0], parallelTrials);
+					}
+				}
+			});
+			Trial a = sequential.chooseBest(BLOCK_SIZE);
+			Trial b = parallel.chooseBest(BLOCK_SIZE);
+			assertEquals(a.codec, b.codec);
+			assertEquals(a.getCompressedSize(), b.getCompressedSize());
+			assertEquals(CODECS.length, maxParallel[0]);
+			assertTrue(Arrays.equals(HashResult.get(sequential.getHashes(), HashType.SHA256),
+					HashResult.get(parallel.getHashes(), HashType.SHA256)));
+			// Only the winner is kept.
+			for(Trial t : parallel.getTrials()) {
+				if(t.codec != b.codec)
+					assertNull(parallel.getOutput(t));
+			}
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	public void testBenchmark() throws IOException, InvalidCompressionCodecException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = compressible(16 * 1024 * 1024, 4);
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		RealCompressor rc = new RealCompressor(threads);
+		try {
+			COMPRESSOR_TYPE[] codecs = COMPRESSOR_TYPE.getCompressorsArray(null, false);
+			for(int round=0;round<3;round++) {
+				for(RealCompressor r : new RealCompressor[] { null, rc }) {
+					CompressionTrials trials = new CompressionTrials(codecs, new ArrayBucket(data),
+							new ArrayBucketFactory(), BLOCK_SIZE, 0);
+					trials.run(r, NO_CALLBACK);
+					Trial best = trials.chooseBest(BLOCK_SIZE);
+					System.out.println((r == null ? "Sequential" : "Parallel") + ": " + trials.getTime() +
+							"ms, " + (data.length * 1000L / Math.max(1, trials.getTime())) + " bytes/sec, best " +
+							(best == null ? "none" : best.codec.name) + ": " + trials);
+				}
+			}
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import junit.framework.TestCase;
+
+public class TimeHistogramTest extends TestCase {
+
+	public void testBuckets() {
+		assertEquals(0, TimeHistogram.bucket(-5));
+		assertEquals(0, TimeHistogram.bucket(999));
+		assertEquals(1, TimeHistogram.bucket(MICROSECONDS.toNanos(1)));
+		assertEquals(2, TimeHistogram.bucket(MICROSECONDS.toNanos(3)));
+		assertEquals(3, TimeHistogram.bucket(MICROSECONDS.toNanos(4)));
+		assertEquals(TimeHistogram.BUCKETS - 1, TimeHistogram.bucket(HOURS.toNanos(1)));
+		// Every duration is below the upper bound of its bucket.
+		for(long nanos = 1; nanos < HOURS.toNanos(1); nanos *= 3) {
+			int bucket = TimeHistogram.bucket(nanos);
+			if(bucket < TimeHistogram.BUCKETS - 1)
+				assertTrue(nanos < TimeHistogram.upperBound(bucket));
+			if(bucket > 0)
+				assertTrue(nanos >= TimeHistogram.upperBound(bucket - 1));
+		}
+	}
+
+	public void testPercentile() {
+		TimeHistogram h = new TimeHistogram();
+		assertEquals(0, h.percentile(0.5));
+		for(int i=0;i<98;i++)
+			h.report(MICROSECONDS.toNanos(10));
+		h.report(MILLISECONDS.toNanos(10));
+		h.report(MILLISECONDS.toNanos(10));
+		assertEquals(100, h.countReports());
+		long median = h.percentile(0.5);
+		assertTrue(median >= MICROSECONDS.toNanos(10) && median < MICROSECONDS.toNanos(20));
+		long tail = h.percentile(0.99);
+		assertTrue(tail >= MILLISECONDS.toNanos(10) && tail < MILLISECONDS.toNanos(20));
+		assertEquals(median, h.percentile(0.98));
+	}
+
+}